@@ -0,0 +1,418 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs documents through a chain of stages, each on its own threads and
+ * joined by bounded queues, so a slow stage holds back the ones before it
+ * instead of piling up decoded bitmaps. The last stage writes one JSON line
+ * per document to results.jsonl and then records it in checkpoint.log.
+ *
+ * Each checkpoint line holds the length of results.jsonl after the
+ * document's line. A restarted run skips the documents in the checkpoint
+ * and cuts results.jsonl back to the last recorded length, dropping a line
+ * written just before a kill that never reached the checkpoint. A document
+ * is therefore in the output exactly once, whenever the process dies.
+ *
+ * A stage that throws marks the document failed; it skips the remaining
+ * stages and is written with its error, so one bad scan does not stop the
+ * run.
+ *
+ * setSequential(true) runs every stage of a document on one thread before
+ * the next document starts, as the main screen does; it is there to measure
+ * what the overlap is worth on a given device and document set.
+ */
+public class BatchPipeline {
+    private static final String TAG = "BatchPipeline";
+
+    public static final String RESULTS_FILE = "results.jsonl";
+    public static final String CHECKPOINT_FILE = "checkpoint.log";
+
+    /** One document on its way through the stages; each stage fills in its part. */
+    public static class Document {
+        public final String source;
+        public Object bitmap;           // decode to OCR; Object keeps the runner free of android.graphics
+        public String ocrWithBoxes;
+        public String documentType;
+        public int rotation;            // clockwise degrees the page was turned when photographed
+        public KartuKeluargaRecord record;
+        public HybridRouter.Plan plan;
+        public String json;             // the result as compact JSON, set by the last stage that produced it
+        public String route;
+        public String error;
+        final long[] stageMs;
+
+        Document(String source, int stages) {
+            this.source = source;
+            this.stageMs = new long[stages];
+        }
+    }
+
+    public interface Stage {
+        String name();
+
+        /** Work on doc; throw to fail it. Runs on this stage's threads only. */
+        void process(Document doc) throws Exception;
+    }
+
+    public interface Listener {
+        /** After each document is written, on the writer thread. */
+        void onProgress(Stats stats);
+    }
+
+    /** A snapshot of the run. */
+    public static class Stats {
+        public int total;
+        public int skipped;         // done by an earlier run
+        public int done;            // written by this run, failures included
+        public int failed;
+        public long elapsedMs;
+        public String[] stages;
+        public int[] queueDepths;   // waiting in front of each stage, the writer last
+        public long[] stageMs;      // busy time per stage, summed over its threads
+
+        public double docsPerMinute() {
+            return elapsedMs > 0 ? done * 60000.0 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(Locale.US, "%d/%d docs (%d resumed, %d failed), %.1f docs/min, queues",
+                skipped + done, total, skipped, failed, docsPerMinute()));
+            for (int i = 0; i < stages.length; i++) {
+                sb.append(' ').append(stages[i]).append('=').append(queueDepths[i]);
+            }
+            return sb.toString();
+        }
+
+        /** Where each stage's time went, e.g. "decode 120 ms/doc, ocr 950 ms/doc". */
+        public String stageTimes() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < stageMs.length; i++) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(String.format(Locale.US, "%s %d ms/doc", stages[i], done > 0 ? stageMs[i] / done : 0));
+            }
+            return sb.toString();
+        }
+    }
+
+    // Ends the stream of documents through the queues
+    private static final Document END = new Document("", 0);
+
+    private final File dir;
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<Integer> threads = new ArrayList<>();
+    private final List<Integer> capacities = new ArrayList<>();
+    private final List<BlockingQueue<Document>> queues = new ArrayList<>();
+    private final List<Thread> workers = new CopyOnWriteArrayList<>();   // cancel() comes from other threads
+    private AtomicLong[] busyMs;
+    private volatile boolean cancelled;
+    private boolean sequential;
+    private Listener listener;
+
+    private int total;
+    private int skipped;
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private long startTime;
+
+    /** Results and checkpoint go in dir, which a resumed run must reuse. */
+    public BatchPipeline(File dir) {
+        this.dir = dir;
+    }
+
+    /** Add the next stage, with its thread count and the capacity of the queue in front of it. */
+    public BatchPipeline addStage(Stage stage, int threadCount, int queueCapacity) {
+        stages.add(stage);
+        threads.add(threadCount);
+        capacities.add(queueCapacity);
+        return this;
+    }
+
+    /** Run each document through all stages before starting the next; for comparison only. */
+    public void setSequential(boolean sequential) {
+        this.sequential = sequential;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Stop now; documents not yet written are dropped and a resumed run does them again. */
+    public void cancel() {
+        cancelled = true;
+        for (Thread worker : workers) worker.interrupt();
+    }
+
+    /**
+     * Process the sources not done by an earlier run in dir, blocking until
+     * all are written or the run is cancelled. Returns the final stats.
+     */
+    public Stats run(List<String> sources) throws IOException, InterruptedException {
+        dir.mkdirs();
+        File results = new File(dir, RESULTS_FILE);
+        File checkpoint = new File(dir, CHECKPOINT_FILE);
+        Set<String> finished = new HashSet<>();
+        long resultsLength = recover(checkpoint, results, finished);
+
+        List<String> todo = new ArrayList<>();
+        for (String source : sources) {
+            if (!finished.contains(source)) todo.add(source);
+        }
+        total = sources.size();
+        skipped = total - todo.size();
+        Log.d(TAG, String.format(Locale.US, "%d documents, %d done by an earlier run, %d to go",
+            total, skipped, todo.size()));
+
+        busyMs = new AtomicLong[stages.size()];
+        for (int i = 0; i < stages.size(); i++) {
+            busyMs[i] = new AtomicLong();
+            queues.add(new ArrayBlockingQueue<Document>(capacities.get(i)));
+        }
+        // The writer's queue; a document waits here only while the previous one is synced
+        queues.add(new ArrayBlockingQueue<Document>(Math.max(2, capacities.get(capacities.size() - 1))));
+
+        startTime = System.currentTimeMillis();
+        if (sequential) {
+            startStages(0, stages.size(), 1, "sequential");
+        } else {
+            for (int i = 0; i < stages.size(); i++) startStages(i, i + 1, threads.get(i), stages.get(i).name());
+        }
+        final FileOutputStream resultsOut = new FileOutputStream(results, true);
+        final FileOutputStream checkpointOut = new FileOutputStream(checkpoint, true);
+        final long[] length = {resultsLength};
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(resultsOut, checkpointOut, length);
+            }
+        }, "batch-write");
+        writer.start();
+        workers.add(writer);
+
+        try {
+            BlockingQueue<Document> first = queues.get(0);
+            for (String source : todo) {
+                if (!feed(first, new Document(source, stages.size()))) break;
+            }
+            feed(first, END);
+            writer.join();
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        } finally {
+            for (Thread worker : workers) worker.interrupt();
+            resultsOut.close();
+            checkpointOut.close();
+        }
+        Stats stats = stats();
+        Log.d(TAG, "Batch finished" + (sequential ? " (sequential): " : ": ") + stats + "; " + stats.stageTimes());
+        return stats;
+    }
+
+    /** Queue doc for the first stage, waiting for room; false once the run is cancelled. */
+    private boolean feed(BlockingQueue<Document> first, Document doc) throws InterruptedException {
+        while (!cancelled) {
+            if (first.offer(doc, 100, TimeUnit.MILLISECONDS)) return true;
+        }
+        return false;
+    }
+
+    public Stats stats() {
+        Stats stats = new Stats();
+        stats.total = total;
+        stats.skipped = skipped;
+        stats.done = done.get();
+        stats.failed = failed.get();
+        stats.elapsedMs = System.currentTimeMillis() - startTime;
+        stats.stages = new String[stages.size() + 1];
+        stats.queueDepths = new int[stages.size() + 1];
+        stats.stageMs = new long[stages.size()];
+        for (int i = 0; i < stages.size(); i++) {
+            stats.stages[i] = stages.get(i).name();
+            stats.stageMs[i] = busyMs[i].get();
+        }
+        stats.stages[stages.size()] = "write";
+        for (int i = 0; i < queues.size(); i++) {
+            BlockingQueue<Document> queue = queues.get(i);
+            stats.queueDepths[i] = queue.size() - (queue.contains(END) ? 1 : 0);
+        }
+        return stats;
+    }
+
+    /**
+     * Start count threads that take documents from the queue in front of
+     * stage from and run stages from..to-1 on each, in order.
+     */
+    private void startStages(final int from, final int to, final int count, String name) {
+        final AtomicInteger running = new AtomicInteger(count);
+        final BlockingQueue<Document> in = queues.get(from);
+        final BlockingQueue<Document> out = queues.get(to);
+        for (int t = 0; t < count; t++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Document doc = in.take();
+                            if (doc == END) {
+                                in.put(END);    // for the other threads on this queue
+                                break;
+                            }
+                            for (int index = from; index < to && doc.error == null && !cancelled; index++) {
+                                process(index, doc);
+                            }
+                            if (!cancelled) out.put(doc);
+                        }
+                        // The last thread out passes the end on
+                        if (running.decrementAndGet() == 0) out.put(END);
+                    } catch (InterruptedException e) {
+                        // cancelled
+                    }
+                }
+            }, "batch-" + name + (count > 1 ? "-" + t : ""));
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    private void process(int index, Document doc) throws InterruptedException {
+        Stage stage = stages.get(index);
+        long start = System.currentTimeMillis();
+        try {
+            stage.process(doc);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.w(TAG, stage.name() + " failed on " + doc.source, e);
+            doc.error = stage.name() + ": " + e.getMessage();
+        }
+        long ms = System.currentTimeMillis() - start;
+        doc.stageMs[index] = ms;
+        busyMs[index].addAndGet(ms);
+    }
+
+    private void write(FileOutputStream resultsOut, FileOutputStream checkpointOut, long[] length) {
+        BlockingQueue<Document> in = queues.get(queues.size() - 1);
+        try {
+            while (true) {
+                Document doc = in.take();
+                if (doc == END) break;
+                byte[] line = (toJsonLine(doc) + "\n").getBytes(StandardCharsets.UTF_8);
+                resultsOut.write(line);
+                resultsOut.getFD().sync();
+                length[0] += line.length;
+                // Only a synced line is recorded as done
+                String entry = length[0] + "\t" + doc.source + "\n";
+                checkpointOut.write(entry.getBytes(StandardCharsets.UTF_8));
+                checkpointOut.getFD().sync();
+
+                done.incrementAndGet();
+                if (doc.error != null) failed.incrementAndGet();
+                if (listener != null) listener.onProgress(stats());
+            }
+        } catch (InterruptedException e) {
+            // cancelled
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write batch results, stopping", e);
+            cancel();
+        }
+    }
+
+    /** {"source":..., "document_type":..., "rotation":..., "route":..., "record":{...}} or {"source":..., "error":...}. */
+    static String toJsonLine(Document doc) {
+        StringBuilder sb = new StringBuilder(256 + (doc.json != null ? doc.json.length() : 0));
+        sb.append("{\"source\":").append(JSONObject.quote(doc.source));
+        if (doc.documentType != null) sb.append(",\"document_type\":").append(JSONObject.quote(doc.documentType));
+        if (doc.rotation != 0) sb.append(",\"rotation\":").append(doc.rotation);
+        if (doc.route != null) sb.append(",\"route\":").append(JSONObject.quote(doc.route));
+        if (doc.error != null) {
+            sb.append(",\"error\":").append(JSONObject.quote(doc.error));
+        } else {
+            sb.append(",\"record\":").append(doc.json != null ? doc.json : "null");
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Read the documents an earlier run finished into finished and cut both
+     * files back to the last complete checkpoint line. Returns the length
+     * results.jsonl is cut to.
+     */
+    private static long recover(File checkpoint, File results, Set<String> finished) throws IOException {
+        long resultsLength = 0;
+        long checkpointLength = 0;
+        if (checkpoint.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(checkpoint), StandardCharsets.UTF_8));
+            try {
+                long position = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    position += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    int tab = line.indexOf('\t');
+                    if (tab <= 0 || position > checkpoint.length()) break;   // torn by a kill
+                    resultsLength = Long.parseLong(line.substring(0, tab));
+                    finished.add(line.substring(tab + 1));
+                    checkpointLength = position;
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Checkpoint ends in a damaged line, resuming before it");
+            } finally {
+                reader.close();
+            }
+        }
+        truncate(checkpoint, checkpointLength);
+        if (results.exists() && results.length() > resultsLength) {
+            Log.d(TAG, "Dropping " + (results.length() - resultsLength) + " result bytes written after the last checkpoint");
+        }
+        truncate(results, resultsLength);
+        return resultsLength;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        if (!file.exists() && length == 0) return;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != length) raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,515 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Icon;
+import android.net.Uri;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs a folder or a selection of images through BatchPipeline as a
+ * foreground service: decode, OCR with classification, rule extraction and,
+ * when asked for, the LLM on the pages the router sends to it. Results go to
+ * batch/<run>/results.jsonl under the app's external files.
+ *
+ * The service is restarted with its intent after the process is killed, and
+ * the run picks up from its checkpoint. The expanded source list is saved in
+ * the run directory the first time, so a resumed run sees the same
+ * documents in the same order even if the folder has changed since.
+ */
+public class BatchService extends Service {
+    private static final String TAG = "BatchService";
+
+    public static final String ACTION_CANCEL = "com.tencent.ppocrv5ncnn.action.CANCEL_BATCH";
+    public static final String EXTRA_SOURCES = "sources";       // String[] of image content URIs
+    public static final String EXTRA_TREE = "tree";             // folder URI from ACTION_OPEN_DOCUMENT_TREE
+    public static final String EXTRA_RUN = "run";               // output directory name; the same name resumes
+    public static final String EXTRA_MODEL = "model";           // 0 = mobile, 1 = server
+    public static final String EXTRA_CPUGPU = "cpugpu";
+    public static final String EXTRA_USE_LLM = "use_llm";
+    public static final String EXTRA_SEQUENTIAL = "sequential";    // one document at a time, to compare
+
+    private static final String SOURCES_FILE = "sources.txt";
+    private static final String CHANNEL_ID = "batch";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int SUMMARY_NOTIFICATION_ID = 2;   // stays after the service stops
+    private static final long NOTIFY_INTERVAL_MS = 1000;
+
+    // Decoded bitmaps are the memory hog: the OCR queue plus one per decode thread wait at most,
+    // and together they stay within a quarter of the heap
+    private static final int DECODE_THREADS = 2;
+    private static final int DECODE_QUEUE = 4;
+    private static final int OCR_QUEUE = 2;
+    private static final int EXTRACT_QUEUE = 4;
+    private static final int LLM_QUEUE = 8;
+
+    private final PPOCRv5Ncnn ocr = new PPOCRv5Ncnn();
+    private ExecutorService runner;     // one run at a time, later ones wait their turn
+    private NotificationManager notifications;
+    private volatile BatchPipeline current;
+    private long lastNotify;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        runner = Executors.newSingleThreadExecutor();
+        notifications = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notifications.createNotificationChannel(new NotificationChannel(CHANNEL_ID, "Batch processing",
+                NotificationManager.IMPORTANCE_LOW));
+        }
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, final int startId) {
+        if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+            BatchPipeline pipeline = current;
+            if (pipeline != null) pipeline.cancel();
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+        final String run = (intent != null) ? intent.getStringExtra(EXTRA_RUN) : null;
+        if (run == null) {
+            Log.e(TAG, "Batch started without a run name");
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+
+        Notification notification = notification(run, "Starting", 0, 0);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+        runner.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runBatch(intent, run);
+                // Stops only if no later run was queued meanwhile
+                stopSelf(startId);
+            }
+        });
+        // Redelivered after a kill, so the run resumes from its checkpoint
+        return START_REDELIVER_INTENT;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        BatchPipeline pipeline = current;
+        if (pipeline != null) pipeline.cancel();
+        runner.shutdownNow();
+        super.onDestroy();
+    }
+
+    public static File runDirectory(Context context, String run) {
+        File base = context.getExternalFilesDir("batch");
+        if (base == null) base = new File(context.getFilesDir(), "batch");
+        return new File(base, run);
+    }
+
+    private void runBatch(Intent intent, String run) {
+        File dir = runDirectory(this, run);
+        LlmEngine llm = null;
+        try {
+            List<String> sources = sources(dir, intent);
+            if (!PPOCRv5Ncnn.isLoaded()) {
+                int cpugpu = intent.getIntExtra(EXTRA_CPUGPU, 0);
+                // Same size rule as the main screen: GPU can handle 960, CPU 640
+                ocr.loadModel(getAssets(), new ModelStore(this), intent.getIntExtra(EXTRA_MODEL, 0),
+                    (cpugpu >= 1) ? 3 : 2, cpugpu);
+            }
+            TemplateRegistry registry = TemplateRegistry.load(getAssets());
+            if (intent.getBooleanExtra(EXTRA_USE_LLM, false)) llm = llmEngine();
+
+            // In KB, as a Semaphore counts ints; a decode waits until OCR has released enough
+            int budgetKb = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4 / 1024);
+            Semaphore pixels = new Semaphore(budgetKb);
+            // Each decode thread gets a released page back to decode into
+            ImageLoader loader = new ImageLoader(getContentResolver(), ImageLoader.MAX_SIDE, DECODE_THREADS);
+            BatchPipeline pipeline = new BatchPipeline(dir)
+                .addStage(decodeStage(loader, pixels, budgetKb), DECODE_THREADS, DECODE_QUEUE)
+                .addStage(ocrStage(registry, loader, pixels, budgetKb), 1, OCR_QUEUE)
+                .addStage(extractStage(registry), 1, EXTRACT_QUEUE);
+            if (llm != null) pipeline.addStage(llmStage(llm, registry.kartuKeluarga()), 1, LLM_QUEUE);
+            pipeline.setSequential(intent.getBooleanExtra(EXTRA_SEQUENTIAL, false));
+            final String title = run;
+            pipeline.setListener(new BatchPipeline.Listener() {
+                @Override
+                public void onProgress(BatchPipeline.Stats stats) {
+                    long now = System.currentTimeMillis();
+                    if (now - lastNotify < NOTIFY_INTERVAL_MS && stats.skipped + stats.done < stats.total) return;
+                    lastNotify = now;
+                    notifications.notify(NOTIFICATION_ID,
+                        notification(title, stats.toString(), stats.total, stats.skipped + stats.done));
+                }
+            });
+            current = pipeline;
+            BatchPipeline.Stats stats = pipeline.run(sources);
+            Log.d(TAG, "Batch " + run + ": heap peaked at " + loader.peakHeapBytes() / 1048576 + " MB after a decode");
+            boolean finished = stats.skipped + stats.done == stats.total;
+            notifications.notify(SUMMARY_NOTIFICATION_ID,
+                notification(title, (finished ? "Done: " : "Cancelled: ") + stats, 0, 0));
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Batch " + run + " interrupted");
+        } catch (Exception e) {
+            Log.e(TAG, "Batch " + run + " failed", e);
+            notifications.notify(SUMMARY_NOTIFICATION_ID, notification(run, "Failed: " + e.getMessage(), 0, 0));
+        } finally {
+            current = null;
+            if (llm != null) llm.close();
+        }
+    }
+
+    /** The run's sources as saved by its first start, or expanded from the intent and saved now. */
+    private List<String> sources(File dir, Intent intent) throws IOException {
+        File saved = new File(dir, SOURCES_FILE);
+        List<String> sources = new ArrayList<>();
+        if (saved.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(saved), StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) sources.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+            return sources;
+        }
+
+        String[] uris = intent.getStringArrayExtra(EXTRA_SOURCES);
+        if (uris != null) Collections.addAll(sources, uris);
+        String tree = intent.getStringExtra(EXTRA_TREE);
+        if (tree != null) {
+            Uri treeUri = Uri.parse(tree);
+            listImages(treeUri, DocumentsContract.getTreeDocumentId(treeUri), sources);
+        }
+
+        dir.mkdirs();
+        File tmp = new File(dir, SOURCES_FILE + ".tmp");
+        StringBuilder sb = new StringBuilder();
+        for (String source : sources) sb.append(source).append('\n');
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(saved)) throw new IOException("Cannot save the source list in " + dir);
+        return sources;
+    }
+
+    /** Add the images under a folder document, subfolders included, sorted by name. */
+    private void listImages(Uri tree, String documentId, List<String> out) {
+        Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(tree, documentId);
+        List<String[]> entries = new ArrayList<>();
+        Cursor cursor = getContentResolver().query(children, new String[] {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE}, null, null, null);
+        if (cursor == null) return;
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(new String[] {cursor.getString(1), cursor.getString(0), cursor.getString(2)});
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(entries, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                return String.valueOf(a[0]).compareTo(String.valueOf(b[0]));
+            }
+        });
+        for (String[] entry : entries) {
+            String mime = entry[2];
+            if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mime)) {
+                listImages(tree, entry[1], out);
+            } else if (mime != null && mime.startsWith("image/")) {
+                out.add(DocumentsContract.buildDocumentUriUsingTree(tree, entry[1]).toString());
+            }
+        }
+    }
+
+    private LlmEngine llmEngine() {
+        ModelStore.Entry model = new ModelStore(this).use(ModelStore.ROLE_LLM);
+        if (model == null) {
+            Log.w(TAG, "No LLM model installed, the batch runs on the rules alone");
+            return null;
+        }
+        LlmEngine engine = new RemoteLlmClient(this);
+        if (!engine.configure(this, model.file(ModelStore.LLM_FILE).getPath())) {
+            engine.close();
+            return null;
+        }
+        return engine;
+    }
+
+    /** KB of a decoded page, capped so one image bigger than the budget still goes through alone. */
+    private static int kilobytes(long bytes, int budgetKb) {
+        return (int) Math.min(budgetKb, bytes / 1024);
+    }
+
+    private BatchPipeline.Stage decodeStage(final ImageLoader loader, final Semaphore pixels, final int budgetKb) {
+        return new BatchPipeline.Stage() {
+            @Override
+            public String name() {
+                return "decode";
+            }
+
+            @Override
+            public void process(BatchPipeline.Document doc) throws Exception {
+                Uri uri = Uri.parse(doc.source);
+                ImageLoader.Result image = loader.measure(uri);
+                int kb = kilobytes(image.bytes(), budgetKb);
+                pixels.acquire(kb);
+                Bitmap page = null;
+                try {
+                    Bitmap decoded = loader.decode(uri, image).bitmap;
+                    // Never more pixels than the decode, so the budget taken covers the page
+                    page = DocumentRectifier.rectify(ocr, decoded, loader).bitmap;
+                    if (page != decoded) loader.release(decoded);
+                } finally {
+                    if (page == null) pixels.release(kb);
+                }
+                // OCR releases what the page actually holds: the decoder may round the sampled
+                // size the other way, and a cropped page is smaller
+                int actual = kilobytes((long) page.getWidth() * page.getHeight() * 4, budgetKb);
+                if (actual < kb) {
+                    pixels.release(kb - actual);
+                } else if (actual > kb) {
+                    // Waiting for the rest while holding kb deadlocks when every decode thread does it,
+                    // so all of it is taken again; meanwhile the page is over budget by at most its size
+                    pixels.release(kb);
+                    try {
+                        pixels.acquire(actual);
+                    } catch (InterruptedException e) {
+                        loader.release(page);
+                        throw e;
+                    }
+                }
+                doc.bitmap = page;
+            }
+        };
+    }
+
+    private BatchPipeline.Stage ocrStage(final TemplateRegistry registry, final ImageLoader loader,
+                                         final Semaphore pixels, final int budgetKb) {
+        return new BatchPipeline.Stage() {
+            @Override
+            public String name() {
+                return "ocr";
+            }
+
+            @Override
+            public void process(BatchPipeline.Document doc) throws Exception {
+                Bitmap bitmap = (Bitmap) doc.bitmap;
+                doc.bitmap = null;
+                int kb = kilobytes((long) bitmap.getWidth() * bitmap.getHeight() * 4, budgetKb);
+                Bitmap page = bitmap;
+                try {
+                    // Turn sideways and upside-down pages upright once, before anything reads lines
+                    PageOrientation.Result orientation = PageOrientation.estimate(ocr, bitmap, loader);
+                    if (orientation.isRotated()) {
+                        page = orientation.bitmap;
+                        loader.release(bitmap);
+                        bitmap = null;
+                    }
+                    doc.rotation = orientation.rotation;
+
+                    // Unsupported pages skip recognition, as on the main screen
+                    DocumentClassifier.Result classification =
+                        DocumentClassifier.classify(ocr, page, registry, orientation.boxes);
+                    if (!classification.isSupported()) {
+                        throw new Exception("Unsupported document: " + classification.reason);
+                    }
+                    doc.documentType = classification.documentType;
+                    doc.ocrWithBoxes = DocumentClassifier.recognize(ocr, page, classification, registry);
+                } finally {
+                    pixels.release(kb);
+                    loader.release(page);
+                    if (bitmap != null && bitmap != page) loader.release(bitmap);
+                }
+            }
+        };
+    }
+
+    private BatchPipeline.Stage extractStage(final TemplateRegistry registry) {
+        return new BatchPipeline.Stage() {
+            @Override
+            public String name() {
+                return "extract";
+            }
+
+            @Override
+            public void process(BatchPipeline.Document doc) {
+                if ("kartu_keluarga".equals(doc.documentType)) {
+                    doc.plan = HybridRouter.plan(doc.ocrWithBoxes, registry.kartuKeluarga());
+                    doc.record = doc.plan.record;
+                    doc.json = RecordWriter.toJson(doc.record);
+                } else {
+                    doc.json = TemplateExtractor.extract(doc.ocrWithBoxes, registry, doc.documentType);
+                }
+                doc.route = "rules";
+            }
+        };
+    }
+
+    /** The router's LLM routes for Kartu Keluarga; a failed call keeps the rules' result. */
+    private BatchPipeline.Stage llmStage(final LlmEngine llm, final SpatialExtractor.Template template) {
+        return new BatchPipeline.Stage() {
+            @Override
+            public String name() {
+                return "llm";
+            }
+
+            @Override
+            public void process(BatchPipeline.Document doc) throws Exception {
+                HybridRouter.Plan plan = doc.plan;
+                if (plan == null || plan.route == HybridRouter.Route.RULES) return;
+                try {
+                    if (plan.route == HybridRouter.Route.TARGETED) {
+                        HybridRouter.merge(plan, llm.generateText(llmKey(doc), plan.prompt));
+                        doc.json = RecordWriter.toJson(plan.record);
+                        doc.route = "targeted";
+                    } else {
+                        doc.json = structure(llm, llmKey(doc), doc.ocrWithBoxes, template, plan.record.members.size());
+                        doc.route = "llm";
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    Log.w(TAG, "LLM failed on " + doc.source + ", keeping the rules' result", e);
+                    doc.route = "rules, llm failed";
+                }
+            }
+        };
+    }
+
+    /**
+     * Queue key of a document's LLM calls: unique, so batch calls never supersede one
+     * another or the main screen's, and a cancelled run can stop the running one.
+     */
+    private static String llmKey(BatchPipeline.Document doc) {
+        return "batch:" + doc.source;
+    }
+
+    /** The full LLM pass, blocking; input compacted as on the main screen. */
+    private static String structure(final LlmEngine llm, String key, String ocrWithBoxes,
+                                    SpatialExtractor.Template template, int expectedMembers) throws Exception {
+        LayoutCompactor.Result compacted = LayoutCompactor.compact(ocrWithBoxes, template,
+            llm.inputTokenBudget(expectedMembers), new LayoutCompactor.TokenCounter() {
+                @Override
+                public int[] count(List<String> texts) {
+                    return llm.countTokens(texts);
+                }
+            });
+        String input = !compacted.text.isEmpty() ? compacted.text : SpatialExtractor.toSpatialText(ocrWithBoxes);
+
+        final String[] reply = new String[2];   // result, error
+        final CountDownLatch done = new CountDownLatch(1);
+        llm.structureKartuKeluargaAsync(key, input, expectedMembers, new LlmHelper.LlmCallback() {
+            @Override
+            public void onResult(String result) {
+                reply[0] = result;
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                reply[1] = error;
+                done.countDown();
+            }
+
+            @Override
+            public void onPartialResult(String partialResult) {
+            }
+
+            @Override
+            public void onField(String key, String value) {
+            }
+
+            @Override
+            public void onMember(int index, FamilyMember member) {
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            llm.cancel(key);
+            throw e;
+        }
+        if (reply[1] != null) throw new Exception(reply[1]);
+        // Compact and check it is JSON before it goes in a JSON line
+        return new JSONObject(reply[0]).toString();
+    }
+
+    private Notification notification(String run, String text, int max, int progress) {
+        Notification.Builder builder = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            ? new Notification.Builder(this, CHANNEL_ID) : new Notification.Builder(this);
+        Intent cancel = new Intent(this, BatchService.class).setAction(ACTION_CANCEL);
+        PendingIntent cancelIntent = PendingIntent.getService(this, 0, cancel, PendingIntent.FLAG_IMMUTABLE);
+        return builder.setContentTitle("Batch " + run)
+            .setContentText(text)
+            .setStyle(new Notification.BigTextStyle().bigText(text))
+            .setSmallIcon(android.R.drawable.stat_notify_sync)
+            .setOnlyAlertOnce(true)
+            .setProgress(max, progress, false)
+            .addAction(new Notification.Action.Builder(
+                Icon.createWithResource(this, android.R.drawable.ic_menu_close_clear_cancel),
+                "Cancel", cancelIntent).build())
+            .build();
+    }
+}
@@ -0,0 +1,118 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+/**
+ * Push parser for the compact LLM output format, expanded into a
+ * KartuKeluargaRecord as lines arrive:
+ * <pre>
+ * KK|no_kk|kepala_keluarga|alamat|rt_rw|desa_kelurahan|kecamatan|kabupaten_kota|provinsi
+ * M|nama|nik|jenis_kelamin|...|nama_ibu      (one line per member, MEMBER_COLUMNS order)
+ * </pre>
+ * Values are positional, so no key names are generated. Missing trailing
+ * values stay empty, extra ones are ignored, and any other line (prose,
+ * markdown fences) is skipped. A line that starts with anything else after
+ * the member lines ends the record; later input is ignored.
+ */
+public class CompactRecordParser {
+
+    static final String HEADER_TAG = "KK";
+    static final String MEMBER_TAG = "M";
+
+    /** Member columns in the order the prompt lists them, as in the member table. */
+    static final String[] MEMBER_COLUMNS = {
+        "nama", "nik", "jenis_kelamin", "tempat_lahir", "tanggal_lahir", "agama", "pendidikan",
+        "pekerjaan", "status_perkawinan", "hubungan_keluarga", "kewarganegaraan", "nama_ayah", "nama_ibu"
+    };
+
+    public interface Listener {
+        void onField(String key, String value);
+        void onMember(int index, FamilyMember member);
+    }
+
+    private final Listener listener;
+    private final StringBuilder line = new StringBuilder();
+    private final KartuKeluargaRecord record = new KartuKeluargaRecord();
+    private boolean headerSeen;
+    private boolean lineStarted;
+    private boolean done;
+
+    public CompactRecordParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(CharSequence chunk) {
+        for (int i = 0; i < chunk.length() && !done; i++) {
+            char c = chunk.charAt(i);
+            if (c == '\n') {
+                parseLine(line.toString());
+                line.setLength(0);
+                lineStarted = false;
+                continue;
+            }
+            if (!lineStarted && !Character.isWhitespace(c)) {
+                lineStarted = true;
+                if (!record.members.isEmpty() && c != MEMBER_TAG.charAt(0)) {
+                    // Trailing commentary or a closing fence
+                    done = true;
+                    break;
+                }
+            }
+            line.append(c);
+        }
+    }
+
+    /** True once the member lines ended, i.e. the rest of the response is not needed. */
+    public boolean isDone() {
+        return done;
+    }
+
+    /** Parse a last line without newline and return the expanded record. */
+    public KartuKeluargaRecord finish() {
+        if (line.length() > 0) {
+            parseLine(line.toString());
+            line.setLength(0);
+        }
+        return record;
+    }
+
+    private void parseLine(String text) {
+        String[] parts = text.trim().split("\\|", -1);
+        if (parts.length < 2) return;
+        String tag = parts[0].trim();
+        String first = parts[1].trim();
+        // The schema lines of the prompt echoed back
+        if (first.equals(KartuKeluargaRecord.HEADER_KEYS[0]) || first.equals(MEMBER_COLUMNS[0])) return;
+
+        if (tag.equals(HEADER_TAG) && !headerSeen) {
+            headerSeen = true;
+            int fields = Math.min(parts.length - 1, KartuKeluargaRecord.HEADER_KEYS.length);
+            for (int f = 0; f < fields; f++) {
+                String value = parts[f + 1].trim();
+                record.setHeader(f, value);
+                if (listener != null) listener.onField(KartuKeluargaRecord.HEADER_KEYS[f], value);
+            }
+        } else if (tag.equals(MEMBER_TAG)) {
+            FamilyMember member = new FamilyMember();
+            int columns = Math.min(parts.length - 1, MEMBER_COLUMNS.length);
+            for (int c = 0; c < columns; c++) {
+                member.set(MEMBER_COLUMNS[c], parts[c + 1].trim());
+            }
+            if (member.isEmpty()) return;
+            record.members.add(member);
+            if (listener != null) listener.onMember(record.members.size() - 1, member);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the document type from detection output before the page is recognized.
+ *
+ * Only the detector runs on the whole page. The classifier looks at the box
+ * count, how boxes spread over the page and whether rows form a table grid,
+ * then recognizes a handful of wide boxes from the header band and matches
+ * them against each template's classify keywords. Pages that match no
+ * template are rejected without full recognition.
+ */
+public class DocumentClassifier {
+    private static final String TAG = "DocumentClassifier";
+
+    private static final int MIN_BOXES = 4;
+    private static final int HEADER_CROPS = 6;
+    private static final float HEADER_BAND = 0.3f;   // top of the content bbox
+    private static final int GRID_ROW_BOXES = 6;     // boxes in a row that make it a table row
+    private static final int BANDS = 8;
+    private static final float MIN_TEXT_ASPECT = 1.5f;
+
+    static class Result {
+        String documentType;        // template id, null when rejected
+        String reason;
+        List<DocumentLayout.TextBox> boxes;  // reading order once classified
+        float[] packed;             // all boxes, for PPOCRv5Ncnn.recognizeDetected
+        float left, top, right, bottom;  // bbox of all detected text
+        int gridRows;
+        int occupiedBands;
+        float medianAspect;
+        String headerText;
+        long elapsedMs;
+
+        // Filled by recognize()
+        int recognizedBoxes;
+        int skippedBoxes;
+
+        boolean isSupported() {
+            return documentType != null;
+        }
+
+        /** Template field regions placed on this page, empty when the template has none. */
+        float[] regions(DocumentTemplate template) {
+            if (template == null || !template.hasRegions()) return new float[0];
+            return template.regionsInPixels(left, top, right, bottom);
+        }
+    }
+
+    public static Result classify(PPOCRv5Ncnn ocr, Bitmap bitmap, TemplateRegistry registry) {
+        return classify(ocr, bitmap, registry, (List<DocumentLayout.TextBox>) null);
+    }
+
+    /** Classify from boxes already detected on bitmap, e.g. by PageOrientation; null detects here. */
+    public static Result classify(PPOCRv5Ncnn ocr, Bitmap bitmap, TemplateRegistry registry,
+                                  List<DocumentLayout.TextBox> detected) {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        try {
+            result.boxes = (detected != null) ? new ArrayList<>(detected)
+                : DocumentLayout.parseBoxes(new JSONArray(ocr.detectImage(bitmap)));
+            classify(ocr, bitmap, registry, result);
+            result.packed = DocumentLayout.packRotated(result.boxes);
+        } catch (Exception e) {
+            Log.e(TAG, "Classification failed", e);
+            result.documentType = null;
+            result.reason = "Classification failed: " + e.getMessage();
+        }
+        result.elapsedMs = System.currentTimeMillis() - start;
+        Log.d(TAG, String.format(Locale.US, "%s in %d ms (%d boxes, %d grid rows, %d bands, aspect %.1f): %s",
+            result.documentType != null ? result.documentType : "rejected", result.elapsedMs,
+            result.boxes != null ? result.boxes.size() : 0, result.gridRows, result.occupiedBands,
+            result.medianAspect, result.reason));
+        return result;
+    }
+
+    /**
+     * Recognize a supported page from its detection. When the template has
+     * field regions, boxes outside them are skipped natively. Returns the
+     * boxes JSON of recognizeImageWithBoxes.
+     */
+    public static String recognize(PPOCRv5Ncnn ocr, Bitmap bitmap, Result result, TemplateRegistry registry) {
+        return recognize(ocr, bitmap, result, registry, null);
+    }
+
+    /**
+     * Same, passing each line to the listener as soon as it is recognized.
+     * Listener indices refer to result.boxes.
+     */
+    public static String recognize(PPOCRv5Ncnn ocr, Bitmap bitmap, Result result, TemplateRegistry registry,
+                                   PPOCRv5Ncnn.LineListener listener) {
+        float[] regions = result.regions(registry.get(result.documentType));
+        if (regions.length == 0 && listener == null) {
+            result.recognizedBoxes = result.boxes.size();
+            return ocr.recognizeDetected(bitmap, result.packed);
+        }
+
+        try {
+            String response = (listener != null)
+                ? ocr.recognizeDetectedStreaming(bitmap, result.packed, regions, listener)
+                : ocr.recognizeDetectedInRegions(bitmap, result.packed, regions);
+            JSONObject json = new JSONObject(response);
+            result.recognizedBoxes = json.getInt("recognized");
+            result.skippedBoxes = json.getInt("skipped");
+            Log.d(TAG, String.format(Locale.US, "%s: recognized %d, skipped %d boxes outside template regions",
+                result.documentType, result.recognizedBoxes, result.skippedBoxes));
+            return json.getJSONArray("boxes").toString();
+        } catch (Exception e) {
+            Log.e(TAG, "Region recognition failed, recognizing all boxes", e);
+            result.recognizedBoxes = result.boxes.size();
+            result.skippedBoxes = 0;
+            return ocr.recognizeDetected(bitmap, result.packed);
+        }
+    }
+
+    private static void classify(PPOCRv5Ncnn ocr, Bitmap bitmap, TemplateRegistry registry, Result result) throws Exception {
+        List<DocumentLayout.TextBox> boxes = result.boxes;
+        if (boxes.size() < MIN_BOXES) {
+            result.reason = "Too little text (" + boxes.size() + " boxes)";
+            return;
+        }
+
+        // Layout features; fromBoxes sorts in place, so work on a copy. Boxes are
+        // recognized in reading order from here on, so header lines stream first
+        DocumentLayout layout = DocumentLayout.fromBoxes(new ArrayList<>(boxes));
+        result.boxes = layout.boxes;
+        for (List<DocumentLayout.TextBox> row : layout.rows) {
+            if (row.size() >= GRID_ROW_BOXES) result.gridRows++;
+        }
+        float left = Float.MAX_VALUE, top = Float.MAX_VALUE, right = 0, bottom = 0;
+        for (DocumentLayout.TextBox box : boxes) {
+            left = Math.min(left, box.x);
+            top = Math.min(top, box.y);
+            right = Math.max(right, box.right());
+            bottom = Math.max(bottom, box.bottom());
+        }
+        result.left = left;
+        result.top = top;
+        result.right = right;
+        result.bottom = bottom;
+        result.occupiedBands = occupiedBands(boxes, top, bottom);
+        result.medianAspect = medianAspect(boxes);
+        if (result.medianAspect < MIN_TEXT_ASPECT) {
+            // Mostly square detections: texture or clutter, not lines of text
+            result.reason = "No text lines found";
+            return;
+        }
+
+        // Recognize only the widest boxes of the header band
+        List<DocumentLayout.TextBox> header = new ArrayList<>();
+        float headerBottom = top + (bottom - top) * HEADER_BAND;
+        for (DocumentLayout.TextBox box : boxes) {
+            if (box.cy <= headerBottom) header.add(box);
+        }
+        Collections.sort(header, new Comparator<DocumentLayout.TextBox>() {
+            @Override
+            public int compare(DocumentLayout.TextBox a, DocumentLayout.TextBox b) {
+                return Float.compare(b.w, a.w);
+            }
+        });
+        if (header.size() > HEADER_CROPS) header = header.subList(0, HEADER_CROPS);
+
+        StringBuilder headerText = new StringBuilder();
+        List<DocumentLayout.TextBox> recognized = DocumentLayout.parseBoxes(
+            new JSONArray(ocr.recognizeDetected(bitmap, DocumentLayout.packRotated(header))));
+        for (DocumentLayout.TextBox box : recognized) {
+            if (headerText.length() > 0) headerText.append(" ");
+            headerText.append(box.text);
+        }
+        result.headerText = headerText.toString();
+
+        int[] keywordHits = registry.classifyHits(result.headerText.toLowerCase(Locale.ROOT));
+        int best = bestTemplate(registry, result, keywordHits);
+        if (best >= 0) {
+            result.documentType = registry.templates().get(best).id;
+            result.reason = keywordHits[best] > 0
+                ? keywordHits[best] + " header keywords" : "table grid";
+            return;
+        }
+
+        result.reason = "No supported document header";
+    }
+
+    /**
+     * Template with the best score whose box range fits. A template needs a
+     * header keyword, or a table grid when it declares one.
+     */
+    private static int bestTemplate(TemplateRegistry registry, Result result, int[] keywordHits) {
+        int boxCount = result.boxes.size();
+        int best = -1;
+        int bestScore = 0;
+        for (int t = 0; t < registry.templates().size(); t++) {
+            DocumentTemplate.Classify c = registry.templates().get(t).classify;
+            if (boxCount < c.minBoxes || boxCount > c.maxBoxes) continue;
+
+            // A table spans the page; a few crowded rows in one band are not a grid
+            boolean grid = c.minGridRows > 0 && result.gridRows >= c.minGridRows
+                && result.occupiedBands >= BANDS / 2;
+            if (keywordHits[t] == 0 && !grid) continue;
+
+            int score = keywordHits[t] * 2 + (grid ? 3 : 0);
+            if (score > bestScore) {
+                bestScore = score;
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    private static int occupiedBands(List<DocumentLayout.TextBox> boxes, float top, float bottom) {
+        int[] histogram = new int[BANDS];
+        float height = Math.max(bottom - top, 1f);
+        for (DocumentLayout.TextBox box : boxes) {
+            int band = (int) ((box.cy - top) / height * BANDS);
+            histogram[Math.max(0, Math.min(BANDS - 1, band))]++;
+        }
+        int occupied = 0;
+        for (int count : histogram) {
+            if (count > 0) occupied++;
+        }
+        return occupied;
+    }
+
+    private static float medianAspect(List<DocumentLayout.TextBox> boxes) {
+        float[] aspects = new float[boxes.size()];
+        for (int i = 0; i < aspects.length; i++) {
+            DocumentLayout.TextBox box = boxes.get(i);
+            float longSide = Math.max(box.rw, box.rh);
+            float shortSide = Math.max(Math.min(box.rw, box.rh), 1f);
+            aspects[i] = longSide / shortSide;
+        }
+        Arrays.sort(aspects);
+        return aspects.length > 0 ? aspects[aspects.length / 2] : 0f;
+    }
+}
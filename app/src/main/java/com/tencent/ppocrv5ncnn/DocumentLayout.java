@@ -0,0 +1,239 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * OCR boxes of one page in reading order, grouped into rows.
+ * Shared by the extractors so a page is parsed and sorted only once.
+ */
+public class DocumentLayout {
+
+    static class TextBox {
+        String text;
+        float x, y, w, h, cx, cy;
+
+        // Rotated rect and detector output, present when the JSON came from detection
+        float rw, rh, angle;
+        int orientation;
+        float score = 1f;
+        float confidence = 1f;  // mean character probability, when recognized
+
+        TextBox(String text, float x, float y, float w, float h, float cx, float cy) {
+            this.text = text;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.cx = cx;
+            this.cy = cy;
+        }
+
+        float right() { return x + w; }
+        float bottom() { return y + h; }
+    }
+
+    List<TextBox> boxes;
+    List<List<TextBox>> rows;
+    float avgHeight;
+    float rowThreshold;
+
+    // Per-row joined text, and the start offset of each box inside it
+    private String[] rowTexts;
+    private String[] rowTextsLower;
+    private int[][] boxOffsets;
+
+    private DocumentLayout(List<TextBox> boxes) {
+        this.boxes = boxes;
+        this.avgHeight = calculateAverageHeight(boxes);
+        this.rowThreshold = avgHeight * 0.7f;
+        sortByReadingOrder(boxes, rowThreshold);
+        this.rows = groupIntoRows(boxes, rowThreshold);
+    }
+
+    // ---- construction ----
+
+    /** Parse the JSON produced by PPOCRv5Ncnn.recognizeImageWithBoxes. */
+    public static DocumentLayout parse(String ocrJsonWithBoxes) throws Exception {
+        return fromBoxes(parseBoxes(new JSONArray(ocrJsonWithBoxes)));
+    }
+
+    static DocumentLayout fromBoxes(List<TextBox> boxes) {
+        return new DocumentLayout(boxes);
+    }
+
+    static List<TextBox> parseBoxes(JSONArray boxes) throws Exception {
+        List<TextBox> textBoxes = new ArrayList<>();
+        for (int i = 0; i < boxes.length(); i++) {
+            JSONObject box = boxes.getJSONObject(i);
+            TextBox textBox = new TextBox(
+                box.optString("text", ""),
+                (float) box.getDouble("x"),
+                (float) box.getDouble("y"),
+                (float) box.getDouble("w"),
+                (float) box.getDouble("h"),
+                (float) box.getDouble("cx"),
+                (float) box.getDouble("cy")
+            );
+            textBox.rw = (float) box.optDouble("rw", textBox.w);
+            textBox.rh = (float) box.optDouble("rh", textBox.h);
+            textBox.angle = (float) box.optDouble("a", 0);
+            textBox.orientation = box.optInt("o", 0);
+            textBox.score = (float) box.optDouble("p", 1);
+            textBox.confidence = (float) box.optDouble("c", 1);
+            textBoxes.add(textBox);
+        }
+        return textBoxes;
+    }
+
+    /**
+     * Pack rotated rects for PPOCRv5Ncnn.recognizeDetected, 7 floats per box:
+     * cx, cy, rw, rh, angle, orientation, detector score.
+     */
+    static float[] packRotated(List<TextBox> boxes) {
+        float[] packed = new float[boxes.size() * 7];
+        for (int i = 0; i < boxes.size(); i++) {
+            TextBox box = boxes.get(i);
+            packed[i * 7] = box.cx;
+            packed[i * 7 + 1] = box.cy;
+            packed[i * 7 + 2] = box.rw;
+            packed[i * 7 + 3] = box.rh;
+            packed[i * 7 + 4] = box.angle;
+            packed[i * 7 + 5] = box.orientation;
+            packed[i * 7 + 6] = box.score;
+        }
+        return packed;
+    }
+
+    /** Plain text of a boxes JSON, one line per box in detection order, like recognizeImage. */
+    static String plainText(String ocrJsonWithBoxes) throws Exception {
+        JSONArray boxes = new JSONArray(ocrJsonWithBoxes);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < boxes.length(); i++) {
+            sb.append(boxes.getJSONObject(i).optString("text", "")).append("\n");
+        }
+        return sb.toString();
+    }
+
+    boolean isEmpty() {
+        return boxes.isEmpty();
+    }
+
+    // ---- row text ----
+
+    /** Row text joined with single spaces, as used for keyword matching. */
+    String rowText(int row) {
+        buildRowTexts();
+        return rowTexts[row];
+    }
+
+    String rowTextLower(int row) {
+        buildRowTexts();
+        return rowTextsLower[row];
+    }
+
+    /** Start offset of the given box of a row inside rowText(row). */
+    int boxOffset(int row, int box) {
+        buildRowTexts();
+        return boxOffsets[row][box];
+    }
+
+    /** Index of the box of a row covering the given offset in rowText(row). */
+    int boxAtOffset(int row, int offset) {
+        buildRowTexts();
+        int[] offsets = boxOffsets[row];
+        int idx = 0;
+        while (idx + 1 < offsets.length && offsets[idx + 1] <= offset) idx++;
+        return idx;
+    }
+
+    private void buildRowTexts() {
+        if (rowTexts != null) return;
+        rowTexts = new String[rows.size()];
+        rowTextsLower = new String[rows.size()];
+        boxOffsets = new int[rows.size()][];
+        for (int r = 0; r < rows.size(); r++) {
+            List<TextBox> row = rows.get(r);
+            int[] offsets = new int[row.size()];
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < row.size(); i++) {
+                if (sb.length() > 0) sb.append(" ");
+                offsets[i] = sb.length();
+                sb.append(row.get(i).text);
+            }
+            rowTexts[r] = sb.toString();
+            rowTextsLower[r] = rowTexts[r].toLowerCase(Locale.ROOT);
+            boxOffsets[r] = offsets;
+        }
+    }
+
+    // ---- helpers ----
+
+    static float calculateAverageHeight(List<TextBox> boxes) {
+        if (boxes.isEmpty()) return 20f;
+        float sum = 0;
+        for (TextBox box : boxes) sum += box.h;
+        return sum / boxes.size();
+    }
+
+    static void sortByReadingOrder(List<TextBox> boxes, final float rowThreshold) {
+        Collections.sort(boxes, new Comparator<TextBox>() {
+            @Override
+            public int compare(TextBox a, TextBox b) {
+                if (Math.abs(a.cy - b.cy) < rowThreshold) {
+                    return Float.compare(a.cx, b.cx);
+                }
+                return Float.compare(a.cy, b.cy);
+            }
+        });
+    }
+
+    static List<List<TextBox>> groupIntoRows(List<TextBox> boxes, float threshold) {
+        List<List<TextBox>> rows = new ArrayList<>();
+        if (boxes.isEmpty()) return rows;
+
+        List<TextBox> currentRow = new ArrayList<>();
+        float currentY = boxes.get(0).cy;
+
+        for (TextBox box : boxes) {
+            if (Math.abs(box.cy - currentY) > threshold) {
+                if (!currentRow.isEmpty()) rows.add(currentRow);
+                currentRow = new ArrayList<>();
+                currentY = box.cy;
+            }
+            currentRow.add(box);
+        }
+        if (!currentRow.isEmpty()) rows.add(currentRow);
+        return rows;
+    }
+
+    /** Join all text in a row into a single string for keyword matching. */
+    static String joinRowText(List<TextBox> row) {
+        StringBuilder sb = new StringBuilder();
+        for (TextBox box : row) {
+            if (sb.length() > 0) sb.append(" ");
+            sb.append(box.text);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,112 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Crops a photographed page to its edges and straightens it before OCR.
+ *
+ * The native side finds the page as the largest convex quadrilateral among
+ * the edge contours of a 512 px copy and warps it onto a new bitmap. The
+ * detector's fixed target size then covers the page instead of the table
+ * around it, and rows come out level for SpatialExtractor's row grouping.
+ * A page already filling the frame, or no page found, leaves the bitmap
+ * as it is.
+ */
+public class DocumentRectifier {
+    private static final String TAG = "DocumentRectifier";
+
+    private static final int MIN_SIDE = 64;
+
+    static class Result {
+        Bitmap bitmap;          // the rectified page, or the input when there was nothing to do
+        float[] quad;           // page corners in the input from top-left clockwise, null if none
+        float coverage;         // quad area / frame area
+        long detectMs;
+        long warpMs;
+
+        boolean isRectified() {
+            return quad != null;
+        }
+
+        @Override
+        public String toString() {
+            if (quad == null) return String.format(Locale.US, "no page found in %d ms", detectMs);
+            return String.format(Locale.US, "page %.0f%% of frame, %dx%d, found in %d ms, warped in %d ms",
+                coverage * 100, bitmap.getWidth(), bitmap.getHeight(), detectMs, warpMs);
+        }
+    }
+
+    /**
+     * Rectify bitmap when a page is found. The new bitmap comes from loader's
+     * pool when one is given; the caller still owns, and releases, the input.
+     */
+    public static Result rectify(PPOCRv5Ncnn ocr, Bitmap bitmap, ImageLoader loader) {
+        Result result = new Result();
+        result.bitmap = bitmap;
+        long start = System.currentTimeMillis();
+        float[] quad = ocr.detectDocument(bitmap);
+        result.detectMs = System.currentTimeMillis() - start;
+        if (quad == null) {
+            Log.d(TAG, result.toString());
+            return result;
+        }
+
+        // Keep the longer of each pair of opposite edges, so the near side of a tilted page is not shrunk
+        double width = Math.max(distance(quad, 0, 1), distance(quad, 3, 2));
+        double height = Math.max(distance(quad, 0, 3), distance(quad, 1, 2));
+        // No more pixels than the input had
+        double frame = (double) bitmap.getWidth() * bitmap.getHeight();
+        double scale = Math.min(1, Math.sqrt(frame / (width * height)));
+        int w = (int) Math.round(width * scale);
+        int h = (int) Math.round(height * scale);
+        if (w < MIN_SIDE || h < MIN_SIDE) {
+            Log.d(TAG, "Page too small to rectify: " + w + "x" + h);
+            return result;
+        }
+
+        start = System.currentTimeMillis();
+        Bitmap page = (loader != null) ? loader.obtain(w, h) : Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        if (!ocr.warpDocument(bitmap, quad, page)) {
+            Log.w(TAG, "Cannot warp the page, using the whole frame");
+            if (loader != null) loader.release(page); else page.recycle();
+            return result;
+        }
+        result.warpMs = System.currentTimeMillis() - start;
+        result.bitmap = page;
+        result.quad = quad;
+        result.coverage = (float) (area(quad) / frame);
+        Log.d(TAG, result.toString());
+        return result;
+    }
+
+    private static double distance(float[] quad, int a, int b) {
+        return Math.hypot(quad[b * 2] - quad[a * 2], quad[b * 2 + 1] - quad[a * 2 + 1]);
+    }
+
+    /** Shoelace area of the quad. */
+    private static double area(float[] quad) {
+        double sum = 0;
+        for (int i = 0; i < 4; i++) {
+            int j = (i + 1) % 4;
+            sum += quad[i * 2] * quad[j * 2 + 1] - quad[j * 2] * quad[i * 2 + 1];
+        }
+        return Math.abs(sum) / 2;
+    }
+}
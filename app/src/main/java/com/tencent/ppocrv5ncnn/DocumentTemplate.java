@@ -0,0 +1,223 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of a declarative document template (assets/templates/*.json).
+ *
+ * A template lists header fields, tables and how table rows join into records:
+ * <pre>
+ * {
+ *   "id": "kartu_keluarga",
+ *   "name": "Kartu Keluarga",
+ *   "classify": {"keywords": ["Kartu Keluarga"], "min_boxes": 40, "min_grid_rows": 2},
+ *   "regions": [[0.0, 0.0, 1.0, 0.84]],
+ *   "fields": [
+ *     {"key": "no_kk", "pattern": "\\d{16}"},
+ *     {"key": "alamat", "labels": ["Alamat"]},
+ *     {"key": "nama", "anchor": "npwp", "row_offset": 1}
+ *   ],
+ *   "tables": [
+ *     {"key": "identitas", "min_header_matches": 3, "columns": [
+ *       {"key": "nik", "header": "NIK", "pattern": "\\d{16}"},
+ *       {"key": "jenis_kelamin", "header": "Kelamin", "normalizer": "gender"}
+ *     ]}
+ *   ],
+ *   "records": {"key": "anggota_keluarga", "join": ["identitas"], "required_any": ["nik"]}
+ * }
+ * </pre>
+ * The optional classify section is checked by DocumentClassifier on detection
+ * output and a few header crops, before the page is fully recognized.
+ * Regions are x0, y0, x1, y1 fractions of the detected content bbox; when
+ * present, only boxes intersecting a region are recognized.
+ * Labels and headers are matched case-insensitively; patterns are compiled once
+ * and normalizers are resolved by name through FieldNormalizers.
+ */
+public class DocumentTemplate {
+
+    static class Field {
+        String key;
+        String[] labels = new String[0];
+        Pattern pattern;
+        FieldNormalizers.Normalizer normalizer;
+        String anchor;
+        int rowOffset;
+    }
+
+    static class Column {
+        String key;
+        String header;
+        Pattern pattern;
+        FieldNormalizers.Normalizer normalizer;
+    }
+
+    /** Cheap signature of the document, checked before full recognition. */
+    static class Classify {
+        String[] keywords = new String[0];  // lower-case, searched in header crops
+        int minBoxes;
+        int maxBoxes = Integer.MAX_VALUE;
+        int minGridRows;                    // rows with many boxes, i.e. a table
+    }
+
+    static class Table {
+        String key;
+        List<Column> columns = new ArrayList<>();
+        int minHeaderMatches;
+    }
+
+    String id;
+    String name;
+    List<Field> fields = new ArrayList<>();
+    List<Table> tables = new ArrayList<>();
+    Classify classify = new Classify();
+    float[] regions = new float[0];     // 4 floats per region, relative to the content bbox
+
+    // Tables joined by row number into one record list, null when tables are emitted as-is
+    String recordsKey;
+    String[] recordTables = new String[0];
+    String[] recordRequiredAny = new String[0];
+
+    // ---- compilation ----
+
+    /** Compile a template; throws on unknown normalizers or invalid patterns. */
+    static DocumentTemplate compile(JSONObject json) throws Exception {
+        DocumentTemplate t = new DocumentTemplate();
+        t.id = json.getString("id");
+        t.name = json.optString("name", t.id);
+
+        JSONObject classify = json.optJSONObject("classify");
+        if (classify != null) {
+            t.classify.keywords = lowerCase(classify.optJSONArray("keywords"));
+            t.classify.minBoxes = classify.optInt("min_boxes", 0);
+            t.classify.maxBoxes = classify.optInt("max_boxes", Integer.MAX_VALUE);
+            t.classify.minGridRows = classify.optInt("min_grid_rows", 0);
+        }
+
+        JSONArray regions = json.optJSONArray("regions");
+        if (regions != null) {
+            t.regions = new float[regions.length() * 4];
+            for (int i = 0; i < regions.length(); i++) {
+                JSONArray r = regions.getJSONArray(i);
+                if (r.length() != 4) {
+                    throw new IllegalArgumentException("Region needs 4 values in " + t.id);
+                }
+                for (int k = 0; k < 4; k++) t.regions[i * 4 + k] = (float) r.getDouble(k);
+            }
+        }
+
+        JSONArray fields = json.optJSONArray("fields");
+        if (fields != null) {
+            for (int i = 0; i < fields.length(); i++) {
+                JSONObject f = fields.getJSONObject(i);
+                Field field = new Field();
+                field.key = f.getString("key");
+                field.labels = lowerCase(f.optJSONArray("labels"));
+                field.pattern = compilePattern(f.optString("pattern", ""));
+                field.normalizer = resolveNormalizer(f.optString("normalizer", ""));
+                field.anchor = f.has("anchor") ? f.getString("anchor") : null;
+                field.rowOffset = f.optInt("row_offset", 0);
+                t.fields.add(field);
+            }
+        }
+
+        JSONArray tables = json.optJSONArray("tables");
+        if (tables != null) {
+            for (int i = 0; i < tables.length(); i++) {
+                JSONObject tj = tables.getJSONObject(i);
+                Table table = new Table();
+                table.key = tj.getString("key");
+                table.minHeaderMatches = tj.optInt("min_header_matches", 3);
+                JSONArray columns = tj.getJSONArray("columns");
+                for (int c = 0; c < columns.length(); c++) {
+                    JSONObject cj = columns.getJSONObject(c);
+                    Column column = new Column();
+                    column.key = cj.getString("key");
+                    column.header = cj.getString("header").toLowerCase(Locale.ROOT);
+                    column.pattern = compilePattern(cj.optString("pattern", ""));
+                    column.normalizer = resolveNormalizer(cj.optString("normalizer", ""));
+                    table.columns.add(column);
+                }
+                t.tables.add(table);
+            }
+        }
+
+        JSONObject records = json.optJSONObject("records");
+        if (records != null) {
+            t.recordsKey = records.getString("key");
+            t.recordTables = strings(records.optJSONArray("join"));
+            t.recordRequiredAny = strings(records.optJSONArray("required_any"));
+        }
+        return t;
+    }
+
+    boolean hasRegions() {
+        return regions.length > 0;
+    }
+
+    /** Regions in image pixels for a page whose detected content spans the given bbox. */
+    float[] regionsInPixels(float left, float top, float right, float bottom) {
+        float width = right - left;
+        float height = bottom - top;
+        float[] out = new float[regions.length];
+        for (int i = 0; i < regions.length; i += 4) {
+            out[i] = left + regions[i] * width;
+            out[i + 1] = top + regions[i + 1] * height;
+            out[i + 2] = left + regions[i + 2] * width;
+            out[i + 3] = top + regions[i + 3] * height;
+        }
+        return out;
+    }
+
+    Table findTable(String key) {
+        for (Table table : tables) {
+            if (table.key.equals(key)) return table;
+        }
+        return null;
+    }
+
+    private static Pattern compilePattern(String regex) {
+        return regex.isEmpty() ? null : Pattern.compile(regex);
+    }
+
+    private static FieldNormalizers.Normalizer resolveNormalizer(String name) {
+        if (name.isEmpty()) return null;
+        FieldNormalizers.Normalizer normalizer = FieldNormalizers.forName(name);
+        if (normalizer == null) {
+            throw new IllegalArgumentException("Unknown normalizer: " + name);
+        }
+        return normalizer;
+    }
+
+    private static String[] strings(JSONArray array) throws Exception {
+        if (array == null) return new String[0];
+        String[] out = new String[array.length()];
+        for (int i = 0; i < out.length; i++) out[i] = array.getString(i);
+        return out;
+    }
+
+    private static String[] lowerCase(JSONArray array) throws Exception {
+        String[] out = strings(array);
+        for (int i = 0; i < out.length; i++) out[i] = out[i].toLowerCase(Locale.ROOT);
+        return out;
+    }
+}
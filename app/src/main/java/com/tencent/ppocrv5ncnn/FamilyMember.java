@@ -0,0 +1,97 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import org.json.JSONObject;
+
+/** One anggota_keluarga entry of a KartuKeluargaRecord. Unknown values are "". */
+public class FamilyMember {
+    String nik = "";
+    String nama = "";
+    String jenisKelamin = "";
+    String tempatLahir = "";
+    String tanggalLahir = "";
+    String agama = "";
+    String pendidikan = "";
+    String pekerjaan = "";
+    String statusPerkawinan = "";
+    String hubunganKeluarga = "";
+    String kewarganegaraan = "";
+    String namaAyah = "";
+    String namaIbu = "";
+
+    /** Member from a JSON object with RecordWriter's keys; missing keys stay "". */
+    static FamilyMember fromJson(JSONObject json) {
+        FamilyMember member = new FamilyMember();
+        member.nik = json.optString("nik", "");
+        member.nama = json.optString("nama", "");
+        member.jenisKelamin = json.optString("jenis_kelamin", "");
+        member.tempatLahir = json.optString("tempat_lahir", "");
+        member.tanggalLahir = json.optString("tanggal_lahir", "");
+        member.agama = json.optString("agama", "");
+        member.pendidikan = json.optString("pendidikan", "");
+        member.pekerjaan = json.optString("pekerjaan", "");
+        member.statusPerkawinan = json.optString("status_perkawinan", "");
+        member.hubunganKeluarga = json.optString("hubungan_keluarga", "");
+        member.kewarganegaraan = json.optString("kewarganegaraan", "");
+        member.namaAyah = json.optString("nama_ayah", "");
+        member.namaIbu = json.optString("nama_ibu", "");
+        return member;
+    }
+
+    /** Field by its JSON key, null for unknown keys. */
+    String get(String key) {
+        switch (key) {
+            case "nik": return nik;
+            case "nama": return nama;
+            case "jenis_kelamin": return jenisKelamin;
+            case "tempat_lahir": return tempatLahir;
+            case "tanggal_lahir": return tanggalLahir;
+            case "agama": return agama;
+            case "pendidikan": return pendidikan;
+            case "pekerjaan": return pekerjaan;
+            case "status_perkawinan": return statusPerkawinan;
+            case "hubungan_keluarga": return hubunganKeluarga;
+            case "kewarganegaraan": return kewarganegaraan;
+            case "nama_ayah": return namaAyah;
+            case "nama_ibu": return namaIbu;
+            default: return null;
+        }
+    }
+
+    /** Set a field by its JSON key; unknown keys are ignored. */
+    void set(String key, String value) {
+        switch (key) {
+            case "nik": nik = value; break;
+            case "nama": nama = value; break;
+            case "jenis_kelamin": jenisKelamin = value; break;
+            case "tempat_lahir": tempatLahir = value; break;
+            case "tanggal_lahir": tanggalLahir = value; break;
+            case "agama": agama = value; break;
+            case "pendidikan": pendidikan = value; break;
+            case "pekerjaan": pekerjaan = value; break;
+            case "status_perkawinan": statusPerkawinan = value; break;
+            case "hubungan_keluarga": hubunganKeluarga = value; break;
+            case "kewarganegaraan": kewarganegaraan = value; break;
+            case "nama_ayah": namaAyah = value; break;
+            case "nama_ibu": namaIbu = value; break;
+            default: break;
+        }
+    }
+
+    boolean isEmpty() {
+        return nik.isEmpty() && nama.isEmpty();
+    }
+}
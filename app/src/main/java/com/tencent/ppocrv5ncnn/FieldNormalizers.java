@@ -0,0 +1,104 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+/**
+ * Value normalizers for Indonesian civil registry documents.
+ * Templates refer to them by name; the extractors call them directly.
+ */
+public class FieldNormalizers {
+
+    public interface Normalizer {
+        String apply(String text);
+    }
+
+    /** Resolve a normalizer by its template name, or null if unknown. */
+    public static Normalizer forName(String name) {
+        if (name == null || name.isEmpty()) return null;
+        switch (name) {
+            case "gender":
+                return new Normalizer() { public String apply(String t) { return gender(t); } };
+            case "religion":
+                return new Normalizer() { public String apply(String t) { return religion(t); } };
+            case "marital_status":
+                return new Normalizer() { public String apply(String t) { return maritalStatus(t); } };
+            case "relation":
+                return new Normalizer() { public String apply(String t) { return relation(t); } };
+            case "citizenship":
+                return new Normalizer() { public String apply(String t) { return citizenship(t); } };
+            case "upper":
+                return new Normalizer() { public String apply(String t) { return t.toUpperCase(); } };
+            case "digits":
+                return new Normalizer() { public String apply(String t) { return t.replaceAll("[^0-9]", ""); } };
+            case "strip_row_number":
+                return new Normalizer() { public String apply(String t) { return stripRowNumber(t); } };
+            default:
+                return null;
+        }
+    }
+
+    public static String gender(String text) {
+        if (text.isEmpty()) return text;
+        String upper = text.toUpperCase();
+        if (upper.contains("LAKI")) return "LAKI-LAKI";
+        if (upper.contains("PEREMPUAN") || upper.equals("PR") || upper.equals("P")) return "PEREMPUAN";
+        return text;
+    }
+
+    public static String religion(String text) {
+        if (text.isEmpty()) return text;
+        String upper = text.toUpperCase();
+        for (String r : new String[]{"ISLAM", "KRISTEN", "KATOLIK", "HINDU", "BUDHA", "BUDDHA", "KONGHUCU"}) {
+            if (upper.contains(r)) return r;
+        }
+        return text;
+    }
+
+    public static String maritalStatus(String text) {
+        if (text.isEmpty()) return text;
+        String upper = text.toUpperCase();
+        if (upper.contains("BELUM")) return "BELUM KAWIN";
+        if (upper.contains("CERAI HIDUP")) return "CERAI HIDUP";
+        if (upper.contains("CERAI MATI")) return "CERAI MATI";
+        if (upper.contains("KAWIN")) return "KAWIN";
+        return text;
+    }
+
+    public static String relation(String text) {
+        if (text.isEmpty()) return text;
+        String upper = text.toUpperCase();
+        if (upper.contains("KEPALA")) return "KEPALA KELUARGA";
+        if (upper.contains("ISTRI")) return "ISTRI";
+        if (upper.contains("ANAK")) return "ANAK";
+        if (upper.contains("MENANTU")) return "MENANTU";
+        if (upper.contains("CUCU")) return "CUCU";
+        if (upper.contains("ORANG TUA")) return "ORANG TUA";
+        if (upper.contains("MERTUA")) return "MERTUA";
+        if (upper.contains("FAMILI")) return "FAMILI LAIN";
+        return text;
+    }
+
+    public static String citizenship(String text) {
+        if (text.isEmpty()) return text;
+        String upper = text.toUpperCase();
+        if (upper.contains("WNI")) return "WNI";
+        if (upper.contains("WNA")) return "WNA";
+        return text;
+    }
+
+    public static String stripRowNumber(String text) {
+        return text.replaceAll("^\\d+\\s*", "").trim();
+    }
+}
@@ -0,0 +1,426 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.util.Log;
+
+import com.tencent.ppocrv5ncnn.DocumentLayout.TextBox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Decides how much of a Kartu Keluarga page needs the LLM.
+ *
+ * Every field SpatialExtractor produced is scored from the recognizer
+ * confidence of the boxes it came from, whether the value is valid for the
+ * field, and whether its table row lined up (row number, matching row in the
+ * second table). When every field scores high the rules finish the page
+ * alone. Otherwise only the rows holding the weak fields go into a short
+ * prompt and the answers are merged back. Pages the rules could not read as
+ * a table go to the full LLM pass.
+ */
+public class HybridRouter {
+    private static final String TAG = "HybridRouter";
+
+    // PP-OCR scores clean print above 0.93; character confusions mostly land below 0.9
+    static final float MIN_SCORE = 0.9f;
+    // Above this share of weak fields a targeted prompt saves little over the full pass
+    static final float MAX_TARGETED_SHARE = 0.5f;
+    private static final int MAX_CONTEXT_ROWS = 12;
+
+    public enum Route {
+        RULES,      // no LLM call
+        TARGETED,   // LLM for the weak fields only
+        FULL        // LLM for the whole page
+    }
+
+    private static final Pattern DIGITS_16 = Pattern.compile("\\d{16}");
+    private static final Pattern RT_RW = Pattern.compile("\\d{3}/\\d{3}");
+    private static final Pattern DATE = Pattern.compile("\\d{2}[-/]\\d{2}[-/]\\d{4}");
+    private static final Pattern NAME = Pattern.compile("[A-Za-z][A-Za-z .,'-]*");
+    private static final Pattern WORDS = Pattern.compile("[A-Za-z0-9][A-Za-z0-9 ./,()'-]*");
+    // A digit inside a word (B0NDUNG, 0SLAM) is a misread letter
+    private static final Pattern DIGIT_IN_WORD = Pattern.compile("[A-Za-z][0-9][A-Za-z]|\\b[0-9][A-Za-z]{2,}");
+
+    private static final Set<String> RELIGIONS = new HashSet<>(Arrays.asList(
+        "ISLAM", "KRISTEN", "KATOLIK", "HINDU", "BUDHA", "BUDDHA", "KONGHUCU"));
+    private static final Set<String> MARITAL_STATUSES = new HashSet<>(Arrays.asList(
+        "BELUM KAWIN", "KAWIN", "CERAI HIDUP", "CERAI MATI"));
+    private static final Set<String> RELATIONS = new HashSet<>(Arrays.asList(
+        "KEPALA KELUARGA", "SUAMI", "ISTRI", "ANAK", "MENANTU", "CUCU", "ORANG TUA", "MERTUA",
+        "FAMILI LAIN", "PEMBANTU", "LAINNYA"));
+
+    /** One extracted field and how much the rules can be trusted on it. */
+    static class FieldCheck {
+        int member = -1;        // index into record.members, -1 for header fields
+        String key;
+        String value;
+        float confidence;       // lowest recognizer confidence of the source boxes
+        boolean valid;
+        boolean aligned;
+        float score;
+        List<List<TextBox>> context = new ArrayList<>();   // rows to show the LLM
+
+        String id() {
+            return member < 0 ? key : (member + 1) + "." + key;
+        }
+    }
+
+    public static class Plan {
+        KartuKeluargaRecord record;
+        Route route;
+        String reason;
+        List<FieldCheck> checks = new ArrayList<>();
+        List<FieldCheck> weak = new ArrayList<>();
+        String prompt;          // TARGETED only
+        long elapsedMs;
+    }
+
+    /**
+     * Extract with the rules and decide whether and how to involve the LLM.
+     * The template is TemplateRegistry.kartuKeluarga().
+     */
+    public static Plan plan(String ocrJsonWithBoxes, SpatialExtractor.Template template) {
+        long start = System.currentTimeMillis();
+        Plan plan = new Plan();
+        SpatialExtractor.Evidence evidence = new SpatialExtractor.Evidence();
+        plan.record = SpatialExtractor.extractRecord(ocrJsonWithBoxes, template, evidence);
+
+        if (plan.record.error != null) {
+            plan.route = Route.FULL;
+            plan.reason = plan.record.error;
+        } else if (evidence.fallback || plan.record.members.isEmpty()) {
+            plan.route = Route.FULL;
+            plan.reason = "No family table found";
+        } else {
+            checkHeader(plan, evidence);
+            checkMembers(plan, template, evidence);
+            for (FieldCheck check : plan.checks) {
+                if (check.score < MIN_SCORE) plan.weak.add(check);
+            }
+
+            if (plan.weak.isEmpty()) {
+                plan.route = Route.RULES;
+                plan.reason = "All " + plan.checks.size() + " fields confident";
+            } else if (plan.weak.size() > plan.checks.size() * MAX_TARGETED_SHARE) {
+                plan.route = Route.FULL;
+                plan.reason = plan.weak.size() + "/" + plan.checks.size() + " fields weak";
+            } else {
+                plan.route = Route.TARGETED;
+                plan.reason = plan.weak.size() + "/" + plan.checks.size() + " fields weak";
+                plan.prompt = buildPrompt(plan, evidence);
+            }
+        }
+
+        plan.elapsedMs = System.currentTimeMillis() - start;
+        Log.d(TAG, String.format(Locale.US, "%s in %d ms: %s", plan.route, plan.elapsedMs, plan.reason));
+        return plan;
+    }
+
+    // ---- scoring ----
+
+    private static void checkHeader(Plan plan, SpatialExtractor.Evidence evidence) {
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) {
+            FieldCheck check = new FieldCheck();
+            check.key = KartuKeluargaRecord.HEADER_KEYS[f];
+            check.value = plan.record.header(f);
+            List<TextBox> source = evidence.headerSources.get(f);
+            check.confidence = confidence(source, check.value);
+            check.valid = isValid(check.key, check.value);
+            check.aligned = true;
+            check.score = score(check);
+
+            // A pattern field has a single source box; show its whole row
+            List<TextBox> row = source.isEmpty() ? null : rowOf(evidence.rows, source.get(0));
+            if (row != null) check.context.add(row);
+            plan.checks.add(check);
+        }
+    }
+
+    private static void checkMembers(Plan plan, SpatialExtractor.Template template, SpatialExtractor.Evidence evidence) {
+        Set<String> niks = new HashSet<>();
+        niks.add(plan.record.noKk);
+        FieldCheck noKk = plan.checks.get(KartuKeluargaRecord.headerIndex("no_kk"));
+        for (int m = 0; m < plan.record.members.size(); m++) {
+            FamilyMember member = plan.record.members.get(m);
+            SpatialExtractor.TableRow row1 = evidence.memberRows1.get(m);
+            SpatialExtractor.TableRow row2 = evidence.memberRows2.get(m);
+
+            // Each member field is checked against the table and column it was read from
+            for (int t = 1; t <= 2; t++) {
+                DocumentTemplate.Table table = (t == 1) ? template.table1 : template.table2;
+                SpatialExtractor.TableRow row = (t == 1) ? row1 : row2;
+                int header = (t == 1) ? evidence.table1Header : evidence.table2Header;
+                for (DocumentTemplate.Column column : table.columns) {
+                    FieldCheck check = new FieldCheck();
+                    check.member = m;
+                    check.key = column.key;
+                    check.value = member.get(check.key);
+                    check.confidence = (row != null) ? confidence(cell(row, column.key), check.value) : 0f;
+                    check.valid = isValid(check.key, check.value);
+                    // A NIK belongs to one person only
+                    if (check.key.equals("nik") && !niks.add(check.value)) {
+                        check.valid = false;
+                        if (check.value.equals(noKk.value) && noKk.valid) {
+                            // The printed number was misread and the rules took a NIK; ask with the header block
+                            noKk.valid = false;
+                            noKk.score = score(noKk);
+                            noKk.context.clear();
+                        }
+                    }
+                    // The normalizers map any cell containing KAWIN to KAWIN, so enums must be read as is
+                    if (row != null && isEnum(check.key) && !check.value.equals(text(cell(row, column.key)))) {
+                        check.valid = false;
+                    }
+                    check.aligned = row1.rowNumber > 0 && row != null;
+                    check.score = score(check);
+
+                    if (header >= 0) check.context.add(evidence.rows.get(header));
+                    check.context.add(row1.boxes);
+                    if (row2 != null) check.context.add(row2.boxes);
+                    plan.checks.add(check);
+                }
+            }
+        }
+    }
+
+    private static float score(FieldCheck check) {
+        return (check.valid && check.aligned) ? check.confidence : 0f;
+    }
+
+    private static boolean isEnum(String key) {
+        return key.equals("jenis_kelamin") || key.equals("agama") || key.equals("status_perkawinan")
+            || key.equals("hubungan_keluarga") || key.equals("kewarganegaraan");
+    }
+
+    private static String text(List<TextBox> boxes) {
+        StringBuilder sb = new StringBuilder();
+        for (TextBox box : boxes) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(box.text.trim());
+        }
+        return sb.toString().toUpperCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    private static List<TextBox> cell(SpatialExtractor.TableRow row, String column) {
+        List<TextBox> boxes = row.cells.get(column);
+        return (boxes != null) ? boxes : new ArrayList<TextBox>();
+    }
+
+    /**
+     * Lowest recognizer confidence among the boxes the value was read from.
+     * Source rows also hold labels and neighbouring fields, so only boxes
+     * overlapping the value count when there are any.
+     */
+    private static float confidence(List<TextBox> boxes, String value) {
+        if (boxes.isEmpty() || value.isEmpty()) return 0f;
+        float overlapping = Float.MAX_VALUE;
+        float all = Float.MAX_VALUE;
+        for (TextBox box : boxes) {
+            all = Math.min(all, box.confidence);
+            String text = box.text.replaceFirst("^\\s*:", "").trim();
+            if (!text.isEmpty() && (value.contains(text) || text.contains(value))) {
+                overlapping = Math.min(overlapping, box.confidence);
+            }
+        }
+        return overlapping != Float.MAX_VALUE ? overlapping : all;
+    }
+
+    static boolean isValid(String key, String value) {
+        if (value == null || value.isEmpty()) return false;
+        switch (key) {
+            case "no_kk":
+                return DIGITS_16.matcher(value).matches();
+            case "nik":
+                return DIGITS_16.matcher(value).matches() && isNikDate(value);
+            case "rt_rw":
+                return RT_RW.matcher(value).matches();
+            case "tanggal_lahir":
+                return DATE.matcher(value).matches() && isDate(value);
+            case "jenis_kelamin":
+                return value.equals("LAKI-LAKI") || value.equals("PEREMPUAN");
+            case "agama":
+                return RELIGIONS.contains(value);
+            case "status_perkawinan":
+                return MARITAL_STATUSES.contains(value);
+            case "hubungan_keluarga":
+                return RELATIONS.contains(value);
+            case "kewarganegaraan":
+                return value.equals("WNI") || value.equals("WNA");
+            case "kepala_keluarga":
+            case "nama":
+                return NAME.matcher(value).matches();
+            case "nama_ayah":
+            case "nama_ibu":
+                return value.equals("-") || NAME.matcher(value).matches();
+            default:
+                // Address parts, place of birth, education, occupation
+                return WORDS.matcher(value).matches() && !DIGIT_IN_WORD.matcher(value).find();
+        }
+    }
+
+    /** Digits 7-12 of a NIK are the birth date DDMMYY, with 40 added to DD for women. */
+    private static boolean isNikDate(String nik) {
+        int day = Integer.parseInt(nik.substring(6, 8));
+        int month = Integer.parseInt(nik.substring(8, 10));
+        if (day > 40) day -= 40;
+        return day >= 1 && day <= 31 && month >= 1 && month <= 12;
+    }
+
+    private static boolean isDate(String date) {
+        int day = Integer.parseInt(date.substring(0, 2));
+        int month = Integer.parseInt(date.substring(3, 5));
+        int year = Integer.parseInt(date.substring(6, 10));
+        return day >= 1 && day <= 31 && month >= 1 && month <= 12 && year >= 1900 && year <= 2100;
+    }
+
+    private static List<TextBox> rowOf(List<List<TextBox>> rows, TextBox box) {
+        for (List<TextBox> row : rows) {
+            for (TextBox b : row) {
+                if (b == box) return row;
+            }
+        }
+        return null;
+    }
+
+    // ---- prompt and merge ----
+
+    private static String buildPrompt(Plan plan, SpatialExtractor.Evidence evidence) {
+        Map<List<TextBox>, Integer> rowIndex = new IdentityHashMap<>();
+        for (int r = 0; r < evidence.rows.size(); r++) rowIndex.put(evidence.rows.get(r), r);
+
+        TreeSet<Integer> rows = new TreeSet<>();
+        for (FieldCheck check : plan.weak) {
+            if (check.context.isEmpty()) {
+                // Header field not found at all: show the header block above the table
+                int end = evidence.table1Header >= 0 ? evidence.table1Header : evidence.rows.size();
+                for (int r = 0; r < Math.min(end, MAX_CONTEXT_ROWS); r++) rows.add(r);
+            }
+            for (List<TextBox> row : check.context) {
+                Integer r = rowIndex.get(row);
+                if (r != null) rows.add(r);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Indonesian Kartu Keluarga (Family Card) OCR rows, columns separated by |:\n");
+        for (int r : rows) {
+            List<TextBox> row = evidence.rows.get(r);
+            for (int i = 0; i < row.size(); i++) {
+                if (i > 0) sb.append(" | ");
+                sb.append(row.get(i).text);
+            }
+            sb.append('\n');
+        }
+        sb.append("\nSome fields were misread. For each field below answer one line \"id|value\" using only the rows above. ");
+        sb.append("Leave the value empty if it is not there.\n");
+        // One line per member so its anchor is written once
+        int member = -2;
+        for (FieldCheck check : plan.weak) {
+            if (check.member != member || check.member < 0) {
+                if (member != -2) sb.append('\n');
+                member = check.member;
+                if (member >= 0) sb.append(anchor(plan, member)).append(": ");
+            } else {
+                sb.append(", ");
+            }
+            sb.append(check.id());
+            String format = format(check.key);
+            if (!format.isEmpty()) sb.append(" (").append(format).append(')');
+        }
+        sb.append("\n\nAnswer:\n");
+        return sb.toString();
+    }
+
+    private static String format(String key) {
+        switch (key) {
+            case "no_kk": case "nik": return "16 digits";
+            case "rt_rw": return "NNN/NNN";
+            case "tanggal_lahir": return "DD-MM-YYYY";
+            case "jenis_kelamin": return "LAKI-LAKI or PEREMPUAN";
+            case "kewarganegaraan": return "WNI or WNA";
+            default: return "";
+        }
+    }
+
+    /** Names a member by something the rules did read, so the LLM finds the right row. */
+    private static String anchor(Plan plan, int m) {
+        FamilyMember member = plan.record.members.get(m);
+        String anchor = isValid("nama", member.nama) ? member.nama : isValid("nik", member.nik) ? member.nik : "";
+        return "member " + (m + 1) + (anchor.isEmpty() ? "" : " " + anchor);
+    }
+
+    /**
+     * Merge "id|value" answer lines into plan.record. An answer replaces the
+     * rule value when it is valid, or when the rules found nothing. Returns
+     * the number of fields changed.
+     */
+    public static int merge(Plan plan, String response) {
+        Map<String, FieldCheck> byId = new HashMap<>();
+        for (FieldCheck check : plan.weak) byId.put(check.id(), check);
+
+        int merged = 0;
+        for (String line : response.split("\n")) {
+            int bar = line.indexOf('|');
+            if (bar < 0) continue;
+            FieldCheck check = byId.get(line.substring(0, bar).replaceFirst("^[\\s*-]+", "").trim());
+            if (check == null) continue;
+
+            String value = normalize(check.key, line.substring(bar + 1).trim());
+            if (value.isEmpty() || value.equals(check.value)) continue;
+            if (!isValid(check.key, value) && !check.value.isEmpty()) continue;
+
+            if (check.member < 0) {
+                plan.record.setHeader(KartuKeluargaRecord.headerIndex(check.key), value);
+            } else {
+                plan.record.members.get(check.member).set(check.key, value);
+            }
+            check.value = value;
+            merged++;
+        }
+        Log.d(TAG, "Merged " + merged + " of " + plan.weak.size() + " weak fields");
+        return merged;
+    }
+
+    private static String normalize(String key, String value) {
+        switch (key) {
+            case "no_kk":
+            case "nik":
+                return value.replaceAll("[^0-9]", "");
+            case "jenis_kelamin":
+                return FieldNormalizers.gender(value);
+            case "agama":
+                return FieldNormalizers.religion(value);
+            case "status_perkawinan":
+                return FieldNormalizers.maritalStatus(value);
+            case "hubungan_keluarga":
+                return FieldNormalizers.relation(value);
+            case "kewarganegaraan":
+                return FieldNormalizers.citizenship(value);
+            default:
+                return value;
+        }
+    }
+}
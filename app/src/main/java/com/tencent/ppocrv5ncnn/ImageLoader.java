@@ -0,0 +1,208 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decodes picked images straight to ARGB_8888 at no more resolution than
+ * OCR can use, instead of full size and then a copy. Detection scales the
+ * page down to its target size anyway; recognition crops text lines from
+ * the decoded bitmap and scales each to 48 px high, so past MAX_SIDE extra
+ * pixels only cost heap. A 48 MP photo decodes at 1/2, 46 MB instead of
+ * 190 MB plus the copy.
+ *
+ * inSampleSize is a power of two, so the decode itself does the scaling
+ * and never holds the full-size image. With a pool, released bitmaps are
+ * decoded into again through inBitmap, so a batch of same-sized photos
+ * allocates its buffers once.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+
+    // Decoded pages keep their longer side between 2048 and 4096 px: 6 to 12 px per mm across
+    // an F4 Kartu Keluarga filling the frame, and at most 64 MB of pixels
+    public static final int MAX_SIDE = 4096;
+
+    /** Size of an image before decoding, then the decoded bitmap and what it cost. */
+    public static class Result {
+        public Bitmap bitmap;
+        public int sourceWidth;
+        public int sourceHeight;
+        public int sampleSize = 1;
+        public int width;           // after sampling; the decoder may round by a pixel
+        public int height;
+        public boolean reused;      // decoded into a pooled bitmap
+        public long decodeMs;
+
+        public long bytes() {
+            return (long) width * height * 4;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d at 1/%d to %dx%d (%.1f MB%s) in %d ms",
+                sourceWidth, sourceHeight, sampleSize, width, height, bytes() / 1048576.0,
+                reused ? ", reused" : "", decodeMs);
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final int maxSide;
+    private final int poolSize;
+    private final List<Bitmap> pool = new ArrayList<>();
+    private long peakHeap;
+
+    /** poolSize is how many released bitmaps are kept for reuse; 0 recycles them. */
+    public ImageLoader(ContentResolver resolver, int maxSide, int poolSize) {
+        this.resolver = resolver;
+        this.maxSide = maxSide;
+        this.poolSize = poolSize;
+    }
+
+    /** Smallest power of two that brings the longer side down to maxSide. */
+    public static int sampleSize(int width, int height, int maxSide) {
+        int sample = 1;
+        while ((Math.max(width, height) + sample - 1) / sample > maxSide) sample *= 2;
+        return sample;
+    }
+
+    /** Read the image size and pick the sample size, without decoding pixels. */
+    public Result measure(Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) throw new IOException("Not an image");
+
+        Result result = new Result();
+        result.sourceWidth = options.outWidth;
+        result.sourceHeight = options.outHeight;
+        result.sampleSize = sampleSize(options.outWidth, options.outHeight, maxSide);
+        result.width = (options.outWidth + result.sampleSize - 1) / result.sampleSize;
+        result.height = (options.outHeight + result.sampleSize - 1) / result.sampleSize;
+        return result;
+    }
+
+    public Result decode(Uri uri) throws IOException {
+        return decode(uri, measure(uri));
+    }
+
+    /** Decode the image measure() sized, into a pooled bitmap when one is big enough. */
+    public Result decode(Uri uri, Result result) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = result.sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;   // required to be reused through inBitmap later
+        options.inBitmap = take(result.bytes());
+
+        Bitmap bitmap;
+        try {
+            bitmap = decode(uri, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit after all
+            Log.w(TAG, "Cannot decode into a pooled bitmap, allocating", e);
+            options.inBitmap.recycle();
+            options.inBitmap = null;
+            bitmap = decode(uri, options);
+        }
+        if (bitmap == null) {
+            if (options.inBitmap != null) release(options.inBitmap);
+            throw new IOException("Not an image");
+        }
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            // Some formats ignore the preferred config
+            Bitmap converted = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+            bitmap.recycle();
+            bitmap = converted;
+        }
+        result.bitmap = bitmap;
+        result.reused = options.inBitmap != null && bitmap == options.inBitmap;
+        result.width = bitmap.getWidth();
+        result.height = bitmap.getHeight();
+        result.decodeMs = SystemClock.elapsedRealtime() - start;
+
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        synchronized (this) {
+            peakHeap = Math.max(peakHeap, heap);
+        }
+        Log.d(TAG, "Decoded " + result + ", heap " + heap / 1048576 + " MB");
+        return result;
+    }
+
+    /** Hand a bitmap back once nothing reads it any more; it is pooled or recycled. */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        synchronized (pool) {
+            if (bitmap.isMutable() && pool.size() < poolSize) {
+                pool.add(bitmap);
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /** An ARGB_8888 bitmap of this size to draw over, from the pool when one is big enough. */
+    public Bitmap obtain(int width, int height) {
+        Bitmap bitmap = take((long) width * height * 4);
+        if (bitmap != null) {
+            bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /** Highest Java heap use seen right after a decode, in bytes. */
+    public synchronized long peakHeapBytes() {
+        return peakHeap;
+    }
+
+    /** The smallest pooled bitmap that holds bytes, or null. */
+    private Bitmap take(long bytes) {
+        synchronized (pool) {
+            Bitmap best = null;
+            for (Bitmap candidate : pool) {
+                if (candidate.getAllocationByteCount() >= bytes
+                        && (best == null || candidate.getAllocationByteCount() < best.getAllocationByteCount())) {
+                    best = candidate;
+                }
+            }
+            if (best != null) pool.remove(best);
+            return best;
+        }
+    }
+
+    private Bitmap decode(Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) throw new IOException("Cannot open " + uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Push parser for a JSON object arriving in chunks, as streamed by the LLM.
+ *
+ * Reports each top-level field as soon as its value closes, and each object
+ * inside a top-level array (e.g. one anggota_keluarga member) as soon as that
+ * object closes, without waiting for the rest of the document. Text before
+ * the first '{' (prose, markdown fences) is skipped, and a value that does not
+ * parse is dropped without stopping the stream.
+ */
+public class IncrementalJsonParser {
+    private static final String TAG = "IncrementalJsonParser";
+
+    public interface Listener {
+        /** A top-level field whose value is not an array: String, Number, Boolean, JSONObject or NULL. */
+        void onField(String key, Object value);
+
+        /** An object element of the top-level array under key; index counts reported objects from 0. */
+        void onArrayObject(String key, int index, JSONObject object);
+    }
+
+    private final Listener listener;
+
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private boolean done;
+
+    // Current top-level member
+    private boolean expectKey;
+    private final StringBuilder keyText = new StringBuilder();
+    private String key;
+    private final StringBuilder valueText = new StringBuilder();
+    private boolean valueIsArray;
+
+    // Current object element of a top-level array
+    private final StringBuilder elementText = new StringBuilder();
+    private int elementIndex;
+
+    private int dropped;
+
+    public IncrementalJsonParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(CharSequence chunk) {
+        for (int i = 0; i < chunk.length() && !done; i++) {
+            step(chunk.charAt(i));
+        }
+    }
+
+    /** True once the top-level object closed; later input is ignored. */
+    public boolean isDone() {
+        return done;
+    }
+
+    /** Values that closed but did not parse. */
+    public int droppedValues() {
+        return dropped;
+    }
+
+    private void step(char c) {
+        if (depth == 0) {
+            if (c == '{') {
+                depth = 1;
+                expectKey = true;
+            }
+            return;
+        }
+
+        if (inString) {
+            append(c);
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                inString = false;
+            }
+            return;
+        }
+
+        switch (c) {
+            case '"':
+                inString = true;
+                append(c);
+                break;
+            case '{':
+            case '[':
+                if (depth == 1) {
+                    if (c == '[') valueIsArray = true;
+                    else valueText.append(c);
+                } else if (depth == 2 && valueIsArray) {
+                    elementText.setLength(0);
+                    elementText.append(c);
+                } else {
+                    append(c);
+                }
+                depth++;
+                break;
+            case '}':
+            case ']':
+                depth--;
+                if (depth == 0) {
+                    closeValue();
+                    done = true;
+                } else if (depth == 2 && valueIsArray) {
+                    elementText.append(c);
+                    closeElement();
+                } else if (depth > 1 || !valueIsArray) {
+                    append(c);
+                }
+                break;
+            case ',':
+                if (depth == 1) {
+                    closeValue();
+                    expectKey = true;
+                } else {
+                    append(c);
+                }
+                break;
+            case ':':
+                if (depth == 1 && expectKey) {
+                    Object name = parse(keyText);
+                    key = (name instanceof String) ? (String) name : null;
+                    keyText.setLength(0);
+                    expectKey = false;
+                } else {
+                    append(c);
+                }
+                break;
+            default:
+                append(c);
+                break;
+        }
+    }
+
+    private void append(char c) {
+        if (depth == 1) {
+            if (expectKey) keyText.append(c);
+            else if (!valueIsArray) valueText.append(c);
+        } else if (valueIsArray) {
+            if (depth >= 3) elementText.append(c);  // scalars directly in the array are not reported
+        } else {
+            valueText.append(c);
+        }
+    }
+
+    private void closeValue() {
+        if (key != null && !valueIsArray) {
+            Object value = parse(valueText);
+            if (value != null) listener.onField(key, value);
+        }
+        key = null;
+        keyText.setLength(0);
+        valueText.setLength(0);
+        valueIsArray = false;
+        elementIndex = 0;
+    }
+
+    private void closeElement() {
+        Object element = parse(elementText);
+        elementText.setLength(0);
+        if (key != null && element instanceof JSONObject) {
+            listener.onArrayObject(key, elementIndex++, (JSONObject) element);
+        }
+    }
+
+    private Object parse(StringBuilder text) {
+        String raw = text.toString().trim();
+        if (raw.isEmpty()) return null;
+        try {
+            return new JSONTokener(raw).nextValue();
+        } catch (Exception e) {
+            dropped++;
+            Log.d(TAG, "Dropped unparsable value: " + raw);
+            return null;
+        }
+    }
+}
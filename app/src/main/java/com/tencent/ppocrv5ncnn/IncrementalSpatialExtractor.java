@@ -0,0 +1,246 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.util.Log;
+
+import com.tencent.ppocrv5ncnn.DocumentLayout.TextBox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * SpatialExtractor fed one recognized line at a time.
+ *
+ * Rows and reading order come from detection geometry, which is known before
+ * recognition starts, so each arriving line only re-evaluates its own row:
+ * header fields, table header detection and the parsed table row. A snapshot
+ * assembles the cached rows the same way SpatialExtractor.extract does, so once
+ * every line has arrived it gives the batch result for the same rows.
+ */
+public class IncrementalSpatialExtractor implements PPOCRv5Ncnn.LineListener {
+    private static final String TAG = "IncrementalSpatial";
+    private static final long UPDATE_INTERVAL_MS = 100;
+
+    public interface UpdateListener {
+        /**
+         * Called on the recognizing thread, at most every UPDATE_INTERVAL_MS.
+         * The record is a fresh copy and may be handed to another thread.
+         */
+        void onUpdate(KartuKeluargaRecord record, int linesDone);
+    }
+
+    private final List<TextBox> boxes;      // index order of the packed boxes
+    private final DocumentLayout layout;
+    private final Map<TextBox, Integer> indexOfBox = new IdentityHashMap<>();
+    private final int[] rowOfBox;
+    private final int[] orderOfBox;         // position in reading order
+    private final boolean[] recognized;
+    private final int[] recognizedInRow;
+    private int linesDone;
+
+    // Header fields: value and the row (or box for pattern fields) it came from
+    private final String[] headerValues = new String[KartuKeluargaRecord.HEADER_KEYS.length];
+    private final int[] headerSources = new int[KartuKeluargaRecord.HEADER_KEYS.length];
+
+    private final SpatialExtractor.Template template;
+    private final Table table1;
+    private final Table table2;
+
+    private UpdateListener listener;
+    private boolean dirty;
+    private final long startTime = System.currentTimeMillis();
+    private long lastUpdate;
+    private long firstFieldMs = -1;
+
+    private static class Table {
+        final DocumentTemplate.Table template;
+        int headerRow = -1;
+        List<SpatialExtractor.TableColumn> columns = new ArrayList<>();
+        SpatialExtractor.TableRow[] parsed;   // per layout row, null when stale
+
+        Table(DocumentTemplate.Table template) {
+            this.template = template;
+        }
+    }
+
+    /**
+     * boxes in the order they were packed for recognition; their text is ignored.
+     * The template is TemplateRegistry.kartuKeluarga().
+     */
+    public IncrementalSpatialExtractor(List<TextBox> detected, SpatialExtractor.Template template) {
+        this.template = template;
+        table1 = new Table(template.table1);
+        table2 = new Table(template.table2);
+        boxes = new ArrayList<>(detected.size());
+        for (TextBox box : detected) {
+            TextBox copy = new TextBox("", box.x, box.y, box.w, box.h, box.cx, box.cy);
+            boxes.add(copy);
+        }
+        layout = DocumentLayout.fromBoxes(new ArrayList<>(boxes));
+
+        for (int i = 0; i < boxes.size(); i++) indexOfBox.put(boxes.get(i), i);
+        rowOfBox = new int[boxes.size()];
+        for (int r = 0; r < layout.rows.size(); r++) {
+            for (TextBox box : layout.rows.get(r)) rowOfBox[indexOfBox.get(box)] = r;
+        }
+        orderOfBox = new int[boxes.size()];
+        for (int o = 0; o < layout.boxes.size(); o++) orderOfBox[indexOfBox.get(layout.boxes.get(o))] = o;
+
+        recognized = new boolean[boxes.size()];
+        recognizedInRow = new int[layout.rows.size()];
+        table1.parsed = new SpatialExtractor.TableRow[layout.rows.size()];
+        table2.parsed = new SpatialExtractor.TableRow[layout.rows.size()];
+        for (int f = 0; f < headerValues.length; f++) {
+            headerValues[f] = "";
+            headerSources[f] = Integer.MAX_VALUE;
+        }
+    }
+
+    public void setUpdateListener(UpdateListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onLine(int index, String text, float x, float y, float w, float h, float confidence) {
+        if (index < 0 || index >= boxes.size() || recognized[index]) return;
+
+        boxes.get(index).text = text;
+        recognized[index] = true;
+        int row = rowOfBox[index];
+        recognizedInRow[row]++;
+        linesDone++;
+
+        updateHeaderFields(index, row);
+        updateTable(table1, row);
+        updateTable(table2, row);
+        dirty = true;
+
+        long now = System.currentTimeMillis();
+        if (listener != null && now - lastUpdate >= UPDATE_INTERVAL_MS) {
+            lastUpdate = now;
+            dirty = false;
+            listener.onUpdate(snapshot(), linesDone);
+        }
+    }
+
+    /** Final result once recognition returned; always notifies a pending update. */
+    public KartuKeluargaRecord finish() {
+        KartuKeluargaRecord record = snapshot();
+        if (listener != null && dirty) {
+            dirty = false;
+            listener.onUpdate(record, linesDone);
+        }
+        Log.d(TAG, String.format("%d lines, first field after %d ms, finished after %d ms",
+            linesDone, firstFieldMs, System.currentTimeMillis() - startTime));
+        return record;
+    }
+
+    public long firstFieldMs() {
+        return firstFieldMs;
+    }
+
+    // ---- per-line updates ----
+
+    private void updateHeaderFields(int index, int row) {
+        List<TextBox> rowBoxes = null;
+        for (int f = 0; f < headerValues.length; f++) {
+            String value;
+            int source;
+            if (template.headerLabels[f] != null) {
+                // First row in reading order that yields a value wins
+                if (row > headerSources[f]) continue;
+                if (rowBoxes == null) rowBoxes = recognizedBoxes(row);
+                List<List<TextBox>> single = new ArrayList<>();
+                single.add(rowBoxes);
+                value = SpatialExtractor.findLabelValueInRows(single, template.headerLabels[f]);
+                source = row;
+            } else {
+                // First box in reading order that matches wins
+                int order = orderOfBox[index];
+                if (order > headerSources[f]) continue;
+                Matcher m = template.headerPatterns[f].matcher(boxes.get(index).text);
+                value = m.find() ? m.group() : "";
+                source = order;
+            }
+            if (!value.isEmpty()) {
+                headerValues[f] = value;
+                headerSources[f] = source;
+                if (firstFieldMs < 0) firstFieldMs = System.currentTimeMillis() - startTime;
+            }
+        }
+    }
+
+    private void updateTable(Table table, int row) {
+        table.parsed[row] = null;
+
+        if (table.headerRow < 0 || row <= table.headerRow) {
+            List<List<TextBox>> single = new ArrayList<>();
+            single.add(recognizedBoxes(row));
+            if (SpatialExtractor.findHeaderRow(single, table.template) == 0) {
+                // A new or grown header row moves the columns, so every parsed row is stale
+                table.headerRow = row;
+                table.columns = SpatialExtractor.buildColumns(single.get(0), table.template);
+                for (int r = 0; r < table.parsed.length; r++) table.parsed[r] = null;
+            }
+        }
+    }
+
+    private List<TextBox> recognizedBoxes(int row) {
+        List<TextBox> out = new ArrayList<>();
+        for (TextBox box : layout.rows.get(row)) {
+            if (recognized[indexOfBox.get(box)]) out.add(box);
+        }
+        return out;
+    }
+
+    // ---- snapshot ----
+
+    /** Current result, as SpatialExtractor.extractRecord would give for the lines so far. */
+    public KartuKeluargaRecord snapshot() {
+        KartuKeluargaRecord result = new KartuKeluargaRecord();
+        for (int f = 0; f < headerValues.length; f++) {
+            result.setHeader(f, headerValues[f]);
+        }
+
+        int t1End = (table2.headerRow > table1.headerRow && table2.headerRow > 0) ? table2.headerRow : layout.rows.size();
+        List<SpatialExtractor.TableRow> t1Rows = tableRows(table1, t1End);
+        List<SpatialExtractor.TableRow> t2Rows = tableRows(table2, layout.rows.size());
+
+        List<TextBox> done = new ArrayList<>();
+        for (TextBox box : layout.boxes) {
+            if (recognized[indexOfBox.get(box)]) done.add(box);
+        }
+        result.members = SpatialExtractor.mergeTablesToMembers(template, t1Rows, t2Rows, done);
+        return result;
+    }
+
+    private List<SpatialExtractor.TableRow> tableRows(Table table, int endRow) {
+        List<SpatialExtractor.TableRow> rows = new ArrayList<>();
+        if (table.headerRow < 0 || table.columns.isEmpty()) return rows;
+
+        for (int r = table.headerRow + 1; r < endRow; r++) {
+            if (recognizedInRow[r] == 0) continue;
+            if (table.parsed[r] == null) {
+                table.parsed[r] = SpatialExtractor.parseDataRow(recognizedBoxes(r), table.columns, template);
+            }
+            if (!SpatialExtractor.appendDataRow(rows, table.parsed[r])) break;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,325 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Runs tasks one at a time on a single worker thread, so one inference
+ * engine never sees overlapping calls.
+ *
+ * The queue is bounded. offer() refuses work when it is full, for
+ * interactive callers, while put() waits for room, which throttles batch
+ * callers to the engine's pace. A task submitted under a key supersedes
+ * the pending task with the same key, which is dropped without running,
+ * and cancels a running one. Wait and service times are kept as metrics.
+ * An optional idle task runs on the worker once the queue has been empty
+ * for a while after a task, e.g. to release what the tasks loaded.
+ */
+public class InferenceQueue {
+    private static final String TAG = "InferenceQueue";
+
+    public interface Task {
+        /** Runs on the worker thread; waitMs is the time spent queued. */
+        void run(long waitMs) throws Exception;
+
+        /** Stop a running task as soon as possible; called from any thread. */
+        void cancel();
+
+        /** The task was removed before it ran: superseded, cancelled or shut down. */
+        void dropped(String reason);
+    }
+
+    /** Counters since the queue was created. */
+    public static class Metrics {
+        public int submitted;
+        public int completed;
+        public int failed;
+        public int coalesced;       // dropped for a newer task with the same key
+        public int cancelled;       // dropped or stopped by cancel()
+        public int rejected;        // offer() on a full queue
+        public int depth;           // waiting now
+        public long totalWaitMs;
+        public long maxWaitMs;
+        public long totalServiceMs;
+        public long maxServiceMs;
+
+        public long meanWaitMs() {
+            int ran = completed + failed;
+            return ran > 0 ? totalWaitMs / ran : 0;
+        }
+
+        public long meanServiceMs() {
+            int ran = completed + failed;
+            return ran > 0 ? totalServiceMs / ran : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                "%d done, %d failed, %d coalesced, %d cancelled, %d rejected, depth %d, "
+                    + "wait %d ms mean / %d max, service %d ms mean / %d max",
+                completed, failed, coalesced, cancelled, rejected, depth,
+                meanWaitMs(), maxWaitMs, meanServiceMs(), maxServiceMs);
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final Task task;
+        final long enqueuedAt;
+
+        Entry(String key, Task task) {
+            this.key = key;
+            this.task = task;
+            this.enqueuedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private final Metrics metrics = new Metrics();
+    private final Thread worker;
+    private Entry running;
+    private boolean runningStopped;     // cancel() already sent to the running task
+    private boolean shutdown;
+
+    private Runnable idleTask;
+    private long idleMs;
+    private boolean idleDue;            // a task ran since the idle task last ran
+    private long lastFinishedAt;
+
+    public InferenceQueue(String name, int capacity) {
+        this.capacity = capacity;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queue a task, or return false when the queue is full or shut down.
+     * A null key never coalesces.
+     */
+    public boolean offer(String key, Task task) {
+        Superseded superseded = new Superseded();
+        String refused = null;
+        synchronized (this) {
+            if (shutdown) {
+                refused = "queue shut down";
+            } else if (!hasPending(key) && pending.size() >= capacity) {
+                refused = "queue full";
+                metrics.rejected++;
+            } else {
+                supersede(key, superseded);
+                enqueue(key, task);
+            }
+        }
+        superseded.notifyTasks();
+        if (refused != null) task.dropped(refused);
+        return refused == null;
+    }
+
+    /** Queue a task, waiting while the queue is full; a shut-down queue drops it. */
+    public void put(String key, Task task) throws InterruptedException {
+        Superseded superseded = new Superseded();
+        boolean queued;
+        synchronized (this) {
+            while (!shutdown && !hasPending(key) && pending.size() >= capacity) {
+                wait();
+            }
+            queued = !shutdown;
+            if (queued) {
+                supersede(key, superseded);
+                enqueue(key, task);
+            }
+        }
+        superseded.notifyTasks();
+        // Dropped outside the lock, like superseded tasks, so the caller's latch is always released
+        if (!queued) task.dropped("queue shut down");
+    }
+
+    /** Drop the pending task and stop the running task with this key. */
+    public void cancel(String key) {
+        Superseded cancelled = new Superseded();
+        cancelled.reason = "cancelled";
+        synchronized (this) {
+            supersede(key, cancelled);
+            if (cancelled.pending != null) metrics.cancelled++;
+            if (cancelled.running != null) metrics.cancelled++;
+            notifyAll();
+        }
+        cancelled.notifyTasks();
+    }
+
+    /** Drop everything pending, stop the running task and end the worker. */
+    public void shutdown() {
+        ArrayDeque<Entry> dropped;
+        Task stopped = null;
+        synchronized (this) {
+            shutdown = true;
+            dropped = new ArrayDeque<>(pending);
+            pending.clear();
+            if (running != null && !runningStopped) {
+                runningStopped = true;
+                stopped = running.task;
+            }
+            notifyAll();
+        }
+        for (Entry entry : dropped) entry.task.dropped("queue shut down");
+        if (stopped != null) stopped.cancel();
+    }
+
+    /** Run task on the worker after idleMs without work; replaces any previous idle task. */
+    public synchronized void setIdleTask(long idleMs, Runnable task) {
+        this.idleMs = idleMs;
+        this.idleTask = task;
+        notifyAll();
+    }
+
+    public synchronized Metrics getMetrics() {
+        Metrics copy = new Metrics();
+        copy.submitted = metrics.submitted;
+        copy.completed = metrics.completed;
+        copy.failed = metrics.failed;
+        copy.coalesced = metrics.coalesced;
+        copy.cancelled = metrics.cancelled;
+        copy.rejected = metrics.rejected;
+        copy.depth = pending.size();
+        copy.totalWaitMs = metrics.totalWaitMs;
+        copy.maxWaitMs = metrics.maxWaitMs;
+        copy.totalServiceMs = metrics.totalServiceMs;
+        copy.maxServiceMs = metrics.maxServiceMs;
+        return copy;
+    }
+
+    /** Tasks displaced by a newer task or cancel(), told only after the lock is released. */
+    private static class Superseded {
+        Task pending;
+        Task running;
+        String reason = "superseded";
+
+        void notifyTasks() {
+            if (pending != null) pending.dropped(reason);
+            if (running != null) running.cancel();
+        }
+    }
+
+    private boolean hasPending(String key) {
+        if (key == null) return false;
+        for (Entry entry : pending) {
+            if (key.equals(entry.key)) return true;
+        }
+        return false;
+    }
+
+    /** Take the pending task with this key off the queue and mark a running one stopped. Holds the lock. */
+    private void supersede(String key, Superseded out) {
+        if (key == null) return;
+        for (Iterator<Entry> it = pending.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (key.equals(entry.key)) {
+                it.remove();
+                out.pending = entry.task;
+                break;  // at most one pending task per key
+            }
+        }
+        if (running != null && key.equals(running.key) && !runningStopped) {
+            runningStopped = true;
+            out.running = running.task;
+        }
+        if (out.reason.equals("superseded")) {
+            if (out.pending != null) metrics.coalesced++;
+            if (out.running != null) metrics.coalesced++;
+        }
+    }
+
+    private void enqueue(String key, Task task) {
+        pending.addLast(new Entry(key, task));
+        metrics.submitted++;
+        notifyAll();
+    }
+
+    private void loop() {
+        while (true) {
+            Entry entry = null;
+            Runnable idle = null;
+            synchronized (this) {
+                while (!shutdown && pending.isEmpty()) {
+                    long timeout = 0;
+                    if (idleDue && idleTask != null) {
+                        timeout = lastFinishedAt + idleMs - System.currentTimeMillis();
+                        if (timeout <= 0) {
+                            idle = idleTask;
+                            idleDue = false;
+                            break;
+                        }
+                    }
+                    try {
+                        wait(timeout);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (shutdown) return;
+                if (idle == null) {
+                    entry = pending.pollFirst();
+                    running = entry;
+                    runningStopped = false;
+                    notifyAll();  // room for put()
+                }
+            }
+            if (idle != null) {
+                try {
+                    idle.run();
+                } catch (Throwable t) {
+                    Log.e(TAG, "Idle task failed", t);
+                }
+                continue;
+            }
+
+            long start = System.currentTimeMillis();
+            long waitMs = start - entry.enqueuedAt;
+            boolean ok = true;
+            try {
+                entry.task.run(waitMs);
+            } catch (Throwable t) {
+                ok = false;
+                Log.e(TAG, "Task failed", t);
+            }
+            long serviceMs = System.currentTimeMillis() - start;
+
+            synchronized (this) {
+                running = null;
+                idleDue = true;
+                lastFinishedAt = System.currentTimeMillis();
+                if (ok) metrics.completed++;
+                else metrics.failed++;
+                metrics.totalWaitMs += waitMs;
+                metrics.maxWaitMs = Math.max(metrics.maxWaitMs, waitMs);
+                metrics.totalServiceMs += serviceMs;
+                metrics.maxServiceMs = Math.max(metrics.maxServiceMs, serviceMs);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Typed result of the Kartu Keluarga extractors. Serialized by RecordWriter;
+ * header fields are also addressable by index in HEADER_KEYS order.
+ */
+public class KartuKeluargaRecord {
+
+    /** JSON keys of the header fields, in output order. */
+    static final String[] HEADER_KEYS = {
+        "no_kk", "kepala_keluarga", "alamat", "rt_rw",
+        "desa_kelurahan", "kecamatan", "kabupaten_kota", "provinsi"
+    };
+
+    String noKk = "";
+    String kepalaKeluarga = "";
+    String alamat = "";
+    String rtRw = "";
+    String desaKelurahan = "";
+    String kecamatan = "";
+    String kabupatenKota = "";
+    String provinsi = "";
+    List<FamilyMember> members = new ArrayList<>();
+
+    // Set instead of the fields when extraction failed
+    String error;
+
+    static KartuKeluargaRecord error(String message) {
+        KartuKeluargaRecord record = new KartuKeluargaRecord();
+        record.error = message;
+        return record;
+    }
+
+    /** Index of a header key in HEADER_KEYS, -1 for other keys. */
+    static int headerIndex(String key) {
+        for (int f = 0; f < HEADER_KEYS.length; f++) {
+            if (HEADER_KEYS[f].equals(key)) return f;
+        }
+        return -1;
+    }
+
+    String header(int field) {
+        switch (field) {
+            case 0: return noKk;
+            case 1: return kepalaKeluarga;
+            case 2: return alamat;
+            case 3: return rtRw;
+            case 4: return desaKelurahan;
+            case 5: return kecamatan;
+            case 6: return kabupatenKota;
+            case 7: return provinsi;
+            default: throw new IndexOutOfBoundsException("header field " + field);
+        }
+    }
+
+    void setHeader(int field, String value) {
+        switch (field) {
+            case 0: noKk = value; break;
+            case 1: kepalaKeluarga = value; break;
+            case 2: alamat = value; break;
+            case 3: rtRw = value; break;
+            case 4: desaKelurahan = value; break;
+            case 5: kecamatan = value; break;
+            case 6: kabupatenKota = value; break;
+            case 7: provinsi = value; break;
+            default: throw new IndexOutOfBoundsException("header field " + field);
+        }
+    }
+}
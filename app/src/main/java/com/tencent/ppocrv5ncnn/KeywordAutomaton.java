@@ -0,0 +1,127 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick matcher over lower-case keywords.
+ * Scanning a text costs one pass regardless of how many keywords are loaded,
+ * which keeps template matching flat as document types are added.
+ */
+public class KeywordAutomaton {
+
+    public interface HitListener {
+        /** keyword index as passed to the constructor, [start, end) in the scanned text */
+        void onHit(int keyword, int start, int end);
+    }
+
+    private final List<Map<Character, Integer>> next = new ArrayList<>();
+    private final List<int[]> outputs = new ArrayList<>();
+    private int[] fail;
+    private final int[] lengths;
+
+    public KeywordAutomaton(List<String> keywords) {
+        lengths = new int[keywords.size()];
+        newNode();
+        for (int k = 0; k < keywords.size(); k++) {
+            String kw = keywords.get(k);
+            lengths[k] = kw.length();
+            int node = 0;
+            for (int i = 0; i < kw.length(); i++) {
+                char c = kw.charAt(i);
+                Integer child = next.get(node).get(c);
+                if (child == null) {
+                    child = newNode();
+                    next.get(node).put(c, child);
+                }
+                node = child;
+            }
+            outputs.set(node, append(outputs.get(node), k));
+        }
+        buildFailureLinks();
+    }
+
+    public int size() {
+        return lengths.length;
+    }
+
+    /** Report every keyword occurrence in text. text is expected lower-case. */
+    public void scan(CharSequence text, HitListener listener) {
+        int node = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            Integer child;
+            while ((child = next.get(node).get(c)) == null && node != 0) {
+                node = fail[node];
+            }
+            node = (child != null) ? child : 0;
+            for (int k : outputs.get(node)) {
+                listener.onHit(k, i + 1 - lengths[k], i + 1);
+            }
+        }
+    }
+
+    // ---- construction ----
+
+    private int newNode() {
+        next.add(new HashMap<Character, Integer>());
+        outputs.add(new int[0]);
+        return next.size() - 1;
+    }
+
+    private void buildFailureLinks() {
+        fail = new int[next.size()];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child : next.get(0).values()) {
+            fail[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (Map.Entry<Character, Integer> e : next.get(node).entrySet()) {
+                char c = e.getKey();
+                int child = e.getValue();
+                int f = fail[node];
+                Integer target;
+                while ((target = next.get(f).get(c)) == null && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = (target != null && target != child) ? target : 0;
+                // Inherit matches that end at the failure target
+                int[] inherited = outputs.get(fail[child]);
+                if (inherited.length > 0) {
+                    int[] own = outputs.get(child);
+                    int[] merged = new int[own.length + inherited.length];
+                    System.arraycopy(own, 0, merged, 0, own.length);
+                    System.arraycopy(inherited, 0, merged, own.length, inherited.length);
+                    outputs.set(child, merged);
+                }
+                queue.add(child);
+            }
+        }
+    }
+
+    private static int[] append(int[] arr, int value) {
+        int[] out = new int[arr.length + 1];
+        System.arraycopy(arr, 0, out, 0, arr.length);
+        out[arr.length] = value;
+        return out;
+    }
+}
@@ -0,0 +1,246 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.util.Log;
+
+import com.tencent.ppocrv5ncnn.DocumentLayout.TextBox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Shrinks the spatial OCR text of a Kartu Keluarga page to what the
+ * structuring prompt needs, within a token budget.
+ *
+ * Boilerplate rows (title, issuing office, signature block, legal footer)
+ * are dropped, as is any unlabeled row below the family tables. The
+ * remaining rows are ranked: header label rows first, then the family tables
+ * by row number, then anything else. Rows keep their page order in the
+ * output, with a bare | between columns and ": value" boxes attached to
+ * their label. When the ranked rows do not fit the budget, whole members
+ * are dropped from the end, both table rows together, and other rows before
+ * them.
+ */
+public class LayoutCompactor {
+    private static final String TAG = "LayoutCompactor";
+
+    /**
+     * Counts a whole page in one call: a tokenizer behind a lock or in another
+     * process is asked once per page, not once per row.
+     */
+    public interface TokenCounter {
+        int[] count(List<String> texts);
+    }
+
+    // SentencePiece vocabularies split numbers into single digits and cut
+    // Indonesian words into pieces of about four letters
+    private static final Pattern PIECE = Pattern.compile("\\d|[A-Za-z]{1,4}|[^\\sA-Za-z\\d]{1,2}");
+
+    /** Rough count for when no tokenizer is at hand. */
+    public static final TokenCounter ESTIMATE = new TokenCounter() {
+        @Override
+        public int[] count(List<String> texts) {
+            int[] counts = new int[texts.size()];
+            for (int i = 0; i < counts.length; i++) counts[i] = estimate(texts.get(i));
+            return counts;
+        }
+    };
+
+    public static int estimate(String text) {
+        int n = 0;
+        Matcher m = PIECE.matcher(text);
+        while (m.find()) n++;
+        return n;
+    }
+
+    private static final int RANK_DROP = 0;
+    private static final int RANK_OTHER = 1;
+    private static final int RANK_TABLE = 2;
+    private static final int RANK_HEADER = 3;
+
+    // A NIK or No. KK; an 18-digit NIP is not one
+    private static final Pattern NUMBER_16 = Pattern.compile("(?<!\\d)\\d{16}(?!\\d)");
+
+    // Printed on every card and never part of the extracted fields
+    private static final Pattern BOILERPLATE = Pattern.compile(
+        "(?i)^\\s*KARTU KELUARGA\\s*$|Dikeluarkan Tanggal|LEMBAR\\s*[I1V]|KEPALA DINAS|PENCATATAN SIPIL"
+        + "|\\bNIP\\b|Dokumen ini|ditandatangani|Sertifikasi Elektronik|\\bBSrE\\b|Tanda Tangan|Cap Jempol");
+
+    public static class Result {
+        public String text = "";
+        public int rowsIn;
+        public int rowsKept;
+        public int rowsBoilerplate;
+        public int tokensIn;        // uncompacted spatial text
+        public int tokensOut;
+        public boolean truncated;   // rows dropped for the budget
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "input %d -> %d tokens, %d/%d rows%s",
+                tokensIn, tokensOut, rowsKept, rowsIn, truncated ? ", truncated" : "");
+        }
+    }
+
+    private static class Line {
+        int index;
+        int rank;
+        int order;          // row number within the tables (0 for their header rows), else index
+        String text;
+        int tokens;
+    }
+
+    /**
+     * An empty result text means there was no layout to compact. Table header
+     * rows are recognized by the template's column headers; without a
+     * template only numbered rows count as table rows.
+     */
+    public static Result compact(String ocrJsonWithBoxes, SpatialExtractor.Template template, int tokenBudget,
+                                 TokenCounter counter) {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        DocumentLayout layout;
+        try {
+            layout = DocumentLayout.parse(ocrJsonWithBoxes);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to parse OCR layout", e);
+            return result;
+        }
+        if (layout.isEmpty()) return result;
+
+        List<List<TextBox>> rows = layout.rows;
+        result.rowsIn = rows.size();
+
+        List<Line> lines = new ArrayList<>();
+        int lastTableRow = -1;
+        for (int r = 0; r < rows.size(); r++) {
+            Line line = new Line();
+            line.index = r;
+            line.order = r;
+            line.text = formatRow(rows.get(r));
+            line.rank = rank(rows.get(r), line.text, template);
+            if (line.rank == RANK_TABLE) {
+                lastTableRow = r;
+                String first = rows.get(r).get(0).text.trim();
+                line.order = SpatialExtractor.PATTERN_ROW_NUMBER.matcher(first).matches() ? Integer.parseInt(first) : 0;
+            }
+            lines.add(line);
+        }
+
+        List<Line> candidates = new ArrayList<>();
+        for (Line line : lines) {
+            // Signature block and names under the tables
+            boolean footer = lastTableRow >= 0 && line.index > lastTableRow && line.rank == RANK_OTHER;
+            if (line.text.isEmpty() || line.rank == RANK_DROP || footer) {
+                result.rowsBoilerplate++;
+                continue;
+            }
+            candidates.add(line);
+        }
+
+        // One count for the page: the uncompacted text, then every candidate row
+        List<String> texts = new ArrayList<>(candidates.size() + 1);
+        texts.add(SpatialExtractor.toSpatialText(layout));
+        for (Line line : candidates) texts.add(line.text);
+        int[] counts = counter.count(texts);
+        result.tokensIn = counts[0];
+        for (int i = 0; i < candidates.size(); i++) {
+            candidates.get(i).tokens = counts[i + 1] + 1;  // newline
+        }
+
+        // Fill the budget by rank, then by member so both rows of a member go together
+        List<Line> ranked = new ArrayList<>(candidates);
+        Collections.sort(ranked, new Comparator<Line>() {
+            @Override
+            public int compare(Line a, Line b) {
+                if (a.rank != b.rank) return b.rank - a.rank;
+                if (a.order != b.order) return a.order - b.order;
+                return a.index - b.index;
+            }
+        });
+        List<Line> kept = new ArrayList<>();
+        int used = 0;
+        for (Line line : ranked) {
+            if (used + line.tokens > tokenBudget) {
+                result.truncated = true;
+                break;
+            }
+            used += line.tokens;
+            kept.add(line);
+        }
+        Collections.sort(kept, new Comparator<Line>() {
+            @Override
+            public int compare(Line a, Line b) {
+                return a.index - b.index;
+            }
+        });
+
+        StringBuilder sb = new StringBuilder();
+        for (Line line : kept) sb.append(line.text).append('\n');
+        result.text = sb.toString();
+        result.rowsKept = kept.size();
+        result.tokensOut = used;    // rows counted alone; a merge across a newline is rare
+        Log.d(TAG, result + ", " + result.rowsBoilerplate + " boilerplate, "
+            + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    private static int rank(List<TextBox> row, String text, SpatialExtractor.Template template) {
+        boolean label = SpatialExtractor.PATTERN_NEXT_LABEL.matcher(text).find()
+            || NUMBER_16.matcher(text).find()
+            || SpatialExtractor.PATTERN_RT_RW.matcher(text).find();
+        boolean table = SpatialExtractor.PATTERN_ROW_NUMBER.matcher(row.get(0).text.trim()).matches()
+            || (template != null && template.isTableHeader(text.toLowerCase(Locale.ROOT)));
+        if (!label && !table && BOILERPLATE.matcher(text).find()) return RANK_DROP;
+        // Numbered rows also hold NIKs and dates, so the table test comes first
+        if (table) return RANK_TABLE;
+        if (label) return RANK_HEADER;
+        return RANK_OTHER;
+    }
+
+    /** Row text with single spaces, | between columns and "Label: value" pairs. */
+    static String formatRow(List<TextBox> row) {
+        StringBuilder sb = new StringBuilder();
+        TextBox previous = null;
+        for (TextBox box : row) {
+            String text = box.text.trim().replaceAll("\\s+", " ");
+            if (text.isEmpty()) continue;
+            if (previous != null) {
+                if (text.startsWith(":")) {
+                    text = text.substring(1).trim();
+                    sb.append(':');
+                    if (text.isEmpty()) {
+                        previous = box;
+                        continue;
+                    }
+                    sb.append(' ');
+                } else if (sb.charAt(sb.length() - 1) == ':') {
+                    sb.append(' ');
+                } else {
+                    sb.append(SpatialExtractor.isColumnGap(previous, box) ? "|" : " ");
+                }
+            }
+            sb.append(text);
+            previous = box;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,199 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages between RemoteLlmClient and LlmService. The request id travels
+ * in arg1 and a small int (member count, trim level, member index) in arg2.
+ * A token count request carries all texts of a page as one JSON array and
+ * is answered with one int array.
+ *
+ * Texts above INLINE_LIMIT (OCR input, prompts, results) are written once
+ * into a read-only SharedMemory region and only its descriptor crosses
+ * binder, which keeps big payloads out of the 1 MB transaction buffer the
+ * process shares with every other call. Smaller texts, and all texts before
+ * API 27, go inline in the Bundle. The receiver closes a region after
+ * reading it, and a sender in another process closes its own copy after
+ * send(); a message to a local Binder hands over the very same object.
+ */
+final class LlmChannel {
+    private static final String TAG = "LlmChannel";
+
+    // Client to service
+    static final int MSG_CONFIGURE = 1;
+    static final int MSG_STRUCTURE = 2;
+    static final int MSG_GENERATE = 3;
+    static final int MSG_CANCEL = 4;
+    static final int MSG_COUNT_TOKENS = 5;
+    static final int MSG_INPUT_BUDGET = 6;
+
+    // Service to client, arg1 names the request
+    static final int MSG_PARTIAL = 101;
+    static final int MSG_FIELD = 102;
+    static final int MSG_MEMBER = 103;
+    static final int MSG_RESULT = 104;
+    static final int MSG_ERROR = 105;
+    static final int MSG_VALUE = 106;
+
+    static final String KEY_TEXT = "text";
+    static final String KEY_QUEUE_KEY = "queue_key";
+    static final String KEY_FIELD = "field";
+    static final String KEY_VALUE = "value";
+    static final String KEY_TIMING = "timing";
+    static final String KEY_MEMORY_STATS = "memory_stats";
+    static final String KEY_VALUES = "values";
+
+    // Copying a page or so through binder is cheaper than creating and mapping a region
+    static final int INLINE_LIMIT = 4096;
+
+    private static final String SHARED_SUFFIX = ".shm";
+
+    private LlmChannel() {
+    }
+
+    static Message obtain(int what, int id, int arg) {
+        Message msg = Message.obtain(null, what);
+        msg.arg1 = id;
+        msg.arg2 = arg;
+        msg.setData(new Bundle());
+        return msg;
+    }
+
+    /** Send and release this side's shared regions; false when the other side is gone. */
+    static boolean send(Messenger to, Message msg) {
+        // In this process (LlmService without android:process, or a test) nothing is copied
+        boolean local = to.getBinder() instanceof Binder;
+        try {
+            to.send(msg);
+            return true;
+        } catch (RemoteException e) {
+            Log.w(TAG, "Peer gone, message " + msg.what + " dropped");
+            return false;
+        } finally {
+            Bundle data = msg.peekData();
+            if (data != null && !local) {
+                closeShared(data, KEY_TEXT);
+                closeShared(data, KEY_VALUES);
+            }
+        }
+    }
+
+    static void putText(Bundle data, String key, String text) {
+        if (text == null) return;
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > INLINE_LIMIT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            SharedMemory memory = null;
+            try {
+                memory = SharedMemory.create("llm-" + key, bytes.length);
+                ByteBuffer buffer = memory.mapReadWrite();
+                buffer.put(bytes);
+                SharedMemory.unmap(buffer);
+                memory.setProtect(OsConstants.PROT_READ);
+                data.putParcelable(key + SHARED_SUFFIX, memory);
+                return;
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Shared memory unavailable, sending " + bytes.length + " bytes inline", e);
+                if (memory != null) memory.close();
+            }
+        }
+        data.putString(key, text);
+    }
+
+    /** The text under key, read and released if it came as shared memory; null when absent. */
+    static String getText(Bundle data, String key) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            SharedMemory memory = data.getParcelable(key + SHARED_SUFFIX);
+            if (memory != null) {
+                try {
+                    ByteBuffer buffer = memory.mapReadOnly();
+                    byte[] bytes = new byte[memory.getSize()];
+                    buffer.get(bytes);
+                    SharedMemory.unmap(buffer);
+                    return new String(bytes, StandardCharsets.UTF_8);
+                } catch (ErrnoException e) {
+                    Log.e(TAG, "Failed to map shared text", e);
+                    return null;
+                } finally {
+                    memory.close();
+                }
+            }
+        }
+        return data.getString(key);
+    }
+
+    /** Several texts as one JSON array text, so they cross in one message and one region. */
+    static void putTexts(Bundle data, String key, List<String> texts) {
+        putText(data, key, new JSONArray(texts).toString());
+    }
+
+    static List<String> getTexts(Bundle data, String key) {
+        String text = getText(data, key);
+        List<String> texts = new ArrayList<>();
+        if (text == null) return texts;
+        try {
+            JSONArray array = new JSONArray(text);
+            for (int i = 0; i < array.length(); i++) texts.add(array.getString(i));
+        } catch (JSONException e) {
+            Log.e(TAG, "Malformed text list", e);
+        }
+        return texts;
+    }
+
+    private static void closeShared(Bundle data, String key) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) return;
+        SharedMemory memory = data.getParcelable(key + SHARED_SUFFIX);
+        if (memory != null) memory.close();
+    }
+
+    /** A member as a JSON object with RecordWriter's keys, for FamilyMember.fromJson. */
+    static String memberToJson(FamilyMember member) {
+        JSONObject json = new JSONObject();
+        try {
+            for (String key : CompactRecordParser.MEMBER_COLUMNS) json.put(key, member.get(key));
+        } catch (JSONException e) {
+            throw new AssertionError(e); // keys and values are never null
+        }
+        return json.toString();
+    }
+
+    static FamilyMember memberFromJson(String json) {
+        try {
+            return FamilyMember.fromJson(new JSONObject(json));
+        } catch (JSONException e) {
+            Log.e(TAG, "Malformed member", e);
+            return new FamilyMember();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.content.Context;
+
+import java.util.List;
+
+/**
+ * The LLM operations the UI uses. LlmHelper runs them in this process;
+ * RemoteLlmClient forwards them to LlmService in the :llm process. Any
+ * other implementation, e.g. a stub model, can stand in for either.
+ */
+public interface LlmEngine {
+    /** Point at a model without loading it; false when the file is missing. */
+    boolean configure(Context context, String modelPath);
+
+    boolean isAvailable();
+
+    /** Tokens left for the OCR text of one structuring call; see LlmHelper. */
+    int inputTokenBudget(int expectedMembers);
+
+    int countTokens(String text);
+
+    /** countTokens for each text in one call; layout compaction counts a whole page this way. */
+    int[] countTokens(List<String> texts);
+
+    /** Queue a structuring call; a newer call under the same non-null key supersedes it. */
+    void structureKartuKeluargaAsync(String key, String ocrText, int expectedMembers,
+                                     LlmHelper.LlmCallback callback);
+
+    /**
+     * Run a one-off prompt and block until the response is complete. Queued
+     * under key like structuring: cancel(key) or a newer call under the same
+     * key stops it with a CancellationException.
+     */
+    String generateText(String key, String prompt) throws Exception;
+
+    /** generateText without blocking; the response arrives through onResult. */
+    void generateTextAsync(String key, String prompt, LlmHelper.LlmCallback callback);
+
+    void cancel(String key);
+
+    /** Forwarded from ComponentCallbacks2.onTrimMemory. */
+    void trimMemory(int level);
+
+    /** Timing of the last finished structuring call, null before the first. */
+    LlmHelper.Timing getLastTiming();
+
+    LlmHelper.MemoryStats getMemoryStats();
+
+    void close();
+}
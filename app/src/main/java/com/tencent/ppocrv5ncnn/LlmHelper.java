@@ -14,18 +14,131 @@
 
 package com.tencent.ppocrv5ncnn;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.os.Debug;
 import android.util.Log;
 
 import com.google.mediapipe.tasks.genai.llminference.LlmInference;
+import com.google.mediapipe.tasks.genai.llminference.LlmInferenceSession;
+import com.google.mediapipe.tasks.genai.llminference.ProgressListener;
 
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 
-public class LlmHelper {
+public class LlmHelper implements LlmEngine {
     private static final String TAG = "LlmHelper";
 
+    // Context of the engine, shared by the prompt, the OCR text and the response
+    static final int MAX_TOKENS = 4096;
+    // Kept free for the response when the member count is unknown
+    static final int OUTPUT_RESERVE_TOKENS = 1024;
+    // Response size per format: header, then per member (about 1.4x the measured line or object)
+    private static final int COMPACT_HEADER_TOKENS = 80;
+    private static final int COMPACT_MEMBER_TOKENS = 100;
+    private static final int JSON_HEADER_TOKENS = 160;
+    private static final int JSON_MEMBER_TOKENS = 220;
+
+    // The engine is loaded on first use and released when idle or when the system trims memory
+    private static final long IDLE_UNLOAD_MS = 2 * 60 * 1000;
+
+    private Context context;
+    private volatile String modelPath;
     private LlmInference llmInference;
-    private boolean isInitialized = false;
+    private volatile boolean isInitialized = false;   // engine resident
+    private boolean prefixReleased;                   // prefix session dropped by a trim, engine kept
+    private final MemoryStats memoryStats = new MemoryStats();
+
+    /** Engine residency: loads, what they cost, and releases. */
+    public static class MemoryStats implements Serializable {
+        public int loads;
+        public long lastLoadMs;
+        public long totalLoadMs;
+        public long residentBytes;      // RSS growth over the last load
+        public int evictions;           // engine released
+        public int sessionEvictions;    // only the prompt-prefix session released
+        public String lastEviction;     // reason of the last release
+
+        @Override
+        public String toString() {
+            String text = String.format(Locale.US, "%d loads, last %d ms, +%d MB resident, %d evictions",
+                loads, lastLoadMs, residentBytes / (1024 * 1024), evictions);
+            if (sessionEvictions > 0) text += String.format(Locale.US, ", %d session evictions", sessionEvictions);
+            if (lastEviction != null) text += " (last: " + lastEviction + ")";
+            return text;
+        }
+    }
+
+    /**
+     * What the model is asked to generate. COMPACT has one positional,
+     * '|'-separated line per member instead of 13 repeated JSON keys, and is
+     * expanded locally into the same JSON.
+     */
+    public enum OutputFormat {
+        JSON,
+        COMPACT
+    }
+
+    private volatile OutputFormat outputFormat = OutputFormat.COMPACT;
+
+    // Session whose context already holds the instruction prompt. Each document
+    // runs on a clone of it, so only the OCR text is prefilled per call.
+    private LlmInferenceSession prefixSession;
+    private final Object sessionLock = new Object();
+    // Guards prefixSession alone, nested inside sessionLock: token counts use the
+    // prefix session's tokenizer and must not wait for a generation to finish
+    private final Object prefixLock = new Object();
+    private long prefixPrefillMs;
+    private int prefixTokens;
+    private volatile Timing lastTiming;
+
+    // Every engine call runs on this one thread; a few documents may wait behind the running one
+    private static final int QUEUE_CAPACITY = 4;
+    private final InferenceQueue queue = new InferenceQueue("llm-inference", QUEUE_CAPACITY);
+
+    /** Where the time of one structuring call went. */
+    public static class Timing implements Serializable {
+        long queueWaitMs;       // submitted to taken by the inference thread
+        long loadMs;            // engine or prefix session loaded for this call, 0 when resident
+        OutputFormat format;
+        boolean prefixReused;   // false when the whole prompt had to be prefilled
+        int prefixTokens;
+        int inputTokens;        // OCR text and suffix, prefilled per call
+        long prefixPrefillMs;   // one-time cost paid when the engine loads
+        long sessionMs;         // clone (or create) of the session
+        // Written by the MediaPipe listener thread during decoding
+        volatile long firstTokenMs;         // call start to first streamed token
+        volatile long firstMemberMs = -1;   // call start to the first complete anggota_keluarga member
+        volatile int members;
+        int outputTokens;       // generated tokens, as the raw response
+        int outputBudget;
+        volatile String stopReason; // "complete", "budget" or "cancelled" when decoding was cancelled, null at end of stream
+        long totalMs;
+
+        @Override
+        public String toString() {
+            String text = loadMs > 0 ? String.format(Locale.US, "load %d ms, ", loadMs) : "";
+            text += String.format(Locale.US, "queued %d ms, TTFT %d ms (session %d ms, %d tokens prefilled, prefix %s), %s %d tokens out",
+                queueWaitMs, firstTokenMs, sessionMs, inputTokens,
+                prefixReused ? prefixTokens + " tokens reused" : "not reused",
+                format.name().toLowerCase(Locale.ROOT), outputTokens);
+            text += String.format(Locale.US, "/%d budget", outputBudget);
+            if (stopReason != null) text += ", stopped on " + stopReason;
+            if (firstMemberMs >= 0) {
+                text += String.format(Locale.US, ", first of %d members at %d ms", members, firstMemberMs);
+            }
+            return text;
+        }
+    }
 
     private static final String KARTU_KELUARGA_PROMPT =
         "Indonesian Kartu Keluarga (Family Card) OCR. Text is arranged spatially with | separating columns.\n" +
@@ -35,61 +148,642 @@ public class LlmHelper {
         "Return ONLY valid JSON:\n" +
         "{\"no_kk\":\"\",\"kepala_keluarga\":\"\",\"alamat\":\"\",\"rt_rw\":\"\",\"desa_kelurahan\":\"\",\"kecamatan\":\"\",\"kabupaten_kota\":\"\",\"provinsi\":\"\",\"anggota_keluarga\":[{\"nama\":\"\",\"nik\":\"\",\"jenis_kelamin\":\"\",\"tempat_lahir\":\"\",\"tanggal_lahir\":\"\",\"agama\":\"\",\"pendidikan\":\"\",\"pekerjaan\":\"\",\"status_perkawinan\":\"\",\"hubungan_keluarga\":\"\",\"kewarganegaraan\":\"\",\"nama_ayah\":\"\",\"nama_ibu\":\"\"}]}\n\nOCR Text:\n";
 
+    // Same task, positional output parsed by CompactRecordParser
+    private static final String KARTU_KELUARGA_COMPACT_PROMPT =
+        "Indonesian Kartu Keluarga (Family Card) OCR. Text is arranged spatially with | separating columns.\n" +
+        "Row numbers (1,2,3...) link the same person across Table 1 and Table 2.\n" +
+        "Table 1 has: No, Nama Lengkap, NIK, Jenis Kelamin, Tempat Lahir, Tanggal Lahir, Agama, Pendidikan, Pekerjaan\n" +
+        "Table 2 has: No, Status Perkawinan, Status Hubungan, Kewarganegaraan, Nama Ayah, Nama Ibu\n" +
+        "Return ONLY these lines, no JSON. Fields are separated by |, leave unknown fields empty, never use | in a value:\n" +
+        "KK|no_kk|kepala_keluarga|alamat|rt_rw|desa_kelurahan|kecamatan|kabupaten_kota|provinsi\n" +
+        "M|nama|nik|jenis_kelamin|tempat_lahir|tanggal_lahir|agama|pendidikan|pekerjaan|status_perkawinan|hubungan_keluarga|kewarganegaraan|nama_ayah|nama_ibu\n" +
+        "Write one KK line, then one M line per family member in row order.\n\nOCR Text:\n";
+
+    /**
+     * Streaming callbacks arrive on the inference thread, in generation order:
+     * raw text chunks, plus each top-level field and anggota_keluarga member
+     * as soon as its JSON closes. onResult carries the complete response.
+     */
     public interface LlmCallback {
         void onResult(String result);
         void onError(String error);
         void onPartialResult(String partialResult);
+        void onField(String key, String value);
+        void onMember(int index, FamilyMember member);
     }
 
     public LlmHelper() {
+        queue.setIdleTask(IDLE_UNLOAD_MS, new Runnable() {
+            @Override
+            public void run() {
+                unload("idle");
+            }
+        });
     }
 
+    /**
+     * Point the helper at a model without loading it; the first call loads it
+     * on the inference thread. Returns false when the file is missing.
+     */
+    @Override
+    public boolean configure(Context context, String modelPath) {
+        if (!new File(modelPath).exists()) {
+            Log.e(TAG, "Model file not found: " + modelPath);
+            return false;
+        }
+        synchronized (sessionLock) {
+            this.context = context.getApplicationContext();
+            this.modelPath = modelPath;
+        }
+        return true;
+    }
+
+    /** Initialize with the active LLM in the model store. */
+    public boolean initialize(Context context) {
+        File model = new ModelStore(context).locate(ModelStore.ROLE_LLM, ModelStore.LLM_FILE);
+        if (model == null) {
+            Log.e(TAG, "No LLM installed");
+            return false;
+        }
+        return initialize(context, model.getPath());
+    }
+
+    /** Configure and load right away; for callers that want the cost paid up front. */
     public boolean initialize(Context context, String modelPath) {
+        if (!configure(context, modelPath)) return false;
         try {
-            File modelFile = new File(modelPath);
-            if (!modelFile.exists()) {
-                Log.e(TAG, "Model file not found: " + modelPath);
-                return false;
+            synchronized (sessionLock) {
+                ensureLoaded();
             }
-
-            LlmInference.LlmInferenceOptions options = LlmInference.LlmInferenceOptions.builder()
-                .setModelPath(modelPath)
-                .setMaxTokens(4096)
-                .build();
-
-            llmInference = LlmInference.createFromOptions(context, options);
-            isInitialized = true;
-            Log.d(TAG, "LLM initialized successfully");
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Failed to initialize LLM: " + e.getMessage());
-            isInitialized = false;
             return false;
         }
     }
 
+    /** A model is configured; it may or may not be resident. */
+    @Override
+    public boolean isAvailable() {
+        return modelPath != null;
+    }
+
+    @Override
+    public MemoryStats getMemoryStats() {
+        synchronized (memoryStats) {
+            MemoryStats copy = new MemoryStats();
+            copy.loads = memoryStats.loads;
+            copy.lastLoadMs = memoryStats.lastLoadMs;
+            copy.totalLoadMs = memoryStats.totalLoadMs;
+            copy.residentBytes = memoryStats.residentBytes;
+            copy.evictions = memoryStats.evictions;
+            copy.sessionEvictions = memoryStats.sessionEvictions;
+            copy.lastEviction = memoryStats.lastEviction;
+            return copy;
+        }
+    }
+
+    /**
+     * Load the engine and the prefix session when they are not resident.
+     * Returns the milliseconds spent loading. Holds sessionLock.
+     */
+    private long ensureLoaded() throws Exception {
+        if (llmInference != null) {
+            if (!prefixReleased) return 0;
+            // Only the prefix session was trimmed: one prompt prefill brings it back
+            long start = System.currentTimeMillis();
+            prefixReleased = false;
+            preparePrefixSession();
+            return System.currentTimeMillis() - start;
+        }
+        if (modelPath == null) throw new IllegalStateException("LLM not initialized");
+
+        long start = System.currentTimeMillis();
+        long residentBefore = residentBytes();
+        LlmInference.LlmInferenceOptions options = LlmInference.LlmInferenceOptions.builder()
+            .setModelPath(modelPath)
+            .setMaxTokens(MAX_TOKENS)
+            .build();
+        llmInference = LlmInference.createFromOptions(context, options);
+        preparePrefixSession();
+        prefixReleased = false;
+        isInitialized = true;
+
+        long loadMs = System.currentTimeMillis() - start;
+        synchronized (memoryStats) {
+            memoryStats.loads++;
+            memoryStats.lastLoadMs = loadMs;
+            memoryStats.totalLoadMs += loadMs;
+            memoryStats.residentBytes = Math.max(0, residentBytes() - residentBefore);
+        }
+        Log.d(TAG, "LLM loaded: " + getMemoryStats());
+        return loadMs;
+    }
+
+    /** Close the engine; the next call loads it again. */
+    private void unload(String reason) {
+        synchronized (sessionLock) {
+            if (llmInference == null) return;
+            setPrefixSession(null);
+            llmInference.close();
+            llmInference = null;
+            isInitialized = false;
+            prefixReleased = false;
+        }
+        synchronized (memoryStats) {
+            memoryStats.evictions++;
+            memoryStats.lastEviction = reason;
+        }
+        Log.d(TAG, "LLM unloaded (" + reason + "): " + getMemoryStats());
+    }
+
+    /** Drop the prefix session and its KV cache but keep the weights. */
+    private void releasePrefixSession(String reason) {
+        synchronized (sessionLock) {
+            synchronized (prefixLock) {
+                if (prefixSession == null) return;
+            }
+            setPrefixSession(null);
+            prefixReleased = true;
+        }
+        synchronized (memoryStats) {
+            memoryStats.sessionEvictions++;
+            memoryStats.lastEviction = reason;
+        }
+        Log.d(TAG, "LLM prefix session released (" + reason + ")");
+    }
+
+    /**
+     * Forwarded from ComponentCallbacks2.onTrimMemory. Running low keeps the
+     * weights and drops the prefix session's KV cache; critical pressure or
+     * the app going to the background releases the engine. The release is
+     * queued, so a running or queued document finishes first.
+     */
+    @Override
+    public void trimMemory(final int level) {
+        final boolean unload = level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+            || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+        final boolean release = level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+        // UI_HIDDEN and RUNNING_MODERATE are left to the idle timeout
+        if (!unload && !release) return;
+
+        queue.offer("trim", new InferenceQueue.Task() {
+            @Override
+            public void run(long waitMs) {
+                String reason = "trim level " + level;
+                if (unload) unload(reason);
+                else releasePrefixSession(reason);
+            }
+
+            @Override
+            public void cancel() {
+            }
+
+            @Override
+            public void dropped(String reason) {
+                Log.d(TAG, "Trim skipped: " + reason);
+            }
+        });
+    }
+
+    /** Resident set size of this process, or the native heap where /proc is unreadable. */
+    private static long residentBytes() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/status"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (Exception e) {
+            // Fall through
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+        return Debug.getNativeHeapAllocatedSize();
+    }
+
+    /**
+     * Prefill the instruction prompt once. Failure only disables reuse; every
+     * call then prefills the whole prompt in a fresh session.
+     */
+    private void preparePrefixSession() {
+        long start = System.currentTimeMillis();
+        LlmInferenceSession session = null;
+        try {
+            session = newSession();
+            session.addQueryChunk(prompt(outputFormat));
+            // Clone once up front: an engine that cannot clone sessions is detected here,
+            // and a lazily run prefill is paid now rather than on the first document
+            session.cloneSession().close();
+            prefixTokens = session.sizeInTokens(prompt(outputFormat));
+            setPrefixSession(session);
+            prefixPrefillMs = System.currentTimeMillis() - start;
+            Log.d(TAG, String.format(Locale.US, "Prompt prefix prefilled: %d tokens in %d ms",
+                prefixTokens, prefixPrefillMs));
+        } catch (Exception e) {
+            Log.e(TAG, "Prefix session unavailable, prefilling the full prompt per call", e);
+            if (session != null) session.close();
+            setPrefixSession(null);
+        }
+    }
+
+    /** Replace the prefix session, closing the old one. Holds sessionLock. */
+    private void setPrefixSession(LlmInferenceSession session) {
+        synchronized (prefixLock) {
+            if (prefixSession != null && prefixSession != session) prefixSession.close();
+            prefixSession = session;
+        }
+    }
+
+    private static String prompt(OutputFormat format) {
+        return format == OutputFormat.COMPACT ? KARTU_KELUARGA_COMPACT_PROMPT : KARTU_KELUARGA_PROMPT;
+    }
+
+    private static String suffix(OutputFormat format) {
+        return format == OutputFormat.COMPACT ? "\n\nOutput:\n" : "\n\nJSON Output:";
+    }
+
+    /** Switch the output format; the prefix session is prefilled again for the new prompt. */
+    public void setOutputFormat(OutputFormat format) {
+        synchronized (sessionLock) {
+            if (format == outputFormat) return;
+            outputFormat = format;
+            if (llmInference != null) {
+                setPrefixSession(null);
+                prefixReleased = false;
+                preparePrefixSession();
+            }
+        }
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    private LlmInferenceSession newSession() {
+        return LlmInferenceSession.createFromOptions(llmInference,
+            LlmInferenceSession.LlmInferenceSessionOptions.builder().build());
+    }
+
     public boolean isInitialized() {
         return isInitialized;
     }
 
-    public void structureKartuKeluarga(String ocrText, LlmCallback callback) {
-        if (!isInitialized || llmInference == null) {
+    /**
+     * Tokens left for the OCR text of one structuring call, after the prompt
+     * and the response budget for expectedMembers (0 when unknown).
+     */
+    @Override
+    public int inputTokenBudget(int expectedMembers) {
+        OutputFormat format = outputFormat;
+        int promptTokens = prefixTokens > 0 ? prefixTokens : countTokens(prompt(format));
+        return MAX_TOKENS - promptTokens - countTokens(suffix(format)) - outputTokenBudget(format, expectedMembers);
+    }
+
+    /** inputTokenBudget for the default format with estimated prompt tokens, when no engine can be asked. */
+    static int estimatedInputTokenBudget(int expectedMembers) {
+        OutputFormat format = OutputFormat.COMPACT;
+        return MAX_TOKENS - LayoutCompactor.estimate(prompt(format))
+            - LayoutCompactor.estimate(suffix(format)) - outputTokenBudget(format, expectedMembers);
+    }
+
+    /**
+     * Tokens the response may take, from the member count the rules found
+     * plus one they may have missed. Without a count the fixed reserve
+     * applies. At most half the context.
+     */
+    static int outputTokenBudget(OutputFormat format, int expectedMembers) {
+        if (expectedMembers <= 0) return OUTPUT_RESERVE_TOKENS;
+        int budget = (format == OutputFormat.COMPACT)
+            ? COMPACT_HEADER_TOKENS + (expectedMembers + 1) * COMPACT_MEMBER_TOKENS
+            : JSON_HEADER_TOKENS + (expectedMembers + 1) * JSON_MEMBER_TOKENS;
+        return Math.min(budget, MAX_TOKENS / 2);
+    }
+
+    /**
+     * Tokens of text in the model's vocabulary, estimated when no session is
+     * ready. Uses the prefix session's tokenizer without waiting for a running
+     * generation, so the next page can be compacted meanwhile.
+     */
+    @Override
+    public int countTokens(String text) {
+        synchronized (prefixLock) {
+            if (prefixSession != null) {
+                return prefixSession.sizeInTokens(text);
+            }
+        }
+        return LayoutCompactor.estimate(text);
+    }
+
+    /** countTokens for each text, under one acquisition of the tokenizer. */
+    @Override
+    public int[] countTokens(List<String> texts) {
+        int[] counts = new int[texts.size()];
+        synchronized (prefixLock) {
+            if (prefixSession != null) {
+                for (int i = 0; i < counts.length; i++) counts[i] = prefixSession.sizeInTokens(texts.get(i));
+                return counts;
+            }
+        }
+        return LayoutCompactor.ESTIMATE.count(texts);
+    }
+
+    /** Timing of the last finished structuring call, null before the first. */
+    @Override
+    public Timing getLastTiming() {
+        return lastTiming;
+    }
+
+    /** Queue statistics of the inference thread. */
+    public InferenceQueue.Metrics getQueueMetrics() {
+        return queue.getMetrics();
+    }
+
+    /** Drop the queued call and stop the running call submitted under key. */
+    @Override
+    public void cancel(String key) {
+        queue.cancel(key);
+    }
+
+    /** One call on the inference thread. cancel() stops its decoding, or its start if it has not started. */
+    private abstract static class Call implements InferenceQueue.Task {
+        volatile boolean cancelled;
+        private LlmInferenceSession session;    // while decoding
+
+        synchronized void attach(LlmInferenceSession decoding) {
+            session = decoding;
+        }
+
+        synchronized void detach() {
+            session = null;
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+            if (session != null) session.cancelGenerateResponseAsync();
+        }
+    }
+
+    /** Work run by runQueued on the inference thread. */
+    private interface Work {
+        String run(Call call, long waitMs) throws Exception;
+    }
+
+    /** Queue work under key, waiting while the queue is full, and block until it finished. */
+    private String runQueued(String key, final Work work) throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final String[] result = new String[1];
+        final Exception[] error = new Exception[1];
+        Call call = new Call() {
+            @Override
+            public void run(long waitMs) {
+                try {
+                    if (cancelled) throw new CancellationException("LLM request cancelled");
+                    result[0] = work.run(this, waitMs);
+                } catch (Exception e) {
+                    error[0] = e;
+                } finally {
+                    finished.countDown();
+                }
+            }
+
+            @Override
+            public void dropped(String reason) {
+                error[0] = new CancellationException("LLM request " + reason);
+                finished.countDown();
+            }
+        };
+        try {
+            queue.put(key, call);
+            finished.await();
+        } catch (InterruptedException e) {
+            call.cancel();
+            throw e;
+        }
+        if (error[0] != null) throw error[0];
+        return result[0];
+    }
+
+    /** Structure on the calling thread, queued behind any running call. */
+    public void structureKartuKeluarga(final String ocrText, final LlmCallback callback) {
+        if (!isAvailable()) {
             callback.onError("LLM not initialized");
             return;
         }
 
-        String fullPrompt = KARTU_KELUARGA_PROMPT + ocrText + "\n\nJSON Output:";
-
         try {
-            String result = llmInference.generateResponse(fullPrompt);
+            String result = runQueued(null, new Work() {
+                @Override
+                public String run(Call call, long waitMs) throws Exception {
+                    return generate(ocrText, 0, callback, call, waitMs);
+                }
+            });
             callback.onResult(result);
+        } catch (CancellationException e) {
+            callback.onError(e.getMessage());
         } catch (Exception e) {
             callback.onError("LLM inference failed: " + e.getMessage());
         }
     }
 
-    public void structureKartuKeluargaAsync(final String ocrText, final LlmCallback callback) {
-        if (!isInitialized || llmInference == null) {
+    /**
+     * Run a one-off prompt in a fresh session and block until the whole
+     * response is generated. For small targeted prompts that do not share the
+     * structuring prefix. Queued under key like structuring, so cancel(key) or
+     * a newer call under key stops it with a CancellationException.
+     */
+    @Override
+    public String generateText(String key, final String prompt) throws Exception {
+        if (!isAvailable()) {
+            throw new IllegalStateException("LLM not initialized");
+        }
+        return runQueued(key, new Work() {
+            @Override
+            public String run(Call call, long waitMs) throws Exception {
+                return generateOnce(prompt, call, waitMs);
+            }
+        });
+    }
+
+    /** generateText without blocking: the response arrives through onResult, failures through onError. */
+    @Override
+    public void generateTextAsync(String key, final String prompt, LlmCallback callback) {
+        if (!isAvailable()) {
+            callback.onError("LLM not initialized");
+            return;
+        }
+        queue.offer(key, callbackCall(new Work() {
+            @Override
+            public String run(Call call, long waitMs) throws Exception {
+                return generateOnce(prompt, call, waitMs);
+            }
+        }, callback));
+    }
+
+    /** Decode prompt in a fresh session, stoppable through call. */
+    private String generateOnce(String prompt, Call call, long waitMs) throws Exception {
+        synchronized (sessionLock) {
+            ensureLoaded();
+            long start = System.currentTimeMillis();
+            LlmInferenceSession session = newSession();
+            try {
+                session.addQueryChunk(prompt);
+                call.attach(session);
+                if (call.cancelled) throw new CancellationException("LLM request cancelled");
+                String response;
+                try {
+                    response = session.generateResponseAsync().get();
+                } catch (Exception e) {
+                    // A cancelled generation fails its future
+                    if (call.cancelled) throw new CancellationException("LLM request cancelled");
+                    throw e;
+                }
+                if (call.cancelled) throw new CancellationException("LLM request cancelled");
+                Log.d(TAG, String.format(Locale.US, "Prompt of %d tokens answered with %d tokens in %d ms, queued %d ms",
+                    session.sizeInTokens(prompt), session.sizeInTokens(response),
+                    System.currentTimeMillis() - start, waitMs));
+                return response;
+            } finally {
+                call.detach();
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Run one document on a copy of the prefix session and record its timing.
+     * Decoding is cancelled once the record is complete (JSON object closed,
+     * or member lines ended) or the output budget is spent, so trailing
+     * commentary is never paid for. Returns the raw JSON response, or for
+     * COMPACT the expanded record as JSON; throws CancellationException when
+     * the call was cancelled.
+     */
+    private String generate(String ocrText, int expectedMembers, final LlmCallback callback,
+                            final Call call, long queueWaitMs) throws Exception {
+        final Timing timing = new Timing();
+        timing.queueWaitMs = queueWaitMs;
+        final long start = System.currentTimeMillis();
+
+        synchronized (sessionLock) {
+            timing.loadMs = ensureLoaded();
+            OutputFormat format = outputFormat;
+            String prompt = prompt(format);
+            String input = ocrText + suffix(format);
+            timing.format = format;
+            timing.outputBudget = outputTokenBudget(format, expectedMembers);
+            LlmInferenceSession session;
+            synchronized (prefixLock) {
+                timing.prefixReused = prefixSession != null;
+                session = timing.prefixReused ? prefixSession.cloneSession() : newSession();
+            }
+            timing.sessionMs = System.currentTimeMillis() - start - timing.loadMs;
+
+            try {
+                session.addQueryChunk(timing.prefixReused ? input : prompt + input);
+                timing.prefixTokens = prefixTokens;
+                timing.prefixPrefillMs = prefixPrefillMs;
+                timing.inputTokens = session.sizeInTokens(timing.prefixReused ? input : prompt + input);
+                timing.firstTokenMs = -1;
+
+                final CompactRecordParser.Listener members = new CompactRecordParser.Listener() {
+                    @Override
+                    public void onField(String key, String value) {
+                        callback.onField(key, value);
+                    }
+
+                    @Override
+                    public void onMember(int index, FamilyMember member) {
+                        if (timing.firstMemberMs < 0) timing.firstMemberMs = System.currentTimeMillis() - start;
+                        timing.members++;
+                        callback.onMember(index, member);
+                    }
+                };
+                final CompactRecordParser compactParser = (format == OutputFormat.COMPACT)
+                    ? new CompactRecordParser(members) : null;
+                final IncrementalJsonParser jsonParser = (format == OutputFormat.JSON)
+                    ? new IncrementalJsonParser(new IncrementalJsonParser.Listener() {
+                        @Override
+                        public void onField(String key, Object value) {
+                            if (value instanceof String) members.onField(key, (String) value);
+                        }
+
+                        @Override
+                        public void onArrayObject(String key, int index, JSONObject object) {
+                            if (key.equals("anggota_keluarga")) members.onMember(index, FamilyMember.fromJson(object));
+                        }
+                    }) : null;
+
+                final LlmInferenceSession running = session;
+                call.attach(session);
+                if (call.cancelled) throw new CancellationException("LLM request cancelled");
+                final StringBuilder streamed = new StringBuilder();
+                final int[] streamedTokens = {0};
+                Future<String> future = session.generateResponseAsync(new ProgressListener<String>() {
+                    @Override
+                    public void run(String partialResult, boolean done) {
+                        if (timing.firstTokenMs < 0) timing.firstTokenMs = System.currentTimeMillis() - start;
+                        if (call.cancelled && timing.stopReason == null) timing.stopReason = "cancelled";
+                        if (partialResult == null || timing.stopReason != null) return;
+                        streamed.append(partialResult);
+                        callback.onPartialResult(partialResult);
+                        if (compactParser != null) compactParser.feed(partialResult);
+                        else jsonParser.feed(partialResult);
+
+                        // The tokenizer is busy decoding; the estimate is close enough for a cap
+                        streamedTokens[0] += LayoutCompactor.estimate(partialResult);
+                        boolean complete = (compactParser != null) ? compactParser.isDone() : jsonParser.isDone();
+                        if (!done && (complete || streamedTokens[0] >= timing.outputBudget)) {
+                            timing.stopReason = complete ? "complete" : "budget";
+                            running.cancelGenerateResponseAsync();
+                        }
+                    }
+                });
+
+                String response;
+                try {
+                    response = future.get();
+                } catch (Exception e) {
+                    // A cancelled generation may fail its future; the streamed text is the response
+                    if (timing.stopReason == null) throw e;
+                    response = streamed.toString();
+                }
+                if (call.cancelled) throw new CancellationException("LLM request cancelled");
+
+                timing.outputTokens = session.sizeInTokens(response);
+                timing.totalMs = System.currentTimeMillis() - start;
+                lastTiming = timing;
+                Log.d(TAG, timing + ", total " + timing.totalMs + " ms");
+                return (compactParser != null) ? RecordWriter.toJson(compactParser.finish()) : response;
+            } finally {
+                call.detach();
+                session.close();
+            }
+        }
+    }
+
+    public void structureKartuKeluargaAsync(String ocrText, LlmCallback callback) {
+        structureKartuKeluargaAsync(null, ocrText, 0, callback);
+    }
+
+    /**
+     * Queue a structuring call for the inference thread. A call under the same
+     * non-null key (e.g. one per screen) supersedes this one: dropped if still
+     * queued, cancelled if running, reported through onError. A full queue is
+     * also reported through onError. expectedMembers sizes the output budget.
+     */
+    @Override
+    public void structureKartuKeluargaAsync(String key, String ocrText, int expectedMembers,
+                                            LlmCallback callback) {
+        if (!isAvailable()) {
             callback.onError("LLM not initialized");
             return;
         }
@@ -98,32 +792,69 @@ public class LlmHelper {
         Log.d(TAG, "OCR Text received (length=" + (ocrText != null ? ocrText.length() : "null") + "):");
         Log.d(TAG, "OCR Text: " + ocrText);
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                String fullPrompt = KARTU_KELUARGA_PROMPT + ocrText + "\n\nJSON Output:";
+        queue.offer(key, structuringCall(ocrText, expectedMembers, callback));
+    }
 
-                // Debug: Log the full prompt
-                Log.d(TAG, "Full prompt (length=" + fullPrompt.length() + "):");
-                Log.d(TAG, fullPrompt);
+    /**
+     * Queue a structuring call for batch work: returns once it is queued,
+     * waiting while the queue is full so producers run at the engine's pace.
+     */
+    public void structureKartuKeluargaQueued(String ocrText, int expectedMembers, LlmCallback callback)
+            throws InterruptedException {
+        if (!isAvailable()) {
+            callback.onError("LLM not initialized");
+            return;
+        }
+        queue.put(null, structuringCall(ocrText, expectedMembers, callback));
+    }
 
+    private Call structuringCall(final String ocrText, final int expectedMembers, final LlmCallback callback) {
+        return callbackCall(new Work() {
+            @Override
+            public String run(Call call, long waitMs) throws Exception {
+                return generate(ocrText, expectedMembers, callback, call, waitMs);
+            }
+        }, callback);
+    }
+
+    /** A call that reports the outcome of work through callback rather than to a waiting caller. */
+    private Call callbackCall(final Work work, final LlmCallback callback) {
+        return new Call() {
+            @Override
+            public void run(long waitMs) throws Exception {
                 try {
-                    String result = llmInference.generateResponse(fullPrompt);
+                    if (cancelled) throw new CancellationException("LLM request cancelled");
+                    String result = work.run(this, waitMs);
                     Log.d(TAG, "LLM Result: " + result);
                     callback.onResult(result);
+                } catch (CancellationException e) {
+                    callback.onError(e.getMessage());
                 } catch (Exception e) {
                     Log.e(TAG, "LLM inference error", e);
                     callback.onError("LLM inference failed: " + e.getMessage());
+                    throw e;
                 }
             }
-        }).start();
+
+            @Override
+            public void dropped(String reason) {
+                callback.onError("LLM request " + reason);
+            }
+        };
     }
 
+    @Override
     public void close() {
-        if (llmInference != null) {
-            llmInference.close();
-            llmInference = null;
+        modelPath = null;
+        // Stop queued and running calls; the running one releases sessionLock once it winds down
+        queue.shutdown();
+        synchronized (sessionLock) {
+            setPrefixSession(null);
+            if (llmInference != null) {
+                llmInference.close();
+                llmInference = null;
+            }
+            isInitialized = false;
         }
-        isInitialized = false;
     }
 }
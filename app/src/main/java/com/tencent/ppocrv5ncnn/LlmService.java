@@ -0,0 +1,198 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Hosts the LLM in the :llm process (see AndroidManifest.xml), so the
+ * MediaPipe heap is accounted apart from the OCR process and a native crash
+ * or OOM kill here only costs the running call. RemoteLlmClient binds to it
+ * and talks through LlmChannel messages.
+ *
+ * Messages are handled on one thread. Structuring and targeted prompts are
+ * queued on the engine and stream back. Token counts and budgets run on
+ * one executor of their own; they use the tokenizer without waiting for a
+ * running generation, and a cancel is never stuck behind them. Memory trims arrive in this process
+ * directly.
+ */
+public class LlmService extends Service {
+    private static final String TAG = "LlmService";
+
+    private LlmEngine engine;
+    private HandlerThread thread;
+    private Messenger messenger;
+    // Token counts and budgets, off the message thread; they never wait for a generation
+    private final ExecutorService queries = Executors.newSingleThreadExecutor();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        engine = createEngine();
+        thread = new HandlerThread("llm-service");
+        thread.start();
+        messenger = new Messenger(new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                handle(msg);
+            }
+        });
+        Log.d(TAG, "LLM process started");
+    }
+
+    /** The engine behind the messages; tests substitute a stub model. */
+    protected LlmEngine createEngine() {
+        return new LlmHelper();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger.getBinder();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        engine.trimMemory(level);
+    }
+
+    @Override
+    public void onDestroy() {
+        engine.close();
+        queries.shutdownNow();
+        thread.quitSafely();
+        super.onDestroy();
+    }
+
+    private void handle(Message msg) {
+        final Messenger client = msg.replyTo;
+        final int id = msg.arg1;
+        final int arg = msg.arg2;
+        Bundle data = msg.getData();
+        final String text = LlmChannel.getText(data, LlmChannel.KEY_TEXT);
+
+        switch (msg.what) {
+            case LlmChannel.MSG_CONFIGURE:
+                if (!engine.configure(this, text)) {
+                    reply(client, LlmChannel.MSG_ERROR, id, "Model file not found");
+                }
+                break;
+            case LlmChannel.MSG_STRUCTURE:
+                engine.structureKartuKeluargaAsync(data.getString(LlmChannel.KEY_QUEUE_KEY), text, arg,
+                    new Forwarder(client, id, true));
+                break;
+            case LlmChannel.MSG_GENERATE:
+                // Queued like structuring, so MSG_CANCEL reaches it
+                engine.generateTextAsync(data.getString(LlmChannel.KEY_QUEUE_KEY), text,
+                    new Forwarder(client, id, false));
+                break;
+            case LlmChannel.MSG_CANCEL:
+                engine.cancel(data.getString(LlmChannel.KEY_QUEUE_KEY));
+                break;
+            case LlmChannel.MSG_COUNT_TOKENS:
+                final List<String> texts = LlmChannel.getTexts(data, LlmChannel.KEY_VALUES);
+                queries.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Message value = LlmChannel.obtain(LlmChannel.MSG_VALUE, id, 0);
+                        value.getData().putIntArray(LlmChannel.KEY_VALUES, engine.countTokens(texts));
+                        LlmChannel.send(client, value);
+                    }
+                });
+                break;
+            case LlmChannel.MSG_INPUT_BUDGET:
+                queries.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        LlmChannel.send(client, LlmChannel.obtain(LlmChannel.MSG_VALUE, id,
+                            engine.inputTokenBudget(arg)));
+                    }
+                });
+                break;
+            default:
+                Log.w(TAG, "Unknown message " + msg.what);
+        }
+    }
+
+    private void reply(Messenger client, int what, int id, String text) {
+        reply(client, what, id, text, false);
+    }
+
+    /** A result carries the memory stats, and for structuring its timing. */
+    private void reply(Messenger client, int what, int id, String text, boolean timing) {
+        Message msg = LlmChannel.obtain(what, id, 0);
+        LlmChannel.putText(msg.getData(), LlmChannel.KEY_TEXT, text);
+        if (what == LlmChannel.MSG_RESULT) {
+            if (timing) msg.getData().putSerializable(LlmChannel.KEY_TIMING, engine.getLastTiming());
+            msg.getData().putSerializable(LlmChannel.KEY_MEMORY_STATS, engine.getMemoryStats());
+        }
+        LlmChannel.send(client, msg);
+    }
+
+    /** Streams one structuring or targeted call back to the client. */
+    private class Forwarder implements LlmHelper.LlmCallback {
+        private final Messenger client;
+        private final int id;
+        private final boolean structuring;
+
+        Forwarder(Messenger client, int id, boolean structuring) {
+            this.client = client;
+            this.id = id;
+            this.structuring = structuring;
+        }
+
+        @Override
+        public void onResult(String result) {
+            reply(client, LlmChannel.MSG_RESULT, id, result, structuring);
+        }
+
+        @Override
+        public void onError(String error) {
+            reply(client, LlmChannel.MSG_ERROR, id, error);
+        }
+
+        @Override
+        public void onPartialResult(String partialResult) {
+            reply(client, LlmChannel.MSG_PARTIAL, id, partialResult);
+        }
+
+        @Override
+        public void onField(String key, String value) {
+            Message msg = LlmChannel.obtain(LlmChannel.MSG_FIELD, id, 0);
+            msg.getData().putString(LlmChannel.KEY_FIELD, key);
+            msg.getData().putString(LlmChannel.KEY_VALUE, value);
+            LlmChannel.send(client, msg);
+        }
+
+        @Override
+        public void onMember(int index, FamilyMember member) {
+            Message msg = LlmChannel.obtain(LlmChannel.MSG_MEMBER, id, index);
+            msg.getData().putString(LlmChannel.KEY_VALUE, LlmChannel.memberToJson(member));
+            LlmChannel.send(client, msg);
+        }
+    }
+}
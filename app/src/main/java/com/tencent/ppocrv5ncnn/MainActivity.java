@@ -14,11 +14,14 @@
 
 package com.tencent.ppocrv5ncnn;
 
+import android.Manifest;
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -33,17 +36,36 @@ import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.Toast;
 
-import java.io.InputStream;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 public class MainActivity extends Activity
 {
     private static final String TAG = "MainActivity";
     private static final int REQUEST_IMAGE_PICK = 1;
+    private static final int REQUEST_BATCH_IMAGES = 2;
+    private static final int REQUEST_BATCH_FOLDER = 3;
+    private static final int REQUEST_NOTIFICATIONS = 4;
+    // Queue key of this screen's LLM call: a new run or page supersedes the old one
+    private static final String LLM_QUEUE_KEY = "main";
+    // Run the LLM in the :llm process (LlmService) rather than next to the OCR engine
+    private static final boolean LLM_IN_SEPARATE_PROCESS = true;
+    // Parallel ranged connections for the model download; falls back to one without range support
+    private static final int LLM_DOWNLOAD_CONNECTIONS = 4;
 
     private PPOCRv5Ncnn ppocrv5ncnn = new PPOCRv5Ncnn();
-    private LlmHelper llmHelper = new LlmHelper();
+    private LlmEngine llmHelper;
+    private ModelStore modelStore;
     private ModelDownloader modelDownloader;
+    private ImageLoader imageLoader;
+    private volatile TemplateRegistry templateRegistry;
 
     private OcrOverlayView imageView;
     private TextView textOcrTimer;
@@ -73,16 +95,24 @@ public class MainActivity extends Activity
     private CheckBox checkBoxGpu;
 
     private Bitmap currentBitmap;
+    private int imageLoads; // picks so far; a page decoded for an older pick is dropped
     private String currentOcrResult;
     private String currentOcrResultWithBoxes;
+    private String currentDocumentType; // template id from classification, null if unknown
     private int currentModel = 0; // 0 = mobile, 1 = server
     private int currentCpuGpu = 0; // 0 = CPU, 1 = GPU (Vulkan)
 
     private Handler timerHandler = new Handler(Looper.getMainLooper());
+
+    // Components load in parallel; Run OCR is enabled once the engine and lexicons are ready
+    private StartupOrchestrator startup;
+    private CompletableFuture<Boolean> ocrEngine;
+    private CompletableFuture<TemplateRegistry> lexicons;
     private long ocrStartTime;
     private long llmStartTime;
     private boolean isOcrRunning = false;
     private boolean isLlmRunning = false;
+    private int llmRequest;     // bumped per LLM run and on cancel; older callbacks are ignored
     private boolean isDownloading = false;
 
     private Runnable ocrTimerRunnable = new Runnable() {
@@ -113,7 +143,12 @@ public class MainActivity extends Activity
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
 
-        modelDownloader = new ModelDownloader(this);
+        startup = new StartupOrchestrator(timerHandler);
+        modelStore = new ModelStore(this);
+        modelDownloader = new ModelDownloader(modelStore);
+        modelDownloader.setConnections(LLM_DOWNLOAD_CONNECTIONS);
+        imageLoader = new ImageLoader(getContentResolver(), ImageLoader.MAX_SIDE, 0);
+        llmHelper = LLM_IN_SEPARATE_PROCESS ? new RemoteLlmClient(this) : new LlmHelper();
 
         imageView = (OcrOverlayView) findViewById(R.id.imageView);
         textOcrTimer = (TextView) findViewById(R.id.textOcrTimer);
@@ -150,6 +185,26 @@ public class MainActivity extends Activity
             }
         });
 
+        // Batch: tap picks several images, long press a whole folder
+        Button buttonBatch = (Button) findViewById(R.id.buttonBatch);
+        buttonBatch.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("image/*");
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+                startActivityForResult(intent, REQUEST_BATCH_IMAGES);
+            }
+        });
+        buttonBatch.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), REQUEST_BATCH_FOLDER);
+                return true;
+            }
+        });
+
         buttonRunOCR.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -198,8 +253,8 @@ public class MainActivity extends Activity
                 int newModel = (checkedId == R.id.radioMobile) ? 0 : 1;
                 if (newModel != currentModel) {
                     currentModel = newModel;
-                    loadOcrModel();
                     clearResults();
+                    loadOcrModel();
                 }
             }
         });
@@ -218,14 +273,21 @@ public class MainActivity extends Activity
             }
         });
 
-        // Load OCR model
+        // OCR model, document templates and the LLM check load in parallel, off the main thread
         loadOcrModel();
-
-        // Check if LLM model exists and initialize
+        loadTemplates();
         checkAndInitializeLLM();
+
+        imageView.post(new Runnable() {
+            @Override
+            public void run() {
+                startup.milestone("first frame");
+            }
+        });
     }
 
     private void clearResults() {
+        cancelLlm();
         textRuleResult.setText("");
         textRuleTimer.setText("");
         textStructuringTimer.setText("");
@@ -236,32 +298,44 @@ public class MainActivity extends Activity
         textLlmTimer.setText("");
         currentOcrResult = null;
         currentOcrResultWithBoxes = null;
+        currentDocumentType = null;
         buttonRunStructuring.setEnabled(false);
         buttonRunLLM.setEnabled(false);
         imageView.clearResults();
     }
 
+    /** Stop the LLM run of the current page; its late callbacks are ignored. */
+    private void cancelLlm() {
+        llmRequest++;
+        llmHelper.cancel(LLM_QUEUE_KEY);
+        if (isLlmRunning) {
+            isLlmRunning = false;
+            timerHandler.removeCallbacks(llmTimerRunnable);
+            buttonRunOCR.setEnabled(canRunOcr());
+        }
+    }
+
     private void checkAndInitializeLLM() {
         textLlmStatus.setText("LLM: Checking...");
 
-        new Thread(new Runnable() {
+        // Whichever LLM is active in the store, not necessarily the one the button downloads
+        CompletableFuture<ModelStore.Entry> llmModel = startup.load("LLM model check", new StartupOrchestrator.Component<ModelStore.Entry>() {
             @Override
-            public void run() {
-                final boolean modelExists = modelDownloader.isModelDownloaded();
-
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (modelExists) {
-                            initializeLLM();
-                        } else {
-                            textLlmStatus.setText("LLM: Model not found (~1.5GB download required)");
-                            buttonDownloadLLM.setVisibility(View.VISIBLE);
-                        }
-                    }
-                });
+            public ModelStore.Entry load() {
+                return modelStore.use(ModelStore.ROLE_LLM);
             }
-        }).start();
+        });
+        startup.whenReady(llmModel, new StartupOrchestrator.ReadyListener<ModelStore.Entry>() {
+            @Override
+            public void onReady(ModelStore.Entry model, Throwable error) {
+                if (model != null) {
+                    initializeLLM(model);
+                } else {
+                    textLlmStatus.setText("LLM: Model not found (~1.5GB download required)");
+                    buttonDownloadLLM.setVisibility(View.VISIBLE);
+                }
+            }
+        });
     }
 
     private void startModelDownload() {
@@ -294,6 +368,7 @@ public class MainActivity extends Activity
 
             @Override
             public void onSuccess(final String modelPath) {
+                final ModelStore.Entry model = modelStore.getActive(ModelStore.ROLE_LLM);
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -301,8 +376,8 @@ public class MainActivity extends Activity
                         progressDownload.setVisibility(View.GONE);
                         textDownloadProgress.setVisibility(View.GONE);
                         buttonDownloadLLM.setVisibility(View.GONE);
-                        textLlmStatus.setText("LLM: Download complete, loading...");
-                        initializeLLM();
+                        textLlmStatus.setText("LLM: Download complete");
+                        initializeLLM(model);
                     }
                 });
             }
@@ -315,7 +390,7 @@ public class MainActivity extends Activity
                         isDownloading = false;
                         progressDownload.setVisibility(View.GONE);
                         textDownloadProgress.setVisibility(View.GONE);
-                        buttonDownloadLLM.setText("Download Model");
+                        buttonDownloadLLM.setText(modelDownloader.hasPartialDownload() ? "Resume Download" : "Download Model");
                         buttonDownloadLLM.setVisibility(View.VISIBLE);
                         textLlmStatus.setText("LLM: " + error);
                         Toast.makeText(MainActivity.this, error, Toast.LENGTH_LONG).show();
@@ -325,45 +400,119 @@ public class MainActivity extends Activity
         });
     }
 
-    private void initializeLLM() {
-        textLlmStatus.setText("LLM: Loading model...");
+    private void initializeLLM(ModelStore.Entry model) {
+        // The model loads on the inference thread at first use, not at startup
+        if (model != null && llmHelper.configure(this, model.file(ModelStore.LLM_FILE).getPath())) {
+            textLlmStatus.setText("LLM: Ready (" + model.id + " v" + model.version + ", loads on first use)");
+            buttonDownloadLLM.setVisibility(View.GONE);
+            // Enable LLM button if we have OCR results
+            if (currentOcrResult != null && !currentOcrResult.isEmpty() && isLlmSupported()) {
+                buttonRunLLM.setEnabled(true);
+            }
+        } else {
+            textLlmStatus.setText("LLM: Failed to load model");
+            buttonDownloadLLM.setVisibility(View.VISIBLE);
+            buttonDownloadLLM.setText("Retry");
+        }
+    }
 
-        new Thread(new Runnable() {
+    private void loadTemplates()
+    {
+        lexicons = startup.load("lexicons", new StartupOrchestrator.Component<TemplateRegistry>() {
             @Override
-            public void run() {
-                final String modelPath = modelDownloader.getModelPath();
-                final boolean success = llmHelper.initialize(MainActivity.this, modelPath);
-
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (success) {
-                            textLlmStatus.setText("LLM: Ready (Qwen 2.5 1.5B)");
-                            buttonDownloadLLM.setVisibility(View.GONE);
-                            // Enable LLM button if we have OCR results
-                            if (currentOcrResult != null && !currentOcrResult.isEmpty()) {
-                                buttonRunLLM.setEnabled(true);
-                            }
-                        } else {
-                            textLlmStatus.setText("LLM: Failed to load model");
-                            buttonDownloadLLM.setVisibility(View.VISIBLE);
-                            buttonDownloadLLM.setText("Retry");
-                        }
-                    }
-                });
+            public TemplateRegistry load() throws Exception {
+                templateRegistry = TemplateRegistry.load(getAssets());
+                // Builds the lexer's enum index now rather than on the first page
+                OcrLexer.tokenize("");
+                return templateRegistry;
             }
-        }).start();
+        });
+        startup.whenReady(lexicons, new StartupOrchestrator.ReadyListener<TemplateRegistry>() {
+            @Override
+            public void onReady(TemplateRegistry registry, Throwable error) {
+                if (error != null) {
+                    Log.e(TAG, "Failed to load document templates", error);
+                }
+                onOcrComponentReady();
+            }
+        });
     }
 
+    // Reloads queue behind the running load, which keeps the native model in one state at a time
     private void loadOcrModel()
     {
         // sizeid: 0=320, 1=480, 2=640, 3=960, 4=1280, 5=1600, 6=1920
         // GPU can handle 960; CPU OOMs above 640
-        int sizeid = (currentCpuGpu >= 1) ? 3 : 2;
-        boolean ret = ppocrv5ncnn.loadModel(getAssets(), currentModel, sizeid, currentCpuGpu);
-        if (!ret)
-        {
-            Log.e(TAG, "ppocrv5ncnn loadModel failed");
+        final int model = currentModel;
+        final int cpugpu = currentCpuGpu;
+        final int sizeid = (cpugpu >= 1) ? 3 : 2;
+        StartupOrchestrator.Component<Boolean> load = new StartupOrchestrator.Component<Boolean>() {
+            @Override
+            public Boolean load() {
+                boolean ret = ppocrv5ncnn.loadModel(getAssets(), modelStore, model, sizeid, cpugpu);
+                if (!ret)
+                {
+                    Log.e(TAG, "ppocrv5ncnn loadModel failed");
+                }
+                return ret;
+            }
+        };
+        buttonRunOCR.setEnabled(false);
+        final CompletableFuture<Boolean> engine = (ocrEngine == null)
+            ? startup.load("OCR engine", load) : startup.loadAfter(ocrEngine, "OCR engine", load);
+        ocrEngine = engine;
+        startup.whenReady(engine, new StartupOrchestrator.ReadyListener<Boolean>() {
+            @Override
+            public void onReady(Boolean loaded, Throwable error) {
+                if (engine != ocrEngine) return;   // a newer reload is queued
+                if (loaded == null || !loaded) {
+                    Toast.makeText(MainActivity.this, "Failed to load OCR model", Toast.LENGTH_LONG).show();
+                }
+                onOcrComponentReady();
+            }
+        });
+    }
+
+    private boolean isOcrReady()
+    {
+        return ocrEngine != null && Boolean.TRUE.equals(ocrEngine.getNow(false))
+            && lexicons != null && lexicons.isDone();
+    }
+
+    private void onOcrComponentReady()
+    {
+        if (!isOcrReady()) return;
+        startup.milestone("OCR ready");
+        Log.d(TAG, "Startup: " + startup.report());
+        buttonRunOCR.setEnabled(canRunOcr());
+    }
+
+    // One OCR run at a time, and not while the LLM reads the current result
+    private boolean canRunOcr()
+    {
+        return currentBitmap != null && isOcrReady() && !isOcrRunning && !isLlmRunning;
+    }
+
+    // The LLM prompt is written for Kartu Keluarga only
+    private boolean isLlmSupported()
+    {
+        return currentDocumentType == null || currentDocumentType.equals("kartu_keluarga");
+    }
+
+    // Labels and columns for the Kartu Keluarga rules; null until the templates have loaded
+    private SpatialExtractor.Template kartuKeluarga()
+    {
+        TemplateRegistry registry = templateRegistry;
+        return (registry != null) ? registry.kartuKeluarga() : null;
+    }
+
+    // Indent compact extractor output for display; anything unparsable is shown as-is
+    private static String prettyJson(String json)
+    {
+        try {
+            return new JSONObject(json).toString(2);
+        } catch (Exception e) {
+            return json;
         }
     }
 
@@ -376,7 +525,11 @@ public class MainActivity extends Activity
 
     private void runOCRWithTimer()
     {
-        if (currentBitmap == null) return;
+        if (currentBitmap == null || isOcrRunning) return;
+        if (!isOcrReady()) {
+            Toast.makeText(this, "OCR model is loading", Toast.LENGTH_SHORT).show();
+            return;
+        }
 
         buttonRunOCR.setEnabled(false);
         buttonRunStructuring.setEnabled(false);
@@ -391,42 +544,118 @@ public class MainActivity extends Activity
         ocrStartTime = System.currentTimeMillis();
         isOcrRunning = true;
         timerHandler.post(ocrTimerRunnable);
+        // Results are dropped if another image is picked before they arrive
+        final int load = imageLoads;
 
         new Thread(new Runnable() {
             @Override
             public void run() {
-                // Get OCR result with bounding boxes for spatial extraction
-                final String resultWithBoxes = ppocrv5ncnn.recognizeImageWithBoxes(currentBitmap);
-                // Also get plain text for LLM
-                final String result = ppocrv5ncnn.recognizeImage(currentBitmap);
+                // Turn a sideways or upside-down page upright first; its detection is reused when upright
+                final Bitmap original = currentBitmap;
+                final PageOrientation.Result orientation = PageOrientation.estimate(ppocrv5ncnn, original, null);
+                final Bitmap page = orientation.bitmap;
+
+                // Classify from detection first; unsupported pages skip recognition entirely
+                TemplateRegistry registry = templateRegistry;
+                final DocumentClassifier.Result classification = (registry != null)
+                    ? DocumentClassifier.classify(ppocrv5ncnn, page, registry, orientation.boxes) : null;
+
+                if (classification != null && !classification.isSupported())
+                {
+                    final long rejectTime = System.currentTimeMillis();
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (finishOcr(load)) return;
+                            showUprightPage(original, page);
+                            updateTimerDisplay(textOcrTimer, "Classify", rejectTime - ocrStartTime);
+                            textOcrTimer.append(" (" + orientation + ")");
+                            textOcrRaw.setText("Unsupported document: " + classification.reason);
+                            currentOcrResult = null;
+                            currentOcrResultWithBoxes = null;
+                            currentDocumentType = null;
+                            imageView.clearResults();
+                            buttonRunOCR.setEnabled(true);
+                        }
+                    });
+                    return;
+                }
+
+                // Kartu Keluarga lines stream into the incremental extractor while the page is recognized
+                final IncrementalSpatialExtractor incremental =
+                    (classification != null && "kartu_keluarga".equals(classification.documentType))
+                    ? new IncrementalSpatialExtractor(classification.boxes, registry.kartuKeluarga()) : null;
+                if (incremental != null) {
+                    incremental.setUpdateListener(new IncrementalSpatialExtractor.UpdateListener() {
+                        @Override
+                        public void onUpdate(final KartuKeluargaRecord record, final int linesDone) {
+                            runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (load != imageLoads) return;
+                                    textRuleResult.setText(RecordWriter.toPrettyJson(record));
+                                    textStructuringTimer.setText(String.format(Locale.US, "Rule: %d lines", linesDone));
+                                }
+                            });
+                        }
+                    });
+                }
+
+                // Recognize the boxes already detected, only inside the template's field regions,
+                // or the whole page if templates are not loaded yet
+                final String resultWithBoxes = (classification != null)
+                    ? DocumentClassifier.recognize(ppocrv5ncnn, page, classification, registry, incremental)
+                    : ppocrv5ncnn.recognizeImageWithBoxes(page);
+                final String streamedResult = (incremental != null)
+                    ? RecordWriter.toPrettyJson(incremental.finish()) : null;
+                // Plain text for LLM, derived from the same recognition
+                String plainText = null;
+                try {
+                    plainText = DocumentLayout.plainText(resultWithBoxes);
+                } catch (Exception e) {
+                    Log.e(TAG, "Invalid OCR result", e);
+                }
+                final String result = plainText;
                 final long ocrEndTime = System.currentTimeMillis();
 
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        isOcrRunning = false;
-                        timerHandler.removeCallbacks(ocrTimerRunnable);
+                        if (finishOcr(load)) return;
 
+                        showUprightPage(original, page);
                         long ocrElapsed = ocrEndTime - ocrStartTime;
                         updateTimerDisplay(textOcrTimer, "OCR", ocrElapsed);
+                        textOcrTimer.append(" (" + orientation + ")");
+                        if (classification != null) {
+                            textOcrTimer.append(String.format(Locale.US, " (classify %d ms, skipped %d/%d boxes)",
+                                classification.elapsedMs, classification.skippedBoxes,
+                                classification.recognizedBoxes + classification.skippedBoxes));
+                        }
 
-                        if (result != null && !result.isEmpty())
+                        if (result != null && !result.trim().isEmpty())
                         {
                             textOcrRaw.setText(result);
                             currentOcrResult = result;
                             currentOcrResultWithBoxes = resultWithBoxes;
+                            currentDocumentType = (classification != null) ? classification.documentType : null;
+                            if (streamedResult != null) {
+                                textRuleResult.setText(streamedResult);
+                                textStructuringTimer.setText(String.format(Locale.US, "Rule: streamed, first field after %d ms",
+                                    incremental.firstFieldMs()));
+                            }
                             // Show bounding boxes on the image
-                            imageView.setOcrResults(resultWithBoxes,
-                                currentBitmap.getWidth(), currentBitmap.getHeight());
+                            imageView.setOcrResults(resultWithBoxes, page.getWidth(), page.getHeight());
                             // Enable structuring and LLM buttons
                             buttonRunStructuring.setEnabled(true);
-                            buttonRunLLM.setEnabled(llmHelper.isInitialized());
+                            buttonRunLLM.setEnabled(llmHelper.isAvailable() && isLlmSupported());
                         }
                         else
                         {
                             textOcrRaw.setText("No text recognized");
                             currentOcrResult = null;
                             currentOcrResultWithBoxes = null;
+                            currentDocumentType = null;
                             imageView.clearResults();
                             buttonRunStructuring.setEnabled(false);
                             buttonRunLLM.setEnabled(false);
@@ -439,6 +668,25 @@ public class MainActivity extends Activity
         }).start();
     }
 
+    /** End the OCR run started for pick {@code load}; true if a newer pick makes its result stale. */
+    private boolean finishOcr(int load)
+    {
+        isOcrRunning = false;
+        timerHandler.removeCallbacks(ocrTimerRunnable);
+        if (load == imageLoads) return false;
+        buttonRunOCR.setEnabled(canRunOcr());
+        return true;
+    }
+
+    /** Show the page OCR turned upright, unless another image was picked meanwhile. */
+    private void showUprightPage(Bitmap original, Bitmap page)
+    {
+        if (page == original || currentBitmap != original) return;
+        currentBitmap = page;
+        imageView.setImageBitmap(page);
+        original.recycle();
+    }
+
     private void runStructuringWithTimer()
     {
         if (currentOcrResultWithBoxes == null || currentOcrResultWithBoxes.isEmpty()) {
@@ -454,8 +702,16 @@ public class MainActivity extends Activity
         new Thread(new Runnable() {
             @Override
             public void run() {
-                // Run spatial rule-based extraction using bounding box coordinates
-                final String ruleResult = SpatialExtractor.extract(currentOcrResultWithBoxes);
+                // Kartu Keluarga keeps the spatial extractor; other document types use their template
+                TemplateRegistry registry = templateRegistry;
+                String documentType = currentDocumentType;
+                if (documentType == null && registry != null) {
+                    documentType = TemplateExtractor.matchTemplate(currentOcrResultWithBoxes, registry);
+                }
+                // Extractors produce compact JSON; indentation is only for display
+                final String ruleResult = (documentType == null || documentType.equals("kartu_keluarga"))
+                    ? RecordWriter.toPrettyJson(SpatialExtractor.extractRecord(currentOcrResultWithBoxes, kartuKeluarga()))
+                    : prettyJson(TemplateExtractor.extract(currentOcrResultWithBoxes, registry, documentType));
                 final long endTime = System.currentTimeMillis();
 
                 runOnUiThread(new Runnable() {
@@ -478,11 +734,16 @@ public class MainActivity extends Activity
             return;
         }
 
-        if (!llmHelper.isInitialized()) {
+        if (!llmHelper.isAvailable()) {
             Toast.makeText(this, "LLM not initialized", Toast.LENGTH_SHORT).show();
             return;
         }
 
+        if (!isLlmSupported()) {
+            Toast.makeText(this, "LLM structuring supports Kartu Keluarga only", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         buttonRunOCR.setEnabled(false);
         buttonRunLLM.setEnabled(false);
         textLlmResult.setText("Structuring with LLM...");
@@ -490,12 +751,77 @@ public class MainActivity extends Activity
         llmStartTime = System.currentTimeMillis();
         isLlmRunning = true;
         timerHandler.post(llmTimerRunnable);
+        final int request = ++llmRequest;
+
+        // The router finishes the page with the rules, asks the LLM about the weak fields only,
+        // or falls back to the full LLM pass
+        final String ocrWithBoxes = currentOcrResultWithBoxes;
+        final String ocrText = currentOcrResult;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final HybridRouter.Plan plan = HybridRouter.plan(ocrWithBoxes, kartuKeluarga());
+                if (plan.route == HybridRouter.Route.FULL) {
+                    runFullLlm(ocrWithBoxes, ocrText, plan.record.members.size(), request);
+                    return;
+                }
+
+                String status = "rules only, " + plan.reason;
+                if (plan.route == HybridRouter.Route.TARGETED) {
+                    try {
+                        // Under this screen's key, so a reset or a new page cancels it
+                        int merged = HybridRouter.merge(plan, llmHelper.generateText(LLM_QUEUE_KEY, plan.prompt));
+                        status = String.format(Locale.US, "targeted, %s, %d fixed", plan.reason, merged);
+                    } catch (CancellationException e) {
+                        status = "targeted call cancelled, rules only";
+                    } catch (Exception e) {
+                        Log.e(TAG, "Targeted LLM call failed", e);
+                        status = "targeted call failed, rules only";
+                    }
+                }
+                final String result = RecordWriter.toPrettyJson(plan.record);
+                final String routeStatus = status;
+                final long endTime = System.currentTimeMillis();
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request != llmRequest) return;
+                        isLlmRunning = false;
+                        timerHandler.removeCallbacks(llmTimerRunnable);
 
-        // Use spatial text (preserves tabular layout) instead of flat OCR text
-        String spatialText = SpatialExtractor.toSpatialText(currentOcrResultWithBoxes);
-        String llmInput = (spatialText != null && !spatialText.isEmpty()) ? spatialText : currentOcrResult;
+                        long elapsed = endTime - llmStartTime;
+                        updateTimerDisplay(textLlmResultTimer, "LLM", elapsed);
+                        updateTimerDisplay(textLlmTimer, "LLM", elapsed);
+                        textLlmResultTimer.append(" (" + routeStatus + ")");
 
-        llmHelper.structureKartuKeluargaAsync(llmInput, new LlmHelper.LlmCallback() {
+                        textLlmResult.setText(result);
+                        buttonRunOCR.setEnabled(true);
+                        buttonRunLLM.setEnabled(true);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private void runFullLlm(String ocrWithBoxes, String ocrText, int expectedMembers, final int request)
+    {
+        // Spatial text (preserves tabular layout) without boilerplate, fitted to the context
+        final LayoutCompactor.Result compacted = LayoutCompactor.compact(ocrWithBoxes, kartuKeluarga(),
+            llmHelper.inputTokenBudget(expectedMembers), new LayoutCompactor.TokenCounter() {
+                @Override
+                public int[] count(List<String> texts) {
+                    return llmHelper.countTokens(texts);
+                }
+            });
+        String llmInput = !compacted.text.isEmpty() ? compacted.text : ocrText;
+
+        // Filled from streamed fields and members; only touched on the UI thread
+        final KartuKeluargaRecord streamed = new KartuKeluargaRecord();
+        final long[] firstMemberMs = {-1};
+
+        // The output budget follows the member count the rules found, 0 when they found none
+        llmHelper.structureKartuKeluargaAsync(LLM_QUEUE_KEY, llmInput, expectedMembers, new LlmHelper.LlmCallback() {
             @Override
             public void onResult(final String result) {
                 final long endTime = System.currentTimeMillis();
@@ -503,14 +829,20 @@ public class MainActivity extends Activity
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
+                        if (request != llmRequest) return;
                         isLlmRunning = false;
                         timerHandler.removeCallbacks(llmTimerRunnable);
 
                         long elapsed = endTime - llmStartTime;
                         updateTimerDisplay(textLlmResultTimer, "LLM", elapsed);
                         updateTimerDisplay(textLlmTimer, "LLM", elapsed);
+                        LlmHelper.Timing timing = llmHelper.getLastTiming();
+                        if (timing != null) {
+                            textLlmResultTimer.append(" (" + compacted + "; " + timing + ")");
+                        }
+                        textLlmStatus.setText("LLM: Ready (" + llmHelper.getMemoryStats() + ")");
 
-                        textLlmResult.setText(result);
+                        textLlmResult.setText(prettyJson(result));
                         buttonRunOCR.setEnabled(true);
                         buttonRunLLM.setEnabled(true);
                     }
@@ -522,6 +854,7 @@ public class MainActivity extends Activity
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
+                        if (request != llmRequest) return;
                         isLlmRunning = false;
                         timerHandler.removeCallbacks(llmTimerRunnable);
 
@@ -535,7 +868,37 @@ public class MainActivity extends Activity
 
             @Override
             public void onPartialResult(String partialResult) {
-                // Not used for now
+                // Rendered per field and member instead of per token
+            }
+
+            @Override
+            public void onField(final String key, final String value) {
+                final int field = KartuKeluargaRecord.headerIndex(key);
+                if (field < 0) return;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request != llmRequest) return;
+                        streamed.setHeader(field, value);
+                        textLlmResult.setText(RecordWriter.toPrettyJson(streamed));
+                    }
+                });
+            }
+
+            @Override
+            public void onMember(int index, final FamilyMember member) {
+                final long memberTime = System.currentTimeMillis();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request != llmRequest) return;
+                        if (firstMemberMs[0] < 0) firstMemberMs[0] = memberTime - llmStartTime;
+                        streamed.members.add(member);
+                        textLlmResult.setText(RecordWriter.toPrettyJson(streamed));
+                        textLlmResultTimer.setText(String.format(Locale.US, "LLM: %d members, first after %d ms",
+                            streamed.members.size(), firstMemberMs[0]));
+                    }
+                });
             }
         });
     }
@@ -545,37 +908,144 @@ public class MainActivity extends Activity
     {
         super.onActivityResult(requestCode, resultCode, data);
 
+        if ((requestCode == REQUEST_BATCH_IMAGES || requestCode == REQUEST_BATCH_FOLDER)
+            && resultCode == RESULT_OK && data != null)
+        {
+            startBatch(requestCode == REQUEST_BATCH_FOLDER, data);
+            return;
+        }
+
         if (requestCode == REQUEST_IMAGE_PICK && resultCode == RESULT_OK && data != null)
         {
             Uri imageUri = data.getData();
             if (imageUri != null)
             {
-                try
-                {
-                    InputStream inputStream = getContentResolver().openInputStream(imageUri);
-                    currentBitmap = BitmapFactory.decodeStream(inputStream);
-                    inputStream.close();
+                loadImage(imageUri);
+            }
+        }
+    }
 
-                    if (currentBitmap != null)
-                    {
-                        if (currentBitmap.getConfig() != Bitmap.Config.ARGB_8888)
-                        {
-                            currentBitmap = currentBitmap.copy(Bitmap.Config.ARGB_8888, false);
+    // Decode and rectify on a worker thread; only the view update runs on the UI thread
+    private void loadImage(final Uri imageUri)
+    {
+        final int load = ++imageLoads;
+        buttonRunOCR.setEnabled(false);
+        textOcrTimer.setText("Loading image...");
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ImageLoader.Result image;
+                final DocumentRectifier.Result page;
+                try {
+                    // Sampled down to what OCR uses, straight to ARGB_8888; no pool, as a running
+                    // OCR may still read the previous page
+                    image = imageLoader.decode(imageUri);
+                    // Crop to the page and straighten it, so detection spends its size on the document
+                    page = DocumentRectifier.rectify(ppocrv5ncnn, image.bitmap, null);
+                    if (page.isRectified()) image.bitmap.recycle();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error loading image", e);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (load != imageLoads) return;
+                            textOcrTimer.setText("");
+                            textRuleResult.setText("Error loading image");
+                            buttonRunOCR.setEnabled(canRunOcr());
                         }
+                    });
+                    return;
+                }
 
-                        imageView.setImageBitmap(currentBitmap);
-                        buttonRunOCR.setEnabled(true);
-                        buttonRunLLM.setEnabled(false);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A newer pick or a closed screen wins; this page was never shown
+                        if (load != imageLoads || isDestroyed()) {
+                            page.bitmap.recycle();
+                            return;
+                        }
+                        currentBitmap = page.bitmap;
+
+                        if (page.isRectified()) {
+                            imageView.setImageBitmap(currentBitmap);
+                        } else {
+                            // Zooming in reads tiles from the file, past what OCR decoded
+                            imageView.setImageSource(imageUri, image.sourceWidth, image.sourceHeight,
+                                image.sampleSize, currentBitmap);
+                        }
                         clearResults();
+                        buttonRunOCR.setEnabled(canRunOcr());
+                        textOcrTimer.setText(String.format(Locale.US, "Image: %dx%d, 1/%d, %d ms%s",
+                            image.sourceWidth, image.sourceHeight, image.sampleSize, image.decodeMs,
+                            page.isRectified() ? String.format(Locale.US, ", page %.0f%% (%d ms)",
+                                page.coverage * 100, page.detectMs + page.warpMs) : ""));
                     }
-                }
-                catch (Exception e)
-                {
-                    Log.e(TAG, "Error loading image", e);
-                    textRuleResult.setText("Error loading image");
-                }
+                });
             }
+        }).start();
+    }
+
+    private void startBatch(boolean folder, Intent data)
+    {
+        Intent batch = new Intent(this, BatchService.class);
+        // The service may resume after a restart, so the grants must outlive this activity
+        if (folder)
+        {
+            Uri tree = data.getData();
+            if (tree == null) return;
+            getContentResolver().takePersistableUriPermission(tree, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            batch.putExtra(BatchService.EXTRA_TREE, tree.toString());
         }
+        else
+        {
+            ArrayList<String> sources = new ArrayList<>();
+            ClipData clip = data.getClipData();
+            if (clip != null)
+            {
+                for (int i = 0; i < clip.getItemCount(); i++) sources.add(clip.getItemAt(i).getUri().toString());
+            }
+            else if (data.getData() != null)
+            {
+                sources.add(data.getData().toString());
+            }
+            if (sources.isEmpty()) return;
+            for (String source : sources)
+            {
+                getContentResolver().takePersistableUriPermission(Uri.parse(source), Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            }
+            batch.putExtra(BatchService.EXTRA_SOURCES, sources.toArray(new String[0]));
+        }
+
+        String run = "batch-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        batch.putExtra(BatchService.EXTRA_RUN, run);
+        batch.putExtra(BatchService.EXTRA_MODEL, currentModel);
+        batch.putExtra(BatchService.EXTRA_CPUGPU, currentCpuGpu);
+        batch.putExtra(BatchService.EXTRA_USE_LLM, llmHelper.isAvailable());
+
+        // Progress is shown in a notification; the batch runs without it if this is denied
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+            && checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED)
+        {
+            requestPermissions(new String[] {Manifest.permission.POST_NOTIFICATIONS}, REQUEST_NOTIFICATIONS);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+        {
+            startForegroundService(batch);
+        }
+        else
+        {
+            startService(batch);
+        }
+        Toast.makeText(this, "Batch " + run + " started", Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    public void onTrimMemory(int level)
+    {
+        super.onTrimMemory(level);
+        llmHelper.trimMemory(level);
     }
 
     @Override
@@ -590,5 +1060,7 @@ public class MainActivity extends Activity
             modelDownloader.cancel();
         }
         llmHelper.close();
+        startup.shutdown();
+        imageView.release();
     }
 }
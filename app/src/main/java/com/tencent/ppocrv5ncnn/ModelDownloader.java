@@ -14,52 +14,233 @@
 
 package com.tencent.ppocrv5ncnn;
 
-import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Downloads an LLM into its ModelStore staging directory, as a .tmp file
+ * renamed when complete, then installs and activates it in the store.
+ * Interrupted downloads (cancel, timeout, app
+ * kill) resume with HTTP Range requests: the .progress file next to the temp
+ * file records the server's validator (ETag or Last-Modified), which is sent
+ * as If-Range so a changed file restarts from zero instead of being spliced.
+ *
+ * With one connection the file is streamed and resumes from the temp file's
+ * length. With more, the file is preallocated and split into chunks that
+ * the connections fetch in parallel with positional writes, and each chunk's
+ * progress is saved every second.
+ *
+ * The SHA-256 of the file is computed during the download: a single
+ * stream hashes each buffer as it is written, and chunked downloads hash
+ * the file in order right behind the chunks, reading what just landed back
+ * from the page cache. It is checked against the hash the server publishes,
+ * when it does, and recorded with the size in the store's manifest, which is
+ * all isModelDownloaded() reads.
+ */
 public class ModelDownloader {
     private static final String TAG = "ModelDownloader";
 
     // Qwen 2.5 1.5B Instruct Q8 model from HuggingFace (no auth required)
-    private static final String MODEL_URL =
+    public static final String MODEL_URL =
         "https://huggingface.co/litert-community/Qwen2.5-1.5B-Instruct/resolve/main/Qwen2.5-1.5B-Instruct_multi-prefill-seq_q8_ekv1280.task";
+    public static final String MODEL_ID = "qwen2.5-1.5b-instruct-q8-ekv1280";
+    public static final int MODEL_VERSION = 1;
 
-    private static final String MODEL_FILENAME = "Qwen2.5-1.5B-Instruct_multi-prefill-seq_q8_ekv1280.task";
+    // Where versions before the model store kept it, directly under the models directory
+    private static final String LEGACY_FILENAME = "Qwen2.5-1.5B-Instruct_multi-prefill-seq_q8_ekv1280.task";
     private static final long EXPECTED_SIZE = 1600000000L; // ~1.6GB
 
+    // Filled from the socket before each write: a quarter of the syscalls of 64 KB writes
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+    private static final long CHUNK_SIZE = 32L * 1024 * 1024;
+    private static final int CHUNK_RETRIES = 3;
+    private static final long SAVE_INTERVAL_MS = 1000;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-f]{64}");
+
     public interface DownloadCallback {
         void onProgress(int percent, long downloadedBytes, long totalBytes);
         void onSuccess(String modelPath);
         void onError(String error);
     }
 
-    private Context context;
+    /** The server's copy changed since the download started; start over. */
+    private static class FileChangedException extends IOException {
+        FileChangedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class CancelledException extends IOException {
+        CancelledException() {
+            super("Download cancelled");
+        }
+    }
+
+    /** Download state kept in the .progress file. */
+    private static class Progress {
+        String validator = "";
+        String expectedSha256 = "";     // published by the server, "" when unknown
+        long length;
+        // Per chunk, end inclusive; null for a single stream, which resumes from the temp file length
+        long[] starts;
+        long[] ends;
+        long[] done;
+
+        static Progress load(File file) {
+            Properties props = readProperties(file);
+            if (props == null) return null;
+            try {
+                Progress progress = new Progress();
+                progress.validator = props.getProperty("validator", "");
+                progress.expectedSha256 = props.getProperty("expected_sha256", "");
+                progress.length = Long.parseLong(props.getProperty("length"));
+                int chunks = Integer.parseInt(props.getProperty("chunks", "0"));
+                if (chunks > 0) {
+                    progress.allocate(chunks);
+                    for (int i = 0; i < chunks; i++) {
+                        String[] parts = props.getProperty("chunk." + i).split(",");
+                        progress.starts[i] = Long.parseLong(parts[0]);
+                        progress.ends[i] = Long.parseLong(parts[1]);
+                        progress.done[i] = Long.parseLong(parts[2]);
+                    }
+                }
+                return progress;
+            } catch (Exception e) {
+                Log.w(TAG, "Unreadable download progress, starting over", e);
+                return null;
+            }
+        }
+
+        void allocate(int chunks) {
+            starts = new long[chunks];
+            ends = new long[chunks];
+            done = new long[chunks];
+        }
+
+        boolean isChunked() {
+            return starts != null;
+        }
+
+        long downloaded() {
+            long sum = 0;
+            for (long d : done) sum += d;
+            return sum;
+        }
+
+        synchronized void save(File file) throws IOException {
+            Properties props = new Properties();
+            props.setProperty("validator", validator);
+            props.setProperty("expected_sha256", expectedSha256);
+            props.setProperty("length", Long.toString(length));
+            int chunks = isChunked() ? starts.length : 0;
+            props.setProperty("chunks", Integer.toString(chunks));
+            for (int i = 0; i < chunks; i++) {
+                props.setProperty("chunk." + i, starts[i] + "," + ends[i] + "," + done[i]);
+            }
+            writeProperties(props, file);
+        }
+    }
+
+    private static Properties readProperties(File file) {
+        if (!file.exists()) return null;
+        Properties props = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            props.load(in);
+            return props;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + file.getName(), e);
+            return null;
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /** Written to a temp file and renamed, so a kill mid-save leaves the previous state. */
+    private static void writeProperties(Properties props, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            props.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) throw new IOException("Cannot write " + file.getName());
+    }
+
+    private final ModelStore store;
+    private final String modelId;
+    private final int modelVersion;
+    private final String modelUrl;
     private volatile boolean isCancelled = false;
+    private volatile int connections = 1;
+
+    /** The default LLM. */
+    public ModelDownloader(ModelStore store) {
+        this(store, MODEL_ID, MODEL_VERSION, MODEL_URL);
+    }
 
-    public ModelDownloader(Context context) {
-        this.context = context;
+    /** Another LLM, e.g. a smaller quantization, or a newer version of one. */
+    public ModelDownloader(ModelStore store, String modelId, int modelVersion, String modelUrl) {
+        this.store = store;
+        this.modelId = modelId;
+        this.modelVersion = modelVersion;
+        this.modelUrl = modelUrl;
     }
 
+    /** Where the model is once installed. */
     public String getModelPath() {
-        File modelDir = context.getExternalFilesDir("models");
-        if (modelDir == null) {
-            modelDir = new File(context.getFilesDir(), "models");
-        }
-        return new File(modelDir, MODEL_FILENAME).getAbsolutePath();
+        return store.path(modelId, modelVersion, ModelStore.LLM_FILE).getAbsolutePath();
     }
 
+    /** The model was verified when installed and is unchanged since; cheap enough for startup. */
     public boolean isModelDownloaded() {
-        File modelFile = new File(getModelPath());
-        // Check if file exists and has reasonable size (> 100MB)
-        return modelFile.exists() && modelFile.length() > 100 * 1024 * 1024;
+        return store.isInstalled(modelId, modelVersion);
+    }
+
+    /**
+     * Connections for the next download: 1 streams the file, more fetch
+     * chunks in parallel. A partial download resumes the way it started.
+     */
+    public void setConnections(int connections) {
+        this.connections = Math.max(1, connections);
+    }
+
+    /** Part of the model is on disk from an interrupted download. */
+    public boolean hasPartialDownload() {
+        return new File(store.stagingDir(modelId, modelVersion), ModelStore.LLM_FILE + ".progress").exists();
     }
 
+    /** Stop the download; what was downloaded is kept for the next downloadModel(). */
     public void cancel() {
         isCancelled = true;
     }
@@ -70,98 +251,592 @@ public class ModelDownloader {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                HttpURLConnection connection = null;
-                InputStream input = null;
-                FileOutputStream output = null;
-
                 try {
-                    // Create model directory
-                    File modelDir = context.getExternalFilesDir("models");
-                    if (modelDir == null) {
-                        modelDir = new File(context.getFilesDir(), "models");
-                    }
-                    if (!modelDir.exists()) {
-                        modelDir.mkdirs();
-                    }
-
-                    File modelFile = new File(modelDir, MODEL_FILENAME);
-                    File tempFile = new File(modelDir, MODEL_FILENAME + ".tmp");
-
                     // Check if already downloaded
-                    if (modelFile.exists() && modelFile.length() > 100 * 1024 * 1024) {
-                        callback.onSuccess(modelFile.getAbsolutePath());
+                    if (isModelDownloaded()) {
+                        store.activate(modelId, modelVersion);
+                        callback.onSuccess(getModelPath());
                         return;
                     }
 
-                    Log.d(TAG, "Starting download from: " + MODEL_URL);
+                    File staging = store.stagingDir(modelId, modelVersion);
+                    File stagedFile = new File(staging, ModelStore.LLM_FILE);
+                    File tempFile = new File(staging, ModelStore.LLM_FILE + ".tmp");
+                    File progressFile = new File(staging, ModelStore.LLM_FILE + ".progress");
+                    if (MODEL_ID.equals(modelId)) migrateLegacy(stagedFile, tempFile, progressFile);
 
-                    URL url = new URL(MODEL_URL);
-                    connection = (HttpURLConnection) url.openConnection();
-                    connection.setConnectTimeout(30000);
-                    connection.setReadTimeout(30000);
-                    connection.setInstanceFollowRedirects(true);
-                    connection.connect();
+                    // A complete file is staged when an older version had it, or install was interrupted
+                    String sha256 = stagedFile.exists() ? adopt(stagedFile) : null;
+                    if (sha256 == null) {
+                        stagedFile.delete();
 
-                    int responseCode = connection.getResponseCode();
-                    if (responseCode != HttpURLConnection.HTTP_OK) {
-                        callback.onError("Server returned HTTP " + responseCode);
-                        return;
+                        Log.d(TAG, "Starting download from: " + modelUrl);
+                        long start = System.currentTimeMillis();
+                        try {
+                            sha256 = download(tempFile, progressFile, callback);
+                        } catch (FileChangedException e) {
+                            Log.w(TAG, e.getMessage() + ", downloading again");
+                            discard(tempFile, progressFile);
+                            sha256 = download(tempFile, progressFile, callback);
+                        }
+                        if (!tempFile.renameTo(stagedFile)) {
+                            callback.onError("Failed to save model file");
+                            discard(tempFile, progressFile);
+                            return;
+                        }
+                        progressFile.delete();
+                        Log.d(TAG, String.format(Locale.US, "Download complete: %s in %d ms, sha256 %s",
+                            formatBytes(stagedFile.length()), System.currentTimeMillis() - start, sha256));
                     }
 
-                    long totalBytes = connection.getContentLength();
-                    if (totalBytes <= 0) {
-                        totalBytes = EXPECTED_SIZE;
-                    }
+                    discard(tempFile, progressFile);    // staging must hold only the model
+                    Map<String, String> hashes = new HashMap<>();
+                    hashes.put(ModelStore.LLM_FILE, sha256);
+                    store.install(ModelStore.ROLE_LLM, modelId, modelVersion, staging, hashes);
+                    store.activate(modelId, modelVersion);
+                    callback.onSuccess(getModelPath());
+
+                } catch (CancelledException e) {
+                    callback.onError("Download cancelled");
+                } catch (Exception e) {
+                    Log.e(TAG, "Download failed", e);
+                    callback.onError("Download failed: " + e.getMessage());
+                }
+            }
+        }).start();
+    }
 
-                    input = connection.getInputStream();
-                    output = new FileOutputStream(tempFile);
+    /** Download into tempFile and return its SHA-256, checked against the published one. */
+    private String download(File tempFile, File progressFile, DownloadCallback callback) throws IOException {
+        Progress progress = Progress.load(progressFile);
+        if (progress == null) {
+            // A temp file without progress cannot be checked against the server's copy
+            discard(tempFile, progressFile);
+        } else if (!tempFile.exists() || (progress.isChunked() && tempFile.length() != progress.length)) {
+            discard(tempFile, progressFile);
+            progress = null;
+        }
 
-                    byte[] buffer = new byte[8192];
-                    long downloadedBytes = 0;
-                    int bytesRead;
-                    int lastPercent = -1;
+        String expected = (progress != null) ? progress.expectedSha256 : publishedSha256();
+        String sha256;
+        if (progress != null && progress.isChunked()) {
+            reserve(progress.length);
+            sha256 = downloadChunks(tempFile, progressFile, progress, callback);
+        } else if (progress == null && connections > 1) {
+            progress = probe();
+            if (progress != null) {
+                progress.expectedSha256 = expected;
+                reserve(progress.length);
+                split(progress, connections);
+                preallocate(tempFile, progress.length);
+                progress.save(progressFile);
+                sha256 = downloadChunks(tempFile, progressFile, progress, callback);
+            } else {
+                Log.d(TAG, "Server does not serve ranges, streaming with one connection");
+                sha256 = downloadStream(tempFile, progressFile, null, expected, callback);
+            }
+        } else {
+            sha256 = downloadStream(tempFile, progressFile, progress, expected, callback);
+        }
 
-                    while ((bytesRead = input.read(buffer)) != -1) {
-                        if (isCancelled) {
-                            callback.onError("Download cancelled");
-                            tempFile.delete();
-                            return;
-                        }
+        if (!expected.isEmpty() && !expected.equals(sha256)) {
+            discard(tempFile, progressFile);
+            throw new IOException("Checksum mismatch, download discarded");
+        }
+        return sha256;
+    }
 
-                        output.write(buffer, 0, bytesRead);
-                        downloadedBytes += bytesRead;
+    /** Make room in the store's quota for the model being downloaded. */
+    private void reserve(long length) {
+        if (!store.reserve(length)) {
+            Log.w(TAG, "Model quota too small for " + modelId + " (" + formatBytes(length) + "), downloading anyway");
+        }
+    }
+
+    /**
+     * SHA-256 the server publishes for the file, "" when it does not.
+     * Hugging Face sends it as X-Linked-Etag on the redirect to its CDN.
+     */
+    private String publishedSha256() {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(modelUrl).openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(30000);
+            connection.setReadTimeout(30000);
+            connection.setInstanceFollowRedirects(false);
+            connection.connect();
+            for (String header : new String[] {"X-Linked-Etag", "ETag"}) {
+                String value = connection.getHeaderField(header);
+                if (value == null) continue;
+                value = value.replace("\"", "").toLowerCase(Locale.ROOT);
+                if (SHA256_HEX.matcher(value).matches()) return value;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "No published checksum: " + e.getMessage());
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+        return "";
+    }
+
+    /** Move what versions before the model store downloaded into the staging directory. */
+    private void migrateLegacy(File stagedFile, File tempFile, File progressFile) {
+        File legacy = new File(store.getRoot(), LEGACY_FILENAME);
+        File[][] moves = {
+            {legacy, stagedFile},
+            {new File(legacy.getPath() + ".tmp"), tempFile},
+            {new File(legacy.getPath() + ".progress"), progressFile},
+        };
+        for (File[] move : moves) {
+            if (move[0].exists() && !move[1].exists()) {
+                Log.d(TAG, "Moving " + move[0].getName() + " into the model store");
+                if (!move[0].renameTo(move[1])) Log.w(TAG, "Cannot move " + move[0]);
+            }
+        }
+        new File(legacy.getPath() + ".manifest").delete();
+    }
+
+    /**
+     * A complete model file found in staging is hashed once and kept if it
+     * matches the published checksum, or the server's size when no checksum
+     * is published. Returns its SHA-256, or null to download it again.
+     */
+    private String adopt(File modelFile) {
+        String expected = publishedSha256();
+        try {
+            if (expected.isEmpty()) {
+                Progress server = probe();
+                if (server == null || server.length != modelFile.length()) return null;
+            }
+            long start = System.currentTimeMillis();
+            String sha256 = hashFile(modelFile, modelFile.length());
+            Log.d(TAG, "Hashed existing model in " + (System.currentTimeMillis() - start) + " ms");
+            if (!expected.isEmpty() && !expected.equals(sha256)) {
+                Log.w(TAG, "Existing model does not match the published checksum");
+                return null;
+            }
+            return sha256;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot verify existing model", e);
+            return null;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // required on every platform
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format(Locale.US, "%02x", b & 0xff));
+        return sb.toString();
+    }
 
-                        int percent = (int) ((downloadedBytes * 100) / totalBytes);
-                        if (percent != lastPercent) {
-                            lastPercent = percent;
-                            callback.onProgress(percent, downloadedBytes, totalBytes);
+    /** Feed [from, to) of the file into digest through a direct buffer. */
+    private static void digestRange(FileChannel channel, ByteBuffer buffer, MessageDigest digest,
+                                    long from, long to) throws IOException {
+        long position = from;
+        while (position < to) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("File ends at " + position + ", expected " + to);
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    static String hashFile(File file, long length) throws IOException {
+        MessageDigest digest = sha256();
+        hashPrefix(file, length, digest);
+        return hex(digest.digest());
+    }
+
+    private static void hashPrefix(File file, long length, MessageDigest digest) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            digestRange(in.getChannel(), ByteBuffer.allocateDirect(HASH_BUFFER_SIZE), digest, 0, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    private HttpURLConnection open(long from, long to, String validator) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(modelUrl).openConnection();
+        connection.setConnectTimeout(30000);
+        connection.setReadTimeout(30000);
+        connection.setInstanceFollowRedirects(true);
+        if (from > 0 || to >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + from + "-" + (to >= 0 ? Long.toString(to) : ""));
+            // A changed file is sent whole (200) instead of the range
+            if (!validator.isEmpty()) connection.setRequestProperty("If-Range", validator);
+        }
+        connection.connect();
+        return connection;
+    }
+
+    private static String validator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) return etag;    // weak tags are not allowed in If-Range
+        String modified = connection.getHeaderField("Last-Modified");
+        return modified != null ? modified : "";
+    }
+
+    /** Length and validator from a one-byte range request, or null when ranges are not served. */
+    private Progress probe() throws IOException {
+        HttpURLConnection connection = open(0, 0, "");
+        try {
+            Matcher m = CONTENT_RANGE.matcher(String.valueOf(connection.getHeaderField("Content-Range")));
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL || !m.matches()) return null;
+            Progress progress = new Progress();
+            progress.length = Long.parseLong(m.group(3));
+            progress.validator = validator(connection);
+            return progress;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void split(Progress progress, int connections) {
+        // At least one chunk per connection, so a slow connection only holds up its own chunk
+        long size = Math.min(CHUNK_SIZE, Math.max(1, progress.length / connections));
+        int chunks = (int) ((progress.length + size - 1) / size);
+        progress.allocate(chunks);
+        for (int i = 0; i < chunks; i++) {
+            progress.starts[i] = i * size;
+            progress.ends[i] = Math.min(progress.length, (i + 1) * size) - 1;
+        }
+    }
+
+    /** Reserve the whole file up front, so running out of space fails now rather than at 90%. */
+    private static void preallocate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            try {
+                Os.posix_fallocate(raf.getFD(), 0, length);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "posix_fallocate failed, the file stays sparse: " + e.getMessage());
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private String downloadStream(File tempFile, File progressFile, Progress progress, String expectedSha256,
+                                  DownloadCallback callback) throws IOException {
+        long offset = (progress != null) ? tempFile.length() : 0;
+        HttpURLConnection connection = open(offset, -1, progress != null ? progress.validator : "");
+        InputStream input = null;
+        FileOutputStream output = null;
+        try {
+            int responseCode = connection.getResponseCode();
+            long totalBytes;
+            boolean lengthKnown = true;
+            if (offset > 0 && responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                Matcher m = CONTENT_RANGE.matcher(String.valueOf(connection.getHeaderField("Content-Range")));
+                if (!m.matches() || Long.parseLong(m.group(1)) != offset) {
+                    throw new FileChangedException("Unexpected Content-Range " + connection.getHeaderField("Content-Range"));
+                }
+                totalBytes = Long.parseLong(m.group(3));
+                Log.d(TAG, "Resuming at " + formatBytes(offset) + " of " + formatBytes(totalBytes));
+            } else if (offset > 0 && responseCode == 416) {
+                // Range starts at the end: the temp file is complete
+                if (offset == progress.length) return hashFile(tempFile, offset);
+                throw new FileChangedException("Server rejected resume at " + offset);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                // Changed file, or no range support: start over, with a fresh published checksum
+                if (offset > 0) throw new FileChangedException("Server sent the whole file");
+                totalBytes = connection.getContentLengthLong();
+                if (totalBytes <= 0) {
+                    totalBytes = EXPECTED_SIZE;
+                    lengthKnown = false;
+                }
+                progress = new Progress();
+                progress.length = totalBytes;
+                progress.validator = validator(connection);
+                progress.expectedSha256 = expectedSha256;
+                progress.save(progressFile);
+            } else {
+                throw new IOException("Server returned HTTP " + responseCode);
+            }
+
+            if (lengthKnown) reserve(totalBytes);
+
+            // Only the part kept from an interrupted attempt is read back
+            MessageDigest digest = sha256();
+            if (offset > 0) hashPrefix(tempFile, offset, digest);
+
+            input = connection.getInputStream();
+            output = new FileOutputStream(tempFile, offset > 0);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long downloadedBytes = offset;
+            int bytesRead;
+            int lastPercent = -1;
+
+            while ((bytesRead = fill(input, buffer)) > 0) {
+                if (isCancelled) throw new CancelledException();
+
+                output.write(buffer, 0, bytesRead);
+                digest.update(buffer, 0, bytesRead);
+                downloadedBytes += bytesRead;
+
+                int percent = (int) ((downloadedBytes * 100) / totalBytes);
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    callback.onProgress(percent, downloadedBytes, totalBytes);
+                }
+            }
+            // A dropped connection can look like the end of the stream
+            if (lengthKnown && downloadedBytes != totalBytes) {
+                throw new IOException("Connection closed at " + downloadedBytes + " of " + totalBytes + " bytes");
+            }
+            return hex(digest.digest());
+        } finally {
+            try {
+                if (output != null) output.close();
+                if (input != null) input.close();
+            } catch (IOException ignored) {}
+            connection.disconnect();
+        }
+    }
+
+    /** Read until buffer is full or the stream ends, so every write and digest update is a full buffer. */
+    private static int fill(InputStream input, byte[] buffer) throws IOException {
+        int filled = 0;
+        int read;
+        while (filled < buffer.length && (read = input.read(buffer, filled, buffer.length - filled)) != -1) {
+            filled += read;
+        }
+        return filled;
+    }
+
+    private String downloadChunks(final File tempFile, final File progressFile, final Progress progress,
+                                  final DownloadCallback callback) throws IOException {
+        final ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < progress.starts.length; i++) {
+            if (progress.starts[i] + progress.done[i] <= progress.ends[i]) pending.add(i);
+        }
+        final AtomicLong downloaded = new AtomicLong(progress.downloaded());
+        final long[] lastSave = {System.currentTimeMillis()};
+        final int[] lastPercent = {-1};
+        final IOException[] failure = new IOException[1];
+        Log.d(TAG, String.format(Locale.US, "Downloading %d of %d chunks over %d connections, %s already done",
+            pending.size(), progress.starts.length, connections, formatBytes(downloaded.get())));
+
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        final FileChannel channel = raf.getChannel();
+        List<Thread> workers = new ArrayList<>();
+        OrderedDigest hasher = new OrderedDigest(channel, progress);
+        hasher.start();
+        try {
+            for (int w = 0; w < Math.min(connections, pending.size()); w++) {
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Integer chunk;
+                        while ((chunk = pending.poll()) != null) {
+                            synchronized (failure) {
+                                if (failure[0] != null) return;
+                            }
+                            try {
+                                downloadChunk(chunk, channel, progress, new ChunkListener() {
+                                    @Override
+                                    public void onBytes(int count) {
+                                        long total = downloaded.addAndGet(count);
+                                        synchronized (lastSave) {
+                                            int percent = (int) ((total * 100) / progress.length);
+                                            if (percent != lastPercent[0]) {
+                                                lastPercent[0] = percent;
+                                                callback.onProgress(percent, total, progress.length);
+                                            }
+                                            long now = System.currentTimeMillis();
+                                            if (now - lastSave[0] >= SAVE_INTERVAL_MS) {
+                                                lastSave[0] = now;
+                                                try {
+                                                    progress.save(progressFile);
+                                                } catch (IOException e) {
+                                                    Log.w(TAG, "Failed to save download progress", e);
+                                                }
+                                            }
+                                        }
+                                    }
+                                });
+                            } catch (IOException e) {
+                                synchronized (failure) {
+                                    if (failure[0] == null) failure[0] = e;
+                                }
+                                return;
+                            }
                         }
                     }
+                }, "model-download-" + w);
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (failure[0] != null || isCancelled) hasher.cancel();
+            hasher.join();
+        } catch (InterruptedException e) {
+            isCancelled = true;
+            throw new CancelledException();
+        } finally {
+            hasher.cancel();
+            channel.close();
+            raf.close();
+            // Whatever reached the file is kept for the next attempt
+            progress.save(progressFile);
+        }
+
+        if (failure[0] != null) throw failure[0];
+        if (isCancelled) throw new CancelledException();
+        if (progress.downloaded() != progress.length) {
+            throw new IOException("Download incomplete: " + progress.downloaded() + " of " + progress.length + " bytes");
+        }
+        return hasher.result();
+    }
 
-                    output.close();
-                    output = null;
+    /**
+     * Hashes the file in order right behind the chunk downloads: each range
+     * is read back, from the page cache, as soon as every chunk before it
+     * has landed, so the digest is ready with the last byte. Chunks fetched
+     * out of order wait until the frontier reaches them; a resumed download
+     * re-reads only what was already on disk.
+     */
+    private static class OrderedDigest extends Thread {
+        private final FileChannel channel;
+        private final Progress progress;
+        private final MessageDigest digest = sha256();
+        private volatile boolean cancelled;
+        private IOException error;
+        private String sha256;
 
-                    // Rename temp file to final file
-                    if (tempFile.renameTo(modelFile)) {
-                        Log.d(TAG, "Download complete: " + modelFile.getAbsolutePath());
-                        callback.onSuccess(modelFile.getAbsolutePath());
-                    } else {
-                        callback.onError("Failed to save model file");
-                        tempFile.delete();
+        OrderedDigest(FileChannel channel, Progress progress) {
+            super("model-digest");
+            this.channel = channel;
+            this.progress = progress;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+            long position = 0;
+            int chunk = 0;
+            try {
+                while (chunk < progress.starts.length) {
+                    long written;
+                    synchronized (progress) {
+                        written = progress.starts[chunk] + progress.done[chunk];
+                        while (written <= position && !cancelled) {
+                            progress.wait();
+                            written = progress.starts[chunk] + progress.done[chunk];
+                        }
                     }
+                    if (cancelled) return;
+                    digestRange(channel, buffer, digest, position, written);
+                    position = written;
+                    if (position > progress.ends[chunk]) chunk++;
+                }
+                sha256 = hex(digest.digest());
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
 
-                } catch (Exception e) {
-                    Log.e(TAG, "Download failed", e);
-                    callback.onError("Download failed: " + e.getMessage());
-                } finally {
-                    try {
-                        if (output != null) output.close();
-                        if (input != null) input.close();
-                        if (connection != null) connection.disconnect();
-                    } catch (Exception ignored) {}
+        void cancel() {
+            cancelled = true;
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        }
+
+        /** After join(): the hex digest of the whole file. */
+        String result() throws IOException {
+            if (error != null) throw error;
+            if (sha256 == null) throw new CancelledException();
+            return sha256;
+        }
+    }
+
+    private interface ChunkListener {
+        void onBytes(int count);
+    }
+
+    /** Fetch what is left of one chunk, reconnecting from where a failed attempt stopped. */
+    private void downloadChunk(int chunk, FileChannel channel, Progress progress, ChunkListener listener)
+            throws IOException {
+        IOException last = null;
+        for (int attempt = 0; attempt <= CHUNK_RETRIES; attempt++) {
+            if (attempt > 0) {
+                Log.w(TAG, "Chunk " + chunk + " attempt " + attempt + " failed: " + last.getMessage());
+                try {
+                    Thread.sleep(500L << attempt);
+                } catch (InterruptedException e) {
+                    throw new CancelledException();
                 }
             }
-        }).start();
+            long from = progress.starts[chunk] + progress.done[chunk];
+            long to = progress.ends[chunk];
+            if (from > to) return;
+
+            HttpURLConnection connection = null;
+            InputStream input = null;
+            try {
+                connection = open(from, to, progress.validator);
+                int responseCode = connection.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    throw new FileChangedException("Model file changed on the server");
+                }
+                if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Server returned HTTP " + responseCode + " for chunk " + chunk);
+                }
+                input = connection.getInputStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long position = from;
+                int bytesRead;
+                while (position <= to && (bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, to - position + 1))) != -1) {
+                    if (isCancelled) throw new CancelledException();
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                    while (data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+                    // Recorded only after the bytes are in the file
+                    synchronized (progress) {
+                        progress.done[chunk] = position - progress.starts[chunk];
+                        progress.notifyAll();   // wakes the OrderedDigest
+                    }
+                    listener.onBytes(bytesRead);
+                }
+                if (position <= to) throw new IOException("Connection closed at " + position + " in chunk " + chunk);
+                return;
+            } catch (FileChangedException | CancelledException e) {
+                throw e;
+            } catch (IOException e) {
+                last = e;
+            } finally {
+                try {
+                    if (input != null) input.close();
+                } catch (IOException ignored) {}
+                if (connection != null) connection.disconnect();
+            }
+        }
+        throw last;
+    }
+
+    private static void discard(File tempFile, File progressFile) {
+        tempFile.delete();
+        progressFile.delete();
     }
 
     public static String formatBytes(long bytes) {
@@ -0,0 +1,555 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Versioned models on the device, under getExternalFilesDir("models"). Each
+ * model id and version has a directory of its own; models.json lists them
+ * with their role (the LLM, the mobile or server OCR weights), file sizes and
+ * SHA-256, and last use, together with the active version of each role.
+ *
+ * Install moves a fully written staging directory into place with one
+ * rename and then commits the manifest, which is itself written to a temp
+ * file and renamed, so a crash leaves either the old state or the new one.
+ * Directories the manifest does not list are removed when the store is next
+ * used. Activation is a manifest commit too.
+ *
+ * Installed models count against a disk quota. Installing evicts the least
+ * recently used models until the new one fits, inactive versions before
+ * active ones. The manifest is shared with the :llm process through a file
+ * lock and re-read by every call.
+ */
+public class ModelStore {
+    private static final String TAG = "ModelStore";
+
+    public static final String ROLE_LLM = "llm";
+    public static final String ROLE_OCR_MOBILE = "ocr-mobile";
+    public static final String ROLE_OCR_SERVER = "ocr-server";
+
+    // File names inside a model's directory
+    public static final String LLM_FILE = "model.task";
+    public static final String OCR_DET_PARAM = "det.ncnn.param";
+    public static final String OCR_DET_BIN = "det.ncnn.bin";
+    public static final String OCR_REC_PARAM = "rec.ncnn.param";
+    public static final String OCR_REC_BIN = "rec.ncnn.bin";
+
+    public static final long DEFAULT_QUOTA = 4L * 1024 * 1024 * 1024;
+
+    private static final String MANIFEST = "models.json";
+    private static final String LOCK = ".lock";
+    private static final String STAGING = ".staging";
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+    // A FileLock is held per process; threads of one process take turns here first
+    private static final Object PROCESS_LOCK = new Object();
+
+    public static class ModelFile {
+        public String name;
+        public long size;
+        public String sha256;
+        long lastModified;
+    }
+
+    public static class Entry {
+        public String id;
+        public int version;
+        public String role;
+        public long installedAt;
+        public long lastUsed;
+        public final List<ModelFile> files = new ArrayList<>();
+        File dir;
+
+        public File file(String name) {
+            return new File(dir, name);
+        }
+
+        public long bytes() {
+            long total = 0;
+            for (ModelFile f : files) total += f.size;
+            return total;
+        }
+
+        public String key() {
+            return id + "@" + version;
+        }
+
+        /** Every file still has the size and modification time it was installed with; nothing is read. */
+        boolean isIntact() {
+            for (ModelFile f : files) {
+                File file = file(f.name);
+                if (file.length() != f.size || file.lastModified() != f.lastModified) return false;
+            }
+            return true;
+        }
+    }
+
+    /** models.json as read under the lock. */
+    private static class State {
+        final Map<String, String> active = new HashMap<>();    // role to key
+        final List<Entry> entries = new ArrayList<>();
+
+        Entry find(String key) {
+            for (Entry entry : entries) {
+                if (entry.key().equals(key)) return entry;
+            }
+            return null;
+        }
+
+        boolean isActive(Entry entry) {
+            return entry.key().equals(active.get(entry.role));
+        }
+
+        long bytes() {
+            long total = 0;
+            for (Entry entry : entries) total += entry.bytes();
+            return total;
+        }
+    }
+
+    private interface Transaction<T> {
+        /** Returns the result; set changed to commit the state. */
+        T run(State state, boolean[] changed) throws IOException;
+    }
+
+    private final File root;
+    private volatile long quota = DEFAULT_QUOTA;
+    private volatile boolean recovered;
+
+    public ModelStore(Context context) {
+        File dir = context.getExternalFilesDir("models");
+        if (dir == null) {
+            dir = new File(context.getFilesDir(), "models");
+        }
+        root = dir;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /** Bytes installed models may take; applies from the next install or reserve(). */
+    public void setQuota(long bytes) {
+        quota = bytes;
+    }
+
+    /** Where id/version is (or will be) installed. */
+    public File path(String id, int version, String name) {
+        return new File(modelDir(id, version), name);
+    }
+
+    /**
+     * The directory to download id/version into before install(). It is
+     * kept across attempts, so partial downloads there can resume.
+     */
+    public File stagingDir(String id, int version) {
+        File dir = new File(new File(root, STAGING), checkId(id) + "@" + version);
+        dir.mkdirs();
+        return dir;
+    }
+
+    /** The active entry for role, or null; does not count as a use. */
+    public Entry getActive(final String role) {
+        return transact(new Transaction<Entry>() {
+            @Override
+            public Entry run(State state, boolean[] changed) {
+                String key = state.active.get(role);
+                return key != null ? state.find(key) : null;
+            }
+        }, null);
+    }
+
+    /**
+     * The active entry for role, marked as used for LRU eviction; null when
+     * none is installed. An entry whose files changed since install is removed.
+     */
+    public Entry use(final String role) {
+        return transact(new Transaction<Entry>() {
+            @Override
+            public Entry run(State state, boolean[] changed) {
+                String key = state.active.get(role);
+                Entry entry = key != null ? state.find(key) : null;
+                if (entry == null) return null;
+                changed[0] = true;
+                if (!entry.isIntact()) {
+                    Log.w(TAG, entry.key() + " was modified on disk, removing it");
+                    delete(state, entry);
+                    return null;
+                }
+                entry.lastUsed = System.currentTimeMillis();
+                return entry;
+            }
+        }, null);
+    }
+
+    /** A file of the active model for role, or null; see use(). */
+    public File locate(String role, String name) {
+        Entry entry = use(role);
+        return entry != null ? entry.file(name) : null;
+    }
+
+    /** id/version is installed and its files are unchanged. */
+    public boolean isInstalled(String id, int version) {
+        final String key = id + "@" + version;
+        Boolean installed = transact(new Transaction<Boolean>() {
+            @Override
+            public Boolean run(State state, boolean[] changed) {
+                Entry entry = state.find(key);
+                return entry != null && entry.isIntact();
+            }
+        }, false);
+        return installed;
+    }
+
+    public List<Entry> list() {
+        return transact(new Transaction<List<Entry>>() {
+            @Override
+            public List<Entry> run(State state, boolean[] changed) {
+                return new ArrayList<>(state.entries);
+            }
+        }, Collections.<Entry>emptyList());
+    }
+
+    /**
+     * Move the files in staging, which holds nothing else, into place as
+     * id/version of role. sha256
+     * maps file names to hashes computed while downloading; other files are
+     * hashed here. Evicts other models as the quota requires. The entry is
+     * not activated.
+     */
+    public Entry install(final String role, final String id, final int version, File staging,
+                         Map<String, String> sha256) throws IOException {
+        checkId(id);
+        File[] files = staging.listFiles();
+        if (files == null || files.length == 0) throw new IOException("Nothing staged in " + staging);
+
+        final Entry entry = new Entry();
+        entry.id = id;
+        entry.version = version;
+        entry.role = role;
+        entry.dir = modelDir(id, version);
+        for (File file : files) {
+            if (!file.isFile()) continue;
+            ModelFile f = new ModelFile();
+            f.name = file.getName();
+            f.size = file.length();
+            String hash = sha256 != null ? sha256.get(f.name) : null;
+            f.sha256 = (hash != null) ? hash : ModelDownloader.hashFile(file, f.size);
+            entry.files.add(f);
+        }
+        final File source = staging;
+        return transact(new Transaction<Entry>() {
+            @Override
+            public Entry run(State state, boolean[] changed) throws IOException {
+                changed[0] = true;
+                Entry previous = state.find(entry.key());
+                boolean wasActive = previous != null && state.isActive(previous);
+                if (previous != null) delete(state, previous);
+                evict(state, entry.bytes());
+
+                deleteRecursively(entry.dir);
+                entry.dir.getParentFile().mkdirs();
+                if (!source.renameTo(entry.dir)) throw new IOException("Cannot move " + source + " into the store");
+                for (ModelFile f : entry.files) f.lastModified = entry.file(f.name).lastModified();
+                entry.installedAt = System.currentTimeMillis();
+                entry.lastUsed = entry.installedAt;
+                state.entries.add(entry);
+                if (wasActive && role.equals(previous.role)) {
+                    state.active.put(role, entry.key());    // a reinstall stays active
+                }
+                Log.d(TAG, String.format(Locale.US, "Installed %s as %s, %s", entry.key(), role,
+                    ModelDownloader.formatBytes(entry.bytes())));
+                return entry;
+            }
+        });
+    }
+
+    /** Make id/version the model for its role. */
+    public void activate(final String id, final int version) throws IOException {
+        transact(new Transaction<Void>() {
+            @Override
+            public Void run(State state, boolean[] changed) throws IOException {
+                Entry entry = state.find(id + "@" + version);
+                if (entry == null) throw new IOException(id + "@" + version + " is not installed");
+                if (!state.isActive(entry)) {
+                    state.active.put(entry.role, entry.key());
+                    changed[0] = true;
+                    Log.d(TAG, "Activated " + entry.key() + " as " + entry.role);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Evict least recently used models until bytes more fit in the quota,
+     * e.g. before a download. Returns false when they still do not fit.
+     */
+    public boolean reserve(final long bytes) {
+        Boolean fits = transact(new Transaction<Boolean>() {
+            @Override
+            public Boolean run(State state, boolean[] changed) {
+                int before = state.entries.size();
+                evict(state, bytes);
+                changed[0] = state.entries.size() != before;
+                return state.bytes() + bytes <= quota;
+            }
+        }, false);
+        return fits;
+    }
+
+    public void remove(final String id, final int version) throws IOException {
+        transact(new Transaction<Void>() {
+            @Override
+            public Void run(State state, boolean[] changed) {
+                Entry entry = state.find(id + "@" + version);
+                if (entry != null) {
+                    delete(state, entry);
+                    changed[0] = true;
+                }
+                return null;
+            }
+        });
+    }
+
+    /** Drop entries, inactive and least recently used first, until incoming bytes fit. */
+    private void evict(final State state, long incoming) {
+        List<Entry> candidates = new ArrayList<>(state.entries);
+        Collections.sort(candidates, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                boolean activeA = state.isActive(a);
+                boolean activeB = state.isActive(b);
+                if (activeA != activeB) return activeA ? 1 : -1;
+                return Long.compare(a.lastUsed, b.lastUsed);
+            }
+        });
+        long total = state.bytes();
+        for (Entry entry : candidates) {
+            if (total + incoming <= quota) break;
+            Log.d(TAG, String.format(Locale.US, "Evicting %s (%s, last used %d s ago) for the %s quota",
+                entry.key(), ModelDownloader.formatBytes(entry.bytes()),
+                (System.currentTimeMillis() - entry.lastUsed) / 1000, ModelDownloader.formatBytes(quota)));
+            total -= entry.bytes();
+            delete(state, entry);
+        }
+        if (total + incoming > quota) {
+            Log.w(TAG, "Over the model quota by " + ModelDownloader.formatBytes(total + incoming - quota));
+        }
+    }
+
+    /** Drop entry from state and disk; a model in use stays readable until closed. */
+    private void delete(State state, Entry entry) {
+        state.entries.remove(entry);
+        if (state.isActive(entry)) state.active.remove(entry.role);
+        deleteRecursively(entry.dir);
+        File idDir = entry.dir.getParentFile();
+        String[] left = idDir.list();
+        if (left != null && left.length == 0) idDir.delete();
+    }
+
+    private File modelDir(String id, int version) {
+        return new File(new File(root, checkId(id)), Integer.toString(version));
+    }
+
+    private static String checkId(String id) {
+        if (id == null || !ID.matcher(id).matches()) throw new IllegalArgumentException("Bad model id: " + id);
+        return id;
+    }
+
+    private <T> T transact(Transaction<T> transaction) throws IOException {
+        synchronized (PROCESS_LOCK) {
+            root.mkdirs();
+            RandomAccessFile lockFile = new RandomAccessFile(new File(root, LOCK), "rw");
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                State state = load();
+                if (!recovered) {
+                    recover(state);
+                    recovered = true;
+                }
+                boolean[] changed = {false};
+                T result = transaction.run(state, changed);
+                if (changed[0]) save(state);
+                return result;
+            } finally {
+                lock.release();
+                lockFile.close();
+            }
+        }
+    }
+
+    /** For reads: an unusable store reads as empty. */
+    private <T> T transact(Transaction<T> transaction, T fallback) {
+        try {
+            return transact(transaction);
+        } catch (IOException e) {
+            Log.e(TAG, "Model store unavailable", e);
+            return fallback;
+        }
+    }
+
+    /** Remove directories left by an install that crashed before its manifest commit. */
+    private void recover(State state) {
+        Set<String> known = new HashSet<>();
+        for (Entry entry : state.entries) known.add(entry.dir.getAbsolutePath());
+        File[] ids = root.listFiles();
+        if (ids == null) return;
+        for (File idDir : ids) {
+            if (!idDir.isDirectory() || idDir.getName().startsWith(".")) continue;
+            File[] versions = idDir.listFiles();
+            if (versions == null) continue;
+            for (File dir : versions) {
+                if (!known.contains(dir.getAbsolutePath())) {
+                    Log.w(TAG, "Removing " + dir + ", not in the manifest");
+                    deleteRecursively(dir);
+                }
+            }
+            String[] left = idDir.list();
+            if (left != null && left.length == 0) idDir.delete();
+        }
+    }
+
+    private static String readFully(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private State load() throws IOException {
+        State state = new State();
+        File file = new File(root, MANIFEST);
+        if (!file.exists()) return state;
+        try {
+            JSONObject json = new JSONObject(readFully(file));
+            JSONObject active = json.optJSONObject("active");
+            if (active != null) {
+                for (Iterator<String> it = active.keys(); it.hasNext(); ) {
+                    String role = it.next();
+                    state.active.put(role, active.getString(role));
+                }
+            }
+            JSONArray models = json.optJSONArray("models");
+            for (int i = 0; models != null && i < models.length(); i++) {
+                JSONObject m = models.getJSONObject(i);
+                Entry entry = new Entry();
+                entry.id = m.getString("id");
+                entry.version = m.getInt("version");
+                entry.role = m.getString("role");
+                entry.installedAt = m.optLong("installed_at");
+                entry.lastUsed = m.optLong("last_used");
+                entry.dir = modelDir(entry.id, entry.version);
+                JSONArray files = m.getJSONArray("files");
+                for (int j = 0; j < files.length(); j++) {
+                    JSONObject f = files.getJSONObject(j);
+                    ModelFile modelFile = new ModelFile();
+                    modelFile.name = f.getString("name");
+                    modelFile.size = f.getLong("size");
+                    modelFile.sha256 = f.optString("sha256");
+                    modelFile.lastModified = f.getLong("last_modified");
+                    entry.files.add(modelFile);
+                }
+                state.entries.add(entry);
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new IOException("Corrupt " + MANIFEST, e);
+        }
+        return state;
+    }
+
+    /** Written to a temp file and renamed, so a crash mid-write leaves the previous manifest. */
+    private void save(State state) throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            JSONObject active = new JSONObject();
+            for (Map.Entry<String, String> e : state.active.entrySet()) active.put(e.getKey(), e.getValue());
+            json.put("active", active);
+            JSONArray models = new JSONArray();
+            for (Entry entry : state.entries) {
+                JSONObject m = new JSONObject();
+                m.put("id", entry.id);
+                m.put("version", entry.version);
+                m.put("role", entry.role);
+                m.put("installed_at", entry.installedAt);
+                m.put("last_used", entry.lastUsed);
+                JSONArray files = new JSONArray();
+                for (ModelFile f : entry.files) {
+                    JSONObject file = new JSONObject();
+                    file.put("name", f.name);
+                    file.put("size", f.size);
+                    file.put("sha256", f.sha256);
+                    file.put("last_modified", f.lastModified);
+                    files.put(file);
+                }
+                m.put("files", files);
+                models.put(m);
+            }
+            json.put("models", models);
+        } catch (JSONException e) {
+            throw new AssertionError(e); // keys and values are never null
+        }
+        File file = new File(root, MANIFEST);
+        File temp = new File(root, MANIFEST + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) throw new IOException("Cannot write " + MANIFEST);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
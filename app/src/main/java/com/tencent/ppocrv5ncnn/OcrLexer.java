@@ -0,0 +1,320 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Single-pass lexer that turns flat OCR text into typed tokens.
+ * Every line is visited once; numbers, labels, enumerated values and
+ * upper-case name lines are emitted with their offsets in the source text,
+ * so field assembly works on the token stream instead of rescanning the text.
+ */
+public class OcrLexer {
+
+    enum TokenType { NIK16, DATE, RT_RW, UPPER_NAME, LABEL, ENUM_VALUE }
+
+    static class Token {
+        TokenType type;
+        String text;    // matched text, or the canonical value for ENUM_VALUE
+        String key;     // field key for LABEL / ENUM_VALUE, null otherwise
+        int rank;       // vocabulary priority for ENUM_VALUE (lower wins)
+        int line;       // index into Result.lines
+        int start, end; // offsets in the source text
+
+        Token(TokenType type, String text, String key, int rank, int line, int start, int end) {
+            this.type = type;
+            this.text = text;
+            this.key = key;
+            this.rank = rank;
+            this.line = line;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    static class Line {
+        String text;
+        boolean isLabel;
+
+        Line(String text, boolean isLabel) {
+            this.text = text;
+            this.isLabel = isLabel;
+        }
+    }
+
+    static class Result {
+        List<Line> lines = new ArrayList<>();
+        List<Token> tokens = new ArrayList<>();
+    }
+
+    // Header labels: JSON key followed by lower-case variants
+    private static final String[][] HEADER_LABELS = {
+        {"kepala_keluarga", "kepala keluarga"},
+        {"alamat", "alamat"},
+        {"desa_kelurahan", "desa", "kelurahan"},
+        {"kecamatan", "kecamatan"},
+        {"kabupaten_kota", "kabupaten", "kota"},
+        {"provinsi", "provinsi"},
+    };
+
+    // Any line containing one of these is a label line, never a value or a name
+    private static final String[] KNOWN_LABELS = {"nik", "nama", "tempat", "tanggal", "agama", "pendidikan", "pekerjaan",
+                                                  "status", "hubungan", "kewarganegaraan", "ayah", "ibu", "alamat",
+                                                  "desa", "kelurahan", "kecamatan", "kabupaten", "kota", "provinsi",
+                                                  "no.", "rt", "rw", "kode"};
+
+    // Enumerated values: JSON key, then {phrase, canonical value} in priority order
+    private static final Object[][] ENUM_VALUES = {
+        {"jenis_kelamin", new String[][]{{"LAKI-LAKI", "L"}, {"LAKI", "L"}, {"L", "L"}, {"PEREMPUAN", "P"}, {"P", "P"}}},
+        {"agama", new String[][]{{"ISLAM"}, {"KRISTEN"}, {"KATOLIK"}, {"HINDU"}, {"BUDHA"}, {"KONGHUCU"}}},
+        {"kewarganegaraan", new String[][]{{"WNI"}, {"WNA"}}},
+        {"status_perkawinan", new String[][]{{"BELUM KAWIN"}, {"KAWIN"}, {"CERAI HIDUP"}, {"CERAI MATI"}}},
+        {"hubungan_keluarga", new String[][]{{"KEPALA KELUARGA"}, {"ISTRI"}, {"ANAK"}, {"MENANTU"}, {"CUCU"}, {"ORANG TUA"},
+                                             {"MERTUA"}, {"FAMILI LAIN"}, {"PEMBANTU"}, {"LAINNYA"}}},
+        {"pendidikan", new String[][]{{"TIDAK/BELUM SEKOLAH"}, {"BELUM TAMAT SD/SEDERAJAT"}, {"TAMAT SD/SEDERAJAT"},
+                                      {"SLTP/SEDERAJAT"}, {"SLTA/SEDERAJAT"}, {"DIPLOMA I/II"}, {"AKADEMI/DIPLOMA III/S.MUDA"},
+                                      {"DIPLOMA IV/STRATA I"}, {"STRATA II"}, {"STRATA III"}}},
+    };
+
+    private static class EnumPhrase {
+        String key;
+        String[] words;
+        String value;
+        int rank;
+
+        EnumPhrase(String key, String[] words, String value, int rank) {
+            this.key = key;
+            this.words = words;
+            this.value = value;
+            this.rank = rank;
+        }
+    }
+
+    // Enum phrases indexed by their first word, longest phrase first
+    private static final Map<String, List<EnumPhrase>> ENUM_INDEX = buildEnumIndex();
+
+    private static Map<String, List<EnumPhrase>> buildEnumIndex() {
+        Map<String, List<EnumPhrase>> index = new HashMap<>();
+        for (Object[] entry : ENUM_VALUES) {
+            String key = (String) entry[0];
+            String[][] phrases = (String[][]) entry[1];
+            for (int rank = 0; rank < phrases.length; rank++) {
+                String phrase = phrases[rank][0];
+                String value = phrases[rank].length > 1 ? phrases[rank][1] : phrase;
+                String[] words = phrase.split(" ");
+                List<EnumPhrase> bucket = index.get(words[0]);
+                if (bucket == null) {
+                    bucket = new ArrayList<>();
+                    index.put(words[0], bucket);
+                }
+                int pos = 0;
+                while (pos < bucket.size() && bucket.get(pos).words.length >= words.length) pos++;
+                bucket.add(pos, new EnumPhrase(key, words, value, rank));
+            }
+        }
+        return index;
+    }
+
+    // ---- public API ----
+
+    /**
+     * Tokenize OCR text. Lines are trimmed and empty lines dropped, matching
+     * the line model the extractors used before.
+     */
+    public static Result tokenize(String text) {
+        Result result = new Result();
+        int length = text.length();
+        int lineStart = 0;
+        while (lineStart <= length) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) lineEnd = length;
+
+            int s = lineStart;
+            int e = lineEnd;
+            while (s < e && text.charAt(s) <= ' ') s++;
+            while (e > s && text.charAt(e - 1) <= ' ') e--;
+            if (s < e) scanLine(result, text, s, e);
+
+            lineStart = lineEnd + 1;
+        }
+        return result;
+    }
+
+    // ---- line scanning ----
+
+    private static void scanLine(Result result, String text, int start, int end) {
+        String line = text.substring(start, end);
+        String lower = line.toLowerCase(Locale.ROOT);
+        int lineIndex = result.lines.size();
+
+        boolean isLabel = false;
+        for (String label : KNOWN_LABELS) {
+            if (lower.contains(label)) {
+                isLabel = true;
+                break;
+            }
+        }
+        result.lines.add(new Line(line, isLabel));
+
+        for (String[] header : HEADER_LABELS) {
+            for (int v = 1; v < header.length; v++) {
+                int idx = lower.indexOf(header[v]);
+                if (idx >= 0) {
+                    result.tokens.add(new Token(TokenType.LABEL, line.substring(idx, idx + header[v].length()),
+                        header[0], 0, lineIndex, start + idx, start + idx + header[v].length()));
+                    break;
+                }
+            }
+        }
+
+        scanNumbers(result, line, lineIndex, start);
+        scanWords(result, line, lineIndex, start, isLabel);
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+    }
+
+    /**
+     * Walk the regex-style word runs of a line once. NIK16, DATE and RT_RW
+     * are all sequences of whole digit runs joined by single separators,
+     * so each run is inspected at most once per pattern.
+     */
+    private static void scanNumbers(Result result, String line, int lineIndex, int offset) {
+        // collect [start, end) of every digit-only word run
+        List<int[]> runs = new ArrayList<>();
+        int n = line.length();
+        int i = 0;
+        while (i < n) {
+            if (!isWordChar(line.charAt(i))) {
+                i++;
+                continue;
+            }
+            int s = i;
+            boolean digits = true;
+            while (i < n && isWordChar(line.charAt(i))) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') digits = false;
+                i++;
+            }
+            if (digits) runs.add(new int[]{s, i});
+        }
+
+        for (int r = 0; r < runs.size(); r++) {
+            int[] run = runs.get(r);
+            int len = run[1] - run[0];
+
+            if (len == 2 && r + 2 < runs.size()) {
+                int[] mid = runs.get(r + 1);
+                int[] last = runs.get(r + 2);
+                if (mid[1] - mid[0] == 2 && last[1] - last[0] == 4
+                        && isDateSeparator(line, run[1], mid[0]) && isDateSeparator(line, mid[1], last[0])) {
+                    result.tokens.add(new Token(TokenType.DATE, line.substring(run[0], last[1]), null, 0,
+                        lineIndex, offset + run[0], offset + last[1]));
+                    r += 2;
+                    continue;
+                }
+            }
+
+            if (len == 3 && r + 1 < runs.size()) {
+                int[] next = runs.get(r + 1);
+                if (next[1] - next[0] == 3 && next[0] == run[1] + 1 && line.charAt(run[1]) == '/') {
+                    result.tokens.add(new Token(TokenType.RT_RW, line.substring(run[0], next[1]), null, 0,
+                        lineIndex, offset + run[0], offset + next[1]));
+                    r += 1;
+                    continue;
+                }
+            }
+
+            if (len == 16) {
+                result.tokens.add(new Token(TokenType.NIK16, line.substring(run[0], run[1]), null, 0,
+                    lineIndex, offset + run[0], offset + run[1]));
+            }
+        }
+    }
+
+    private static boolean isDateSeparator(String line, int end, int nextStart) {
+        if (nextStart != end + 1) return false;
+        char c = line.charAt(end);
+        return c == '-' || c == '/';
+    }
+
+    /**
+     * Split a line on whitespace once, matching enum phrases by their first
+     * word and flagging all-caps lines as candidate names.
+     */
+    private static void scanWords(Result result, String line, int lineIndex, int offset, boolean isLabel) {
+        List<int[]> words = new ArrayList<>();
+        List<String> upperWords = new ArrayList<>();
+        boolean upperOnly = true;
+        int n = line.length();
+        int i = 0;
+        while (i < n) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int s = i;
+            while (i < n && !Character.isWhitespace(line.charAt(i))) {
+                char w = line.charAt(i);
+                if (w < 'A' || w > 'Z') upperOnly = false;
+                i++;
+            }
+            // Strip punctuation OCR tends to glue onto values
+            int ws = s;
+            int we = i;
+            while (ws < we && isTrimmable(line.charAt(ws))) ws++;
+            while (we > ws && isTrimmable(line.charAt(we - 1))) we--;
+            if (ws < we) {
+                words.add(new int[]{ws, we});
+                upperWords.add(line.substring(ws, we).toUpperCase(Locale.ROOT));
+            }
+        }
+
+        for (int w = 0; w < words.size(); w++) {
+            List<EnumPhrase> candidates = ENUM_INDEX.get(upperWords.get(w));
+            if (candidates == null) continue;
+            for (EnumPhrase phrase : candidates) {
+                if (!matchesAt(upperWords, w, phrase.words)) continue;
+                int[] first = words.get(w);
+                int[] last = words.get(w + phrase.words.length - 1);
+                result.tokens.add(new Token(TokenType.ENUM_VALUE, phrase.value, phrase.key, phrase.rank,
+                    lineIndex, offset + first[0], offset + last[1]));
+            }
+        }
+
+        if (upperOnly && n > 3 && !isLabel) {
+            result.tokens.add(new Token(TokenType.UPPER_NAME, line, null, 0, lineIndex, offset, offset + n));
+        }
+    }
+
+    private static boolean matchesAt(List<String> words, int index, String[] phrase) {
+        if (index + phrase.length > words.size()) return false;
+        for (int k = 0; k < phrase.length; k++) {
+            if (!words.get(index + k).equals(phrase[k])) return false;
+        }
+        return true;
+    }
+
+    private static boolean isTrimmable(char c) {
+        return c == ',' || c == ';' || c == ':' || c == '|' || c == '(' || c == ')' || c == '"';
+    }
+}
@@ -15,11 +15,13 @@
 package com.tencent.ppocrv5ncnn;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.RectF;
+import android.net.Uri;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -43,6 +45,10 @@ public class OcrOverlayView extends ImageView {
     private int imageWidth = 0;
     private int imageHeight = 0;
 
+    // The page as a screen-sized preview plus tiles of the zoomed-in part
+    private TiledImage tiles;
+    private Matrix previewMatrix = new Matrix();
+
     // Zoom and pan
     private Matrix transformMatrix = new Matrix();
     private float currentScale = 1f;
@@ -50,6 +56,7 @@ public class OcrOverlayView extends ImageView {
     private float currentTranslateY = 0f;
     private float minScale = 1f;
     private float maxScale = 5f;
+    private static final float MIN_MAX_SCALE = 5f;
 
     // Base transform (fitCenter)
     private float baseScale = 1f;
@@ -92,6 +99,8 @@ public class OcrOverlayView extends ImageView {
     }
 
     private void init(Context context) {
+        tiles = new TiledImage(this);
+
         boxPaint = new Paint();
         boxPaint.setColor(Color.parseColor("#4CAF50"));
         boxPaint.setStyle(Paint.Style.STROKE);
@@ -199,20 +208,48 @@ public class OcrOverlayView extends ImageView {
         invalidate();
     }
 
+    /**
+     * Show bm, zoomable to its own resolution. Frames draw only a
+     * screen-sized copy and tiles of it; the caller may recycle the
+     * previously shown bitmap once this returns.
+     */
     @Override
-    public void setImageBitmap(android.graphics.Bitmap bm) {
-        super.setImageBitmap(bm);
-        if (bm != null) {
-            imageWidth = bm.getWidth();
-            imageHeight = bm.getHeight();
-            post(new Runnable() {
-                @Override
-                public void run() {
-                    calculateBaseTransform();
-                    updateMatrix();
-                }
-            });
+    public void setImageBitmap(Bitmap bm) {
+        if (bm == null) {
+            tiles.clear();
+            super.setImageBitmap(null);
+            return;
         }
+        tiles.setSource(bm);
+        showPage(bm);
+    }
+
+    /**
+     * Show page, decoded at 1/sampleSize from the image at source; zooming in
+     * past the page reads tiles from source at up to its full resolution.
+     */
+    public void setImageSource(Uri source, int sourceWidth, int sourceHeight, int sampleSize, Bitmap page) {
+        tiles.setSource(page, source, sourceWidth, sourceHeight, sampleSize);
+        showPage(page);
+    }
+
+    private void showPage(Bitmap page) {
+        super.setImageBitmap(tiles.getPreview());
+        imageWidth = page.getWidth();
+        imageHeight = page.getHeight();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                calculateBaseTransform();
+                updateMatrix();
+            }
+        });
+    }
+
+    /** Stop decoding tiles; the view shows nothing after this. */
+    public void release() {
+        tiles.release();
+        super.setImageBitmap(null);
     }
 
     private void calculateBaseTransform() {
@@ -233,6 +270,9 @@ public class OcrOverlayView extends ImageView {
         float scaledImageHeight = imageHeight * baseScale;
         baseOffsetX = (viewWidth - scaledImageWidth) / 2f;
         baseOffsetY = (viewHeight - scaledImageHeight) / 2f;
+
+        // Zoom on until a pixel of the finest image covers two screen pixels
+        maxScale = Math.max(MIN_MAX_SCALE, 2f * tiles.getFullScale() / baseScale);
     }
 
     private void updateMatrix() {
@@ -246,7 +286,11 @@ public class OcrOverlayView extends ImageView {
         transformMatrix.postScale(currentScale, currentScale, getWidth() / 2f, getHeight() / 2f);
         transformMatrix.postTranslate(currentTranslateX, currentTranslateY);
 
-        setImageMatrix(transformMatrix);
+        // The preview is smaller than the page the boxes are in
+        previewMatrix.reset();
+        previewMatrix.postScale(tiles.getPreviewScale(), tiles.getPreviewScale());
+        previewMatrix.postConcat(transformMatrix);
+        setImageMatrix(previewMatrix);
     }
 
     private void constrainTranslation() {
@@ -269,6 +313,9 @@ public class OcrOverlayView extends ImageView {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
+        // Sharper tiles over the preview once zoomed in
+        tiles.draw(canvas, transformMatrix, baseScale * currentScale);
+
         if (textBoxes.isEmpty() || imageWidth == 0 || imageHeight == 0) {
             return;
         }
@@ -16,16 +16,74 @@ package com.tencent.ppocrv5ncnn;
 
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
+import android.util.Log;
 import android.view.Surface;
 
 public class PPOCRv5Ncnn
 {
+    private static final String TAG = "PPOCRv5Ncnn";
+
+    // The engine is process-wide native state, shared by every instance
+    private static volatile boolean loaded;
+
+    /**
+     * Receives each line soon after it is recognized, on the thread that called
+     * recognizeDetectedStreaming. index is the box position in the packed array.
+     * Lines are recognized a few at a time and delivered with the OCR lock
+     * released, so a listener may call back into OCR.
+     */
+    public interface LineListener {
+        void onLine(int index, String text, float x, float y, float w, float h, float confidence);
+    }
+
     public native boolean loadModel(AssetManager mgr, int modelid, int sizeid, int cpugpu);
+    public native boolean loadModelFromFiles(String detParamPath, String detModelPath, String recParamPath, String recModelPath, int modelid, int sizeid, int cpugpu);
     public native boolean openCamera(int facing);
     public native boolean closeCamera();
     public native boolean setOutputWindow(Surface surface);
     public native String recognizeImage(Bitmap bitmap);
     public native String recognizeImageWithBoxes(Bitmap bitmap);
+    public native String detectImage(Bitmap bitmap);
+    public native String recognizeDetected(Bitmap bitmap, float[] boxes);
+    public native String recognizeDetectedInRegions(Bitmap bitmap, float[] boxes, float[] regions);
+    public native String recognizeDetectedStreaming(Bitmap bitmap, float[] boxes, float[] regions, LineListener listener);
+    // Page corners x0, y0 .. x3, y3 from top-left clockwise, or null; see DocumentRectifier
+    public native float[] detectDocument(Bitmap bitmap);
+    public native boolean warpDocument(Bitmap src, float[] quad, Bitmap dst);
+
+    /**
+     * Load the weights installed in the model store for modelid (0 = mobile,
+     * 1 = server), or those in the APK when the store has none or they fail
+     * to load.
+     */
+    public boolean loadModel(AssetManager mgr, ModelStore store, int modelid, int sizeid, int cpugpu)
+    {
+        ModelStore.Entry entry = store.use(modelid == 0 ? ModelStore.ROLE_OCR_MOBILE : ModelStore.ROLE_OCR_SERVER);
+        if (entry != null)
+        {
+            if (loadModelFromFiles(path(entry, ModelStore.OCR_DET_PARAM), path(entry, ModelStore.OCR_DET_BIN),
+                    path(entry, ModelStore.OCR_REC_PARAM), path(entry, ModelStore.OCR_REC_BIN), modelid, sizeid, cpugpu))
+            {
+                loaded = true;
+                return true;
+            }
+            Log.w(TAG, "OCR weights " + entry.key() + " failed to load, using the bundled ones");
+        }
+        boolean ret = loadModel(mgr, modelid, sizeid, cpugpu);
+        loaded |= ret;
+        return ret;
+    }
+
+    /** Whether a model was loaded in this process, by any instance. */
+    public static boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    private static String path(ModelStore.Entry entry, String name)
+    {
+        return entry.file(name).getAbsolutePath();
+    }
 
     static {
         System.loadLibrary("ppocrv5ncnn");
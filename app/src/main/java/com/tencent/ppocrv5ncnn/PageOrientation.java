@@ -0,0 +1,242 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+import android.util.Log;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds a page photographed sideways or upside down before it is
+ * recognized, and turns it upright once.
+ *
+ * Detection boxes give the line axis: on a page turned 90 or 270 degrees
+ * most text lines run vertically. The direction along that axis comes from
+ * recognizing a few of the longest lines read both ways; the recognizer is
+ * far less sure of text it reads upside down. The native crop reads a box
+ * along the edge its angle points to, so both readings are the same boxes
+ * with the angle turned by 180, and no bitmap is rotated to try them.
+ *
+ * When the page is upright the detection is handed on, so classification
+ * does not detect again; a turned page is detected again after rotating.
+ */
+public class PageOrientation {
+    private static final String TAG = "PageOrientation";
+
+    private static final int SAMPLE_LINES = 6;
+    private static final float MIN_LINE_ASPECT = 2f;     // long side / short side of a text line
+    private static final int MIN_LINES = 3;
+    // Reading upside down must beat the upright reading by this much mean confidence
+    private static final float MIN_GAIN = 0.05f;
+
+    static class Result {
+        int rotation;               // clockwise degrees the content was turned: 0, 90, 180 or 270
+        Bitmap bitmap;              // upright page; the input when rotation is 0
+        List<DocumentLayout.TextBox> boxes;     // detection of the input, kept when rotation is 0
+        int lines;                  // line-shaped boxes voting on the axis
+        int verticalLines;
+        float confidence;           // mean sample confidence read as chosen
+        float otherConfidence;      // read the opposite way
+        long detectMs;
+        long sampleMs;
+        long rotateMs;
+
+        long elapsedMs() {
+            return detectMs + sampleMs + rotateMs;
+        }
+
+        boolean isRotated() {
+            return rotation != 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s, %d ms (%d/%d lines vertical, confidence %.2f vs %.2f)",
+                rotation == 0 ? "upright" : "turned " + rotation + " degrees", elapsedMs(),
+                verticalLines, lines, confidence, otherConfidence);
+        }
+    }
+
+    /** A text line from detection, with its long axis as a direction in image degrees (y down). */
+    private static class Line {
+        DocumentLayout.TextBox box;
+        float length;
+        float thickness;
+        float direction;    // 0 = left to right, 90 = downwards; the reading direction is this or +180
+    }
+
+    /**
+     * Estimate the rotation and turn the page upright. The upright bitmap comes
+     * from loader's pool when one is given; the caller still owns, and
+     * releases, the input.
+     */
+    public static Result estimate(PPOCRv5Ncnn ocr, Bitmap bitmap, ImageLoader loader) {
+        Result result = new Result();
+        result.bitmap = bitmap;
+        long start = System.currentTimeMillis();
+        try {
+            result.boxes = DocumentLayout.parseBoxes(new JSONArray(ocr.detectImage(bitmap)));
+        } catch (Exception e) {
+            Log.e(TAG, "Detection failed", e);
+            result.detectMs = System.currentTimeMillis() - start;
+            return result;
+        }
+        result.detectMs = System.currentTimeMillis() - start;
+
+        List<Line> lines = new ArrayList<>();
+        for (DocumentLayout.TextBox box : result.boxes) {
+            Line line = line(box);
+            if (line.length >= line.thickness * MIN_LINE_ASPECT) lines.add(line);
+        }
+        for (Line line : lines) {
+            if (isVertical(line.direction)) result.verticalLines++;
+        }
+        result.lines = lines.size();
+        if (lines.size() < MIN_LINES) {
+            Log.d(TAG, "Too few lines to tell, assuming upright: " + result);
+            return result;
+        }
+
+        // Lines along the winning axis, longest first; long lines carry the most characters
+        final boolean vertical = result.verticalLines * 2 > lines.size();
+        List<Line> samples = new ArrayList<>();
+        for (Line line : lines) {
+            if (isVertical(line.direction) == vertical) samples.add(line);
+        }
+        Collections.sort(samples, new Comparator<Line>() {
+            @Override
+            public int compare(Line a, Line b) {
+                return Float.compare(b.length, a.length);
+            }
+        });
+        if (samples.size() > SAMPLE_LINES) samples = samples.subList(0, SAMPLE_LINES);
+
+        start = System.currentTimeMillis();
+        int first = vertical ? 90 : 0;
+        float forward = meanConfidence(ocr, bitmap, samples, first);
+        float backward = meanConfidence(ocr, bitmap, samples, first + 180);
+        result.sampleMs = System.currentTimeMillis() - start;
+
+        if (vertical) {
+            // Sideways either way; pick the better reading
+            result.rotation = (forward >= backward) ? 90 : 270;
+        } else {
+            // Upright unless clearly better upside down
+            result.rotation = (backward > forward + MIN_GAIN) ? 180 : 0;
+        }
+        result.confidence = (result.rotation == first) ? forward : backward;
+        result.otherConfidence = (result.rotation == first) ? backward : forward;
+
+        if (result.rotation != 0) {
+            start = System.currentTimeMillis();
+            result.bitmap = rotate(bitmap, result.rotation, loader);
+            result.boxes = null;
+            result.rotateMs = System.currentTimeMillis() - start;
+        }
+        Log.d(TAG, result.toString());
+        return result;
+    }
+
+    /** bitmap turned back by rotation degrees, into a pooled bitmap when there is a loader. */
+    private static Bitmap rotate(Bitmap bitmap, int rotation, ImageLoader loader) {
+        Matrix matrix = new Matrix();
+        matrix.postRotate(-rotation);
+        if (loader == null) {
+            return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        }
+        // Rotated about the origin, then moved back to it, as createBitmap does; a quarter turn
+        // covers every pixel, and SRC replaces whatever the pooled bitmap held
+        RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        Bitmap page = loader.obtain(Math.round(bounds.width()), Math.round(bounds.height()));
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        new Canvas(page).drawBitmap(bitmap, matrix, paint);
+        return page;
+    }
+
+    /** Recognize the samples read in direction (image degrees) and return their mean confidence. */
+    private static float meanConfidence(PPOCRv5Ncnn ocr, Bitmap bitmap, List<Line> samples, int direction) {
+        float[] packed = new float[samples.size() * 7];
+        for (int i = 0; i < samples.size(); i++) {
+            Line line = samples.get(i);
+            // The crop reads from corner 0 to corner 1, which points at angle - 90 for the
+            // RotatedRect's height edge; give height the line's length and aim it
+            float reading = line.direction;
+            if (Math.abs(wrap(reading - direction)) > 90) reading += 180;
+            packed[i * 7] = line.box.cx;
+            packed[i * 7 + 1] = line.box.cy;
+            packed[i * 7 + 2] = line.thickness;
+            packed[i * 7 + 3] = line.length;
+            packed[i * 7 + 4] = wrap(reading + 90);
+            packed[i * 7 + 5] = 0;  // horizontal crop, whatever the detector called it
+            packed[i * 7 + 6] = line.box.score;
+        }
+        try {
+            List<DocumentLayout.TextBox> read = DocumentLayout.parseBoxes(
+                new JSONArray(ocr.recognizeDetected(bitmap, packed)));
+            if (read.isEmpty()) return 0;
+            float sum = 0;
+            for (DocumentLayout.TextBox box : read) sum += box.confidence;
+            return sum / read.size();
+        } catch (Exception e) {
+            Log.e(TAG, "Sample recognition failed", e);
+            return 0;
+        }
+    }
+
+    private static Line line(DocumentLayout.TextBox box) {
+        Line line = new Line();
+        line.box = box;
+        // RotatedRect: the width edge points at angle, the height edge at angle - 90
+        if (box.rh >= box.rw) {
+            line.length = box.rh;
+            line.thickness = box.rw;
+            line.direction = wrap(box.angle - 90);
+        } else {
+            line.length = box.rw;
+            line.thickness = box.rh;
+            line.direction = wrap(box.angle);
+        }
+        return line;
+    }
+
+    private static boolean isVertical(float direction) {
+        float axis = Math.abs(wrap(direction));     // 0..180
+        return axis > 45 && axis < 135;
+    }
+
+    /** Degrees into (-180, 180]. */
+    private static float wrap(float degrees) {
+        float d = degrees % 360;
+        if (d > 180) d -= 360;
+        if (d <= -180) d += 360;
+        return d;
+    }
+}
@@ -0,0 +1,170 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes KartuKeluargaRecords straight to an Appendable without building a
+ * JSON tree. Compact by default; JSON Lines for batch output. Indentation is
+ * meant for display only.
+ */
+public class RecordWriter {
+    private final Appendable out;
+    private final int indent;   // spaces per level, 0 for compact
+
+    public RecordWriter(Appendable out) {
+        this(out, 0);
+    }
+
+    public RecordWriter(Appendable out, int indent) {
+        this.out = out;
+        this.indent = indent;
+    }
+
+    /** Compact JSON of one record. */
+    public static String toJson(KartuKeluargaRecord record) {
+        StringBuilder sb = new StringBuilder(estimateSize(record));
+        try {
+            new RecordWriter(sb).write(record);
+        } catch (IOException e) {
+            throw new AssertionError(e); // StringBuilder does not throw
+        }
+        return sb.toString();
+    }
+
+    /** Indented JSON for the UI. */
+    public static String toPrettyJson(KartuKeluargaRecord record) {
+        StringBuilder sb = new StringBuilder(estimateSize(record) * 2);
+        try {
+            new RecordWriter(sb, 2).write(record);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    /** One record as a JSON object. */
+    public void write(KartuKeluargaRecord record) throws IOException {
+        out.append('{');
+        if (record.error != null) {
+            newline(1);
+            field("error", record.error);
+            newline(0);
+            out.append('}');
+            return;
+        }
+
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) {
+            if (f > 0) out.append(',');
+            newline(1);
+            field(KartuKeluargaRecord.HEADER_KEYS[f], record.header(f));
+        }
+        out.append(',');
+        newline(1);
+        name("anggota_keluarga");
+        out.append('[');
+        List<FamilyMember> members = record.members;
+        for (int m = 0; m < members.size(); m++) {
+            if (m > 0) out.append(',');
+            newline(2);
+            writeMember(members.get(m), 2);
+        }
+        if (!members.isEmpty()) newline(1);
+        out.append(']');
+        newline(0);
+        out.append('}');
+    }
+
+    /** One record per line (JSON Lines); always compact. */
+    public void writeLine(KartuKeluargaRecord record) throws IOException {
+        if (indent != 0) throw new IllegalStateException("JSON Lines output must be compact");
+        write(record);
+        out.append('\n');
+    }
+
+    private void writeMember(FamilyMember member, int level) throws IOException {
+        out.append('{');
+        newline(level + 1); field("nik", member.nik);
+        out.append(','); newline(level + 1); field("nama", member.nama);
+        out.append(','); newline(level + 1); field("jenis_kelamin", member.jenisKelamin);
+        out.append(','); newline(level + 1); field("tempat_lahir", member.tempatLahir);
+        out.append(','); newline(level + 1); field("tanggal_lahir", member.tanggalLahir);
+        out.append(','); newline(level + 1); field("agama", member.agama);
+        out.append(','); newline(level + 1); field("pendidikan", member.pendidikan);
+        out.append(','); newline(level + 1); field("pekerjaan", member.pekerjaan);
+        out.append(','); newline(level + 1); field("status_perkawinan", member.statusPerkawinan);
+        out.append(','); newline(level + 1); field("hubungan_keluarga", member.hubunganKeluarga);
+        out.append(','); newline(level + 1); field("kewarganegaraan", member.kewarganegaraan);
+        out.append(','); newline(level + 1); field("nama_ayah", member.namaAyah);
+        out.append(','); newline(level + 1); field("nama_ibu", member.namaIbu);
+        newline(level);
+        out.append('}');
+    }
+
+    // ---- primitives ----
+
+    private void field(String key, String value) throws IOException {
+        name(key);
+        string(value);
+    }
+
+    private void name(String key) throws IOException {
+        string(key);
+        out.append(':');
+        if (indent > 0) out.append(' ');
+    }
+
+    private void newline(int level) throws IOException {
+        if (indent == 0) return;
+        out.append('\n');
+        for (int i = level * indent; i > 0; i--) out.append(' ');
+    }
+
+    private void string(String value) throws IOException {
+        out.append('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+
+            // Copy the clean run, then the escape
+            out.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                case '\b': out.append("\\b"); break;
+                case '\f': out.append("\\f"); break;
+                default:
+                    out.append("\\u00");
+                    out.append(Character.forDigit(c >> 4, 16));
+                    out.append(Character.forDigit(c & 0xF, 16));
+                    break;
+            }
+        }
+        out.append(value, start, length);
+        out.append('"');
+    }
+
+    private static int estimateSize(KartuKeluargaRecord record) {
+        return 256 + record.members.size() * 384;
+    }
+}
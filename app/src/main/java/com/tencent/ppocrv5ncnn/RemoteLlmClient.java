@@ -0,0 +1,431 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LlmEngine backed by LlmService in the :llm process. Calls made before the
+ * service is connected are held and sent on connection. Callbacks run on
+ * the client's own reply thread, as LlmHelper's run on its inference thread.
+ *
+ * If the LLM process dies (native crash, OOM kill), every call in flight
+ * fails with an error and the binding brings the service back; the model
+ * path is sent again, so the next call simply loads the model.
+ */
+public class RemoteLlmClient implements LlmEngine {
+    private static final String TAG = "RemoteLlmClient";
+
+    // A token count or budget not answered by then is estimated locally
+    private static final long QUERY_TIMEOUT_MS = 2000;
+    // A targeted prompt not answered by then is cancelled; it may queue behind a few full passes
+    private static final long GENERATE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /** A call waiting for its reply: a streaming callback, or a blocked caller. */
+    private static class Pending {
+        LlmHelper.LlmCallback callback;
+        CountDownLatch done;
+        String text;
+        int value;
+        int[] values;
+        String error;
+    }
+
+    private final Context context;
+    private final HandlerThread thread;
+    private final Messenger replies;
+    private final Map<Integer, Pending> pending = new HashMap<>();
+    private final List<Message> outbox = new ArrayList<>();    // waiting for the connection
+    private Messenger service;
+    private boolean bound;
+    private int nextId;
+    private volatile String modelPath;
+    private volatile LlmHelper.Timing lastTiming;
+    private volatile LlmHelper.MemoryStats memoryStats = new LlmHelper.MemoryStats();
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            List<Message> queued;
+            Messenger connected = new Messenger(binder);
+            synchronized (RemoteLlmClient.this) {
+                service = connected;
+                queued = new ArrayList<>(outbox);
+                outbox.clear();
+            }
+            Log.d(TAG, "Connected to the LLM process, " + queued.size() + " queued messages");
+            String path = modelPath;
+            if (path != null && (queued.isEmpty() || queued.get(0).what != LlmChannel.MSG_CONFIGURE)) {
+                // A restarted process lost its configuration
+                send(configureMessage(path));
+            }
+            for (Message msg : queued) send(msg);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            List<Pending> failed;
+            synchronized (RemoteLlmClient.this) {
+                service = null;
+                failed = new ArrayList<>(pending.values());
+                pending.clear();
+            }
+            Log.e(TAG, "LLM process stopped, " + failed.size() + " calls failed");
+            for (Pending call : failed) fail(call, "LLM process stopped");
+        }
+    };
+
+    public RemoteLlmClient(Context context) {
+        this.context = context.getApplicationContext();
+        thread = new HandlerThread("llm-client");
+        thread.start();
+        replies = new Messenger(new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                dispatch(msg);
+            }
+        });
+    }
+
+    @Override
+    public boolean configure(Context context, String modelPath) {
+        if (!new File(modelPath).exists()) {
+            Log.e(TAG, "Model file not found: " + modelPath);
+            return false;
+        }
+        this.modelPath = modelPath;
+        synchronized (this) {
+            if (!bound) {
+                bound = this.context.bindService(new Intent(this.context, LlmService.class),
+                    connection, Context.BIND_AUTO_CREATE);
+                if (!bound) {
+                    Log.e(TAG, "Cannot bind the LLM service");
+                    return false;
+                }
+            }
+        }
+        send(configureMessage(modelPath));
+        return true;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return modelPath != null;
+    }
+
+    @Override
+    public int inputTokenBudget(int expectedMembers) {
+        Message msg = LlmChannel.obtain(LlmChannel.MSG_INPUT_BUDGET, 0, expectedMembers);
+        Pending call = query(msg, QUERY_TIMEOUT_MS);
+        return call != null ? call.value : LlmHelper.estimatedInputTokenBudget(expectedMembers);
+    }
+
+    @Override
+    public int countTokens(String text) {
+        return countTokens(Collections.singletonList(text))[0];
+    }
+
+    /** All texts in one round trip; estimated locally when the LLM process does not answer in time. */
+    @Override
+    public int[] countTokens(List<String> texts) {
+        Message msg = LlmChannel.obtain(LlmChannel.MSG_COUNT_TOKENS, 0, 0);
+        LlmChannel.putTexts(msg.getData(), LlmChannel.KEY_VALUES, texts);
+        Pending call = query(msg, QUERY_TIMEOUT_MS);
+        if (call != null && call.values != null && call.values.length == texts.size()) return call.values;
+        return LayoutCompactor.ESTIMATE.count(texts);
+    }
+
+    @Override
+    public void structureKartuKeluargaAsync(String key, String ocrText, int expectedMembers,
+                                            LlmHelper.LlmCallback callback) {
+        if (!isAvailable()) {
+            callback.onError("LLM not initialized");
+            return;
+        }
+        Pending call = new Pending();
+        call.callback = callback;
+        Message msg = LlmChannel.obtain(LlmChannel.MSG_STRUCTURE, register(call), expectedMembers);
+        msg.getData().putString(LlmChannel.KEY_QUEUE_KEY, key);
+        LlmChannel.putText(msg.getData(), LlmChannel.KEY_TEXT, ocrText);
+        if (!send(msg)) failUnsent(msg.arg1);
+    }
+
+    @Override
+    public void generateTextAsync(String key, String prompt, LlmHelper.LlmCallback callback) {
+        if (!isAvailable()) {
+            callback.onError("LLM not initialized");
+            return;
+        }
+        Pending call = new Pending();
+        call.callback = callback;
+        Message msg = LlmChannel.obtain(LlmChannel.MSG_GENERATE, register(call), 0);
+        msg.getData().putString(LlmChannel.KEY_QUEUE_KEY, key);
+        LlmChannel.putText(msg.getData(), LlmChannel.KEY_TEXT, prompt);
+        if (!send(msg)) failUnsent(msg.arg1);
+    }
+
+    /**
+     * Blocks until the response, at most GENERATE_TIMEOUT_MS; a timeout or an
+     * interrupt cancels the call under key.
+     */
+    @Override
+    public String generateText(String key, String prompt) throws Exception {
+        if (!isAvailable()) {
+            throw new IllegalStateException("LLM not initialized");
+        }
+        final String[] reply = new String[2];   // result, error
+        final CountDownLatch done = new CountDownLatch(1);
+        generateTextAsync(key, prompt, new LlmHelper.LlmCallback() {
+            @Override
+            public void onResult(String result) {
+                reply[0] = result;
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                reply[1] = error;
+                done.countDown();
+            }
+
+            @Override
+            public void onPartialResult(String partialResult) {
+            }
+
+            @Override
+            public void onField(String key, String value) {
+            }
+
+            @Override
+            public void onMember(int index, FamilyMember member) {
+            }
+        });
+        try {
+            if (!done.await(GENERATE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (key != null) cancel(key);
+                throw new CancellationException("LLM request timed out after " + GENERATE_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            if (key != null) cancel(key);
+            throw e;
+        }
+        if (reply[1] != null) {
+            if (reply[1].contains("cancelled") || reply[1].contains("superseded")) {
+                throw new CancellationException(reply[1]);
+            }
+            throw new Exception(reply[1]);
+        }
+        return reply[0];
+    }
+
+    @Override
+    public void cancel(String key) {
+        Message msg = LlmChannel.obtain(LlmChannel.MSG_CANCEL, 0, 0);
+        msg.getData().putString(LlmChannel.KEY_QUEUE_KEY, key);
+        send(msg);
+    }
+
+    /** LlmService receives its own process's trim callbacks; the UI process has nothing to release. */
+    @Override
+    public void trimMemory(int level) {
+    }
+
+    @Override
+    public LlmHelper.Timing getLastTiming() {
+        return lastTiming;
+    }
+
+    /** Stats of the LLM process as of its last result. */
+    @Override
+    public LlmHelper.MemoryStats getMemoryStats() {
+        return memoryStats;
+    }
+
+    @Override
+    public void close() {
+        List<Pending> failed;
+        synchronized (this) {
+            modelPath = null;
+            failed = new ArrayList<>(pending.values());
+            pending.clear();
+            outbox.clear();
+            if (bound) {
+                context.unbindService(connection);
+                bound = false;
+            }
+            service = null;
+        }
+        for (Pending call : failed) fail(call, "LLM client closed");
+        thread.quitSafely();
+    }
+
+    private Message configureMessage(String path) {
+        Message msg = LlmChannel.obtain(LlmChannel.MSG_CONFIGURE, 0, 0);
+        LlmChannel.putText(msg.getData(), LlmChannel.KEY_TEXT, path);
+        return msg;
+    }
+
+    private synchronized int register(Pending call) {
+        int id = ++nextId;
+        pending.put(id, call);
+        return id;
+    }
+
+    /**
+     * Send and block until the reply, or until timeoutMs (0 waits as long as
+     * it takes). Returns null on timeout; a lost process answers with an error.
+     */
+    private Pending query(Message msg, long timeoutMs) {
+        Pending call = new Pending();
+        call.done = new CountDownLatch(1);
+        int id = register(call);
+        msg.arg1 = id;
+        if (!send(msg)) {
+            synchronized (this) {
+                pending.remove(id);
+            }
+            return null;
+        }
+        try {
+            if (timeoutMs > 0) {
+                if (!call.done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    synchronized (this) {
+                        pending.remove(id);
+                    }
+                    Log.w(TAG, "LLM process did not answer message " + msg.what + " in " + timeoutMs + " ms");
+                    return null;
+                }
+            } else {
+                call.done.await();
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                pending.remove(id);
+            }
+            Thread.currentThread().interrupt();
+            call.error = "LLM request interrupted";
+        }
+        return (timeoutMs > 0 && call.error != null) ? null : call;
+    }
+
+    /**
+     * Send now, or hold until the service connects; false when the client is
+     * not bound, so nothing will ever answer.
+     */
+    private boolean send(Message msg) {
+        Messenger to;
+        synchronized (this) {
+            to = service;
+            if (to == null) {
+                if (bound) outbox.add(msg);
+                return bound;
+            }
+        }
+        msg.replyTo = replies;
+        LlmChannel.send(to, msg);
+        // A dead peer is reported through onServiceDisconnected, which fails the call
+        return true;
+    }
+
+    /** Fail the call registered under id whose message could not be sent. */
+    private void failUnsent(int id) {
+        Pending call;
+        synchronized (this) {
+            call = pending.remove(id);
+        }
+        if (call != null) fail(call, "LLM service not bound");
+    }
+
+    private void dispatch(Message msg) {
+        Pending call;
+        boolean last = msg.what == LlmChannel.MSG_RESULT || msg.what == LlmChannel.MSG_ERROR
+            || msg.what == LlmChannel.MSG_VALUE;
+        synchronized (this) {
+            call = last ? pending.remove(msg.arg1) : pending.get(msg.arg1);
+        }
+        Bundle data = msg.getData();
+        String text = LlmChannel.getText(data, LlmChannel.KEY_TEXT);
+        if (call == null) {
+            if (msg.what == LlmChannel.MSG_ERROR) Log.e(TAG, "LLM process: " + text);
+            return;     // timed out, or the client was closed
+        }
+
+        switch (msg.what) {
+            case LlmChannel.MSG_PARTIAL:
+                if (call.callback != null) call.callback.onPartialResult(text);
+                break;
+            case LlmChannel.MSG_FIELD:
+                if (call.callback != null) {
+                    call.callback.onField(data.getString(LlmChannel.KEY_FIELD), data.getString(LlmChannel.KEY_VALUE));
+                }
+                break;
+            case LlmChannel.MSG_MEMBER:
+                if (call.callback != null) {
+                    call.callback.onMember(msg.arg2, LlmChannel.memberFromJson(data.getString(LlmChannel.KEY_VALUE)));
+                }
+                break;
+            case LlmChannel.MSG_RESULT:
+                data.setClassLoader(LlmHelper.class.getClassLoader());
+                LlmHelper.Timing timing = (LlmHelper.Timing) data.getSerializable(LlmChannel.KEY_TIMING);
+                LlmHelper.MemoryStats stats = (LlmHelper.MemoryStats) data.getSerializable(LlmChannel.KEY_MEMORY_STATS);
+                if (timing != null && call.callback != null) lastTiming = timing;
+                if (stats != null) memoryStats = stats;
+                if (call.callback != null) {
+                    call.callback.onResult(text);
+                } else {
+                    call.text = text;
+                    call.done.countDown();
+                }
+                break;
+            case LlmChannel.MSG_ERROR:
+                fail(call, text);
+                break;
+            case LlmChannel.MSG_VALUE:
+                call.value = msg.arg2;
+                call.values = data.getIntArray(LlmChannel.KEY_VALUES);
+                call.done.countDown();
+                break;
+        }
+    }
+
+    private static void fail(Pending call, String error) {
+        if (call.callback != null) {
+            call.callback.onError(error);
+        } else {
+            call.error = error;
+            call.done.countDown();
+        }
+    }
+}
@@ -14,12 +14,9 @@
 
 package com.tencent.ppocrv5ncnn;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.tencent.ppocrv5ncnn.DocumentLayout.TextBox;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,41 +27,92 @@ public class SpatialExtractor {
 
     private static final Pattern PATTERN_NIK = Pattern.compile("\\d{16}");
     private static final Pattern PATTERN_DATE = Pattern.compile("\\d{2}[-/]\\d{2}[-/]\\d{4}");
-    private static final Pattern PATTERN_RT_RW = Pattern.compile("\\d{3}/\\d{3}");
-    private static final Pattern PATTERN_ROW_NUMBER = Pattern.compile("^\\d{1,2}$");
-
-    private static class TextBox {
-        String text;
-        float x, y, w, h, cx, cy;
-
-        TextBox(String text, float x, float y, float w, float h, float cx, float cy) {
-            this.text = text;
-            this.x = x;
-            this.y = y;
-            this.w = w;
-            this.h = h;
-            this.cx = cx;
-            this.cy = cy;
+    static final Pattern PATTERN_RT_RW = Pattern.compile("\\d{3}/\\d{3}");
+    static final Pattern PATTERN_ROW_NUMBER = Pattern.compile("^\\d{1,2}$");
+
+    // A label followed by ":" starts the next value on a two-column header row
+    static final Pattern PATTERN_NEXT_LABEL = Pattern.compile(
+        "(?i)\\b(?:Nama Kepala Keluarga|Kepala Keluarga|Alamat|RT/RW|Kode Pos|Desa/Kelurahan|Desa|Kelurahan"
+        + "|Kecamatan|Kabupaten/Kota|Kabupaten|Provinsi)\\s*:");
+
+    /**
+     * The kartu_keluarga template as these rules read it: a label list or a
+     * pattern per KartuKeluargaRecord.HEADER_KEYS, and the two member tables
+     * its records join by row number. Built once by TemplateRegistry.
+     */
+    static class Template {
+        static final String ID = "kartu_keluarga";
+
+        final String[][] headerLabels = new String[KartuKeluargaRecord.HEADER_KEYS.length][];  // null for pattern fields
+        final Pattern[] headerPatterns = new Pattern[KartuKeluargaRecord.HEADER_KEYS.length];
+        final DocumentTemplate.Table table1;
+        final DocumentTemplate.Table table2;
+
+        Template(DocumentTemplate template) {
+            for (DocumentTemplate.Field field : template.fields) {
+                int f = KartuKeluargaRecord.headerIndex(field.key);
+                if (f < 0) continue;
+                if (field.labels.length > 0) {
+                    headerLabels[f] = field.labels;
+                } else {
+                    headerPatterns[f] = field.pattern;
+                }
+            }
+            for (int f = 0; f < headerLabels.length; f++) {
+                if (headerLabels[f] == null && headerPatterns[f] == null) {
+                    throw new IllegalArgumentException("No labels or pattern for " + KartuKeluargaRecord.HEADER_KEYS[f]
+                        + " in " + template.id);
+                }
+            }
+            if (template.recordTables.length != 2) {
+                throw new IllegalArgumentException("Records of " + template.id + " must join two tables");
+            }
+            table1 = template.findTable(template.recordTables[0]);
+            table2 = template.findTable(template.recordTables[1]);
+            if (table1 == null || table2 == null) {
+                throw new IllegalArgumentException("Unknown table joined in " + template.id);
+            }
         }
 
-        float right() { return x + w; }
+        /** True when a lower-case row text reads like the header of either member table. */
+        boolean isTableHeader(String textLower) {
+            return headerMatches(textLower, table1) >= table1.minHeaderMatches
+                || headerMatches(textLower, table2) >= table2.minHeaderMatches;
+        }
     }
 
-    private static class TableColumn {
-        String header;
+    static class TableColumn {
+        String key;     // template column key, or "No" for the row number column
         float xMin, xMax, xCenter;
 
-        TableColumn(String header, float xMin, float xMax) {
-            this.header = header;
+        TableColumn(String key, float xMin, float xMax) {
+            this.key = key;
             this.xMin = xMin;
             this.xMax = xMax;
             this.xCenter = (xMin + xMax) / 2;
         }
     }
 
-    private static class TableRow {
+    static class TableRow {
         int rowNumber = -1;
         Map<String, String> values = new HashMap<>();
+        Map<String, List<TextBox>> cells = new HashMap<>();  // boxes behind each value
+        List<TextBox> boxes;
+        boolean headerLike; // no row number but reads like a table header
+    }
+
+    /**
+     * Where extracted values came from, filled by extractRecord on request.
+     * Member lists run parallel to record.members.
+     */
+    static class Evidence {
+        List<List<TextBox>> rows;
+        List<List<TextBox>> headerSources = new ArrayList<>();  // per header field, empty when not found
+        int table1Header = -1;  // row index of each table header
+        int table2Header = -1;
+        List<TableRow> memberRows1 = new ArrayList<>();
+        List<TableRow> memberRows2 = new ArrayList<>();         // null where table 2 had no matching row
+        boolean fallback;   // members guessed from patterns, not read from the tables
     }
 
     // ---- public API ----
@@ -76,196 +124,155 @@ public class SpatialExtractor {
      */
     public static String toSpatialText(String ocrJsonWithBoxes) {
         try {
-            List<TextBox> textBoxes = parseBoxes(ocrJsonWithBoxes);
-            if (textBoxes.isEmpty()) return "";
-
-            float rowThreshold = calculateAverageHeight(textBoxes) * 0.7f;
-            sortByReadingOrder(textBoxes, rowThreshold);
-            List<List<TextBox>> rows = groupIntoRows(textBoxes, rowThreshold);
+            DocumentLayout layout = DocumentLayout.parse(ocrJsonWithBoxes);
+            if (layout.isEmpty()) return "";
+            return toSpatialText(layout);
+        } catch (Exception e) {
+            return "";
+        }
+    }
 
-            StringBuilder sb = new StringBuilder();
-            for (List<TextBox> row : rows) {
-                // Calculate gaps between boxes to detect column boundaries
-                for (int i = 0; i < row.size(); i++) {
-                    if (i > 0) {
-                        float gap = row.get(i).x - row.get(i - 1).right();
-                        float avgW = row.get(i - 1).h * 0.8f; // approximate char width
-                        if (gap > avgW * 3) {
-                            sb.append(" | ");
-                        } else {
-                            sb.append(" ");
-                        }
-                    }
-                    sb.append(row.get(i).text);
+    static String toSpatialText(DocumentLayout layout) {
+        StringBuilder sb = new StringBuilder();
+        for (List<TextBox> row : layout.rows) {
+            // Calculate gaps between boxes to detect column boundaries
+            for (int i = 0; i < row.size(); i++) {
+                if (i > 0) {
+                    sb.append(isColumnGap(row.get(i - 1), row.get(i)) ? " | " : " ");
                 }
-                sb.append("\n");
+                sb.append(row.get(i).text);
             }
-            return sb.toString();
-        } catch (Exception e) {
-            return "";
+            sb.append("\n");
         }
+        return sb.toString();
+    }
+
+    /** True when the gap between two boxes on a row is wide enough to start a new column. */
+    static boolean isColumnGap(TextBox left, TextBox right) {
+        float gap = right.x - left.right();
+        float avgW = left.h * 0.8f; // approximate char width
+        return gap > avgW * 3;
     }
 
     /**
-     * Rule-based structured extraction from OCR JSON with bounding boxes.
+     * Rule-based structured extraction from OCR JSON with bounding boxes,
+     * as compact JSON. The template is TemplateRegistry.kartuKeluarga().
      */
-    public static String extract(String ocrJsonWithBoxes) {
+    public static String extract(String ocrJsonWithBoxes, Template template) {
+        return RecordWriter.toJson(extractRecord(ocrJsonWithBoxes, template));
+    }
+
+    /** Same as extract, as a typed record; failures set record.error. */
+    public static KartuKeluargaRecord extractRecord(String ocrJsonWithBoxes, Template template) {
+        return extractRecord(ocrJsonWithBoxes, template, null);
+    }
+
+    /** Same, also filling evidence when it is not null. */
+    static KartuKeluargaRecord extractRecord(String ocrJsonWithBoxes, Template template, Evidence evidence) {
+        if (template == null) {
+            return KartuKeluargaRecord.error("Kartu Keluarga template not loaded");
+        }
         try {
-            List<TextBox> textBoxes = parseBoxes(ocrJsonWithBoxes);
-            if (textBoxes.isEmpty()) {
-                return "{\"error\": \"No text detected\"}";
+            DocumentLayout layout = DocumentLayout.parse(ocrJsonWithBoxes);
+            if (layout.isEmpty()) {
+                return KartuKeluargaRecord.error("No text detected");
             }
 
-            float avgHeight = calculateAverageHeight(textBoxes);
-            float rowThreshold = avgHeight * 0.7f;
-
-            sortByReadingOrder(textBoxes, rowThreshold);
-            List<List<TextBox>> rows = groupIntoRows(textBoxes, rowThreshold);
+            List<TextBox> textBoxes = layout.boxes;
+            List<List<TextBox>> rows = layout.rows;
 
-            JSONObject result = new JSONObject();
+            KartuKeluargaRecord result = new KartuKeluargaRecord();
+            if (evidence != null) evidence.rows = rows;
 
             // Extract header information
-            extractHeaderInfo(result, textBoxes, rows, rowThreshold);
-
-            // Find table header rows by joining row text and matching keywords.
-            // Table 1 keywords (must match at least 3):
-            String[] t1Keywords = {"NIK", "Nama", "Kelamin", "Tempat", "Lahir", "Agama", "Pendidikan", "Pekerjaan"};
-            // Table 2 keywords:
-            String[] t2Keywords = {"Perkawinan", "Hubungan", "Kewarganegaraan", "Ayah", "Ibu"};
-
-            int t1HeaderIdx = findHeaderRow(rows, t1Keywords, 3);
-            int t2HeaderIdx = findHeaderRow(rows, t2Keywords, 3);
+            extractHeaderInfo(result, template, textBoxes, rows, evidence);
+
+            // Find table header rows by joining row text and matching the template's column headers
+            int t1HeaderIdx = findHeaderRow(rows, template.table1);
+            int t2HeaderIdx = findHeaderRow(rows, template.table2);
+            if (evidence != null) {
+                evidence.table1Header = t1HeaderIdx;
+                evidence.table2Header = t2HeaderIdx;
+            }
 
-            List<TableColumn> t1Columns = (t1HeaderIdx >= 0) ? buildColumns(rows.get(t1HeaderIdx), t1Keywords) : new ArrayList<TableColumn>();
-            List<TableColumn> t2Columns = (t2HeaderIdx >= 0) ? buildColumns(rows.get(t2HeaderIdx), t2Keywords) : new ArrayList<TableColumn>();
+            List<TableColumn> t1Columns = (t1HeaderIdx >= 0) ? buildColumns(rows.get(t1HeaderIdx), template.table1) : new ArrayList<TableColumn>();
+            List<TableColumn> t2Columns = (t2HeaderIdx >= 0) ? buildColumns(rows.get(t2HeaderIdx), template.table2) : new ArrayList<TableColumn>();
 
             // Determine table boundaries
             int t1End = (t2HeaderIdx > t1HeaderIdx && t2HeaderIdx > 0) ? t2HeaderIdx : rows.size();
             int t2End = rows.size();
 
-            List<TableRow> t1Rows = parseDataRows(rows, t1HeaderIdx, t1End, t1Columns);
-            List<TableRow> t2Rows = parseDataRows(rows, t2HeaderIdx, t2End, t2Columns);
-
-            JSONArray members = mergeTablesToMembers(t1Rows, t2Rows, textBoxes);
-            result.put("anggota_keluarga", members);
+            List<TableRow> t1Rows = parseDataRows(rows, t1HeaderIdx, t1End, t1Columns, template);
+            List<TableRow> t2Rows = parseDataRows(rows, t2HeaderIdx, t2End, t2Columns, template);
 
-            return result.toString(2);
+            result.members = mergeTablesToMembers(template, t1Rows, t2Rows, textBoxes, evidence);
+            return result;
 
         } catch (Exception e) {
-            return "{\"error\": \"" + e.getMessage() + "\"}";
+            return KartuKeluargaRecord.error(String.valueOf(e.getMessage()));
         }
     }
 
-    // ---- parsing helpers ----
-
-    private static List<TextBox> parseBoxes(String ocrJsonWithBoxes) throws Exception {
-        JSONArray boxes = new JSONArray(ocrJsonWithBoxes);
-        List<TextBox> textBoxes = new ArrayList<>();
-        for (int i = 0; i < boxes.length(); i++) {
-            JSONObject box = boxes.getJSONObject(i);
-            textBoxes.add(new TextBox(
-                box.getString("text"),
-                (float) box.getDouble("x"),
-                (float) box.getDouble("y"),
-                (float) box.getDouble("w"),
-                (float) box.getDouble("h"),
-                (float) box.getDouble("cx"),
-                (float) box.getDouble("cy")
-            ));
-        }
-        return textBoxes;
-    }
-
-    private static float calculateAverageHeight(List<TextBox> boxes) {
-        if (boxes.isEmpty()) return 20f;
-        float sum = 0;
-        for (TextBox box : boxes) sum += box.h;
-        return sum / boxes.size();
-    }
+    // ---- header info extraction ----
 
-    private static void sortByReadingOrder(List<TextBox> boxes, final float rowThreshold) {
-        Collections.sort(boxes, new Comparator<TextBox>() {
-            @Override
-            public int compare(TextBox a, TextBox b) {
-                if (Math.abs(a.cy - b.cy) < rowThreshold) {
-                    return Float.compare(a.cx, b.cx);
+    private static void extractHeaderInfo(KartuKeluargaRecord result, Template template, List<TextBox> allBoxes,
+                                          List<List<TextBox>> rows, Evidence evidence) {
+        // KK number is the first 16-digit number. For labeled fields, search the
+        // joined row text so split labels like "Nama" + "Kepala Keluarga" on the
+        // same row still match.
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) {
+            String value;
+            List<TextBox> source = new ArrayList<>();
+            if (template.headerLabels[f] != null) {
+                int[] row = {-1};
+                value = findLabelValue(rows, template.headerLabels[f], row);
+                if (row[0] >= 0) source = rows.get(row[0]);
+            } else {
+                TextBox box = findPatternBox(allBoxes, template.headerPatterns[f]);
+                value = "";
+                if (box != null) {
+                    Matcher m = template.headerPatterns[f].matcher(box.text);
+                    if (m.find()) value = m.group();
+                    source.add(box);
                 }
-                return Float.compare(a.cy, b.cy);
-            }
-        });
-    }
-
-    private static List<List<TextBox>> groupIntoRows(List<TextBox> boxes, float threshold) {
-        List<List<TextBox>> rows = new ArrayList<>();
-        if (boxes.isEmpty()) return rows;
-
-        List<TextBox> currentRow = new ArrayList<>();
-        float currentY = boxes.get(0).cy;
-
-        for (TextBox box : boxes) {
-            if (Math.abs(box.cy - currentY) > threshold) {
-                if (!currentRow.isEmpty()) rows.add(currentRow);
-                currentRow = new ArrayList<>();
-                currentY = box.cy;
             }
-            currentRow.add(box);
-        }
-        if (!currentRow.isEmpty()) rows.add(currentRow);
-        return rows;
-    }
-
-    /** Join all text in a row into a single string for keyword matching. */
-    private static String joinRowText(List<TextBox> row) {
-        StringBuilder sb = new StringBuilder();
-        for (TextBox box : row) {
-            if (sb.length() > 0) sb.append(" ");
-            sb.append(box.text);
-        }
-        return sb.toString();
-    }
-
-    // ---- header info extraction ----
-
-    private static void extractHeaderInfo(JSONObject result, List<TextBox> allBoxes,
-                                          List<List<TextBox>> rows, float rowThreshold) throws Exception {
-        // Find KK number: first 16-digit number
-        String kkNumber = "";
-        for (TextBox box : allBoxes) {
-            Matcher m = PATTERN_NIK.matcher(box.text);
-            if (m.find()) { kkNumber = m.group(); break; }
+            result.setHeader(f, value);
+            if (evidence != null) evidence.headerSources.add(value.isEmpty() ? new ArrayList<TextBox>() : source);
         }
-        result.put("no_kk", kkNumber);
-
-        // For labeled fields, search the joined row text so split labels like
-        // "Nama" + "Kepala Keluarga" on the same row still match.
-        result.put("kepala_keluarga", findLabelValueInRows(rows, new String[]{"Kepala Keluarga"}, rowThreshold));
-        result.put("alamat", findLabelValueInRows(rows, new String[]{"Alamat"}, rowThreshold));
-        result.put("rt_rw", findPatternValue(allBoxes, PATTERN_RT_RW));
-        result.put("desa_kelurahan", findLabelValueInRows(rows, new String[]{"Desa/Kelurahan", "Desa", "Kelurahan"}, rowThreshold));
-        result.put("kecamatan", findLabelValueInRows(rows, new String[]{"Kecamatan"}, rowThreshold));
-        result.put("kabupaten_kota", findLabelValueInRows(rows, new String[]{"Kabupaten/Kota", "Kabupaten"}, rowThreshold));
-        result.put("provinsi", findLabelValueInRows(rows, new String[]{"Provinsi"}, rowThreshold));
     }
 
     /**
      * Search rows for a label. When found, return the value:
-     * 1) text after ":" in the same box
-     * 2) text after ":" in the joined row
-     * 3) the next non-label box to the right
+     * 1) text after the ":" following the label in the joined row, up to the
+     *    next "Label :" (KK header rows hold two fields side by side)
+     * 2) the next non-label box to the right
      */
-    private static String findLabelValueInRows(List<List<TextBox>> rows, String[] labelVariants, float rowThreshold) {
-        for (List<TextBox> row : rows) {
-            String joined = joinRowText(row);
+    static String findLabelValueInRows(List<List<TextBox>> rows, String[] labelVariants) {
+        return findLabelValue(rows, labelVariants, null);
+    }
+
+    /** Same; rowOut[0] receives the index of the row the value came from. */
+    private static String findLabelValue(List<List<TextBox>> rows, String[] labelVariants, int[] rowOut) {
+        for (int r = 0; r < rows.size(); r++) {
+            List<TextBox> row = rows.get(r);
+            String joined = DocumentLayout.joinRowText(row);
             String joinedLower = joined.toLowerCase();
 
             for (String label : labelVariants) {
                 if (!joinedLower.contains(label.toLowerCase())) continue;
 
                 // Check if value is after ":" in the joined row text
-                int colonIdx = joined.indexOf(':');
+                int labelIdx = joinedLower.indexOf(label.toLowerCase());
+                int colonIdx = joined.indexOf(':', labelIdx + label.length());
                 if (colonIdx >= 0 && colonIdx < joined.length() - 1) {
-                    String afterColon = joined.substring(colonIdx + 1).trim();
-                    if (!afterColon.isEmpty()) return afterColon;
+                    String afterColon = joined.substring(colonIdx + 1);
+                    Matcher next = PATTERN_NEXT_LABEL.matcher(afterColon);
+                    if (next.find()) afterColon = afterColon.substring(0, next.start());
+                    afterColon = afterColon.trim();
+                    if (!afterColon.isEmpty()) {
+                        if (rowOut != null) rowOut[0] = r;
+                        return afterColon;
+                    }
                 }
 
                 // Otherwise, look for value boxes to the right of the label box
@@ -276,6 +283,7 @@ public class SpatialExtractor {
                         for (int j = i + 1; j < row.size(); j++) {
                             TextBox next = row.get(j);
                             if (!isLabelText(next.text)) {
+                                if (rowOut != null) rowOut[0] = r;
                                 return next.text.trim();
                             }
                         }
@@ -286,69 +294,76 @@ public class SpatialExtractor {
         return "";
     }
 
-    private static String findPatternValue(List<TextBox> boxes, Pattern pattern) {
+    static String findPatternValue(List<TextBox> boxes, Pattern pattern) {
+        TextBox box = findPatternBox(boxes, pattern);
+        if (box == null) return "";
+        Matcher m = pattern.matcher(box.text);
+        return m.find() ? m.group() : "";
+    }
+
+    private static TextBox findPatternBox(List<TextBox> boxes, Pattern pattern) {
         for (TextBox box : boxes) {
-            Matcher m = pattern.matcher(box.text);
-            if (m.find()) return m.group();
+            if (pattern.matcher(box.text).find()) return box;
         }
-        return "";
+        return null;
     }
 
     // ---- table parsing ----
 
     /**
      * Find a header row by joining all text in each row and checking if it
-     * contains at least `minMatches` of the given keywords.
+     * contains at least the table's min_header_matches of its column headers.
      * This handles OCR splitting multi-word headers across boxes.
      */
-    private static int findHeaderRow(List<List<TextBox>> rows, String[] keywords, int minMatches) {
+    static int findHeaderRow(List<List<TextBox>> rows, DocumentTemplate.Table table) {
         for (int i = 0; i < rows.size(); i++) {
-            String rowText = joinRowText(rows.get(i)).toLowerCase();
-            int matchCount = 0;
-            for (String kw : keywords) {
-                if (rowText.contains(kw.toLowerCase())) matchCount++;
-            }
-            if (matchCount >= minMatches) return i;
+            String rowText = DocumentLayout.joinRowText(rows.get(i)).toLowerCase();
+            if (headerMatches(rowText, table) >= table.minHeaderMatches) return i;
         }
         return -1;
     }
 
+    /** Number of the table's column headers found in a lower-case text. */
+    static int headerMatches(String textLower, DocumentTemplate.Table table) {
+        int matchCount = 0;
+        for (DocumentTemplate.Column column : table.columns) {
+            if (textLower.contains(column.header)) matchCount++;
+        }
+        return matchCount;
+    }
+
     /**
      * Build column definitions from a header row.
-     * Each box in the header row is mapped to the best-matching keyword.
-     * Adjacent boxes that don't match any keyword are merged into the previous column.
+     * Each box in the header row is mapped to the first column whose header it contains;
+     * boxes that match no header (e.g. "Jenis" before "Kelamin") are left out.
      */
-    private static List<TableColumn> buildColumns(List<TextBox> headerRow, String[] keywords) {
-        // First, assign each box a keyword if it matches
+    static List<TableColumn> buildColumns(List<TextBox> headerRow, DocumentTemplate.Table table) {
+        // First, assign each box a column if it matches
         List<TableColumn> columns = new ArrayList<>();
         Map<String, TableColumn> seen = new HashMap<>();
 
         for (TextBox box : headerRow) {
-            String bestKw = null;
+            String bestKey = null;
             String boxLower = box.text.toLowerCase();
-            for (String kw : keywords) {
-                if (boxLower.contains(kw.toLowerCase())) {
-                    bestKw = kw;
+            for (DocumentTemplate.Column column : table.columns) {
+                if (boxLower.contains(column.header)) {
+                    bestKey = column.key;
                     break;
                 }
             }
 
-            if (bestKw != null) {
-                if (seen.containsKey(bestKw)) {
+            if (bestKey != null) {
+                if (seen.containsKey(bestKey)) {
                     // Extend existing column range
-                    TableColumn existing = seen.get(bestKw);
+                    TableColumn existing = seen.get(bestKey);
                     existing.xMin = Math.min(existing.xMin, box.x);
                     existing.xMax = Math.max(existing.xMax, box.right());
                     existing.xCenter = (existing.xMin + existing.xMax) / 2;
                 } else {
-                    TableColumn col = new TableColumn(bestKw, box.x, box.right());
+                    TableColumn col = new TableColumn(bestKey, box.x, box.right());
                     columns.add(col);
-                    seen.put(bestKw, col);
+                    seen.put(bestKey, col);
                 }
-            } else if (!columns.isEmpty()) {
-                // Non-matching box: extend the previous column's range
-                // (handles split headers like "Jenis" + "Kelamin" where "Kelamin" matches)
-                // Actually skip - only extend if there's a small gap
             }
         }
 
@@ -370,7 +385,7 @@ public class SpatialExtractor {
      * Each row's boxes are assigned to the nearest column by X center distance.
      */
     private static List<TableRow> parseDataRows(List<List<TextBox>> rows, int headerIdx, int endIdx,
-                                                  List<TableColumn> columns) {
+                                                  List<TableColumn> columns, Template template) {
         List<TableRow> result = new ArrayList<>();
         if (headerIdx < 0 || columns.isEmpty()) return result;
 
@@ -378,47 +393,64 @@ public class SpatialExtractor {
             List<TextBox> row = rows.get(i);
             if (row.isEmpty()) continue;
 
-            TableRow tableRow = new TableRow();
+            if (!appendDataRow(result, parseDataRow(row, columns, template))) break;
+        }
+        return result;
+    }
 
-            // Check for row number in the first box
-            TextBox first = row.get(0);
-            if (PATTERN_ROW_NUMBER.matcher(first.text.trim()).matches()) {
-                try {
-                    tableRow.rowNumber = Integer.parseInt(first.text.trim());
-                } catch (NumberFormatException ignored) {}
-            }
+    /** Parse one data row: row number, header-likeness and box values by nearest column. */
+    static TableRow parseDataRow(List<TextBox> row, List<TableColumn> columns, Template template) {
+        TableRow tableRow = new TableRow();
+        tableRow.boxes = row;
+
+        // Check for row number in the first box
+        TextBox first = row.get(0);
+        if (PATTERN_ROW_NUMBER.matcher(first.text.trim()).matches()) {
+            try {
+                tableRow.rowNumber = Integer.parseInt(first.text.trim());
+            } catch (NumberFormatException ignored) {}
+        }
 
-            // Skip if no row number and we haven't found any data yet
-            if (tableRow.rowNumber < 0 && result.isEmpty()) continue;
+        if (tableRow.rowNumber < 0) {
+            tableRow.headerLike = template.isTableHeader(DocumentLayout.joinRowText(row).toLowerCase());
+        }
 
-            // Detect another header row (table boundary)
-            if (tableRow.rowNumber < 0 && !result.isEmpty()) {
-                String rowText = joinRowText(row).toLowerCase();
-                int labelCount = 0;
-                for (String kw : new String[]{"nik", "nama", "kelamin", "agama", "perkawinan", "hubungan", "ayah", "ibu"}) {
-                    if (rowText.contains(kw)) labelCount++;
+        // Assign each box to nearest column
+        for (TextBox box : row) {
+            TableColumn bestCol = findNearestColumn(columns, box.cx);
+            if (bestCol != null) {
+                List<TextBox> cell = tableRow.cells.get(bestCol.key);
+                if (cell == null) {
+                    cell = new ArrayList<>();
+                    tableRow.cells.put(bestCol.key, cell);
                 }
-                if (labelCount >= 3) break;
-            }
-
-            // Assign each box to nearest column
-            for (TextBox box : row) {
-                TableColumn bestCol = findNearestColumn(columns, box.cx);
-                if (bestCol != null) {
-                    String existing = tableRow.values.get(bestCol.header);
-                    if (existing != null && !existing.isEmpty()) {
-                        tableRow.values.put(bestCol.header, existing + " " + box.text);
-                    } else {
-                        tableRow.values.put(bestCol.header, box.text);
-                    }
+                cell.add(box);
+                String existing = tableRow.values.get(bestCol.key);
+                if (existing != null && !existing.isEmpty()) {
+                    tableRow.values.put(bestCol.key, existing + " " + box.text);
+                } else {
+                    tableRow.values.put(bestCol.key, box.text);
                 }
             }
+        }
+        return tableRow;
+    }
 
-            if (tableRow.rowNumber > 0 || !tableRow.values.isEmpty()) {
-                result.add(tableRow);
-            }
+    /**
+     * Add a parsed row to the table rows found so far.
+     * Returns false when the row is another header, i.e. the table has ended.
+     */
+    static boolean appendDataRow(List<TableRow> result, TableRow tableRow) {
+        // Skip if no row number and we haven't found any data yet
+        if (tableRow.rowNumber < 0 && result.isEmpty()) return true;
+
+        // Detect another header row (table boundary)
+        if (tableRow.rowNumber < 0 && tableRow.headerLike) return false;
+
+        if (tableRow.rowNumber > 0 || !tableRow.values.isEmpty()) {
+            result.add(tableRow);
         }
-        return result;
+        return true;
     }
 
     private static TableColumn findNearestColumn(List<TableColumn> columns, float x) {
@@ -436,9 +468,15 @@ public class SpatialExtractor {
 
     // ---- table merging ----
 
-    private static JSONArray mergeTablesToMembers(List<TableRow> table1, List<TableRow> table2,
-                                                   List<TextBox> allBoxes) throws Exception {
-        JSONArray members = new JSONArray();
+    static List<FamilyMember> mergeTablesToMembers(Template template, List<TableRow> table1, List<TableRow> table2,
+                                                   List<TextBox> allBoxes) {
+        return mergeTablesToMembers(template, table1, table2, allBoxes, null);
+    }
+
+    private static List<FamilyMember> mergeTablesToMembers(Template template, List<TableRow> table1,
+                                                           List<TableRow> table2, List<TextBox> allBoxes,
+                                                           Evidence evidence) {
+        List<FamilyMember> members = new ArrayList<>();
 
         Map<Integer, TableRow> table2Map = new HashMap<>();
         for (TableRow row : table2) {
@@ -446,43 +484,30 @@ public class SpatialExtractor {
         }
 
         for (TableRow row1 : table1) {
-            JSONObject member = new JSONObject();
-
-            String nik = getValueOrPattern(row1.values, new String[]{"NIK"}, PATTERN_NIK);
-            String nama = getValue(row1.values, new String[]{"Nama"});
-            nama = nama.replaceAll("^\\d+\\s*", "").trim();
-
-            member.put("nik", nik);
-            member.put("nama", nama);
-            member.put("jenis_kelamin", normalizeGender(getValue(row1.values, new String[]{"Kelamin", "Jenis Kelamin"})));
-            member.put("tempat_lahir", getValue(row1.values, new String[]{"Tempat"}));
-            member.put("tanggal_lahir", getValueOrPattern(row1.values, new String[]{"Lahir", "Tanggal"}, PATTERN_DATE));
-            member.put("agama", normalizeReligion(getValue(row1.values, new String[]{"Agama"})));
-            member.put("pendidikan", getValue(row1.values, new String[]{"Pendidikan"}));
-            member.put("pekerjaan", getValue(row1.values, new String[]{"Pekerjaan"}));
+            FamilyMember member = new FamilyMember();
+            for (DocumentTemplate.Column column : template.table1.columns) {
+                member.set(column.key, getValue(row1.values, column));
+            }
 
             TableRow row2 = (row1.rowNumber > 0) ? table2Map.get(row1.rowNumber) : null;
             if (row2 != null) {
-                member.put("status_perkawinan", normalizeMaritalStatus(getValue(row2.values, new String[]{"Perkawinan"})));
-                member.put("hubungan_keluarga", normalizeRelation(getValue(row2.values, new String[]{"Hubungan"})));
-                member.put("kewarganegaraan", normalizeCitizenship(getValue(row2.values, new String[]{"Kewarganegaraan"})));
-                member.put("nama_ayah", getValue(row2.values, new String[]{"Ayah"}));
-                member.put("nama_ibu", getValue(row2.values, new String[]{"Ibu"}));
-            } else {
-                member.put("status_perkawinan", "");
-                member.put("hubungan_keluarga", "");
-                member.put("kewarganegaraan", "");
-                member.put("nama_ayah", "");
-                member.put("nama_ibu", "");
+                for (DocumentTemplate.Column column : template.table2.columns) {
+                    member.set(column.key, getValue(row2.values, column));
+                }
             }
 
-            if (!nik.isEmpty() || !nama.isEmpty()) {
-                members.put(member);
+            if (!member.isEmpty()) {
+                members.add(member);
+                if (evidence != null) {
+                    evidence.memberRows1.add(row1);
+                    evidence.memberRows2.add(row2);
+                }
             }
         }
 
         // Fallback if table parsing found nothing
-        if (members.length() == 0) {
+        if (members.isEmpty()) {
+            if (evidence != null) evidence.fallback = true;
             return fallbackExtraction(allBoxes);
         }
         return members;
@@ -490,79 +515,22 @@ public class SpatialExtractor {
 
     // ---- value helpers ----
 
-    private static String getValue(Map<String, String> values, String[] keys) {
-        for (String key : keys) {
-            String val = values.get(key);
-            if (val != null && !val.isEmpty()) return val.trim();
+    /** A cell's value, cut to the column's pattern when it matches and normalized. */
+    private static String getValue(Map<String, String> values, DocumentTemplate.Column column) {
+        String val = values.get(column.key);
+        if (val == null || val.trim().isEmpty()) return "";
+        val = val.trim();
+        if (column.pattern != null) {
+            Matcher m = column.pattern.matcher(val);
+            if (m.find()) val = m.group();
         }
-        return "";
-    }
-
-    private static String getValueOrPattern(Map<String, String> values, String[] keys, Pattern pattern) {
-        String val = getValue(values, keys);
-        if (!val.isEmpty()) {
-            Matcher m = pattern.matcher(val);
-            if (m.find()) return m.group();
-            return val;
-        }
-        return "";
-    }
-
-    // ---- normalizers ----
-
-    private static String normalizeGender(String text) {
-        if (text.isEmpty()) return text;
-        String upper = text.toUpperCase();
-        if (upper.contains("LAKI")) return "LAKI-LAKI";
-        if (upper.contains("PEREMPUAN") || upper.equals("PR") || upper.equals("P")) return "PEREMPUAN";
-        return text;
-    }
-
-    private static String normalizeReligion(String text) {
-        if (text.isEmpty()) return text;
-        String upper = text.toUpperCase();
-        for (String r : new String[]{"ISLAM", "KRISTEN", "KATOLIK", "HINDU", "BUDHA", "BUDDHA", "KONGHUCU"}) {
-            if (upper.contains(r)) return r;
-        }
-        return text;
-    }
-
-    private static String normalizeMaritalStatus(String text) {
-        if (text.isEmpty()) return text;
-        String upper = text.toUpperCase();
-        if (upper.contains("BELUM")) return "BELUM KAWIN";
-        if (upper.contains("CERAI HIDUP")) return "CERAI HIDUP";
-        if (upper.contains("CERAI MATI")) return "CERAI MATI";
-        if (upper.contains("KAWIN")) return "KAWIN";
-        return text;
-    }
-
-    private static String normalizeRelation(String text) {
-        if (text.isEmpty()) return text;
-        String upper = text.toUpperCase();
-        if (upper.contains("KEPALA")) return "KEPALA KELUARGA";
-        if (upper.contains("ISTRI")) return "ISTRI";
-        if (upper.contains("ANAK")) return "ANAK";
-        if (upper.contains("MENANTU")) return "MENANTU";
-        if (upper.contains("CUCU")) return "CUCU";
-        if (upper.contains("ORANG TUA")) return "ORANG TUA";
-        if (upper.contains("MERTUA")) return "MERTUA";
-        if (upper.contains("FAMILI")) return "FAMILI LAIN";
-        return text;
-    }
-
-    private static String normalizeCitizenship(String text) {
-        if (text.isEmpty()) return text;
-        String upper = text.toUpperCase();
-        if (upper.contains("WNI")) return "WNI";
-        if (upper.contains("WNA")) return "WNA";
-        return text;
+        return (column.normalizer != null) ? column.normalizer.apply(val) : val;
     }
 
     // ---- fallback ----
 
-    private static JSONArray fallbackExtraction(List<TextBox> boxes) throws Exception {
-        JSONArray members = new JSONArray();
+    private static List<FamilyMember> fallbackExtraction(List<TextBox> boxes) {
+        List<FamilyMember> members = new ArrayList<>();
 
         List<TextBox> nikBoxes = new ArrayList<>();
         List<TextBox> dateBoxes = new ArrayList<>();
@@ -579,24 +547,14 @@ public class SpatialExtractor {
         // Skip first NIK (KK number)
         for (int i = 1; i < nikBoxes.size(); i++) {
             TextBox nikBox = nikBoxes.get(i);
-            JSONObject member = new JSONObject();
+            FamilyMember member = new FamilyMember();
 
             Matcher m = PATTERN_NIK.matcher(nikBox.text);
-            member.put("nik", m.find() ? m.group() : "");
-            member.put("nama", findNearestOnRow(nameBoxes, nikBox.cy, nikBox.h));
-            member.put("tanggal_lahir", findNearestDateOnRow(dateBoxes, nikBox.cy, nikBox.h));
-            member.put("jenis_kelamin", "");
-            member.put("tempat_lahir", "");
-            member.put("agama", "");
-            member.put("pendidikan", "");
-            member.put("pekerjaan", "");
-            member.put("status_perkawinan", "");
-            member.put("hubungan_keluarga", "");
-            member.put("kewarganegaraan", "");
-            member.put("nama_ayah", "");
-            member.put("nama_ibu", "");
-
-            members.put(member);
+            member.nik = m.find() ? m.group() : "";
+            member.nama = findNearestOnRow(nameBoxes, nikBox.cy, nikBox.h);
+            member.tanggalLahir = findNearestDateOnRow(dateBoxes, nikBox.cy, nikBox.h);
+
+            members.add(member);
         }
         return members;
     }
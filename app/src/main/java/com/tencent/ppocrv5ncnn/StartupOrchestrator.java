@@ -0,0 +1,170 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Loads the app's components in parallel off the main thread. Each load is
+ * a CompletableFuture that says when the component is ready; whenReady()
+ * runs UI updates on the main thread as each completes, so actions are
+ * enabled one by one instead of after everything. Component load times and
+ * cold start milestones (first frame, OCR ready) are logged in ms since
+ * process start.
+ */
+public class StartupOrchestrator {
+    private static final String TAG = "StartupOrchestrator";
+    private static final int THREADS = 3;   // OCR engine, lexicons, LLM check
+
+    public interface Component<T> {
+        T load() throws Exception;
+    }
+
+    public interface ReadyListener<T> {
+        /** On the main thread; error is null when the component loaded. */
+        void onReady(T value, Throwable error);
+    }
+
+    private final ExecutorService executor;
+    private final Executor mainThread;
+    private final long processStart;
+    private final Map<String, Long> milestones = new LinkedHashMap<>();
+
+    public StartupOrchestrator(final Handler mainHandler) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Keep the main thread ahead while the first frame is drawn
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "startup-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mainThread = new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                mainHandler.post(r);
+            }
+        };
+        processStart = Process.getStartElapsedRealtime();
+    }
+
+    /** Start loading a component now. */
+    public <T> CompletableFuture<T> load(String name, Component<T> component) {
+        return CompletableFuture.supplyAsync(timed(name, component), executor);
+    }
+
+    /**
+     * Load once previous has finished, loaded or not; a reload queued behind
+     * the load it replaces.
+     */
+    public <T> CompletableFuture<T> loadAfter(CompletableFuture<?> previous, String name, Component<T> component) {
+        final Supplier<T> load = timed(name, component);
+        return previous.handle(new BiFunction<Object, Throwable, Void>() {
+            @Override
+            public Void apply(Object value, Throwable error) {
+                return null;
+            }
+        }).thenApplyAsync(new Function<Void, T>() {
+            @Override
+            public T apply(Void ignored) {
+                return load.get();
+            }
+        }, executor);
+    }
+
+    /** Run listener on the main thread when the future completes. */
+    public <T> void whenReady(CompletableFuture<T> future, final ReadyListener<T> listener) {
+        future.whenCompleteAsync(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable error) {
+                listener.onReady(value, unwrap(error));
+            }
+        }, mainThread);
+    }
+
+    /** Record a cold start milestone once, e.g. "first frame". */
+    public void milestone(String name) {
+        long ms = SystemClock.elapsedRealtime() - processStart;
+        synchronized (milestones) {
+            if (milestones.containsKey(name)) return;
+            milestones.put(name, ms);
+        }
+        Log.d(TAG, "Startup: " + name + " at " + ms + " ms since process start");
+    }
+
+    /** Milestones so far, e.g. "first frame 412 ms, OCR ready 958 ms". */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (milestones) {
+            for (Map.Entry<String, Long> entry : milestones.entrySet()) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(entry.getKey()).append(' ').append(entry.getValue()).append(" ms");
+            }
+        }
+        return sb.toString();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private <T> Supplier<T> timed(final String name, final Component<T> component) {
+        return new Supplier<T>() {
+            @Override
+            public T get() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    T value = component.load();
+                    Log.d(TAG, String.format(Locale.US, "%s loaded in %d ms on %s", name,
+                        SystemClock.elapsedRealtime() - start, Thread.currentThread().getName()));
+                    return value;
+                } catch (Exception e) {
+                    Log.e(TAG, name + " failed to load", e);
+                    throw new CompletionException(e);
+                }
+            }
+        };
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+    }
+}
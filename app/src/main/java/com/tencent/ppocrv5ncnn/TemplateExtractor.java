@@ -0,0 +1,364 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.util.Log;
+
+import com.tencent.ppocrv5ncnn.DocumentLayout.TextBox;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generic template-driven extraction. The layout is scanned once by the
+ * registry's keyword automaton for all templates; only the selected
+ * template's fields and tables are then assembled from those hits.
+ */
+public class TemplateExtractor {
+    private static final String TAG = "TemplateExtractor";
+
+    private static final Pattern PATTERN_ROW_NUMBER = Pattern.compile("^\\d{1,2}$");
+
+    private static class TableRow {
+        int rowNumber = -1;
+        Map<Integer, String> values = new HashMap<>();
+    }
+
+    // ---- public API ----
+
+    /** Extract with the best-matching template. */
+    public static String extract(String ocrJsonWithBoxes, TemplateRegistry registry) {
+        return extract(ocrJsonWithBoxes, registry, null);
+    }
+
+    /** Extract with the given template id, or the best-matching one when null. Compact JSON. */
+    public static String extract(String ocrJsonWithBoxes, TemplateRegistry registry, String templateId) {
+        try {
+            DocumentLayout layout = DocumentLayout.parse(ocrJsonWithBoxes);
+            if (layout.isEmpty()) {
+                return "{\"error\": \"No text detected\"}";
+            }
+            JSONObject result = extract(layout, registry, templateId);
+            if (result == null) {
+                return "{\"error\": \"Unsupported document\"}";
+            }
+            return result.toString();
+        } catch (Exception e) {
+            return "{\"error\": \"" + e.getMessage() + "\"}";
+        }
+    }
+
+    /** Id of the best-matching template for a page, or null if none matched. */
+    public static String matchTemplate(String ocrJsonWithBoxes, TemplateRegistry registry) {
+        try {
+            DocumentLayout layout = DocumentLayout.parse(ocrJsonWithBoxes);
+            int t = registry.bestTemplate(registry.scan(layout));
+            return (t >= 0) ? registry.templates().get(t).id : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static JSONObject extract(DocumentLayout layout, TemplateRegistry registry, String templateId) throws Exception {
+        long start = System.nanoTime();
+        TemplateRegistry.LayoutHits hits = registry.scan(layout);
+        long scanned = System.nanoTime();
+
+        int t = (templateId != null) ? registry.indexOf(templateId) : registry.bestTemplate(hits);
+        if (t < 0) return null;
+
+        JSONObject result = evaluate(registry.templates().get(t), t, layout, hits);
+        Log.d(TAG, String.format("%s: %d templates, %d boxes, scan %.2f ms, assemble %.2f ms",
+            registry.templates().get(t).id, registry.templates().size(), layout.boxes.size(),
+            (scanned - start) / 1e6, (System.nanoTime() - scanned) / 1e6));
+        return result;
+    }
+
+    // ---- evaluation ----
+
+    static JSONObject evaluate(DocumentTemplate template, int templateIndex, DocumentLayout layout,
+                               TemplateRegistry.LayoutHits hits) throws Exception {
+        // Only this template's hits matter from here on. A label nested in a
+        // longer one ("Desa" inside "Desa/Kelurahan") is dropped so it cannot
+        // cut the longer label's value short.
+        List<List<TemplateRegistry.Hit>> rowHits = new ArrayList<>();
+        for (List<TemplateRegistry.Hit> row : hits.rows) {
+            List<TemplateRegistry.Hit> own = new ArrayList<>();
+            for (TemplateRegistry.Hit hit : row) {
+                if (hit.ref.template == templateIndex && !isNestedLabel(hit, row, templateIndex)) own.add(hit);
+            }
+            rowHits.add(own);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("document_type", template.id);
+
+        Map<String, Integer> fieldRows = new HashMap<>();
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int f = 0; f < template.fields.size(); f++) {
+            DocumentTemplate.Field field = template.fields.get(f);
+            if (field.anchor != null) continue;
+            values.put(field.key, resolveField(field, f, layout, rowHits, fieldRows));
+        }
+        for (DocumentTemplate.Field field : template.fields) {
+            if (field.anchor == null) continue;
+            Integer anchorRow = fieldRows.get(field.anchor);
+            int row = (anchorRow != null) ? anchorRow + field.rowOffset : -1;
+            String value = (row >= 0 && row < layout.rows.size()) ? layout.rowText(row).trim() : "";
+            values.put(field.key, finish(value, field.pattern, field.normalizer));
+        }
+        for (DocumentTemplate.Field field : template.fields) {
+            result.put(field.key, values.get(field.key));
+        }
+
+        // Tables, bounded by the next table's header row
+        int[] headerRows = new int[template.tables.size()];
+        for (int tb = 0; tb < template.tables.size(); tb++) {
+            headerRows[tb] = findHeaderRow(template.tables.get(tb), tb, rowHits);
+        }
+        Map<String, List<TableRow>> tableRows = new HashMap<>();
+        for (int tb = 0; tb < template.tables.size(); tb++) {
+            DocumentTemplate.Table table = template.tables.get(tb);
+            int end = layout.rows.size();
+            for (int other : headerRows) {
+                if (other > headerRows[tb] && other < end) end = other;
+            }
+            tableRows.put(table.key, parseTable(table, tb, headerRows[tb], end, layout, rowHits));
+        }
+
+        if (template.recordsKey != null) {
+            result.put(template.recordsKey, joinRecords(template, tableRows));
+        } else {
+            for (DocumentTemplate.Table table : template.tables) {
+                result.put(table.key, toJson(table, tableRows.get(table.key)));
+            }
+        }
+        return result;
+    }
+
+    private static boolean isNestedLabel(TemplateRegistry.Hit hit, List<TemplateRegistry.Hit> row, int templateIndex) {
+        if (hit.ref.kind != TemplateRegistry.KIND_FIELD_LABEL) return false;
+        for (TemplateRegistry.Hit other : row) {
+            if (other == hit || other.ref.template != templateIndex || other.ref.kind != TemplateRegistry.KIND_FIELD_LABEL) continue;
+            if (other.start <= hit.start && other.end >= hit.end && other.end - other.start > hit.end - hit.start) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Labeled fields take the row text after the label (skipping ":") up to
+     * the next label of the same template. Pattern-only fields take the first
+     * box in reading order that matches.
+     */
+    private static String resolveField(DocumentTemplate.Field field, int fieldIndex, DocumentLayout layout,
+                                       List<List<TemplateRegistry.Hit>> rowHits, Map<String, Integer> fieldRows) {
+        if (field.labels.length == 0) {
+            if (field.pattern == null) return "";
+            for (int r = 0; r < layout.rows.size(); r++) {
+                for (TextBox box : layout.rows.get(r)) {
+                    Matcher m = field.pattern.matcher(box.text);
+                    if (m.find()) {
+                        fieldRows.put(field.key, r);
+                        return finish(m.group(), null, field.normalizer);
+                    }
+                }
+            }
+            return "";
+        }
+
+        for (int r = 0; r < rowHits.size(); r++) {
+            for (TemplateRegistry.Hit hit : rowHits.get(r)) {
+                if (hit.ref.kind != TemplateRegistry.KIND_FIELD_LABEL || hit.ref.index != fieldIndex) continue;
+
+                String rowText = layout.rowText(r);
+                int end = rowText.length();
+                for (TemplateRegistry.Hit other : rowHits.get(r)) {
+                    if (other.start >= hit.end && other.start < end && other.ref.kind == TemplateRegistry.KIND_FIELD_LABEL) {
+                        end = other.start;
+                    }
+                }
+                String value = trimValue(rowText.substring(hit.end, end));
+                if (!value.isEmpty()) {
+                    fieldRows.put(field.key, r);
+                    return finish(value, field.pattern, field.normalizer);
+                }
+            }
+        }
+        return "";
+    }
+
+    private static String trimValue(String text) {
+        int s = 0;
+        int e = text.length();
+        while (s < e && (text.charAt(s) == ':' || Character.isWhitespace(text.charAt(s)))) s++;
+        while (e > s && (text.charAt(e - 1) == ',' || Character.isWhitespace(text.charAt(e - 1)))) e--;
+        return text.substring(s, e);
+    }
+
+    private static String finish(String value, Pattern pattern, FieldNormalizers.Normalizer normalizer) {
+        if (value.isEmpty()) return value;
+        if (pattern != null) {
+            Matcher m = pattern.matcher(value);
+            if (m.find()) value = m.group();
+        }
+        return (normalizer != null) ? normalizer.apply(value) : value;
+    }
+
+    // ---- tables ----
+
+    private static int findHeaderRow(DocumentTemplate.Table table, int tableIndex, List<List<TemplateRegistry.Hit>> rowHits) {
+        for (int r = 0; r < rowHits.size(); r++) {
+            boolean[] matched = new boolean[table.columns.size()];
+            int count = 0;
+            for (TemplateRegistry.Hit hit : rowHits.get(r)) {
+                if (hit.ref.kind == TemplateRegistry.KIND_COLUMN_HEADER && hit.ref.index == tableIndex && !matched[hit.ref.sub]) {
+                    matched[hit.ref.sub] = true;
+                    count++;
+                }
+            }
+            if (count >= table.minHeaderMatches) return r;
+        }
+        return -1;
+    }
+
+    /**
+     * Columns come from the header row: each header box maps to the
+     * lowest-index column whose keyword it contains. Data rows follow until
+     * endRow; their boxes go to the column with the nearest X center.
+     */
+    private static List<TableRow> parseTable(DocumentTemplate.Table table, int tableIndex, int headerRow, int endRow,
+                                             DocumentLayout layout, List<List<TemplateRegistry.Hit>> rowHits) {
+        List<TableRow> result = new ArrayList<>();
+        if (headerRow < 0) return result;
+
+        List<TextBox> header = layout.rows.get(headerRow);
+        float[] xMin = new float[table.columns.size()];
+        float[] xMax = new float[table.columns.size()];
+        int[] boxColumn = new int[header.size()];
+        for (int b = 0; b < boxColumn.length; b++) boxColumn[b] = -1;
+        for (TemplateRegistry.Hit hit : rowHits.get(headerRow)) {
+            if (hit.ref.kind != TemplateRegistry.KIND_COLUMN_HEADER || hit.ref.index != tableIndex) continue;
+            int b = layout.boxAtOffset(headerRow, hit.start);
+            if (boxColumn[b] < 0 || hit.ref.sub < boxColumn[b]) boxColumn[b] = hit.ref.sub;
+        }
+        boolean[] present = new boolean[table.columns.size()];
+        for (int b = 0; b < boxColumn.length; b++) {
+            int c = boxColumn[b];
+            if (c < 0) continue;
+            TextBox box = header.get(b);
+            xMin[c] = present[c] ? Math.min(xMin[c], box.x) : box.x;
+            xMax[c] = present[c] ? Math.max(xMax[c], box.right()) : box.right();
+            present[c] = true;
+        }
+
+        for (int r = headerRow + 1; r < endRow; r++) {
+            List<TextBox> row = layout.rows.get(r);
+            if (row.isEmpty()) continue;
+
+            TableRow tableRow = new TableRow();
+            String first = row.get(0).text.trim();
+            if (PATTERN_ROW_NUMBER.matcher(first).matches()) {
+                tableRow.rowNumber = Integer.parseInt(first);
+            }
+            if (tableRow.rowNumber < 0 && result.isEmpty()) continue;
+            if (tableRow.rowNumber < 0 && rowHits.get(r).size() >= 3) break; // another header row
+
+            for (TextBox box : row) {
+                int best = -1;
+                float minDist = Float.MAX_VALUE;
+                for (int c = 0; c < present.length; c++) {
+                    if (!present[c]) continue;
+                    float dist = Math.abs((xMin[c] + xMax[c]) / 2 - box.cx);
+                    if (dist < minDist) {
+                        minDist = dist;
+                        best = c;
+                    }
+                }
+                if (best < 0) continue;
+                String existing = tableRow.values.get(best);
+                tableRow.values.put(best, (existing != null && !existing.isEmpty()) ? existing + " " + box.text : box.text);
+            }
+
+            if (tableRow.rowNumber > 0 || !tableRow.values.isEmpty()) {
+                result.add(tableRow);
+            }
+        }
+        return result;
+    }
+
+    private static String cell(DocumentTemplate.Column column, int index, TableRow row) {
+        String value = row.values.get(index);
+        return (value != null) ? finish(value.trim(), column.pattern, column.normalizer) : "";
+    }
+
+    private static JSONArray toJson(DocumentTemplate.Table table, List<TableRow> rows) throws Exception {
+        JSONArray array = new JSONArray();
+        for (TableRow row : rows) {
+            JSONObject obj = new JSONObject();
+            for (int c = 0; c < table.columns.size(); c++) {
+                obj.put(table.columns.get(c).key, cell(table.columns.get(c), c, row));
+            }
+            array.put(obj);
+        }
+        return array;
+    }
+
+    /** Join record tables on row number; the first table drives the order. */
+    private static JSONArray joinRecords(DocumentTemplate template, Map<String, List<TableRow>> tableRows) throws Exception {
+        JSONArray records = new JSONArray();
+        if (template.recordTables.length == 0) return records;
+
+        List<Map<Integer, TableRow>> byNumber = new ArrayList<>();
+        for (String key : template.recordTables) {
+            Map<Integer, TableRow> map = new HashMap<>();
+            List<TableRow> rows = tableRows.get(key);
+            if (rows != null) {
+                for (TableRow row : rows) {
+                    if (row.rowNumber > 0) map.put(row.rowNumber, row);
+                }
+            }
+            byNumber.add(map);
+        }
+
+        List<TableRow> driver = tableRows.get(template.recordTables[0]);
+        if (driver == null) return records;
+        for (TableRow row : driver) {
+            JSONObject record = new JSONObject();
+            for (int t = 0; t < template.recordTables.length; t++) {
+                DocumentTemplate.Table table = template.findTable(template.recordTables[t]);
+                if (table == null) continue;
+                TableRow source = (t == 0) ? row : (row.rowNumber > 0 ? byNumber.get(t).get(row.rowNumber) : null);
+                for (int c = 0; c < table.columns.size(); c++) {
+                    record.put(table.columns.get(c).key, source != null ? cell(table.columns.get(c), c, source) : "");
+                }
+            }
+
+            boolean keep = template.recordRequiredAny.length == 0;
+            for (String key : template.recordRequiredAny) {
+                if (!record.optString(key).isEmpty()) keep = true;
+            }
+            if (keep) records.put(record);
+        }
+        return records;
+    }
+}
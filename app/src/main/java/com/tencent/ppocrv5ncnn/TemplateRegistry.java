@@ -0,0 +1,264 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All compiled document templates plus one keyword automaton over every
+ * label and column header they use. A layout is scanned once for all
+ * templates; hits are then routed to the template that owns the keyword.
+ */
+public class TemplateRegistry {
+    private static final String TAG = "TemplateRegistry";
+    private static final String TEMPLATE_DIR = "templates";
+
+    static final int KIND_FIELD_LABEL = 0;
+    static final int KIND_COLUMN_HEADER = 1;
+
+    /** One use of a keyword by a template. */
+    static class KeywordRef {
+        int template;   // index into templates
+        int kind;
+        int index;      // field index, or table index for column headers
+        int sub;        // column index for column headers
+
+        KeywordRef(int template, int kind, int index, int sub) {
+            this.template = template;
+            this.kind = kind;
+            this.index = index;
+            this.sub = sub;
+        }
+    }
+
+    static class Hit {
+        KeywordRef ref;
+        int start, end; // offsets in the row's lower-case text
+
+        Hit(KeywordRef ref, int start, int end) {
+            this.ref = ref;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /** Keyword hits of one layout, per row, for every template at once. */
+    static class LayoutHits {
+        List<List<Hit>> rows = new ArrayList<>();
+        int[] templateScores;
+    }
+
+    private final List<DocumentTemplate> templates;
+    private final KeywordAutomaton automaton;
+    private final List<List<KeywordRef>> keywordRefs = new ArrayList<>();
+    private final int[] keywordCounts;
+
+    // Classification keywords live in their own, much smaller automaton
+    private final KeywordAutomaton classifyAutomaton;
+    private final List<List<Integer>> classifyRefs = new ArrayList<>();
+
+    private final SpatialExtractor.Template kartuKeluarga;
+
+    TemplateRegistry(List<DocumentTemplate> templates) {
+        this.templates = templates;
+        this.keywordCounts = new int[templates.size()];
+        int kk = indexOf(SpatialExtractor.Template.ID);
+        this.kartuKeluarga = (kk >= 0) ? new SpatialExtractor.Template(templates.get(kk)) : null;
+
+        // Distinct keywords across all templates, each with every template use
+        Map<String, Integer> keywordIds = new HashMap<>();
+        List<String> keywords = new ArrayList<>();
+        for (int t = 0; t < templates.size(); t++) {
+            DocumentTemplate template = templates.get(t);
+            for (int f = 0; f < template.fields.size(); f++) {
+                for (String label : template.fields.get(f).labels) {
+                    addKeyword(keywordIds, keywords, label, new KeywordRef(t, KIND_FIELD_LABEL, f, 0));
+                }
+            }
+            for (int tb = 0; tb < template.tables.size(); tb++) {
+                List<DocumentTemplate.Column> columns = template.tables.get(tb).columns;
+                for (int c = 0; c < columns.size(); c++) {
+                    addKeyword(keywordIds, keywords, columns.get(c).header, new KeywordRef(t, KIND_COLUMN_HEADER, tb, c));
+                }
+            }
+        }
+        automaton = new KeywordAutomaton(keywords);
+
+        Map<String, Integer> classifyIds = new HashMap<>();
+        List<String> classifyKeywords = new ArrayList<>();
+        for (int t = 0; t < templates.size(); t++) {
+            for (String keyword : templates.get(t).classify.keywords) {
+                Integer id = classifyIds.get(keyword);
+                if (id == null) {
+                    id = classifyKeywords.size();
+                    classifyIds.put(keyword, id);
+                    classifyKeywords.add(keyword);
+                    classifyRefs.add(new ArrayList<Integer>());
+                }
+                classifyRefs.get(id).add(t);
+            }
+        }
+        classifyAutomaton = new KeywordAutomaton(classifyKeywords);
+    }
+
+    private void addKeyword(Map<String, Integer> keywordIds, List<String> keywords, String keyword, KeywordRef ref) {
+        Integer id = keywordIds.get(keyword);
+        if (id == null) {
+            id = keywords.size();
+            keywordIds.put(keyword, id);
+            keywords.add(keyword);
+            keywordRefs.add(new ArrayList<KeywordRef>());
+        }
+        keywordRefs.get(id).add(ref);
+        keywordCounts[ref.template]++;
+    }
+
+    // ---- loading ----
+
+    /** Load and compile every template under assets/templates. */
+    public static TemplateRegistry load(AssetManager assets) throws Exception {
+        long start = System.nanoTime();
+        String[] names = assets.list(TEMPLATE_DIR);
+        if (names == null) names = new String[0];
+        Arrays.sort(names);
+
+        List<String> sources = new ArrayList<>();
+        for (String name : names) {
+            if (!name.endsWith(".json")) continue;
+            InputStream in = assets.open(TEMPLATE_DIR + "/" + name);
+            try {
+                sources.add(readFully(in));
+            } finally {
+                in.close();
+            }
+        }
+        TemplateRegistry registry = fromJson(sources);
+        Log.d(TAG, String.format("Compiled %d templates (%d keywords) in %.1f ms",
+            registry.templates.size(), registry.automaton.size(), (System.nanoTime() - start) / 1e6));
+        return registry;
+    }
+
+    static TemplateRegistry fromJson(List<String> sources) throws Exception {
+        List<DocumentTemplate> templates = new ArrayList<>();
+        for (String source : sources) {
+            templates.add(DocumentTemplate.compile(new JSONObject(source)));
+        }
+        return new TemplateRegistry(templates);
+    }
+
+    private static String readFully(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        return out.toString("UTF-8");
+    }
+
+    // ---- lookup ----
+
+    public List<DocumentTemplate> templates() {
+        return templates;
+    }
+
+    public DocumentTemplate get(String id) {
+        int idx = indexOf(id);
+        return idx >= 0 ? templates.get(idx) : null;
+    }
+
+    /** The kartu_keluarga template as the spatial rules read it, or null when it is not loaded. */
+    SpatialExtractor.Template kartuKeluarga() {
+        return kartuKeluarga;
+    }
+
+    int indexOf(String id) {
+        for (int i = 0; i < templates.size(); i++) {
+            if (templates.get(i).id.equals(id)) return i;
+        }
+        return -1;
+    }
+
+    // ---- matching ----
+
+    /**
+     * Scan every row of the layout once. Template scores count the distinct
+     * keyword uses each template had hit.
+     */
+    LayoutHits scan(DocumentLayout layout) {
+        final LayoutHits hits = new LayoutHits();
+        hits.templateScores = new int[templates.size()];
+        final Map<KeywordRef, Boolean> seen = new HashMap<>();
+
+        for (int r = 0; r < layout.rows.size(); r++) {
+            final List<Hit> rowHits = new ArrayList<>();
+            automaton.scan(layout.rowTextLower(r), new KeywordAutomaton.HitListener() {
+                @Override
+                public void onHit(int keyword, int start, int end) {
+                    for (KeywordRef ref : keywordRefs.get(keyword)) {
+                        rowHits.add(new Hit(ref, start, end));
+                        if (seen.put(ref, Boolean.TRUE) == null) hits.templateScores[ref.template]++;
+                    }
+                }
+            });
+            hits.rows.add(rowHits);
+        }
+        return hits;
+    }
+
+    /** Number of distinct classify keywords of each template found in a lower-case text. */
+    int[] classifyHits(String textLower) {
+        final int[] hits = new int[templates.size()];
+        final boolean[] seen = new boolean[classifyRefs.size()];
+        classifyAutomaton.scan(textLower, new KeywordAutomaton.HitListener() {
+            @Override
+            public void onHit(int keyword, int start, int end) {
+                if (seen[keyword]) return;
+                seen[keyword] = true;
+                for (int t : classifyRefs.get(keyword)) hits[t]++;
+            }
+        });
+        return hits;
+    }
+
+    /** Fraction of a template's keywords found in the layout. */
+    float coverage(LayoutHits hits, int template) {
+        if (keywordCounts[template] == 0) return 0f;
+        return (float) hits.templateScores[template] / keywordCounts[template];
+    }
+
+    /** Index of the template with the best keyword coverage, or -1 if nothing matched. */
+    int bestTemplate(LayoutHits hits) {
+        int best = -1;
+        float bestCoverage = 0f;
+        for (int t = 0; t < templates.size(); t++) {
+            float c = coverage(hits, t);
+            if (c > bestCoverage) {
+                bestCoverage = c;
+                best = t;
+            }
+        }
+        return best;
+    }
+}
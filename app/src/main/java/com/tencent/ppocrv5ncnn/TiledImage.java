@@ -0,0 +1,333 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Draws a page for OcrOverlayView as a small preview plus tiles of the
+ * visible part, so no frame draws, or uploads as a texture, the whole page.
+ *
+ * The preview is the page scaled to the view's longer side and covers the
+ * page at any zoom. Once zoom needs more than it holds, the visible area is
+ * cut into TILE_SIZE tiles at the power-of-two sample nearest the screen's
+ * resolution, one level of a pyramid over the full image. Tiles decode on
+ * one background thread and appear as they come; an LRU cache bounded in
+ * bytes keeps those seen recently, so memory does not grow with zoom.
+ *
+ * When the picked file is known, tiles finer than the page OCR decoded are
+ * read from the file through BitmapRegionDecoder, so a 48 MP photo shows
+ * its full detail at 100%. Other tiles, and pages cropped or turned after
+ * decoding, are cut from the page bitmap.
+ */
+public class TiledImage {
+    private static final String TAG = "TiledImage";
+
+    private static final int TILE_SIZE = 512;
+    private static final int DEFAULT_PREVIEW_SIDE = 2048;
+    // Tiles are drawn only when they hold at least this much more detail than the preview
+    private static final float MIN_DETAIL_GAIN = 1.5f;
+
+    private final View view;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final LruCache<Long, Bitmap> cache;
+    // Tiles queued or decoding, so a redraw does not queue them twice
+    private final Set<Long> pending = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    // Tiles the last frame wanted; queued tiles scrolled or zoomed away are skipped
+    private volatile Set<Long> wanted = Collections.emptySet();
+
+    // Held by the worker while it reads the page or the file, and by setSource()
+    // while it swaps them, so the caller may recycle the old page once set
+    private final Object sourceLock = new Object();
+    private volatile int generation;
+    private Bitmap page;
+    private Uri sourceUri;
+    private BitmapRegionDecoder decoder;
+    private volatile boolean decoderFailed;
+    private int fullWidth;              // the finest image: the file when known, else the page
+    private int fullHeight;
+    private float fullScale = 1f;       // full pixels per page pixel
+    private int pageSample = 1;         // the page's power-of-two sample of the full image
+
+    private Bitmap preview;
+    private float previewScale = 1f;    // page pixels per preview pixel
+
+    private final RectF visible = new RectF();
+    private final RectF dst = new RectF();
+    private final Matrix inverse = new Matrix();
+
+    private int tilesDecoded;
+    private long decodeMs;
+
+    public TiledImage(View view) {
+        this.view = view;
+        // A few screens of 512 px tiles; evicted tiles are left to the GC, as a frame may still draw them
+        int cacheBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, 64L * 1024 * 1024);
+        cache = new LruCache<Long, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap tile) {
+                return tile.getByteCount();
+            }
+        };
+    }
+
+    /** Show page; tiles come from it alone. The caller may recycle the previous page after this. */
+    public void setSource(Bitmap page) {
+        setSource(page, null, page.getWidth(), page.getHeight(), 1);
+    }
+
+    /**
+     * Show page, decoded at 1/pageSample from source, which is sourceWidth x sourceHeight;
+     * tiles finer than the page are read from source.
+     */
+    public void setSource(Bitmap page, Uri source, int sourceWidth, int sourceHeight, int pageSample) {
+        synchronized (sourceLock) {
+            closeDecoder();
+            generation++;
+            this.page = page;
+            this.sourceUri = source;
+            this.fullWidth = (source != null) ? sourceWidth : page.getWidth();
+            this.fullHeight = (source != null) ? sourceHeight : page.getHeight();
+            this.fullScale = (float) fullWidth / page.getWidth();
+            this.pageSample = (source != null) ? pageSample : 1;
+        }
+        cache.evictAll();
+        pending.clear();
+        wanted = Collections.emptySet();
+
+        long start = SystemClock.elapsedRealtime();
+        int side = Math.max(view.getWidth(), view.getHeight());
+        if (side == 0) side = DEFAULT_PREVIEW_SIDE;
+        float scale = Math.min(1f, (float) side / Math.max(page.getWidth(), page.getHeight()));
+        if (scale < 1f) {
+            preview = Bitmap.createScaledBitmap(page,
+                Math.max(1, Math.round(page.getWidth() * scale)),
+                Math.max(1, Math.round(page.getHeight() * scale)), true);
+        } else {
+            preview = page;
+        }
+        previewScale = (float) page.getWidth() / preview.getWidth();
+        Log.d(TAG, String.format(Locale.US, "Page %dx%d of %dx%d, preview %dx%d in %d ms",
+            page.getWidth(), page.getHeight(), fullWidth, fullHeight,
+            preview.getWidth(), preview.getHeight(), SystemClock.elapsedRealtime() - start));
+    }
+
+    /** Drop the page, its tiles and the file; nothing is drawn until the next setSource(). */
+    public void clear() {
+        synchronized (sourceLock) {
+            closeDecoder();
+            generation++;
+            page = null;
+            sourceUri = null;
+        }
+        cache.evictAll();
+        pending.clear();
+        wanted = Collections.emptySet();
+        preview = null;
+    }
+
+    /** Clear, and stop the decoding thread for good. */
+    public void release() {
+        clear();
+        worker.shutdownNow();
+    }
+
+    /** The bitmap to draw under the tiles, or null. */
+    public Bitmap getPreview() {
+        return preview;
+    }
+
+    /** Pixels of the finest image, the file or the page, per page pixel. */
+    public float getFullScale() {
+        return fullScale;
+    }
+
+    /** Page pixels per preview pixel, for the preview's image matrix. */
+    public float getPreviewScale() {
+        return previewScale;
+    }
+
+    /**
+     * Draw the tiles over the visible area, for a view showing the page through
+     * pageToView at scale view pixels per page pixel, and queue the missing ones.
+     */
+    public void draw(Canvas canvas, Matrix pageToView, float scale) {
+        if (page == null || scale <= 0) return;
+
+        // Full pixels per screen pixel, rounded to the nearest power of two
+        float target = fullScale / scale;
+        int sample = 1;
+        while (sample * 1.414f < target) sample *= 2;
+        if (sourceUri == null || decoderFailed) sample = Math.max(sample, pageSample);
+        if (sample * MIN_DETAIL_GAIN > fullScale * previewScale) {
+            wanted = Collections.emptySet();
+            return;
+        }
+
+        // The visible part of the image, in full pixels
+        if (!pageToView.invert(inverse)) return;
+        visible.set(0, 0, view.getWidth(), view.getHeight());
+        inverse.mapRect(visible);
+        if (!visible.intersect(0, 0, page.getWidth(), page.getHeight())) return;
+        int span = TILE_SIZE * sample;
+        int left = (int) (visible.left * fullScale) / span;
+        int top = (int) (visible.top * fullScale) / span;
+        int right = (int) Math.ceil(visible.right * fullScale / span);
+        int bottom = (int) Math.ceil(visible.bottom * fullScale / span);
+
+        Set<Long> frame = new HashSet<>();
+        for (int row = top; row < bottom; row++) {
+            for (int col = left; col < right; col++) {
+                long key = key(sample, col, row);
+                frame.add(key);
+                Bitmap tile = cache.get(key);
+                if (tile == null) {
+                    if (pending.add(key)) queue(key, sample, col, row);
+                    continue;
+                }
+                dst.set(col * span / fullScale, row * span / fullScale,
+                    Math.min(fullWidth, (col + 1) * span) / fullScale,
+                    Math.min(fullHeight, (row + 1) * span) / fullScale);
+                pageToView.mapRect(dst);
+                canvas.drawBitmap(tile, null, dst, paint);
+            }
+        }
+        wanted = frame;
+    }
+
+    private void queue(final long key, final int sample, final int col, final int row) {
+        if (worker.isShutdown()) return;
+        final int queuedGeneration = generation;
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap tile;
+                synchronized (sourceLock) {
+                    if (queuedGeneration != generation || !wanted.contains(key)) {
+                        pending.remove(key);
+                        return;
+                    }
+                    tile = decode(sample, col, row);
+                }
+                view.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.remove(key);
+                        if (tile == null || queuedGeneration != generation) return;
+                        cache.put(key, tile);
+                        view.invalidate();
+                    }
+                });
+            }
+        });
+    }
+
+    /** One tile at 1/sample of the full image, from the file when the page is coarser. Holds sourceLock. */
+    private Bitmap decode(int sample, int col, int row) {
+        long start = SystemClock.elapsedRealtime();
+        int span = TILE_SIZE * sample;
+        Rect region = new Rect(col * span, row * span,
+            Math.min(fullWidth, (col + 1) * span), Math.min(fullHeight, (row + 1) * span));
+        Bitmap tile = null;
+        try {
+            if (sample < pageSample && openDecoder()) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sample;
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                try {
+                    tile = decoder.decodeRegion(region, options);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Cannot region-decode " + sourceUri + ", using the page", e);
+                    decoderFailed = true;
+                }
+            }
+            if (tile == null) {
+                // Cut from the page, never scaled up
+                int x = Math.min(page.getWidth() - 1, (int) (region.left / fullScale));
+                int y = Math.min(page.getHeight() - 1, (int) (region.top / fullScale));
+                int w = Math.max(1, Math.min(page.getWidth() - x, Math.round(region.width() / fullScale)));
+                int h = Math.max(1, Math.min(page.getHeight() - y, Math.round(region.height() / fullScale)));
+                float scale = Math.min(1f, fullScale / sample);
+                Matrix matrix = new Matrix();
+                matrix.postScale(scale, scale);
+                tile = Bitmap.createBitmap(page, x, y, w, h, matrix, true);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot decode tile " + col + "," + row + " at 1/" + sample, e);
+            return null;
+        }
+        tilesDecoded++;
+        decodeMs += SystemClock.elapsedRealtime() - start;
+        if (tilesDecoded % 32 == 0) {
+            Log.d(TAG, String.format(Locale.US, "%d tiles, %.1f ms each, cache %d of %d KB",
+                tilesDecoded, (float) decodeMs / tilesDecoded, cache.size() / 1024, cache.maxSize() / 1024));
+        }
+        return tile;
+    }
+
+    /** Open the picked file for region decoding, once. Holds sourceLock. */
+    private boolean openDecoder() {
+        if (decoder != null) return true;
+        if (sourceUri == null || decoderFailed) return false;
+        try {
+            InputStream in = view.getContext().getContentResolver().openInputStream(sourceUri);
+            if (in == null) throw new java.io.IOException("Cannot open " + sourceUri);
+            try {
+                decoder = BitmapRegionDecoder.newInstance(in, false);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            // Not a format BitmapRegionDecoder reads; zoom stops at the page's resolution
+            Log.w(TAG, "Cannot region-decode " + sourceUri + ", using the page", e);
+            decoderFailed = true;
+            return false;
+        }
+        return decoder != null;
+    }
+
+    private void closeDecoder() {
+        if (decoder != null) decoder.recycle();
+        decoder = null;
+        decoderFailed = false;
+    }
+
+    /** Tile key: sample, column and row packed into one long. */
+    private static long key(int sample, int col, int row) {
+        return ((long) sample << 40) | ((long) col << 20) | row;
+    }
+}
@@ -17,6 +17,8 @@
 #include "cpu.h"
 #include "net.h"
 
+#include <pthread.h>
+
 #include <opencv2/core/core.hpp>
 #include <opencv2/highgui/highgui.hpp>
 #include <opencv2/imgproc/imgproc.hpp>
@@ -147,8 +149,8 @@ int PPOCRv5::load(const char* det_parampath, const char* det_modelpath, const ch
     ppocrv5_det.opt.use_vulkan_compute = use_gpu;
 #endif
 
-    ppocrv5_det.load_param(det_parampath);
-    ppocrv5_det.load_model(det_modelpath);
+    if (ppocrv5_det.load_param(det_parampath) != 0 || ppocrv5_det.load_model(det_modelpath) != 0)
+        return -1;
 
     // default to 1 thread, as we rec multiple lines in parallel
     ppocrv5_rec.opt.num_threads = 1;
@@ -161,8 +163,8 @@ int PPOCRv5::load(const char* det_parampath, const char* det_modelpath, const ch
     ppocrv5_rec.opt.use_vulkan_compute = use_gpu;
 #endif
 
-    ppocrv5_rec.load_param(rec_parampath);
-    ppocrv5_rec.load_model(rec_modelpath);
+    if (ppocrv5_rec.load_param(rec_parampath) != 0 || ppocrv5_rec.load_model(rec_modelpath) != 0)
+        return -1;
 
     return 0;
 }
@@ -407,16 +409,56 @@ int PPOCRv5::recognize(const cv::Mat& rgb, Object& object)
     return 0;
 }
 
-int PPOCRv5::detect_and_recognize(const cv::Mat& rgb, std::vector<Object>& objects)
+// hand finished indices to the listener, outside the queue lock
+static void notify_recognized(const std::vector<Object>& objects, std::vector<int>& finished, ncnn::Mutex& finished_lock, RecognizeListener* listener)
 {
-    detect(rgb, objects);
+    std::vector<int> ready;
+    finished_lock.lock();
+    ready.swap(finished);
+    finished_lock.unlock();
+
+    for (size_t i = 0; i < ready.size(); i++)
+    {
+        listener->on_recognized(ready[i], objects[ready[i]]);
+    }
+}
+
+int PPOCRv5::recognize_objects(const cv::Mat& rgb, std::vector<Object>& objects, RecognizeListener* listener)
+{
+    // worker threads only queue finished lines, the calling thread drains the queue
+    // between its own lines so the listener never runs on a pool thread
+    const pthread_t caller = pthread_self();
+    ncnn::Mutex finished_lock;
+    std::vector<int> finished;
 
     #pragma omp parallel for num_threads(ncnn::get_big_cpu_count()) schedule(dyanmic)
     for (size_t i = 0; i < objects.size(); i++)
     {
         recognize(rgb, objects[i]);
+
+        if (listener)
+        {
+            finished_lock.lock();
+            finished.push_back((int)i);
+            finished_lock.unlock();
+
+            if (pthread_equal(pthread_self(), caller))
+                notify_recognized(objects, finished, finished_lock, listener);
+        }
     }
 
+    if (listener)
+        notify_recognized(objects, finished, finished_lock, listener);
+
+    return 0;
+}
+
+int PPOCRv5::detect_and_recognize(const cv::Mat& rgb, std::vector<Object>& objects)
+{
+    detect(rgb, objects);
+
+    recognize_objects(rgb, objects);
+
     return 0;
 }
 
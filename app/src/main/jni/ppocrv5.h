@@ -33,6 +33,15 @@ struct Object
     std::vector<Character> text;
 };
 
+// receives objects as soon as they are recognized
+// always called on the thread that called recognize_objects, never concurrently
+class RecognizeListener
+{
+public:
+    virtual ~RecognizeListener() {}
+    virtual void on_recognized(int index, const Object& object) = 0;
+};
+
 class PPOCRv5
 {
 public:
@@ -48,6 +57,9 @@ public:
 
     int recognize(const cv::Mat& rgb, Object& object);
 
+    // recognize already detected objects, lines in parallel
+    int recognize_objects(const cv::Mat& rgb, std::vector<Object>& objects, RecognizeListener* listener = 0);
+
     int detect_and_recognize(const cv::Mat& rgb, std::vector<Object>& objects);
     int draw(cv::Mat& rgb, const std::vector<Object>& objects);
     std::string get_recognized_text(const std::vector<Object>& objects);
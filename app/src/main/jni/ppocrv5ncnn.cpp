@@ -23,9 +23,11 @@
 
 #include <string>
 #include <vector>
+#include <algorithm>
 
 #include <platform.h>
 #include <benchmark.h>
+#include <cpu.h>
 
 #include "ppocrv5.h"
 #include "ppocrv5_dict.h"
@@ -115,6 +117,318 @@ static int draw_fps(cv::Mat& rgb)
 static PPOCRv5* g_ppocrv5 = 0;
 static ncnn::Mutex lock;
 
+static bool bitmap_to_rgb(JNIEnv* env, jobject bitmap, cv::Mat& rgb)
+{
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) < 0)
+        return false;
+
+    if (info.format != ANDROID_BITMAP_FORMAT_RGBA_8888)
+        return false;
+
+    void* pixels = 0;
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) < 0)
+        return false;
+
+    // Convert RGBA to RGB cv::Mat
+    cv::Mat rgba(info.height, info.width, CV_8UC4, pixels);
+    cv::cvtColor(rgba, rgb, cv::COLOR_RGBA2RGB);
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+
+    return true;
+}
+
+// Document boundary, looked for on a copy this size along the longer side
+static const int DOCUMENT_SEARCH_SIZE = 512;
+
+// Order four corners as top-left, top-right, bottom-right, bottom-left
+static void order_corners(const std::vector<cv::Point2f>& points, cv::Point2f corners[4])
+{
+    int tl = 0, tr = 0, br = 0, bl = 0;
+    for (int i = 1; i < 4; i++)
+    {
+        const cv::Point2f& p = points[i];
+        if (p.x + p.y < points[tl].x + points[tl].y) tl = i;
+        if (p.x + p.y > points[br].x + points[br].y) br = i;
+        if (p.x - p.y > points[tr].x - points[tr].y) tr = i;
+        if (p.x - p.y < points[bl].x - points[bl].y) bl = i;
+    }
+    corners[0] = points[tl];
+    corners[1] = points[tr];
+    corners[2] = points[br];
+    corners[3] = points[bl];
+}
+
+// Find the page as the largest convex quadrilateral among the outer edge contours
+// Returns false when nothing covers enough of the frame, or the page already fills it
+static bool find_document_quad(const cv::Mat& rgba, cv::Point2f corners[4])
+{
+    const float scale = std::min(1.f, (float)DOCUMENT_SEARCH_SIZE / std::max(rgba.cols, rgba.rows));
+
+    cv::Mat small;
+    cv::resize(rgba, small, cv::Size(), scale, scale, cv::INTER_AREA);
+    cv::Mat gray;
+    cv::cvtColor(small, gray, cv::COLOR_RGBA2GRAY);
+    cv::GaussianBlur(gray, gray, cv::Size(5, 5), 0);
+
+    // Canny thresholds around the median brightness, so dim and bright photos both find edges
+    std::vector<uchar> values(gray.begin<uchar>(), gray.end<uchar>());
+    std::nth_element(values.begin(), values.begin() + values.size() / 2, values.end());
+    const double median = values[values.size() / 2];
+    cv::Mat edges;
+    cv::Canny(gray, edges, std::max(0.0, 0.66 * median), std::min(255.0, 1.33 * median));
+    // Close gaps where the page edge is faint or crossed by a finger
+    cv::dilate(edges, edges, cv::getStructuringElement(cv::MORPH_RECT, cv::Size(3, 3)));
+
+    std::vector<std::vector<cv::Point> > contours;
+    cv::findContours(edges, contours, cv::RETR_EXTERNAL, cv::CHAIN_APPROX_SIMPLE);
+
+    const double frame_area = (double)small.cols * small.rows;
+    double best_area = 0;
+    std::vector<cv::Point> best;
+    for (size_t i = 0; i < contours.size(); i++)
+    {
+        std::vector<cv::Point> hull;
+        cv::convexHull(contours[i], hull);
+        const double area = cv::contourArea(hull);
+        if (area < frame_area * 0.2 || area <= best_area)
+            continue;
+
+        // Rounded or dog-eared corners need a coarser approximation to come down to four
+        const double perimeter = cv::arcLength(hull, true);
+        for (double epsilon = 0.02; epsilon <= 0.1; epsilon += 0.02)
+        {
+            std::vector<cv::Point> approx;
+            cv::approxPolyDP(hull, approx, epsilon * perimeter, true);
+            if (approx.size() < 4)
+                break;
+            if (approx.size() == 4 && cv::isContourConvex(approx))
+            {
+                best_area = area;
+                best = approx;
+                break;
+            }
+        }
+    }
+
+    if (best.empty() || best_area > frame_area * 0.95)
+        return false;
+
+    std::vector<cv::Point2f> points(4);
+    for (int i = 0; i < 4; i++)
+    {
+        points[i] = cv::Point2f(best[i].x / scale, best[i].y / scale);
+    }
+    order_corners(points, corners);
+    return true;
+}
+
+static std::string object_text(const Object& obj)
+{
+    // out-of-dict ids are word breaks, same rule as get_recognized_text
+    std::string text;
+    for (size_t j = 0; j < obj.text.size(); j++)
+    {
+        const Character& ch = obj.text[j];
+        if (ch.id >= 0 && ch.id < character_dict_size)
+        {
+            text += character_dict[ch.id];
+        }
+        else if (!text.empty() && text.back() != ' ')
+        {
+            text += " ";
+        }
+    }
+    while (!text.empty() && text.back() == ' ')
+        text.pop_back();
+    return text;
+}
+
+// mean character probability of a recognized line
+static float object_confidence(const Object& obj)
+{
+    if (obj.text.empty())
+        return 0.f;
+
+    float sum = 0.f;
+    for (size_t j = 0; j < obj.text.size(); j++)
+    {
+        sum += obj.text[j].prob;
+    }
+    return sum / obj.text.size();
+}
+
+static std::string json_escape(const std::string& text)
+{
+    std::string escaped_text;
+    for (size_t j = 0; j < text.size(); j++)
+    {
+        if (text[j] == '"') escaped_text += "\\\"";
+        else if (text[j] == '\\') escaped_text += "\\\\";
+        else if (text[j] == '\n') escaped_text += "\\n";
+        else escaped_text += text[j];
+    }
+    return escaped_text;
+}
+
+// axis-aligned bounds of the rotated rect
+static cv::Rect2f object_bounds(const Object& obj)
+{
+    cv::Point2f corners[4];
+    obj.rrect.points(corners);
+
+    float min_x = corners[0].x, max_x = corners[0].x;
+    float min_y = corners[0].y, max_y = corners[0].y;
+    for (int k = 1; k < 4; k++)
+    {
+        if (corners[k].x < min_x) min_x = corners[k].x;
+        if (corners[k].x > max_x) max_x = corners[k].x;
+        if (corners[k].y < min_y) min_y = corners[k].y;
+        if (corners[k].y > max_y) max_y = corners[k].y;
+    }
+    return cv::Rect2f(min_x, min_y, max_x - min_x, max_y - min_y);
+}
+
+// JSON array of objects: axis-aligned box, center and the rotated rect needed to recognize it later
+static std::string objects_to_json(const std::vector<Object>& objects, bool with_text)
+{
+    std::string result_json = "[";
+    for (size_t i = 0; i < objects.size(); i++)
+    {
+        const Object& obj = objects[i];
+
+        const cv::Rect2f bounds = object_bounds(obj);
+        const float min_x = bounds.x;
+        const float min_y = bounds.y;
+        const float max_x = bounds.x + bounds.width;
+        const float max_y = bounds.y + bounds.height;
+
+        if (i > 0) result_json += ",";
+        result_json += "{";
+        char buf[512];
+        if (with_text)
+        {
+            result_json += "\"text\":\"" + json_escape(object_text(obj)) + "\",";
+            snprintf(buf, sizeof(buf), "\"c\":%.3f,", object_confidence(obj));
+            result_json += buf;
+        }
+        snprintf(buf, sizeof(buf),
+            "\"x\":%.1f,\"y\":%.1f,\"w\":%.1f,\"h\":%.1f,\"cx\":%.1f,\"cy\":%.1f,\"rw\":%.1f,\"rh\":%.1f,\"a\":%.2f,\"o\":%d,\"p\":%.3f}",
+            min_x, min_y, max_x - min_x, max_y - min_y,
+            obj.rrect.center.x, obj.rrect.center.y,
+            obj.rrect.size.width, obj.rrect.size.height, obj.rrect.angle,
+            obj.orientation, obj.prob);
+        result_json += buf;
+    }
+    result_json += "]";
+    return result_json;
+}
+
+// inverse of the rotated rect and score fields in objects_to_json, 7 floats per object
+static void unpack_objects(JNIEnv* env, jfloatArray boxes, std::vector<Object>& objects)
+{
+    if (!boxes)
+        return;
+
+    const int count = env->GetArrayLength(boxes) / 7;
+    std::vector<float> data(count * 7);
+    env->GetFloatArrayRegion(boxes, 0, count * 7, data.data());
+
+    objects.resize(count);
+    for (int i = 0; i < count; i++)
+    {
+        const float* p = &data[i * 7];
+        objects[i].rrect = cv::RotatedRect(cv::Point2f(p[0], p[1]), cv::Size2f(p[2], p[3]), p[4]);
+        objects[i].orientation = (int)p[5];
+        objects[i].prob = p[6];
+    }
+}
+
+// drop objects whose bounds touch none of the regions, packed as x0, y0, x1, y1
+// indices receives the original index of every kept object
+// returns the number of objects dropped
+static int filter_objects_by_regions(JNIEnv* env, jfloatArray regions, std::vector<Object>& objects, std::vector<int>& indices)
+{
+    indices.resize(objects.size());
+    for (size_t i = 0; i < objects.size(); i++)
+        indices[i] = (int)i;
+
+    const int count = regions ? env->GetArrayLength(regions) / 4 : 0;
+    if (count == 0)
+        return 0;
+
+    std::vector<float> data(count * 4);
+    env->GetFloatArrayRegion(regions, 0, count * 4, data.data());
+
+    std::vector<Object> kept;
+    std::vector<int> kept_indices;
+    kept.reserve(objects.size());
+    kept_indices.reserve(objects.size());
+    for (size_t i = 0; i < objects.size(); i++)
+    {
+        const cv::Rect2f bounds = object_bounds(objects[i]);
+        for (int j = 0; j < count; j++)
+        {
+            const float* r = &data[j * 4];
+            if (bounds.x < r[2] && bounds.x + bounds.width > r[0] && bounds.y < r[3] && bounds.y + bounds.height > r[1])
+            {
+                kept.push_back(objects[i]);
+                kept_indices.push_back((int)i);
+                break;
+            }
+        }
+    }
+
+    const int skipped = (int)(objects.size() - kept.size());
+    objects.swap(kept);
+    indices.swap(kept_indices);
+    return skipped;
+}
+
+// forwards recognized lines to a Java PPOCRv5Ncnn.LineListener
+// called with the lock released, so the listener may call back into the engine
+// on a Java exception further lines are dropped and the exception is left pending
+class JavaLineListener : public RecognizeListener
+{
+public:
+    JavaLineListener(JNIEnv* _env, jobject _listener, const std::vector<int>& _indices)
+        : env(_env), listener(_listener), indices(_indices), failed(false)
+    {
+        jclass clazz = env->GetObjectClass(listener);
+        on_line = env->GetMethodID(clazz, "onLine", "(ILjava/lang/String;FFFFF)V");
+        env->DeleteLocalRef(clazz);
+        failed = (on_line == 0);
+    }
+
+    virtual void on_recognized(int index, const Object& obj)
+    {
+        if (failed)
+            return;
+
+        const cv::Rect2f bounds = object_bounds(obj);
+        jstring text = env->NewStringUTF(object_text(obj).c_str());
+        env->CallVoidMethod(listener, on_line, (jint)indices[index], text,
+            bounds.x, bounds.y, bounds.width, bounds.height, object_confidence(obj));
+        env->DeleteLocalRef(text);
+
+        if (env->ExceptionCheck())
+        {
+            __android_log_print(ANDROID_LOG_WARN, "ncnn", "LineListener threw, dropping further lines");
+            failed = true;
+        }
+    }
+
+    bool has_failed() const { return failed; }
+
+private:
+    JNIEnv* env;
+    jobject listener;
+    jmethodID on_line;
+    const std::vector<int>& indices;
+    bool failed;
+};
+
 class MyNdkCamera : public NdkCameraWindow
 {
 public:
@@ -175,6 +489,54 @@ JNIEXPORT void JNI_OnUnload(JavaVM* vm, void* reserved)
     g_camera = 0;
 }
 
+static const int sizetypes[7] =
+{
+    320,
+    480,
+    640,
+    960,
+    1280,
+    1600,
+    1920
+};
+
+// where g_ppocrv5 was loaded from, an asset model type or a det model path
+static std::string g_model_source;
+static int g_cpugpu = 0;
+
+// caller holds lock
+// drops the model when its weights or device changed, and sets up the gpu instance
+static void prepare_reload(const std::string& source, int cpugpu)
+{
+    if (source != g_model_source || cpugpu != g_cpugpu)
+    {
+        // model or cpugpu changed
+        delete g_ppocrv5;
+        g_ppocrv5 = 0;
+    }
+    g_model_source = source;
+    g_cpugpu = cpugpu;
+
+    ncnn::destroy_gpu_instance();
+
+    if (cpugpu == 2)
+    {
+        ncnn::create_gpu_instance("libvulkan_freedreno.so");
+    }
+    else if (cpugpu == 1)
+    {
+        ncnn::create_gpu_instance();
+    }
+}
+
+static std::string jstring_to_string(JNIEnv* env, jstring str)
+{
+    const char* chars = env->GetStringUTFChars(str, 0);
+    std::string result(chars);
+    env->ReleaseStringUTFChars(str, chars);
+    return result;
+}
+
 // public native boolean loadModel(AssetManager mgr, int modelid, int sizeid, int cpugpu);
 JNIEXPORT jboolean JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_loadModel(JNIEnv* env, jobject thiz, jobject assetManager, jint modelid, jint sizeid, jint cpugpu)
 {
@@ -193,17 +555,6 @@ JNIEXPORT jboolean JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_loadModel(JN
         "server"
     };
 
-    const int sizetypes[7] =
-    {
-        320,
-        480,
-        640,
-        960,
-        1280,
-        1600,
-        1920
-    };
-
     std::string det_parampath = std::string("PP_OCRv5_") + modeltypes[(int)modelid] + "_det.ncnn.param";
     std::string det_modelpath = std::string("PP_OCRv5_") + modeltypes[(int)modelid] + "_det.ncnn.bin";
     std::string rec_parampath = std::string("PP_OCRv5_") + modeltypes[(int)modelid] + "_rec.ncnn.param";
@@ -216,37 +567,59 @@ JNIEXPORT jboolean JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_loadModel(JN
     {
         ncnn::MutexLockGuard g(lock);
 
+        prepare_reload(std::string("asset:") + modeltypes[(int)modelid], cpugpu);
+
+        if (!g_ppocrv5)
         {
-            static int old_modelid = 0;
-            static int old_cpugpu = 0;
-            if (modelid != old_modelid || cpugpu != old_cpugpu)
-            {
-                // model or cpugpu changed
-                delete g_ppocrv5;
-                g_ppocrv5 = 0;
-            }
-            old_modelid = modelid;
-            old_cpugpu = cpugpu;
+            g_ppocrv5 = new PPOCRv5;
 
-            ncnn::destroy_gpu_instance();
+            g_ppocrv5->load(mgr, det_parampath.c_str(), det_modelpath.c_str(), rec_parampath.c_str(), rec_modelpath.c_str(), use_fp16, use_gpu || use_turnip);
+        }
+        g_ppocrv5->set_target_size(sizetypes[(int)sizeid]);
+    }
 
-            if (use_turnip)
-            {
-                ncnn::create_gpu_instance("libvulkan_freedreno.so");
-            }
-            else if (use_gpu)
-            {
-                ncnn::create_gpu_instance();
-            }
+    return JNI_TRUE;
+}
 
-            if (!g_ppocrv5)
-            {
-                g_ppocrv5 = new PPOCRv5;
+// public native boolean loadModelFromFiles(String detParamPath, String detModelPath, String recParamPath, String recModelPath, int modelid, int sizeid, int cpugpu);
+JNIEXPORT jboolean JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_loadModelFromFiles(JNIEnv* env, jobject thiz, jstring detParamPath, jstring detModelPath, jstring recParamPath, jstring recModelPath, jint modelid, jint sizeid, jint cpugpu)
+{
+    if (modelid < 0 || modelid > 1 || sizeid < 0 || sizeid > 6 || cpugpu < 0 || cpugpu > 2)
+    {
+        return JNI_FALSE;
+    }
+
+    std::string det_parampath = jstring_to_string(env, detParamPath);
+    std::string det_modelpath = jstring_to_string(env, detModelPath);
+    std::string rec_parampath = jstring_to_string(env, recParamPath);
+    std::string rec_modelpath = jstring_to_string(env, recModelPath);
+    bool use_fp16 = (int)modelid == 0; // fp16 for server model cause nan result
+    bool use_gpu = (int)cpugpu == 1;
+    bool use_turnip = (int)cpugpu == 2;
+
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "loadModelFromFiles %s", det_modelpath.c_str());
+
+    // reload
+    {
+        ncnn::MutexLockGuard g(lock);
 
-                g_ppocrv5->load(mgr, det_parampath.c_str(), det_modelpath.c_str(), rec_parampath.c_str(), rec_modelpath.c_str(), use_fp16, use_gpu || use_turnip);
+        prepare_reload(det_modelpath, cpugpu);
+
+        if (!g_ppocrv5)
+        {
+            g_ppocrv5 = new PPOCRv5;
+
+            int ret = g_ppocrv5->load(det_parampath.c_str(), det_modelpath.c_str(), rec_parampath.c_str(), rec_modelpath.c_str(), use_fp16, use_gpu || use_turnip);
+            if (ret != 0)
+            {
+                __android_log_print(ANDROID_LOG_ERROR, "ncnn", "loadModelFromFiles failed %d", ret);
+                delete g_ppocrv5;
+                g_ppocrv5 = 0;
+                g_model_source.clear();
+                return JNI_FALSE;
             }
-            g_ppocrv5->set_target_size(sizetypes[(int)sizeid]);
         }
+        g_ppocrv5->set_target_size(sizetypes[(int)sizeid]);
     }
 
     return JNI_TRUE;
@@ -290,30 +663,12 @@ JNIEXPORT jboolean JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_setOutputWin
 // public native String recognizeImage(Bitmap bitmap);
 JNIEXPORT jstring JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_recognizeImage(JNIEnv* env, jobject thiz, jobject bitmap)
 {
-    AndroidBitmapInfo info;
-    if (AndroidBitmap_getInfo(env, bitmap, &info) < 0)
-    {
-        return env->NewStringUTF("");
-    }
-
-    if (info.format != ANDROID_BITMAP_FORMAT_RGBA_8888)
-    {
-        return env->NewStringUTF("");
-    }
-
-    void* pixels = 0;
-    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) < 0)
+    cv::Mat rgb;
+    if (!bitmap_to_rgb(env, bitmap, rgb))
     {
         return env->NewStringUTF("");
     }
 
-    // Convert RGBA to RGB cv::Mat
-    cv::Mat rgba(info.height, info.width, CV_8UC4, pixels);
-    cv::Mat rgb;
-    cv::cvtColor(rgba, rgb, cv::COLOR_RGBA2RGB);
-
-    AndroidBitmap_unlockPixels(env, bitmap);
-
     std::string result_text;
     {
         ncnn::MutexLockGuard g(lock);
@@ -333,93 +688,274 @@ JNIEXPORT jstring JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_recognizeImag
 // Returns JSON array with text and bounding box coordinates
 JNIEXPORT jstring JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_recognizeImageWithBoxes(JNIEnv* env, jobject thiz, jobject bitmap)
 {
-    AndroidBitmapInfo info;
-    if (AndroidBitmap_getInfo(env, bitmap, &info) < 0)
+    cv::Mat rgb;
+    if (!bitmap_to_rgb(env, bitmap, rgb))
     {
         return env->NewStringUTF("[]");
     }
 
-    if (info.format != ANDROID_BITMAP_FORMAT_RGBA_8888)
+    std::string result_json = "[]";
+    {
+        ncnn::MutexLockGuard g(lock);
+
+        if (g_ppocrv5)
+        {
+            std::vector<Object> objects;
+            g_ppocrv5->detect_and_recognize(rgb, objects);
+            result_json = objects_to_json(objects, true);
+        }
+    }
+
+    return env->NewStringUTF(result_json.c_str());
+}
+
+// public native String detectImage(Bitmap bitmap);
+// Returns JSON array with bounding boxes only, no recognition
+JNIEXPORT jstring JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_detectImage(JNIEnv* env, jobject thiz, jobject bitmap)
+{
+    cv::Mat rgb;
+    if (!bitmap_to_rgb(env, bitmap, rgb))
     {
         return env->NewStringUTF("[]");
     }
 
-    void* pixels = 0;
-    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) < 0)
+    std::string result_json = "[]";
+    {
+        ncnn::MutexLockGuard g(lock);
+
+        if (g_ppocrv5)
+        {
+            std::vector<Object> objects;
+            g_ppocrv5->detect(rgb, objects);
+            result_json = objects_to_json(objects, false);
+        }
+    }
+
+    return env->NewStringUTF(result_json.c_str());
+}
+
+// public native String recognizeDetected(Bitmap bitmap, float[] boxes);
+// Recognizes boxes from detectImage, packed as cx, cy, rw, rh, angle, orientation, score
+JNIEXPORT jstring JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_recognizeDetected(JNIEnv* env, jobject thiz, jobject bitmap, jfloatArray boxes)
+{
+    cv::Mat rgb;
+    if (!bitmap_to_rgb(env, bitmap, rgb))
     {
         return env->NewStringUTF("[]");
     }
 
-    // Convert RGBA to RGB cv::Mat
-    cv::Mat rgba(info.height, info.width, CV_8UC4, pixels);
+    std::vector<Object> objects;
+    unpack_objects(env, boxes, objects);
+
+    std::string result_json = "[]";
+    {
+        ncnn::MutexLockGuard g(lock);
+
+        if (g_ppocrv5)
+        {
+            g_ppocrv5->recognize_objects(rgb, objects);
+            result_json = objects_to_json(objects, true);
+        }
+    }
+
+    return env->NewStringUTF(result_json.c_str());
+}
+
+// public native String recognizeDetectedInRegions(Bitmap bitmap, float[] boxes, float[] regions);
+// Like recognizeDetected, but only boxes intersecting a region are recognized
+// Returns {"recognized":n,"skipped":m,"boxes":[...]}, skipped boxes are left out
+JNIEXPORT jstring JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_recognizeDetectedInRegions(JNIEnv* env, jobject thiz, jobject bitmap, jfloatArray boxes, jfloatArray regions)
+{
     cv::Mat rgb;
-    cv::cvtColor(rgba, rgb, cv::COLOR_RGBA2RGB);
+    if (!bitmap_to_rgb(env, bitmap, rgb))
+    {
+        return env->NewStringUTF("{\"recognized\":0,\"skipped\":0,\"boxes\":[]}");
+    }
 
-    AndroidBitmap_unlockPixels(env, bitmap);
+    std::vector<Object> objects;
+    unpack_objects(env, boxes, objects);
 
-    std::string result_json = "[";
+    std::vector<int> indices;
+    const int skipped = filter_objects_by_regions(env, regions, objects, indices);
+
+    std::string boxes_json = "[]";
     {
         ncnn::MutexLockGuard g(lock);
 
         if (g_ppocrv5)
         {
-            std::vector<Object> objects;
-            g_ppocrv5->detect_and_recognize(rgb, objects);
+            g_ppocrv5->recognize_objects(rgb, objects);
+            boxes_json = objects_to_json(objects, true);
+        }
+    }
 
-            for (size_t i = 0; i < objects.size(); i++)
-            {
-                const Object& obj = objects[i];
+    __android_log_print(ANDROID_LOG_DEBUG, "ncnn", "recognizeDetectedInRegions %d recognized %d skipped", (int)objects.size(), skipped);
 
-                // Get text
-                std::string text;
-                for (size_t j = 0; j < obj.text.size(); j++)
-                {
-                    const Character& ch = obj.text[j];
-                    if (ch.id >= 0 && ch.id < character_dict_size)
-                    {
-                        text += character_dict[ch.id];
-                    }
-                }
+    char buf[64];
+    snprintf(buf, sizeof(buf), "{\"recognized\":%d,\"skipped\":%d,\"boxes\":", (int)objects.size(), skipped);
+    std::string result_json = buf + boxes_json + "}";
 
-                // Get bounding box corners
-                cv::Point2f corners[4];
-                obj.rrect.points(corners);
+    return env->NewStringUTF(result_json.c_str());
+}
 
-                // Calculate min/max for axis-aligned bounding box
-                float min_x = corners[0].x, max_x = corners[0].x;
-                float min_y = corners[0].y, max_y = corners[0].y;
-                for (int k = 1; k < 4; k++)
-                {
-                    if (corners[k].x < min_x) min_x = corners[k].x;
-                    if (corners[k].x > max_x) max_x = corners[k].x;
-                    if (corners[k].y < min_y) min_y = corners[k].y;
-                    if (corners[k].y > max_y) max_y = corners[k].y;
-                }
+// public native String recognizeDetectedStreaming(Bitmap bitmap, float[] boxes, float[] regions, LineListener listener);
+// Like recognizeDetectedInRegions, and each line is passed to listener.onLine soon after it is recognized,
+// on the calling thread and without the lock held. regions may be null to recognize every box
+JNIEXPORT jstring JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_recognizeDetectedStreaming(JNIEnv* env, jobject thiz, jobject bitmap, jfloatArray boxes, jfloatArray regions, jobject listener)
+{
+    cv::Mat rgb;
+    if (!bitmap_to_rgb(env, bitmap, rgb))
+    {
+        return env->NewStringUTF("{\"recognized\":0,\"skipped\":0,\"boxes\":[]}");
+    }
+
+    std::vector<Object> objects;
+    unpack_objects(env, boxes, objects);
+
+    std::vector<int> indices;
+    const int skipped = filter_objects_by_regions(env, regions, objects, indices);
+
+    bool failed = false;
+    std::string boxes_json = "[]";
+    if (listener)
+    {
+        // recognize a couple of lines per big core under the lock, then pass them on without it,
+        // so a listener calling back into the engine does not deadlock and a slow one only
+        // delays this page
+        JavaLineListener line_listener(env, listener, indices);
+        const size_t chunk = (size_t)ncnn::get_big_cpu_count() * 2;
+        bool complete = true;
+        for (size_t begin = 0; begin < objects.size() && !line_listener.has_failed(); begin += chunk)
+        {
+            std::vector<Object> lines(objects.begin() + begin, objects.begin() + std::min(objects.size(), begin + chunk));
+            {
+                ncnn::MutexLockGuard g(lock);
 
-                // Escape quotes in text for JSON
-                std::string escaped_text;
-                for (size_t j = 0; j < text.size(); j++)
+                if (!g_ppocrv5)
                 {
-                    if (text[j] == '"') escaped_text += "\\\"";
-                    else if (text[j] == '\\') escaped_text += "\\\\";
-                    else if (text[j] == '\n') escaped_text += "\\n";
-                    else escaped_text += text[j];
+                    complete = false;
+                    break;
                 }
+                g_ppocrv5->recognize_objects(rgb, lines);
+            }
 
-                if (i > 0) result_json += ",";
-                char buf[512];
-                snprintf(buf, sizeof(buf),
-                    "{\"text\":\"%s\",\"x\":%.1f,\"y\":%.1f,\"w\":%.1f,\"h\":%.1f,\"cx\":%.1f,\"cy\":%.1f}",
-                    escaped_text.c_str(),
-                    min_x, min_y, max_x - min_x, max_y - min_y,
-                    obj.rrect.center.x, obj.rrect.center.y);
-                result_json += buf;
+            for (size_t j = 0; j < lines.size() && !line_listener.has_failed(); j++)
+            {
+                objects[begin + j] = lines[j];
+                line_listener.on_recognized((int)(begin + j), lines[j]);
             }
         }
+        failed = line_listener.has_failed();
+        if (complete)
+            boxes_json = objects_to_json(objects, true);
     }
-    result_json += "]";
+    else
+    {
+        ncnn::MutexLockGuard g(lock);
+
+        if (g_ppocrv5)
+        {
+            g_ppocrv5->recognize_objects(rgb, objects);
+            boxes_json = objects_to_json(objects, true);
+        }
+    }
+
+    // let the pending listener exception reach the caller
+    if (failed)
+        return 0;
+
+    char buf[64];
+    snprintf(buf, sizeof(buf), "{\"recognized\":%d,\"skipped\":%d,\"boxes\":", (int)objects.size(), skipped);
+    std::string result_json = buf + boxes_json + "}";
 
     return env->NewStringUTF(result_json.c_str());
 }
 
+// public native float[] detectDocument(Bitmap bitmap);
+// Returns the page corners as x0, y0, ... x3, y3 from top-left clockwise, or null when none is found
+JNIEXPORT jfloatArray JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_detectDocument(JNIEnv* env, jobject thiz, jobject bitmap)
+{
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) < 0 || info.format != ANDROID_BITMAP_FORMAT_RGBA_8888)
+        return 0;
+
+    void* pixels = 0;
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) < 0)
+        return 0;
+
+    // The engine is not involved, no need for the lock
+    cv::Point2f corners[4];
+    bool found;
+    {
+        cv::Mat rgba(info.height, info.width, CV_8UC4, pixels, info.stride);
+        found = find_document_quad(rgba, corners);
+    }
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+
+    if (!found)
+        return 0;
+
+    float packed[8];
+    for (int i = 0; i < 4; i++)
+    {
+        packed[i * 2] = corners[i].x;
+        packed[i * 2 + 1] = corners[i].y;
+    }
+    jfloatArray result = env->NewFloatArray(8);
+    env->SetFloatArrayRegion(result, 0, 8, packed);
+    return result;
+}
+
+// public native boolean warpDocument(Bitmap src, float[] quad, Bitmap dst);
+// Maps the quad from detectDocument onto the whole of dst, both RGBA_8888
+JNIEXPORT jboolean JNICALL Java_com_tencent_ppocrv5ncnn_PPOCRv5Ncnn_warpDocument(JNIEnv* env, jobject thiz, jobject src, jfloatArray quad, jobject dst)
+{
+    if (env->GetArrayLength(quad) != 8)
+        return JNI_FALSE;
+
+    float packed[8];
+    env->GetFloatArrayRegion(quad, 0, 8, packed);
+
+    AndroidBitmapInfo src_info;
+    AndroidBitmapInfo dst_info;
+    if (AndroidBitmap_getInfo(env, src, &src_info) < 0 || src_info.format != ANDROID_BITMAP_FORMAT_RGBA_8888)
+        return JNI_FALSE;
+    if (AndroidBitmap_getInfo(env, dst, &dst_info) < 0 || dst_info.format != ANDROID_BITMAP_FORMAT_RGBA_8888)
+        return JNI_FALSE;
+
+    void* src_pixels = 0;
+    void* dst_pixels = 0;
+    if (AndroidBitmap_lockPixels(env, src, &src_pixels) < 0)
+        return JNI_FALSE;
+    if (AndroidBitmap_lockPixels(env, dst, &dst_pixels) < 0)
+    {
+        AndroidBitmap_unlockPixels(env, src);
+        return JNI_FALSE;
+    }
+
+    {
+        cv::Mat src_rgba(src_info.height, src_info.width, CV_8UC4, src_pixels, src_info.stride);
+        cv::Mat dst_rgba(dst_info.height, dst_info.width, CV_8UC4, dst_pixels, dst_info.stride);
+
+        const float w = (float)dst_info.width;
+        const float h = (float)dst_info.height;
+        cv::Point2f from[4];
+        cv::Point2f to[4] = { cv::Point2f(0, 0), cv::Point2f(w, 0), cv::Point2f(w, h), cv::Point2f(0, h) };
+        for (int i = 0; i < 4; i++)
+        {
+            from[i] = cv::Point2f(packed[i * 2], packed[i * 2 + 1]);
+        }
+
+        // dst_rgba has the output size and type, so the warp writes into the bitmap itself
+        cv::Mat transform = cv::getPerspectiveTransform(from, to);
+        cv::warpPerspective(src_rgba, dst_rgba, transform, dst_rgba.size(), cv::INTER_LINEAR, cv::BORDER_REPLICATE);
+    }
+
+    AndroidBitmap_unlockPixels(env, dst);
+    AndroidBitmap_unlockPixels(env, src);
+
+    return JNI_TRUE;
+}
+
 }
@@ -0,0 +1,89 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * BatchPipeline throughput with stand-in stages that sleep for a fixed
+ * time per document (decode 15 ms on 2 threads, ocr 60, extract 5, llm
+ * 80), run sequentially and pipelined. Sequential is bound by one document
+ * per 160 ms (375 docs/min), pipelined by the llm stage (750 docs/min).
+ * Runs only with -Dbenchmarks=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BatchPipelineBenchmark {
+    private static final int DOCUMENTS = 40;
+
+    @Test
+    public void sequentialAgainstPipelined() throws Exception {
+        assumeTrue("benchmark, run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++) sources.add("doc-" + i);
+
+        for (boolean sequential : new boolean[] {true, false}) {
+            // A fresh directory, so nothing is resumed from an earlier run
+            File dir = new File(System.getProperty("java.io.tmpdir"), "batch-benchmark-" + System.nanoTime());
+            BatchPipeline pipeline = new BatchPipeline(dir)
+                .addStage(new SleepingStage("decode", 15), 2, 4)
+                .addStage(new SleepingStage("ocr", 60), 1, 2)
+                .addStage(new SleepingStage("extract", 5), 1, 4)
+                .addStage(new SleepingStage("llm", 80), 1, 8);
+            pipeline.setSequential(sequential);
+            BatchPipeline.Stats stats = pipeline.run(sources);
+            assertEquals(DOCUMENTS, stats.done);
+            assertEquals(0, stats.failed);
+
+            System.out.println(String.format(Locale.US, "%s: %.0f docs/min in %d ms | %s",
+                sequential ? "sequential" : "pipelined", stats.docsPerMinute(), stats.elapsedMs, stats.stageTimes()));
+            new File(dir, BatchPipeline.RESULTS_FILE).delete();
+            new File(dir, BatchPipeline.CHECKPOINT_FILE).delete();
+            dir.delete();
+        }
+    }
+
+    private static class SleepingStage implements BatchPipeline.Stage {
+        private final String name;
+        private final long ms;
+
+        SleepingStage(String name, long ms) {
+            this.name = name;
+            this.ms = ms;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void process(BatchPipeline.Document doc) throws Exception {
+            Thread.sleep(ms);
+            doc.json = "{}";
+        }
+    }
+}
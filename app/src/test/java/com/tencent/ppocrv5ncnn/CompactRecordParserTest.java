@@ -0,0 +1,164 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CompactRecordParser fed KK| and M| lines in chunks that cut lines
+ * anywhere, with missing, extra and stray '|' values, and a last line the
+ * stream ends without a newline.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CompactRecordParserTest {
+    private static final String HEADER =
+        "KK|3201234567890123|BUDI SANTOSO|JL MERDEKA 1|001/002|SUKAMAJU|CIBIRU|KOTA BANDUNG|JAWA BARAT";
+    private static final String BUDI =
+        "M|BUDI SANTOSO|3201234567890001|LAKI-LAKI|BANDUNG|01-02-1970|ISLAM|SLTA/SEDERAJAT|WIRASWASTA"
+        + "|KAWIN|KEPALA KELUARGA|WNI|AHMAD|SITI";
+    private static final String ANI =
+        "M|ANI SANTOSO|3201234567890002|PEREMPUAN|BANDUNG|03-04-1975|ISLAM|DIPLOMA I/II|MENGURUS RUMAH TANGGA"
+        + "|KAWIN|ISTRI|WNI|HASAN|AMINAH";
+
+    @Test
+    public void sameRecordWhateverTheChunkSize() {
+        String response = "```\n" + HEADER + "\n" + BUDI + "\n" + ANI + "\n```\nSemoga membantu.";
+        for (int size = 1; size <= response.length(); size++) {
+            Recorder recorder = new Recorder();
+            CompactRecordParser parser = new CompactRecordParser(recorder);
+            for (int i = 0; i < response.length(); i += size) {
+                parser.feed(response.substring(i, Math.min(response.length(), i + size)));
+            }
+            assertTrue("chunk size " + size, parser.isDone());
+            KartuKeluargaRecord record = parser.finish();
+
+            assertEquals("JAWA BARAT", record.header(7));
+            assertEquals(2, record.members.size());
+            assertEquals("AMINAH", record.members.get(1).get("nama_ibu"));
+            assertEquals(KartuKeluargaRecord.HEADER_KEYS.length, recorder.fields.size());
+            assertEquals(Arrays.asList("0 BUDI SANTOSO", "1 ANI SANTOSO"), recorder.members);
+        }
+    }
+
+    @Test
+    public void memberIsReportedWhenItsLineEnds() {
+        Recorder recorder = new Recorder();
+        CompactRecordParser parser = new CompactRecordParser(recorder);
+        parser.feed(HEADER.substring(0, 20));
+        assertEquals(0, recorder.fields.size());
+        parser.feed(HEADER.substring(20) + "\n" + BUDI.substring(0, BUDI.length() - 1));
+        assertEquals(KartuKeluargaRecord.HEADER_KEYS.length, recorder.fields.size());
+        assertEquals(0, recorder.members.size());
+        parser.feed(BUDI.substring(BUDI.length() - 1) + "\n");
+        assertEquals(Arrays.asList("0 BUDI SANTOSO"), recorder.members);
+    }
+
+    @Test
+    public void missingValuesStayEmptyAndExtraOnesAreIgnored() {
+        Recorder recorder = new Recorder();
+        CompactRecordParser parser = new CompactRecordParser(recorder);
+        parser.feed("KK|3201234567890123|BUDI SANTOSO\n");
+        parser.feed("M|BUDI SANTOSO|3201234567890001\n");
+        parser.feed(ANI + "|EXTRA|MORE\n");
+        KartuKeluargaRecord record = parser.finish();
+
+        assertEquals("BUDI SANTOSO", record.header(1));
+        assertEquals("", record.header(2));
+        assertEquals(2, recorder.fields.size());
+        assertEquals("3201234567890001", record.members.get(0).get("nik"));
+        assertEquals("", record.members.get(0).get("jenis_kelamin"));
+        assertEquals("AMINAH", record.members.get(1).get("nama_ibu"));
+
+        // Lines with no value after the tag, or no name and NIK, are not members
+        parser = new CompactRecordParser(recorder);
+        parser.feed("M\nM|\nM||\n");
+        assertEquals(0, parser.finish().members.size());
+    }
+
+    @Test
+    public void strayPipeShiftsTheLaterValuesOfItsLineOnly() {
+        Recorder recorder = new Recorder();
+        CompactRecordParser parser = new CompactRecordParser(recorder);
+        parser.feed(HEADER + "\n");
+        // Values are positional: a '|' inside a name moves what follows it one column on
+        parser.feed(BUDI.replace("BUDI SANTOSO", "BUDI | SANTOSO") + "\n");
+        parser.feed(ANI.replace("AMINAH", "AMI|NAH") + "\n");
+        KartuKeluargaRecord record = parser.finish();
+
+        FamilyMember shifted = record.members.get(0);
+        assertEquals("BUDI", shifted.get("nama"));
+        assertEquals("SANTOSO", shifted.get("nik"));
+        assertEquals("AHMAD", shifted.get("nama_ibu"));
+        // In the last column the rest of the value is dropped
+        assertEquals("AMI", record.members.get(1).get("nama_ibu"));
+        assertEquals("3201234567890002", record.members.get(1).get("nik"));
+        assertEquals(2, recorder.members.size());
+    }
+
+    @Test
+    public void finishParsesALastLineWithoutNewline() {
+        Recorder recorder = new Recorder();
+        CompactRecordParser parser = new CompactRecordParser(recorder);
+        parser.feed(HEADER + "\n" + BUDI + "\n" + ANI);
+        assertEquals(1, recorder.members.size());
+        assertFalse(parser.isDone());
+
+        KartuKeluargaRecord record = parser.finish();
+        assertEquals(2, record.members.size());
+        assertEquals(Arrays.asList("0 BUDI SANTOSO", "1 ANI SANTOSO"), recorder.members);
+        // Nothing is left to parse a second time
+        assertEquals(2, parser.finish().members.size());
+    }
+
+    @Test
+    public void echoedSchemaAndSecondHeaderAreSkipped() {
+        Recorder recorder = new Recorder();
+        CompactRecordParser parser = new CompactRecordParser(recorder);
+        parser.feed("KK|no_kk|kepala_keluarga|alamat\nM|nama|nik|jenis_kelamin\n");
+        parser.feed(HEADER + "\n" + HEADER.replace("BUDI", "JOKO") + "\n" + BUDI + "\n");
+        KartuKeluargaRecord record = parser.finish();
+
+        assertEquals("BUDI SANTOSO", record.header(1));
+        assertEquals(KartuKeluargaRecord.HEADER_KEYS.length, recorder.fields.size());
+        assertEquals(1, record.members.size());
+    }
+
+    private static class Recorder implements CompactRecordParser.Listener {
+        final List<String> fields = new ArrayList<>();
+        final List<String> members = new ArrayList<>();
+
+        @Override
+        public void onField(String key, String value) {
+            fields.add(key + "=" + value);
+        }
+
+        @Override
+        public void onMember(int index, FamilyMember member) {
+            members.add(index + " " + member.get("nama"));
+        }
+    }
+}
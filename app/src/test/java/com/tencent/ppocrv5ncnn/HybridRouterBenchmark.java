@@ -0,0 +1,215 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * HybridRouter over 400 SamplePages with per-box noise: 60% clean, 25%
+ * light noise, 10% heavy noise and 5% with an unreadable table header.
+ * Noise lowers a value box's confidence, turns a vowel into 0 or drops a
+ * NIK digit. A stand-in model answers every prompt correctly at 150 tok/s
+ * prefill and 20 tok/s decode, with LayoutCompactor.estimate as the token
+ * count. Prints the routes, the prompt sizes, the mean latency against a
+ * full pass on every page and the wrong fields left after merging. Runs
+ * only with -Dbenchmarks=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class HybridRouterBenchmark {
+    private static final int PAGES = 400;
+    private static final double PREFILL_TOKENS_PER_S = 150;
+    private static final double DECODE_TOKENS_PER_S = 20;
+    private static final double TABLE_HEADER_Y = 220;
+
+    @Test
+    public void routesAndLatencyOnANoisyCorpus() throws Exception {
+        assumeTrue("benchmark, run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        SpatialExtractor.Template template = TemplateRegistry.load(RuntimeEnvironment.getApplication().getAssets()).kartuKeluarga();
+        Random random = new Random(35);
+        int[] routes = new int[HybridRouter.Route.values().length];
+        Map<String, int[]> byMix = new LinkedHashMap<>();   // pages per route, pages, targeted prompt and full input tokens
+        double routerMs = 0;
+        double fullMs = 0;
+        int wrongBefore = 0;
+        int wrongAfter = 0;
+        int fields = 0;
+
+        for (int i = 0; i < PAGES; i++) {
+            double u = random.nextDouble();
+            String mix;
+            float noise = 0;
+            if (u < 0.60) {
+                mix = "clean";
+            } else if (u < 0.85) {
+                mix = "light noise";
+                noise = 0.03f;
+            } else if (u < 0.95) {
+                mix = "heavy noise";
+                noise = 0.25f;
+            } else {
+                mix = "broken table";
+            }
+            SamplePages.Page page = SamplePages.kartuKeluarga(1 + random.nextInt(8), i);
+            KartuKeluargaRecord truth = page.truth;
+            String json = degrade(page, noise, mix.equals("broken table"), random);
+
+            HybridRouter.Plan plan = HybridRouter.plan(json, template);
+            int[] counts = byMix.get(mix);
+            if (counts == null) byMix.put(mix, counts = new int[routes.length + 3]);
+            routes[plan.route.ordinal()]++;
+            counts[plan.route.ordinal()]++;
+            counts[routes.length]++;
+
+            String spatial = SpatialExtractor.toSpatialText(json);
+            double full = ms(LayoutCompactor.estimate(spatial), LayoutCompactor.estimate(compact(truth)));
+            fullMs += full;
+            fields += KartuKeluargaRecord.HEADER_KEYS.length + CompactRecordParser.MEMBER_COLUMNS.length * truth.members.size();
+            double pageMs = plan.elapsedMs;
+            if (plan.route == HybridRouter.Route.FULL) {
+                // The full pass is taken as correct
+                pageMs += full;
+            } else {
+                wrongBefore += wrong(plan.record, truth);
+                if (plan.route == HybridRouter.Route.TARGETED) {
+                    StringBuilder answer = new StringBuilder();
+                    for (HybridRouter.FieldCheck check : plan.weak) {
+                        String value = check.member < 0
+                            ? truth.header(KartuKeluargaRecord.headerIndex(check.key))
+                            : truth.members.get(check.member).get(check.key);
+                        answer.append(check.id()).append('|').append(value).append('\n');
+                    }
+                    HybridRouter.merge(plan, answer.toString());
+                    int promptTokens = LayoutCompactor.estimate(plan.prompt);
+                    pageMs += ms(promptTokens, LayoutCompactor.estimate(answer.toString()));
+                    counts[routes.length + 1] += promptTokens;
+                    counts[routes.length + 2] += LayoutCompactor.estimate(spatial);
+                }
+                wrongAfter += wrong(plan.record, truth);
+            }
+            routerMs += pageMs;
+        }
+
+        System.out.println(String.format(Locale.US, "%d pages: RULES %d, TARGETED %d, FULL %d, LLM on %.1f%%",
+            PAGES, routes[HybridRouter.Route.RULES.ordinal()], routes[HybridRouter.Route.TARGETED.ordinal()],
+            routes[HybridRouter.Route.FULL.ordinal()],
+            100.0 * (PAGES - routes[HybridRouter.Route.RULES.ordinal()]) / PAGES));
+        for (Map.Entry<String, int[]> entry : byMix.entrySet()) {
+            int[] counts = entry.getValue();
+            int targeted = counts[HybridRouter.Route.TARGETED.ordinal()];
+            System.out.println(String.format(Locale.US, "  %-12s %3d pages: rules %d, targeted %d, full %d%s",
+                entry.getKey(), counts[routes.length], counts[HybridRouter.Route.RULES.ordinal()], targeted,
+                counts[HybridRouter.Route.FULL.ordinal()], targeted == 0 ? "" : String.format(Locale.US,
+                    ", targeted prompt %d tokens against a %d-token full input",
+                    counts[routes.length + 1] / targeted, counts[routes.length + 2] / targeted)));
+        }
+        System.out.println(String.format(Locale.US, "mean latency %.1f s/page, %.1f s/page with a full pass on every page",
+            routerMs / PAGES / 1000, fullMs / PAGES / 1000));
+        System.out.println(String.format(Locale.US, "wrong fields on pages without a full pass: %d before merge, %d after (of %d fields)",
+            wrongBefore, wrongAfter, fields));
+        assertEquals(0, wrongAfter);
+    }
+
+    /**
+     * The page with value boxes degraded at rate noise, or with the first
+     * table header misread so the rules find no table.
+     */
+    private static String degrade(SamplePages.Page page, float noise, boolean brokenTable, Random random) throws Exception {
+        KartuKeluargaRecord truth = page.truth;
+        Set<String> values = new HashSet<>();
+        values.add("No. " + truth.noKk);
+        for (int f = 1; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) values.add(": " + truth.header(f));
+        for (FamilyMember member : truth.members) {
+            for (String key : CompactRecordParser.MEMBER_COLUMNS) values.add(member.get(key));
+        }
+
+        JSONArray boxes = new JSONArray(page.json);
+        JSONArray out = new JSONArray();
+        for (int i = 0; i < boxes.length(); i++) {
+            JSONObject box = boxes.getJSONObject(i);
+            String text = box.getString("text");
+            if (brokenTable && box.getDouble("y") == TABLE_HEADER_Y) {
+                if (text.equals("No")) box.put("text", "N0");
+                else if (text.equals("Nama Lengkap")) box.put("text", "Nma Lngkp");
+                else if (text.equals("NIK")) box.put("text", "NlK");
+                else continue;
+            } else if (values.contains(text) && random.nextFloat() < noise) {
+                int kind = random.nextInt(3);
+                if (kind == 0) {
+                    // Blurry
+                    box.put("c", 0.45 + random.nextFloat() * 0.3);
+                } else if (kind == 1 && text.matches(".*[AEIO].*")) {
+                    box.put("text", text.replaceFirst("[AEIO]", "0"));
+                    box.put("c", 0.8 + random.nextFloat() * 0.1);
+                } else if (text.matches(".*\\d{16}")) {
+                    box.put("text", text.substring(0, text.length() - 1));
+                    box.put("c", 0.85);
+                } else {
+                    box.put("c", 0.6);
+                }
+            }
+            out.put(box);
+        }
+        return out.toString();
+    }
+
+    /** The record as the compact KK| and M| lines a full pass would decode. */
+    private static String compact(KartuKeluargaRecord record) {
+        StringBuilder sb = new StringBuilder("KK");
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) sb.append('|').append(record.header(f));
+        sb.append('\n');
+        for (FamilyMember member : record.members) {
+            sb.append('M');
+            for (String key : CompactRecordParser.MEMBER_COLUMNS) sb.append('|').append(member.get(key));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static double ms(int promptTokens, int outputTokens) {
+        return promptTokens / PREFILL_TOKENS_PER_S * 1000 + outputTokens / DECODE_TOKENS_PER_S * 1000;
+    }
+
+    /** Fields that differ from the truth; a missing or extra member counts all its fields. */
+    private static int wrong(KartuKeluargaRecord record, KartuKeluargaRecord truth) {
+        int wrong = 0;
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) {
+            if (!record.header(f).equals(truth.header(f))) wrong++;
+        }
+        int members = Math.min(record.members.size(), truth.members.size());
+        for (int m = 0; m < members; m++) {
+            for (String key : CompactRecordParser.MEMBER_COLUMNS) {
+                if (!record.members.get(m).get(key).equals(truth.members.get(m).get(key))) wrong++;
+            }
+        }
+        return wrong + Math.abs(record.members.size() - truth.members.size()) * CompactRecordParser.MEMBER_COLUMNS.length;
+    }
+}
@@ -0,0 +1,164 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/**
+ * HybridRouter on SamplePages with misread or low-confidence boxes: which
+ * route a page takes, what the targeted prompt asks, and which answers
+ * merge back.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class HybridRouterTest {
+    private SpatialExtractor.Template template;
+
+    @Before
+    public void setUp() throws Exception {
+        template = TemplateRegistry.load(RuntimeEnvironment.getApplication().getAssets()).kartuKeluarga();
+    }
+
+    @Test
+    public void cleanPageIsFinishedByTheRules() {
+        SamplePages.Page page = SamplePages.kartuKeluarga(3, 1);
+        HybridRouter.Plan plan = HybridRouter.plan(page.json, template);
+
+        assertEquals(plan.reason, HybridRouter.Route.RULES, plan.route);
+        assertEquals(KartuKeluargaRecord.HEADER_KEYS.length + 3 * CompactRecordParser.MEMBER_COLUMNS.length,
+            plan.checks.size());
+        assertTrue(plan.weak.isEmpty());
+        assertNull(plan.prompt);
+        assertEquals(RecordWriter.toJson(page.truth), RecordWriter.toJson(plan.record));
+    }
+
+    @Test
+    public void misreadFieldGoesToATargetedPromptAndMergesBack() throws Exception {
+        SamplePages.Page page = SamplePages.kartuKeluarga(3, 2);
+        FamilyMember second = page.truth.members.get(1);
+        String misread = second.nik.substring(0, 4) + "O" + second.nik.substring(5);
+        HybridRouter.Plan plan = HybridRouter.plan(edit(page.json, second.nik, misread, 0.97), template);
+
+        assertEquals(plan.reason, HybridRouter.Route.TARGETED, plan.route);
+        assertEquals(1, plan.weak.size());
+        assertEquals("2.nik", plan.weak.get(0).id());
+        assertTrue(plan.prompt, plan.prompt.contains("member 2 " + second.nama + ": 2.nik (16 digits)"));
+        // The rows of that member and the header of its table, not the rest of the page
+        assertTrue(plan.prompt, plan.prompt.contains(misread));
+        assertTrue(plan.prompt, plan.prompt.contains("Nama Lengkap"));
+        assertTrue(plan.prompt, plan.prompt.contains(second.hubunganKeluarga));
+        assertFalse(plan.prompt, plan.prompt.contains(page.truth.members.get(2).nik));
+
+        // Unknown ids, fields that were not asked and invalid values are ignored
+        String answer = "1.nik|3273000000000000\n2.nama|X\n2.nik|12345\n";
+        assertEquals(0, HybridRouter.merge(plan, answer));
+        assertEquals(1, HybridRouter.merge(plan, "Answer:\n- 2.nik| " + second.nik.substring(0, 8) + " "
+            + second.nik.substring(8) + "\n"));
+        assertEquals(RecordWriter.toJson(page.truth), RecordWriter.toJson(plan.record));
+    }
+
+    @Test
+    public void lowConfidenceMakesAFieldWeak() throws Exception {
+        SamplePages.Page page = SamplePages.kartuKeluarga(2, 3);
+        FamilyMember first = page.truth.members.get(0);
+        HybridRouter.Plan plan = HybridRouter.plan(edit(page.json, first.tanggalLahir, first.tanggalLahir, 0.6), template);
+
+        assertEquals(plan.reason, HybridRouter.Route.TARGETED, plan.route);
+        assertEquals("1.tanggal_lahir", plan.weak.get(0).id());
+        assertEquals(0.6f, plan.weak.get(0).score, 0.001f);
+    }
+
+    @Test
+    public void misreadCardNumberTakenFromTheTableIsWeak() throws Exception {
+        SamplePages.Page page = SamplePages.kartuKeluarga(3, 6);
+        String printed = "No. " + page.truth.noKk;
+        HybridRouter.Plan plan = HybridRouter.plan(edit(page.json, printed, printed.substring(0, printed.length() - 1), 0.85),
+            template);
+
+        // The rules fall back to the first 16 digits on the page, the head's NIK
+        assertEquals(page.truth.members.get(0).nik, plan.record.noKk);
+        assertEquals(plan.reason, HybridRouter.Route.TARGETED, plan.route);
+        assertEquals("no_kk", plan.weak.get(0).id());
+        assertTrue(plan.prompt, plan.prompt.contains(printed.substring(0, printed.length() - 1)));
+        assertEquals(1, HybridRouter.merge(plan, "no_kk|" + page.truth.noKk + "\n"));
+        assertEquals(page.truth.noKk, plan.record.noKk);
+    }
+
+    @Test
+    public void manyWeakFieldsGoToTheFullPass() throws Exception {
+        SamplePages.Page page = SamplePages.kartuKeluarga(3, 4);
+        JSONArray boxes = new JSONArray(page.json);
+        for (int i = 0; i < boxes.length(); i++) boxes.getJSONObject(i).put("c", 0.5);
+        HybridRouter.Plan plan = HybridRouter.plan(boxes.toString(), template);
+
+        assertEquals(HybridRouter.Route.FULL, plan.route);
+        assertEquals(plan.checks.size() + "/" + plan.checks.size() + " fields weak", plan.reason);
+        assertNull(plan.prompt);
+    }
+
+    @Test
+    public void pageWithoutTablesOrTemplateGoesToTheFullPass() {
+        String header = "[{\"text\":\"No. 3273000785063054\",\"x\":420,\"y\":40,\"w\":260,\"h\":20,\"cx\":550,\"cy\":50},"
+            + "{\"text\":\"Alamat\",\"x\":20,\"y\":110,\"w\":100,\"h\":20,\"cx\":70,\"cy\":120},"
+            + "{\"text\":\": JL MERDEKA 1\",\"x\":230,\"y\":110,\"w\":200,\"h\":20,\"cx\":330,\"cy\":120}]";
+        HybridRouter.Plan plan = HybridRouter.plan(header, template);
+        assertEquals(HybridRouter.Route.FULL, plan.route);
+        assertEquals("No family table found", plan.reason);
+
+        plan = HybridRouter.plan(SamplePages.kartuKeluarga(1, 5).json, null);
+        assertEquals(HybridRouter.Route.FULL, plan.route);
+        assertEquals("Kartu Keluarga template not loaded", plan.reason);
+    }
+
+    @Test
+    public void valuesAreCheckedPerField() {
+        assertTrue(HybridRouter.isValid("nik", "3273014512850003"));    // woman born on the 5th
+        assertFalse(HybridRouter.isValid("nik", "3273011313850003"));   // month 13
+        assertFalse(HybridRouter.isValid("tanggal_lahir", "31-13-1985"));
+        assertTrue(HybridRouter.isValid("nama_ayah", "-"));
+        assertFalse(HybridRouter.isValid("nama", "-"));
+        assertFalse(HybridRouter.isValid("tempat_lahir", "B0NDUNG"));
+        assertTrue(HybridRouter.isValid("pendidikan", "SLTA/SEDERAJAT"));
+        assertFalse(HybridRouter.isValid("agama", "0SLAM"));
+        assertFalse(HybridRouter.isValid("rt_rw", ""));
+    }
+
+    /** The page with the box reading text replaced by replacement at the given confidence. */
+    private static String edit(String json, String text, String replacement, double confidence) throws Exception {
+        JSONArray boxes = new JSONArray(json);
+        int edited = 0;
+        for (int i = 0; i < boxes.length(); i++) {
+            JSONObject box = boxes.getJSONObject(i);
+            if (!box.getString("text").equals(text)) continue;
+            box.put("text", replacement);
+            box.put("c", confidence);
+            edited++;
+        }
+        assertEquals("boxes reading " + text, 1, edited);
+        return boxes.toString();
+    }
+}
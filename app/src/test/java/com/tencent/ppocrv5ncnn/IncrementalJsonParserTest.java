@@ -0,0 +1,135 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * IncrementalJsonParser fed the way the LLM streams: in chunks that cut
+ * keys, strings and escapes anywhere, and streams that stop early.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class IncrementalJsonParserTest {
+    private static final String RESPONSE = "Berikut hasilnya:\n```json\n"
+        + "{\"no_kk\": \"3201234567890123\", \"kepala_keluarga\": \"BUDI \\\"BUDE\\\" SANTOSO\","
+        + " \"anggota_keluarga\": [{\"nik\": \"3201234567890001\", \"nama\": \"BUDI, {SANTOSO}\"},"
+        + " {\"nik\": \"3201234567890002\", \"nama\": \"SITI [AMINAH]\"}], \"rt_rw\": \"001/002\"}\n```";
+
+    private static final List<String> EVENTS = Arrays.asList(
+        "field no_kk=3201234567890123",
+        "field kepala_keluarga=BUDI \"BUDE\" SANTOSO",
+        "object anggota_keluarga 0 nik=3201234567890001 nama=BUDI, {SANTOSO}",
+        "object anggota_keluarga 1 nik=3201234567890002 nama=SITI [AMINAH]",
+        "field rt_rw=001/002");
+
+    @Test
+    public void sameEventsWhateverTheChunkSize() {
+        for (int size = 1; size <= RESPONSE.length(); size++) {
+            Recorder recorder = new Recorder();
+            IncrementalJsonParser parser = new IncrementalJsonParser(recorder);
+            for (int i = 0; i < RESPONSE.length(); i += size) {
+                parser.feed(RESPONSE.substring(i, Math.min(RESPONSE.length(), i + size)));
+            }
+            assertEquals("chunk size " + size, EVENTS, recorder.events);
+            assertTrue(parser.isDone());
+            assertEquals(0, parser.droppedValues());
+        }
+    }
+
+    @Test
+    public void keySplitAcrossChunksIsReportedOnce() {
+        Recorder recorder = new Recorder();
+        IncrementalJsonParser parser = new IncrementalJsonParser(recorder);
+        parser.feed("{\"no_");
+        parser.feed("kk\"");
+        parser.feed(": \"3201");
+        assertEquals(0, recorder.events.size());
+        parser.feed("234567890123\", \"anggota_kel");
+        assertEquals(Arrays.asList("field no_kk=3201234567890123"), recorder.events);
+        parser.feed("uarga\": [{\"ni");
+        parser.feed("k\": \"1\"}");
+        assertEquals("object anggota_keluarga 0 nik=1", recorder.events.get(1));
+    }
+
+    @Test
+    public void escapedQuoteAtAChunkEndStaysInTheString() {
+        Recorder recorder = new Recorder();
+        IncrementalJsonParser parser = new IncrementalJsonParser(recorder);
+        parser.feed("{\"nama\": \"A\\");
+        parser.feed("\"}, B\\\\");
+        parser.feed("\", \"agama\": \"ISLAM\"}");
+        assertEquals(Arrays.asList("field nama=A\"}, B\\", "field agama=ISLAM"), recorder.events);
+        assertTrue(parser.isDone());
+    }
+
+    @Test
+    public void unterminatedStreamReportsOnlyWhatClosed() {
+        Recorder recorder = new Recorder();
+        IncrementalJsonParser parser = new IncrementalJsonParser(recorder);
+        parser.feed("{\"no_kk\": \"3201234567890123\", \"anggota_keluarga\": [{\"nik\": \"1\"}, {\"nik\": \"2");
+        assertEquals(Arrays.asList("field no_kk=3201234567890123", "object anggota_keluarga 0 nik=1"),
+            recorder.events);
+        assertFalse(parser.isDone());
+
+        // A field cut inside its value is not reported either
+        recorder = new Recorder();
+        parser = new IncrementalJsonParser(recorder);
+        parser.feed("{\"no_kk\": \"3201234567890123\", \"alamat\": \"JL MERD");
+        assertEquals(Arrays.asList("field no_kk=3201234567890123"), recorder.events);
+        assertFalse(parser.isDone());
+    }
+
+    @Test
+    public void badValueIsDroppedAndInputAfterTheObjectIgnored() {
+        Recorder recorder = new Recorder();
+        IncrementalJsonParser parser = new IncrementalJsonParser(recorder);
+        parser.feed("{\"a\": {\"x\": }, \"b\": \"ok\", \"c\": [1, \"two\", {\"n\": 3}]} {\"d\": \"late\"}");
+        assertEquals(Arrays.asList("field b=ok", "object c 0 n=3"), recorder.events);
+        assertEquals(1, parser.droppedValues());
+        assertTrue(parser.isDone());
+    }
+
+    /** Events as text; object members are listed in a fixed key order. */
+    private static class Recorder implements IncrementalJsonParser.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onField(String key, Object value) {
+            events.add("field " + key + "=" + value);
+        }
+
+        @Override
+        public void onArrayObject(String key, int index, JSONObject object) {
+            StringBuilder sb = new StringBuilder("object " + key + " " + index);
+            for (String name : new String[] {"nik", "nama", "n"}) {
+                if (object.has(name)) sb.append(' ').append(name).append('=').append(object.opt(name));
+            }
+            events.add(sb.toString());
+        }
+    }
+}
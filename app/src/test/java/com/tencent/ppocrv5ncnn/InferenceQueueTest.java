@@ -0,0 +1,238 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * InferenceQueue with tasks that hold the worker until released or
+ * cancelled: key supersession, a full queue for offer() and put(), the
+ * idle task and shutdown().
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class InferenceQueueTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private InferenceQueue queue;
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        queue = new InferenceQueue("test-queue", 2);
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    @Test
+    public void sameKeySupersedesPendingAndCancelsRunning() throws Exception {
+        HeldTask first = new HeldTask("a1");
+        assertTrue(queue.offer("a", first));
+        assertTrue(first.awaitStarted());
+
+        HeldTask b1 = new HeldTask("b1");
+        HeldTask b2 = new HeldTask("b2");
+        assertTrue(queue.offer("b", b1));
+        assertTrue(queue.offer("b", b2));
+        assertEquals("superseded", b1.droppedReason);
+        assertEquals(1, queue.getMetrics().depth);
+
+        // A newer "a" stops the running one; the queue then runs in submission order
+        HeldTask second = new HeldTask("a2");
+        assertTrue(queue.offer("a", second));
+        assertTrue(first.cancelled);
+        b2.release();
+        second.release();
+        assertTrue(second.awaitFinished());
+
+        assertEquals(Arrays.asList("a1", "b2", "a2"), ran);
+        assertNull(b2.droppedReason);
+        assertEquals(2, queue.getMetrics().coalesced);
+        assertEquals(3, queue.getMetrics().completed);
+    }
+
+    @Test
+    public void offerOnAFullQueueIsRejected() throws Exception {
+        HeldTask busy = new HeldTask("busy");
+        queue.offer(null, busy);
+        assertTrue(busy.awaitStarted());
+        assertTrue(queue.offer("p1", new HeldTask("p1")));
+        assertTrue(queue.offer("p2", new HeldTask("p2")));
+
+        HeldTask refused = new HeldTask("p3");
+        assertFalse(queue.offer("p3", refused));
+        assertEquals("queue full", refused.droppedReason);
+        assertEquals(1, queue.getMetrics().rejected);
+
+        // Replacing a pending task does not need room
+        HeldTask replacement = new HeldTask("p2 again");
+        assertTrue(queue.offer("p2", replacement));
+        assertEquals(2, queue.getMetrics().depth);
+    }
+
+    @Test
+    public void putWaitsForRoom() throws Exception {
+        HeldTask busy = new HeldTask("busy");
+        queue.offer(null, busy);
+        assertTrue(busy.awaitStarted());
+        queue.offer(null, new HeldTask("p1").released());
+        queue.offer(null, new HeldTask("p2").released());
+
+        final HeldTask waiting = new HeldTask("p3").released();
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.put(null, waiting);
+                    queued.countDown();
+                } catch (InterruptedException e) {
+                    // the test fails on the latch
+                }
+            }
+        });
+        producer.start();
+        assertFalse(queued.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.getMetrics().rejected);
+
+        busy.release();
+        assertTrue(queued.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(waiting.awaitFinished());
+        assertEquals(Arrays.asList("busy", "p1", "p2", "p3"), ran);
+    }
+
+    @Test
+    public void idleTaskRunsOnceAfterTheQueueWasIdle() throws Exception {
+        final AtomicInteger idleRuns = new AtomicInteger();
+        final long[] idleAt = new long[1];
+        final CountDownLatch idle = new CountDownLatch(1);
+        queue.setIdleTask(200, new Runnable() {
+            @Override
+            public void run() {
+                idleAt[0] = System.currentTimeMillis();
+                idleRuns.incrementAndGet();
+                idle.countDown();
+            }
+        });
+        // Not before any task has run
+        assertFalse(idle.await(400, TimeUnit.MILLISECONDS));
+
+        HeldTask task = new HeldTask("task").released();
+        queue.offer(null, task);
+        assertTrue(task.awaitFinished());
+        assertTrue(idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue("idle after " + (idleAt[0] - task.finishedAt) + " ms", idleAt[0] - task.finishedAt >= 190);
+
+        Thread.sleep(500);
+        assertEquals(1, idleRuns.get());
+    }
+
+    @Test
+    public void shutdownDropsPendingAndStopsRunning() throws Exception {
+        HeldTask busy = new HeldTask("busy");
+        queue.offer(null, busy);
+        assertTrue(busy.awaitStarted());
+        HeldTask pending = new HeldTask("pending");
+        queue.offer(null, pending);
+
+        queue.shutdown();
+        assertTrue(busy.cancelled);
+        assertEquals("queue shut down", pending.droppedReason);
+        assertTrue(busy.awaitFinished());
+
+        HeldTask late = new HeldTask("late");
+        assertFalse(queue.offer(null, late));
+        assertEquals("queue shut down", late.droppedReason);
+        HeldTask put = new HeldTask("put");
+        queue.put(null, put);
+        assertEquals("queue shut down", put.droppedReason);
+
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("busy"), ran);
+    }
+
+    /** Records its name when it runs and holds the worker until released or cancelled. */
+    private class HeldTask implements InferenceQueue.Task {
+        final String name;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile boolean cancelled;
+        volatile String droppedReason;
+        volatile long finishedAt;
+
+        HeldTask(String name) {
+            this.name = name;
+        }
+
+        HeldTask released() {
+            go.countDown();
+            return this;
+        }
+
+        void release() {
+            go.countDown();
+        }
+
+        boolean awaitStarted() throws InterruptedException {
+            return started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        boolean awaitFinished() throws InterruptedException {
+            return finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run(long waitMs) throws Exception {
+            ran.add(name);
+            started.countDown();
+            go.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            finishedAt = System.currentTimeMillis();
+            finished.countDown();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            go.countDown();
+        }
+
+        @Override
+        public void dropped(String reason) {
+            droppedReason = reason;
+        }
+    }
+}
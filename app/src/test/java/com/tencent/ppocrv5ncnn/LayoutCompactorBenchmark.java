@@ -0,0 +1,108 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+
+/**
+ * Input tokens of the full LLM pass before and after LayoutCompactor on
+ * pages with the issuing footer, counted with LayoutCompactor.ESTIMATE;
+ * the model tokenizer gives the real counts on a device. Prefill time is at
+ * a stand-in 150 tokens/s. Runs only with -Dbenchmarks=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LayoutCompactorBenchmark {
+    private static final double PREFILL_TOKENS_PER_S = 150;
+    private static final int NO_LIMIT = 3000;
+    private static final int RUNS = 500;
+
+    @Test
+    public void tokensSavedAndFieldsKept() throws Exception {
+        assumeTrue("benchmark, run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        SpatialExtractor.Template template = TemplateRegistry.load(RuntimeEnvironment.getApplication().getAssets()).kartuKeluarga();
+        System.out.println("members | before, after, saved | prefill before -> after | fields kept");
+        for (int members : new int[] {1, 3, 5, 8, 10}) {
+            SamplePages.Page page = SamplePages.kartuKeluarga(members, 36);
+            LayoutCompactor.Result result = LayoutCompactor.compact(page.json, template, NO_LIMIT, LayoutCompactor.ESTIMATE);
+            int total = KartuKeluargaRecord.HEADER_KEYS.length + members * CompactRecordParser.MEMBER_COLUMNS.length;
+            int kept = headerKept(page.truth, result.text) + membersKept(page.truth, result.text) * CompactRecordParser.MEMBER_COLUMNS.length;
+            assertEquals("a value was compacted away", total, kept);
+            System.out.println(String.format(Locale.US, "%7d | %6d, %5d, %3.0f%% | %5.0f -> %5.0f ms | %d/%d",
+                members, result.tokensIn, result.tokensOut, 100.0 * (result.tokensIn - result.tokensOut) / result.tokensIn,
+                result.tokensIn * 1000 / PREFILL_TOKENS_PER_S, result.tokensOut * 1000 / PREFILL_TOKENS_PER_S, kept, total));
+        }
+
+        // A budget that fits about half of a 10-member page
+        SamplePages.Page page = SamplePages.kartuKeluarga(10, 36);
+        LayoutCompactor.Result result = LayoutCompactor.compact(page.json, template, 400, LayoutCompactor.ESTIMATE);
+        assertTrue(result.truncated);
+        assertEquals(KartuKeluargaRecord.HEADER_KEYS.length, headerKept(page.truth, result.text));
+        System.out.println(String.format(Locale.US, "budget 400, 10 members: %s, header %d/%d, members kept in both tables %d/10",
+            result, headerKept(page.truth, result.text), KartuKeluargaRecord.HEADER_KEYS.length,
+            membersKept(page.truth, result.text)));
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) LayoutCompactor.compact(page.json, template, NO_LIMIT, LayoutCompactor.ESTIMATE);
+            if (round == 0) continue;
+            System.out.println(String.format(Locale.US, "LayoutCompactor %.2f ms per 10-member page",
+                (System.nanoTime() - start) / 1e6 / RUNS));
+        }
+    }
+
+    private static int headerKept(KartuKeluargaRecord truth, String text) {
+        int kept = 0;
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) {
+            if (text.contains(truth.header(f))) kept++;
+        }
+        return kept;
+    }
+
+    /** Members with every value of both table rows in the text; the leading members are checked in order. */
+    private static int membersKept(KartuKeluargaRecord truth, String text) {
+        String[] lines = text.split("\n");
+        int kept = 0;
+        for (int m = 0; m < truth.members.size(); m++) {
+            FamilyMember member = truth.members.get(m);
+            String number = String.valueOf(m + 1);
+            boolean first = false;
+            boolean second = false;
+            for (String line : lines) {
+                if (!line.trim().startsWith(number + " ")) continue;
+                if (line.contains(member.nik) && line.contains(member.nama) && line.contains(member.pekerjaan)
+                        && line.contains(member.tanggalLahir) && line.contains(member.jenisKelamin)
+                        && line.contains(member.tempatLahir) && line.contains(member.agama) && line.contains(member.pendidikan)) {
+                    first = true;
+                } else if (line.contains(member.statusPerkawinan) && line.contains(member.hubunganKeluarga)
+                        && line.contains(member.kewarganegaraan) && line.contains(member.namaAyah) && line.contains(member.namaIbu)) {
+                    second = true;
+                }
+            }
+            if (first && second) kept++;
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,133 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LayoutCompactor on SamplePages: what is dropped as boilerplate, how rows
+ * are written, and which rows go when the budget is short.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LayoutCompactorTest {
+    private static final int NO_LIMIT = 3000;
+
+    private SpatialExtractor.Template template;
+
+    @Before
+    public void setUp() throws Exception {
+        template = TemplateRegistry.load(RuntimeEnvironment.getApplication().getAssets()).kartuKeluarga();
+    }
+
+    @Test
+    public void boilerplateAndFooterAreDroppedAndValuesKept() {
+        SamplePages.Page page = SamplePages.kartuKeluarga(3, 1);
+        LayoutCompactor.Result result = LayoutCompactor.compact(page.json, template, NO_LIMIT, LayoutCompactor.ESTIMATE);
+
+        for (String gone : new String[] {"Dikeluarkan", "LEMBAR", "KEPALA DINAS", "NIP", "AHMAD SUHARTO", "BSrE"}) {
+            assertFalse(gone, result.text.contains(gone));
+        }
+        assertFalse(result.text.startsWith("KARTU KELUARGA"));
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) {
+            assertTrue(page.truth.header(f), result.text.contains(page.truth.header(f)));
+        }
+        for (FamilyMember member : page.truth.members) {
+            for (String key : CompactRecordParser.MEMBER_COLUMNS) {
+                assertTrue(key, result.text.contains(member.get(key)));
+            }
+        }
+        assertFalse(result.truncated);
+        assertEquals(result.rowsIn, result.rowsKept + result.rowsBoilerplate);
+        assertTrue(result.toString(), result.tokensOut < result.tokensIn);
+    }
+
+    @Test
+    public void rowsAreWrittenWithLabelsAttachedAndBarsBetweenColumns() {
+        SamplePages.Page page = SamplePages.kartuKeluarga(1, 2);
+        String text = LayoutCompactor.compact(page.json, template, NO_LIMIT, LayoutCompactor.ESTIMATE).text;
+
+        assertTrue(text, text.contains("Nama Kepala Keluarga: BUDI SANTOSO|Desa/Kelurahan: SUKAMAJU\n"));
+        assertTrue(text, text.contains("\nRT/RW: " + page.truth.rtRw + "|Kabupaten/Kota: BANDUNG\n"));
+        // Table cells sit closer than a column gap, so only the wide gap after NIK gets a bar
+        assertTrue(text, text.contains("\nNo Nama Lengkap NIK|Jenis Kelamin Tempat Lahir "));
+        FamilyMember member = page.truth.members.get(0);
+        assertTrue(text, text.contains("\n1 " + member.nama + " " + member.nik + " " + member.jenisKelamin + " "));
+    }
+
+    @Test
+    public void shortBudgetDropsWholeMembersFromTheEnd() {
+        SamplePages.Page page = SamplePages.kartuKeluarga(10, 3);
+        LayoutCompactor.Result result = LayoutCompactor.compact(page.json, template, 400, LayoutCompactor.ESTIMATE);
+
+        assertTrue(result.truncated);
+        assertTrue(result.tokensOut <= 400);
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) {
+            assertTrue(page.truth.header(f), result.text.contains(page.truth.header(f)));
+        }
+        // Each member keeps both table rows or neither, and the kept ones come first
+        String[] lines = result.text.split("\n");
+        int kept = 0;
+        for (int m = 1; m <= 10; m++) {
+            int rows = 0;
+            for (String line : lines) {
+                if (line.startsWith(m + " ")) rows++;
+            }
+            assertTrue("member " + m + " has " + rows + " rows", rows == 0 || rows == 2);
+            if (rows == 2) {
+                assertEquals("member " + m + " kept after a dropped one", m - 1, kept);
+                kept++;
+            }
+        }
+        assertTrue(kept > 0 && kept < 10);
+    }
+
+    @Test
+    public void pageIsCountedInOneCall() {
+        SamplePages.Page page = SamplePages.kartuKeluarga(4, 4);
+        final List<List<String>> calls = new ArrayList<>();
+        LayoutCompactor.Result result = LayoutCompactor.compact(page.json, template, NO_LIMIT,
+            new LayoutCompactor.TokenCounter() {
+                @Override
+                public int[] count(List<String> texts) {
+                    calls.add(texts);
+                    return LayoutCompactor.ESTIMATE.count(texts);
+                }
+            });
+
+        assertEquals(1, calls.size());
+        assertEquals(SpatialExtractor.toSpatialText(page.json), calls.get(0).get(0));
+        assertEquals(LayoutCompactor.estimate(calls.get(0).get(0)), result.tokensIn);
+        assertEquals(result.rowsKept + 1, calls.get(0).size());
+    }
+
+    @Test
+    public void noLayoutGivesAnEmptyText() {
+        assertEquals("", LayoutCompactor.compact("[]", template, NO_LIMIT, LayoutCompactor.ESTIMATE).text);
+        assertEquals("", LayoutCompactor.compact("not json", template, NO_LIMIT, LayoutCompactor.ESTIMATE).text);
+    }
+}
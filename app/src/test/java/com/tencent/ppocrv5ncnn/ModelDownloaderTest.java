@@ -0,0 +1,231 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ModelDownloader against RangeServer on the loopback interface: resume
+ * with Range and If-Range, chunks retried after drops and 503s, and the
+ * SHA-256 checked against the published one. throughput() is a benchmark
+ * and only runs with -Dbenchmarks=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ModelDownloaderTest {
+    private static final String MODEL_ID = "stub-model";
+    private static final long TIMEOUT_S = 60;
+
+    private RangeServer server;
+    private ModelStore store;
+    private ModelDownloader downloader;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new RangeServer();
+        store = new ModelStore(RuntimeEnvironment.getApplication());
+        downloader = new ModelDownloader(store, MODEL_ID, 1, server.url());
+        content = random(8 << 20, 1);
+        server.setContent(content, "\"v1\"", true);
+    }
+
+    @After
+    public void tearDown() {
+        downloader.cancel();
+        server.close();
+    }
+
+    @Test
+    public void streamDownloadsVerifiesAndInstalls() throws Exception {
+        assertEquals("ok", run(downloader, 0));
+
+        assertTrue(downloader.isModelDownloaded());
+        assertFalse(downloader.hasPartialDownload());
+        assertInstalled(content);
+        assertEquals(1, server.requests(200).size());
+    }
+
+    @Test
+    public void cancelledStreamResumesWithIfRange() throws Exception {
+        server.setBytesPerSecond(16 << 20);
+        assertEquals("Download cancelled", run(downloader, 40));
+        assertTrue(downloader.hasPartialDownload());
+        long kept = tempFile().length();
+        assertTrue(kept > 0 && kept < content.length);
+
+        server.setBytesPerSecond(0);
+        assertEquals("ok", run(downloader, 0));
+
+        RangeServer.Request resume = last(server.requests(206));
+        assertEquals("bytes=" + kept + "-", resume.range);
+        assertEquals("\"v1\"", resume.ifRange);
+        assertInstalled(content);
+    }
+
+    @Test
+    public void fileChangedOnTheServerIsDownloadedAgain() throws Exception {
+        server.setBytesPerSecond(16 << 20);
+        assertEquals("Download cancelled", run(downloader, 30));
+
+        byte[] changed = random(content.length, 2);
+        server.setContent(changed, "\"v2\"", true);
+        server.setBytesPerSecond(0);
+        assertEquals("ok", run(downloader, 0));
+
+        // The resume carried the old validator and got the whole new file instead of a range
+        assertEquals(3, server.requests(200).size());
+        RangeServer.Request resume = server.requests(200).get(1);
+        assertTrue(resume.range, resume.range.matches("bytes=[1-9][0-9]*-"));
+        assertEquals("\"v1\"", resume.ifRange);
+        assertInstalled(changed);
+    }
+
+    @Test
+    public void chunksAreRetriedAfterDropsAndUnavailable() throws Exception {
+        content = random(4 << 20, 3);
+        server.setContent(content, "\"v1\"", true);
+        server.fail(RangeServer.Failure.DROP, RangeServer.Failure.UNAVAILABLE, RangeServer.Failure.DROP);
+        downloader.setConnections(4);
+        assertEquals("ok", run(downloader, 0));
+
+        assertEquals(1, server.requests(503).size());
+        // A dropped chunk reconnects from where its data stopped, not from its start
+        long chunk = content.length / 4;
+        int resumedInside = 0;
+        for (RangeServer.Request request : server.requests(206)) {
+            long from = Long.parseLong(request.range.substring("bytes=".length()).split("-")[0]);
+            if (from % chunk != 0) resumedInside++;
+        }
+        assertEquals(2, resumedInside);
+        assertInstalled(content);
+    }
+
+    @Test
+    public void corruptedCopyIsDiscarded() throws Exception {
+        byte[] corrupted = content.clone();
+        corrupted[corrupted.length / 2 + 17] ^= 1;
+        server.setContent(corrupted, "\"v1\"", false);
+        server.setPublished(RangeServer.sha256(content));
+
+        for (int connections : new int[] {1, 4}) {
+            downloader.setConnections(connections);
+            assertEquals("Download failed: Checksum mismatch, download discarded", run(downloader, 0));
+            assertFalse(downloader.isModelDownloaded());
+            assertFalse(downloader.hasPartialDownload());
+            assertFalse(tempFile().exists());
+        }
+    }
+
+    @Test
+    public void serverWithoutRangesIsStreamed() throws Exception {
+        server.setRanges(false);
+        downloader.setConnections(4);
+        assertEquals("ok", run(downloader, 0));
+
+        assertTrue(server.requests(206).isEmpty());
+        assertInstalled(content);
+    }
+
+    /** MB/s for 1 and 4 connections over loopback, hashing included. */
+    @Test
+    public void throughput() throws Exception {
+        assumeTrue("benchmark, run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        content = random(256 << 20, 4);
+        server.setContent(content, "\"v1\"", true);
+        int version = 1;
+        for (int connections : new int[] {1, 4}) {
+            long[] ms = new long[3];
+            for (int i = 0; i < ms.length; i++) {
+                ModelDownloader fresh = new ModelDownloader(store, MODEL_ID, ++version, server.url());
+                fresh.setConnections(connections);
+                long start = System.nanoTime();
+                assertEquals("ok", run(fresh, 0));
+                ms[i] = (System.nanoTime() - start) / 1000000;
+                store.remove(MODEL_ID, version);
+            }
+            Arrays.sort(ms);
+            System.out.println(String.format(Locale.US, "ModelDownloader %d MB, %d connection(s): median %d ms, %.0f MB/s",
+                content.length >> 20, connections, ms[1], (content.length >> 20) * 1000.0 / ms[1]));
+        }
+    }
+
+    /** "ok" or the error; cancels once progress reaches cancelAtPercent, if positive. */
+    private static String run(final ModelDownloader downloader, final int cancelAtPercent) throws Exception {
+        final String[] outcome = new String[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        downloader.downloadModel(new ModelDownloader.DownloadCallback() {
+            @Override
+            public void onProgress(int percent, long downloadedBytes, long totalBytes) {
+                if (cancelAtPercent > 0 && percent >= cancelAtPercent) downloader.cancel();
+            }
+
+            @Override
+            public void onSuccess(String modelPath) {
+                outcome[0] = "ok";
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                outcome[0] = error;
+                done.countDown();
+            }
+        });
+        assertTrue("download timed out", done.await(TIMEOUT_S, TimeUnit.SECONDS));
+        return outcome[0];
+    }
+
+    private void assertInstalled(byte[] expected) throws IOException {
+        assertTrue(downloader.isModelDownloaded());
+        File model = new File(downloader.getModelPath());
+        assertEquals(RangeServer.sha256(expected), RangeServer.sha256(Files.readAllBytes(model.toPath())));
+    }
+
+    private File tempFile() {
+        return new File(store.stagingDir(MODEL_ID, 1), ModelStore.LLM_FILE + ".tmp");
+    }
+
+    private static RangeServer.Request last(List<RangeServer.Request> requests) {
+        return requests.get(requests.size() - 1);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,141 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Output tokens and streaming latency of the JSON and COMPACT formats,
+ * replayed without a model: the response each format asks for is written
+ * out for a known record, cut into tokens by a BPE-like proxy and fed to
+ * its parser one token at a time at a stand-in decode rate. Real token
+ * counts are in LlmHelper.Timing on a device. Runs only with
+ * -Dbenchmarks=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class OutputFormatBenchmark {
+    // One token per digit, letter runs in 4-char pieces, punctuation in pairs, whitespace runs
+    private static final Pattern TOKEN = Pattern.compile("\\d|[A-Za-z]{1,4}|[ ]?[^\\sA-Za-z\\d]{1,2}|\\s+");
+    private static final double DECODE_TOKENS_PER_S = 20;
+
+    @Test
+    public void tokensAndLatencyByFormat() throws Exception {
+        assumeTrue("benchmark, run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        System.out.println("members | JSON tokens, first member, total | COMPACT tokens, first member, total");
+        for (int members : new int[] {1, 4, 10}) {
+            KartuKeluargaRecord truth = SamplePages.kartuKeluarga(members, 34).truth;
+
+            final KartuKeluargaRecord fromJson = new KartuKeluargaRecord();
+            final int[] firstMember = {-1, -1};
+            final int[] fed = {0};
+            IncrementalJsonParser json = new IncrementalJsonParser(new IncrementalJsonParser.Listener() {
+                @Override
+                public void onField(String key, Object value) {
+                    int field = KartuKeluargaRecord.headerIndex(key);
+                    if (field >= 0) fromJson.setHeader(field, (String) value);
+                }
+
+                @Override
+                public void onArrayObject(String key, int index, JSONObject object) {
+                    if (firstMember[0] < 0) firstMember[0] = fed[0];
+                    fromJson.members.add(FamilyMember.fromJson(object));
+                }
+            });
+            List<String> jsonTokens = tokens(jsonOutput(truth));
+            for (String token : jsonTokens) {
+                fed[0]++;
+                json.feed(token);
+            }
+
+            CompactRecordParser compact = new CompactRecordParser(new CompactRecordParser.Listener() {
+                @Override
+                public void onField(String key, String value) {
+                }
+
+                @Override
+                public void onMember(int index, FamilyMember member) {
+                    if (firstMember[1] < 0) firstMember[1] = fed[0];
+                }
+            });
+            fed[0] = 0;
+            List<String> compactTokens = tokens(compactOutput(truth));
+            for (String token : compactTokens) {
+                fed[0]++;
+                compact.feed(token);
+            }
+
+            assertEquals(RecordWriter.toJson(truth), RecordWriter.toJson(fromJson));
+            assertEquals(RecordWriter.toJson(truth), RecordWriter.toJson(compact.finish()));
+            System.out.println(String.format(Locale.US, "%7d | %5d, %5.1f s, %5.1f s | %5d, %5.1f s, %5.1f s",
+                members, jsonTokens.size(), firstMember[0] / DECODE_TOKENS_PER_S, jsonTokens.size() / DECODE_TOKENS_PER_S,
+                compactTokens.size(), firstMember[1] / DECODE_TOKENS_PER_S, compactTokens.size() / DECODE_TOKENS_PER_S));
+        }
+    }
+
+    private static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        Matcher m = TOKEN.matcher(text);
+        while (m.find()) tokens.add(m.group());
+        return tokens;
+    }
+
+    /** The JSON the verbose prompt asks for, keys in its example's order. */
+    private static String jsonOutput(KartuKeluargaRecord record) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) {
+            if (f > 0) sb.append(',');
+            sb.append(JSONObject.quote(KartuKeluargaRecord.HEADER_KEYS[f])).append(':').append(JSONObject.quote(record.header(f)));
+        }
+        sb.append(",\"anggota_keluarga\":[");
+        for (int m = 0; m < record.members.size(); m++) {
+            if (m > 0) sb.append(',');
+            sb.append('{');
+            for (int c = 0; c < CompactRecordParser.MEMBER_COLUMNS.length; c++) {
+                String key = CompactRecordParser.MEMBER_COLUMNS[c];
+                if (c > 0) sb.append(',');
+                sb.append(JSONObject.quote(key)).append(':').append(JSONObject.quote(record.members.get(m).get(key)));
+            }
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    /** The KK| and M| lines the COMPACT prompt asks for. */
+    private static String compactOutput(KartuKeluargaRecord record) {
+        StringBuilder sb = new StringBuilder("KK");
+        for (int f = 0; f < KartuKeluargaRecord.HEADER_KEYS.length; f++) sb.append('|').append(record.header(f));
+        sb.append('\n');
+        for (FamilyMember member : record.members) {
+            sb.append('M');
+            for (String key : CompactRecordParser.MEMBER_COLUMNS) sb.append('|').append(member.get(key));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
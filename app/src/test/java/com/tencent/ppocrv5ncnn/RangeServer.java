@@ -0,0 +1,246 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local stand-in for the model host. /model.task answers like Hugging
+ * Face: a redirect to the CDN copy that publishes the SHA-256 as
+ * X-Linked-Etag. /cdn/model.task serves the file with Range and If-Range
+ * against a strong ETag. Failures can be queued for the next file requests,
+ * the rate can be throttled, and every file request is recorded.
+ */
+class RangeServer implements Closeable {
+    static final String PATH = "/model.task";
+    private static final String CDN_PATH = "/cdn/model.task";
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    enum Failure {
+        /** Headers and half the body, then the connection closes. */
+        DROP,
+        /** 503 before any body. */
+        UNAVAILABLE
+    }
+
+    /** One request for the file, as the server saw it. */
+    static class Request {
+        final String method;
+        final String range;     // null without a Range header
+        final String ifRange;
+        final int status;
+
+        Request(String method, String range, String ifRange, int status) {
+            this.method = method;
+            this.range = range;
+            this.ifRange = ifRange;
+            this.status = status;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + range + " If-Range " + ifRange + " -> " + status;
+        }
+    }
+
+    final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+    private volatile byte[] content = new byte[0];
+    private volatile String etag = "\"v0\"";
+    private volatile String published = "";
+    private volatile boolean ranges = true;
+    private volatile long bytesPerSecond;   // 0 serves as fast as the socket takes it
+
+    RangeServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                redirect(exchange);
+            }
+        });
+        server.createContext(CDN_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String url() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + PATH;
+    }
+
+    /** Serve content under etag; publish its SHA-256 on the redirect when publish is set. */
+    void setContent(byte[] content, String etag, boolean publish) {
+        this.content = content;
+        this.etag = etag;
+        this.published = publish ? sha256(content) : "";
+    }
+
+    /** Publish a checksum other than that of the content, as a corrupting CDN would. */
+    void setPublished(String sha256) {
+        this.published = sha256;
+    }
+
+    /** Without ranges every request gets the whole file with 200. */
+    void setRanges(boolean ranges) {
+        this.ranges = ranges;
+    }
+
+    void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Fail the next file requests for data, one failure each, in order. */
+    void fail(Failure... next) {
+        Collections.addAll(failures, next);
+    }
+
+    /** File requests with status, e.g. 206 for the ranges served. */
+    List<Request> requests(int status) {
+        List<Request> matching = new ArrayList<>();
+        synchronized (requests) {
+            for (Request request : requests) {
+                if (request.status == status) matching.add(request);
+            }
+        }
+        return matching;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) sb.append(String.format(Locale.US, "%02x", b & 0xff));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void redirect(HttpExchange exchange) throws IOException {
+        if (!published.isEmpty()) exchange.getResponseHeaders().add("X-Linked-Etag", "\"" + published + "\"");
+        exchange.getResponseHeaders().add("Location", CDN_PATH);
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] data = content;
+        String method = exchange.getRequestMethod();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        // A one-byte probe for the length is never failed, so failures land on the data
+        Failure failure = ("GET".equals(method) && !"bytes=0-0".equals(range)) ? failures.poll() : null;
+        exchange.getResponseHeaders().add("ETag", etag);
+
+        if (failure == Failure.UNAVAILABLE) {
+            respond(exchange, method, range, ifRange, 503, -1);
+            return;
+        }
+        long from = 0;
+        long to = data.length - 1;
+        int status = 200;
+        // If-Range with another validator means the file changed: send all of it
+        if (ranges && range != null && (ifRange == null || ifRange.equals(etag))) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            from = Long.parseLong(bounds[0]);
+            if (!bounds[1].isEmpty()) to = Math.min(to, Long.parseLong(bounds[1]));
+            if (from >= data.length) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + data.length);
+                respond(exchange, method, range, ifRange, 416, -1);
+                return;
+            }
+            status = 206;
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + data.length);
+        }
+        long length = to - from + 1;
+        if ("HEAD".equals(method)) {
+            respond(exchange, method, range, ifRange, status, -1);
+            return;
+        }
+        respond(exchange, method, range, ifRange, status, length);
+
+        long end = (failure == Failure.DROP) ? length / 2 : length;
+        OutputStream out = exchange.getResponseBody();
+        long sent = 0;
+        long start = System.nanoTime();
+        try {
+            while (sent < end) {
+                int n = (int) Math.min(WRITE_SIZE, end - sent);
+                out.write(data, (int) (from + sent), n);
+                sent += n;
+                throttle(sent, start);
+            }
+            if (failure == Failure.DROP) {
+                out.flush();
+                throw new IOException("dropped at " + sent + " of " + length);
+            }
+            out.close();
+        } catch (IOException e) {
+            // A short fixed-length body closes the connection, which the client sees as a drop
+            exchange.close();
+        }
+    }
+
+    private void respond(HttpExchange exchange, String method, String range, String ifRange,
+                         int status, long length) throws IOException {
+        requests.add(new Request(method, range, ifRange, status));
+        exchange.sendResponseHeaders(status, length);
+        if (length < 0) exchange.close();
+    }
+
+    private void throttle(long sent, long start) {
+        long rate = bytesPerSecond;
+        if (rate <= 0) return;
+        long ahead = sent * 1000000000L / rate - (System.nanoTime() - start);
+        if (ahead <= 0) return;
+        try {
+            Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
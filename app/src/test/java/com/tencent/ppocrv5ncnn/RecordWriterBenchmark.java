@@ -0,0 +1,78 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+
+/**
+ * Serializing a 10-member record with RecordWriter against the org.json
+ * tree the extractors used to build, indented and compact. Runs only with
+ * -Dbenchmarks=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class RecordWriterBenchmark {
+    private static final int RUNS = 20000;
+
+    @Test
+    public void serializationTime() throws Exception {
+        assumeTrue("benchmark, run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        SamplePages.Page page = SamplePages.kartuKeluarga(10, 31);
+        SpatialExtractor.Template template = TemplateRegistry.load(RuntimeEnvironment.getApplication().getAssets()).kartuKeluarga();
+        KartuKeluargaRecord record = SpatialExtractor.extractRecord(page.json, template);
+        assertEquals(RecordWriter.toJson(page.truth), RecordWriter.toJson(record));
+        JSONObject tree = new JSONObject(RecordWriter.toJson(record));
+
+        // The first round warms up
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long indentedBytes = 0;
+            for (int i = 0; i < RUNS; i++) indentedBytes += tree.toString(2).length();
+            long indented = System.nanoTime();
+            long treeBytes = 0;
+            for (int i = 0; i < RUNS; i++) treeBytes += tree.toString().length();
+            long compact = System.nanoTime();
+            long writerBytes = 0;
+            for (int i = 0; i < RUNS; i++) writerBytes += RecordWriter.toJson(record).length();
+            long written = System.nanoTime();
+            StringBuilder lines = new StringBuilder(1 << 21);
+            RecordWriter writer = new RecordWriter(lines);
+            for (int i = 0; i < RUNS; i++) {
+                writer.writeLine(record);
+                if (lines.length() > (1 << 20)) lines.setLength(0);
+            }
+            long streamed = System.nanoTime();
+
+            if (round == 0) continue;
+            System.out.println(String.format(Locale.US,
+                "10-member record: JSONObject.toString(2) %.1f us %d B, toString() %.1f us %d B, "
+                    + "RecordWriter.toJson %.1f us %d B, writeLine %.1f us",
+                (indented - start) / 1e3 / RUNS, indentedBytes / RUNS,
+                (compact - indented) / 1e3 / RUNS, treeBytes / RUNS,
+                (written - compact) / 1e3 / RUNS, writerBytes / RUNS,
+                (streamed - written) / 1e3 / RUNS));
+        }
+    }
+}
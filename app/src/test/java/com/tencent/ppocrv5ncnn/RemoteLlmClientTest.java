@@ -0,0 +1,260 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RemoteLlmClient against LlmService running StubLlmEngine. Robolectric
+ * binds both ends in one process, so messages take the same Messenger and
+ * SharedMemory path as between the app and :llm, minus the process border.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class RemoteLlmClientTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    /** LlmService with the stub model of the running test. */
+    public static class StubLlmService extends LlmService {
+        static StubLlmEngine engine;
+
+        @Override
+        protected LlmEngine createEngine() {
+            return engine;
+        }
+    }
+
+    private Application app;
+    private StubLlmEngine engine;
+    private LlmService service;
+    private IBinder binder;
+    private RemoteLlmClient client;
+    private File model;
+
+    @Before
+    public void setUp() throws Exception {
+        app = RuntimeEnvironment.getApplication();
+        engine = new StubLlmEngine();
+        StubLlmService.engine = engine;
+        service = Robolectric.setupService(StubLlmService.class);
+        binder = service.onBind(new Intent(app, LlmService.class));
+        shadowOf(app).setComponentNameAndServiceForBindService(new ComponentName(app, LlmService.class), binder);
+
+        model = File.createTempFile("stub", ".task");
+        client = new RemoteLlmClient(app);
+        assertTrue(client.configure(app, model.getPath()));
+        // Connections are delivered on the main looper
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        service.onDestroy();
+        model.delete();
+    }
+
+    @Test
+    public void largeTextsCrossAsSharedMemory() {
+        String page = page(LlmChannel.INLINE_LIMIT * 4);
+        Bundle data = new Bundle();
+        LlmChannel.putText(data, LlmChannel.KEY_TEXT, page);
+        assertFalse(data.containsKey(LlmChannel.KEY_TEXT));
+        assertEquals(page, LlmChannel.getText(data, LlmChannel.KEY_TEXT));
+
+        Bundle small = new Bundle();
+        LlmChannel.putText(small, LlmChannel.KEY_TEXT, "No. KK");
+        assertEquals("No. KK", small.getString(LlmChannel.KEY_TEXT));
+    }
+
+    @Test
+    public void structuringStreamsAndReturnsALargePage() throws Exception {
+        String page = page(LlmChannel.INLINE_LIMIT * 4);
+        Recorder recorder = new Recorder();
+        client.structureKartuKeluargaAsync("page", page, 1, recorder);
+
+        assertTrue(recorder.await());
+        assertNull(recorder.error);
+        assertEquals(page, engine.lastText);
+        assertEquals(page, recorder.result);
+        assertEquals(1, recorder.partials.size());
+        assertEquals(StubLlmEngine.NO_KK, recorder.fields.get(0)[1]);
+        assertEquals(StubLlmEngine.MEMBER_NAME, recorder.members.get(0).get("nama"));
+        assertNotNull(client.getLastTiming());
+    }
+
+    @Test
+    public void generateTextReturnsTheResponse() throws Exception {
+        String prompt = page(LlmChannel.INLINE_LIMIT + 1);
+        assertEquals(prompt, client.generateText("prompt", prompt));
+        assertEquals("short", client.generateText("prompt", "short"));
+    }
+
+    @Test
+    public void tokenCountsOfAPageTakeOneMessage() {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < 40; i++) rows.add("row " + i + " " + page(i * 10));
+        int[] counts = client.countTokens(rows);
+
+        assertEquals(1, engine.countCalls.get());
+        assertEquals(rows.size(), counts.length);
+        for (int i = 0; i < counts.length; i++) assertEquals(rows.get(i).length(), counts[i]);
+        assertEquals(1000 - 100 * 3, client.inputTokenBudget(3));
+    }
+
+    @Test
+    public void cancelStopsAQueuedPrompt() throws Exception {
+        final Exception[] thrown = new Exception[1];
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.generateText("prompt", StubLlmEngine.HOLD + " koreksi NIK");
+                } catch (Exception e) {
+                    thrown[0] = e;
+                }
+            }
+        });
+        caller.start();
+        assertTrue(engine.awaitHeld(TIMEOUT_MS));
+
+        client.cancel("prompt");
+        caller.join(TIMEOUT_MS);
+        assertFalse(caller.isAlive());
+        assertTrue(String.valueOf(thrown[0]), thrown[0] instanceof CancellationException);
+    }
+
+    @Test
+    public void processDeathFailsCallsInFlightAndReconfigures() throws Exception {
+        Recorder recorder = new Recorder();
+        client.structureKartuKeluargaAsync("page", StubLlmEngine.HOLD, 1, recorder);
+        assertTrue(engine.awaitHeld(TIMEOUT_MS));
+
+        ServiceConnection connection = shadowOf(app).getBoundServiceConnections().get(0);
+        ComponentName name = new ComponentName(app, LlmService.class);
+        connection.onServiceDisconnected(name);
+        assertTrue(recorder.await());
+        assertEquals("LLM process stopped", recorder.error);
+        assertNull(recorder.result);
+
+        // The binding brings the process back; the model path is sent again before the next call
+        connection.onServiceConnected(name, binder);
+        int[] counts = client.countTokens(Collections.singletonList("NIK"));
+        assertArrayEquals(new int[] {3}, counts);
+        assertEquals(2, engine.configures.get());
+    }
+
+    @Test
+    public void callsBeforeConfigureFailFast() throws Exception {
+        RemoteLlmClient unbound = new RemoteLlmClient(app);
+        try {
+            Recorder recorder = new Recorder();
+            unbound.structureKartuKeluargaAsync("page", "No. KK", 1, recorder);
+            assertTrue(recorder.await());
+            assertEquals("LLM not initialized", recorder.error);
+            try {
+                unbound.generateText("prompt", "No. KK");
+                fail("generateText without a model");
+            } catch (IllegalStateException expected) {
+                // nothing to wait for
+            }
+        } finally {
+            unbound.close();
+        }
+    }
+
+    /** A text of about length chars with the non-ASCII letters OCR produces. */
+    private static String page(int length) {
+        StringBuilder sb = new StringBuilder(length + 32);
+        int row = 0;
+        while (sb.length() < length) {
+            sb.append(row++).append(" | SITI N\u00dcR\u00c9 | 3171015505900002 | PEREMPUAN\n");
+        }
+        return sb.toString();
+    }
+
+    /** Everything one structuring call delivered. */
+    private static class Recorder implements LlmHelper.LlmCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<String> partials = new ArrayList<>();
+        final List<String[]> fields = new ArrayList<>();
+        final List<FamilyMember> members = new ArrayList<>();
+        volatile String result;
+        volatile String error;
+
+        boolean await() throws InterruptedException {
+            return done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onResult(String result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(String error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        public void onPartialResult(String partialResult) {
+            partials.add(partialResult);
+        }
+
+        @Override
+        public void onField(String key, String value) {
+            fields.add(new String[] {key, value});
+        }
+
+        @Override
+        public void onMember(int index, FamilyMember member) {
+            members.add(member);
+        }
+    }
+}
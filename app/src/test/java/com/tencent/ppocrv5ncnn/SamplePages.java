@@ -0,0 +1,199 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.content.res.AssetManager;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic OCR output for tests and benchmarks: a Kartu Keluarga page laid
+ * out like the printed form (title, No. KK, header labels, both member
+ * tables, the issuing footer and the e-signature note), in the box JSON of
+ * recognizeImageWithBoxes, together with the record it shows.
+ */
+final class SamplePages {
+    private static final String[] NAMES = {
+        "BUDI SANTOSO", "SITI AMINAH", "ANDI PRATAMA", "RINA LESTARI",
+        "DODI HERMAWAN", "EKA PUTRI", "FAJAR NUGROHO", "GITA SARI"
+    };
+
+    /** A page and the values printed on it. */
+    static final class Page {
+        final String json;
+        final KartuKeluargaRecord truth;
+
+        Page(String json, KartuKeluargaRecord truth) {
+            this.json = json;
+            this.truth = truth;
+        }
+    }
+
+    private final StringBuilder sb = new StringBuilder("[");
+    private final Random random;
+
+    private SamplePages(long seed) {
+        random = new Random(seed);
+    }
+
+    /** A clean page with members rows; the same seed gives the same page. */
+    static Page kartuKeluarga(int members, long seed) {
+        return new SamplePages(seed).build(members);
+    }
+
+    /** Template JSON sources under assets/templates, as TemplateRegistry.load reads them. */
+    static List<String> templateSources(AssetManager assets) throws IOException {
+        String[] names = assets.list("templates");
+        Arrays.sort(names);
+        List<String> sources = new ArrayList<>();
+        for (String name : names) {
+            if (!name.endsWith(".json")) continue;
+            InputStream in = assets.open("templates/" + name);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+                sources.add(out.toString("UTF-8"));
+            } finally {
+                in.close();
+            }
+        }
+        return sources;
+    }
+
+    private Page build(int members) {
+        KartuKeluargaRecord truth = new KartuKeluargaRecord();
+        truth.noKk = String.format(Locale.US, "3273%012d", random.nextInt(1 << 30));
+        truth.kepalaKeluarga = NAMES[0];
+        truth.alamat = "JL MERDEKA " + (1 + random.nextInt(99));
+        truth.rtRw = String.format(Locale.US, "%03d/%03d", 1 + random.nextInt(20), 1 + random.nextInt(20));
+        truth.desaKelurahan = "SUKAMAJU";
+        truth.kecamatan = "CIBIRU";
+        truth.kabupatenKota = "BANDUNG";
+        truth.provinsi = "JAWA BARAT";
+
+        box("KARTU KELUARGA", 400, 10, 300);
+        box("No. " + truth.noKk, 420, 40, 260);
+        box("Nama Kepala Keluarga", 20, 80, 200);
+        box(": " + truth.kepalaKeluarga, 230, 80, 200);
+        box("Desa/Kelurahan", 600, 80, 150);
+        box(": " + truth.desaKelurahan, 760, 80, 150);
+        box("Alamat", 20, 110, 100);
+        box(": " + truth.alamat, 230, 110, 200);
+        box("Kecamatan", 600, 110, 120);
+        box(": " + truth.kecamatan, 760, 110, 150);
+        box("RT/RW", 20, 140, 60);
+        box(": " + truth.rtRw, 230, 140, 100);
+        box("Kabupaten/Kota", 600, 140, 150);
+        box(": " + truth.kabupatenKota, 760, 140, 150);
+        box("Provinsi", 600, 170, 100);
+        box(": " + truth.provinsi, 760, 170, 150);
+
+        float y = 220;
+        box("No", 5, y, 20);
+        box("Nama Lengkap", 40, y, 150);
+        box("NIK", 220, y, 60);
+        box("Jenis Kelamin", 400, y, 100);
+        box("Tempat Lahir", 520, y, 100);
+        box("Tanggal Lahir", 640, y, 100);
+        box("Agama", 760, y, 60);
+        box("Pendidikan", 840, y, 100);
+        box("Jenis Pekerjaan", 960, y, 120);
+        for (int i = 0; i < members; i++) {
+            y += 30;
+            FamilyMember m = member(i);
+            truth.members.add(m);
+            box(String.valueOf(i + 1), 8, y, 15);
+            box(m.nama, 40, y, 150);
+            box(m.nik, 200, y, 180);
+            box(m.jenisKelamin, 400, y, 100);
+            box(m.tempatLahir, 520, y, 100);
+            box(m.tanggalLahir, 640, y, 100);
+            box(m.agama, 760, y, 60);
+            box(m.pendidikan, 840, y, 120);
+            box(m.pekerjaan, 960, y, 120);
+        }
+
+        y += 50;
+        box("No", 5, y, 20);
+        box("Status Perkawinan", 40, y, 150);
+        box("Status Hubungan Dalam Keluarga", 220, y, 200);
+        box("Kewarganegaraan", 440, y, 140);
+        box("Nama Ayah", 620, y, 150);
+        box("Nama Ibu", 800, y, 150);
+        for (int i = 0; i < members; i++) {
+            y += 30;
+            FamilyMember m = truth.members.get(i);
+            box(String.valueOf(i + 1), 8, y, 15);
+            box(m.statusPerkawinan, 40, y, 150);
+            box(m.hubunganKeluarga, 220, y, 200);
+            box(m.kewarganegaraan, 440, y, 140);
+            box(m.namaAyah, 620, y, 150);
+            box(m.namaIbu, 800, y, 150);
+        }
+
+        y += 60;
+        box("Dikeluarkan Tanggal : 01-01-2020", 20, y, 300);
+        box("LEMBAR I : Untuk Kepala Keluarga", 20, y + 30, 300);
+        box("KEPALA KELUARGA", 100, y + 80, 140);
+        box("KEPALA DINAS KEPENDUDUKAN DAN", 600, y + 80, 280);
+        box("PENCATATAN SIPIL KOTA BANDUNG", 600, y + 110, 280);
+        box(truth.kepalaKeluarga, 100, y + 200, 120);
+        box("Drs. H. AHMAD SUHARTO, M.Si", 600, y + 200, 250);
+        box("NIP. 196512311990031001", 600, y + 230, 220);
+        box("Dokumen ini telah ditandatangani secara elektronik menggunakan sertifikat elektronik", 20, y + 300, 760);
+        box("yang diterbitkan oleh Balai Sertifikasi Elektronik (BSrE), BSSN", 20, y + 330, 560);
+        return new Page(sb.append(']').toString(), truth);
+    }
+
+    private FamilyMember member(int i) {
+        boolean female = i % 2 == 1;
+        FamilyMember m = new FamilyMember();
+        m.nama = NAMES[i % NAMES.length];
+        m.nik = String.format(Locale.US, "3273%02d%02d%02d%02d%04d", random.nextInt(99),
+            1 + random.nextInt(28) + (female ? 40 : 0), 1 + random.nextInt(12), 70 + random.nextInt(29), 1 + i);
+        m.jenisKelamin = female ? "PEREMPUAN" : "LAKI-LAKI";
+        m.tempatLahir = "BANDUNG";
+        m.tanggalLahir = String.format(Locale.US, "%02d-%02d-19%02d",
+            1 + random.nextInt(28), 1 + random.nextInt(12), 70 + random.nextInt(29));
+        m.agama = "ISLAM";
+        m.pendidikan = "SLTA/SEDERAJAT";
+        m.pekerjaan = "KARYAWAN SWASTA";
+        m.statusPerkawinan = i < 2 ? "KAWIN" : "BELUM KAWIN";
+        m.hubunganKeluarga = i == 0 ? "KEPALA KELUARGA" : i == 1 ? "ISTRI" : "ANAK";
+        m.kewarganegaraan = "WNI";
+        m.namaAyah = i < 2 ? "-" : NAMES[0];
+        m.namaIbu = i < 2 ? "-" : NAMES[1];
+        return m;
+    }
+
+    private void box(String text, float x, float y, float w) {
+        float h = 20;
+        if (sb.length() > 1) sb.append(',');
+        sb.append(String.format(Locale.US,
+            "{\"text\":%s,\"x\":%.1f,\"y\":%.1f,\"w\":%.1f,\"h\":%.1f,\"cx\":%.1f,\"cy\":%.1f,\"c\":%.3f}",
+            JSONObject.quote(text), x, y, w, h, x + w / 2, y + h / 2, 0.93f + random.nextFloat() * 0.06f));
+    }
+}
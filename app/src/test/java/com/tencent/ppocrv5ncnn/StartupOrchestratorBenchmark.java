@@ -0,0 +1,135 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StartupOrchestrator with stand-in loads of 300 ms (OCR engine), 100 ms
+ * (lexicons) and a failing LLM check, plus a 200 ms OCR reload queued
+ * behind the first load. A HandlerThread plays the main thread. Prints
+ * when each component was ready against the time the loads take one after
+ * another. Runs only with -Dbenchmarks=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class StartupOrchestratorBenchmark {
+    private static final long OCR_MS = 300;
+    private static final long LEXICONS_MS = 100;
+    private static final long RELOAD_MS = 200;
+
+    @Test
+    public void parallelStartup() throws Exception {
+        assumeTrue("benchmark, run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        HandlerThread main = new HandlerThread("main");
+        main.start();
+        StartupOrchestrator orchestrator = new StartupOrchestrator(new Handler(main.getLooper()));
+        final long start = System.nanoTime();
+        final List<String> ready = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> callbackThreads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch all = new CountDownLatch(4);
+
+        CompletableFuture<String> ocr = orchestrator.load("ocr", new Sleep("ocr", OCR_MS));
+        orchestrator.whenReady(ocr, new Recorder("ocr", start, ready, callbackThreads, all));
+        orchestrator.whenReady(orchestrator.load("lexicons", new Sleep("lexicons", LEXICONS_MS)),
+            new Recorder("lexicons", start, ready, callbackThreads, all));
+        orchestrator.whenReady(orchestrator.load("llm", new StartupOrchestrator.Component<String>() {
+            @Override
+            public String load() throws Exception {
+                throw new IOException("no model");
+            }
+        }), new Recorder("llm", start, ready, callbackThreads, all));
+        orchestrator.whenReady(orchestrator.loadAfter(ocr, "ocr reload", new Sleep("ocr reload", RELOAD_MS)),
+            new Recorder("ocr reload", start, ready, callbackThreads, all));
+
+        assertTrue(all.await(5, TimeUnit.SECONDS));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        orchestrator.shutdown();
+        main.quit();
+
+        System.out.println(String.format(Locale.US, "all ready in %d ms, %d ms one after another: %s",
+            elapsedMs, OCR_MS + LEXICONS_MS + RELOAD_MS, ready));
+        // Ready callbacks run on the main thread in completion order; the reload waits for the first load
+        assertEquals(Arrays.asList("llm", "lexicons", "ocr", "ocr reload"), names(ready));
+        for (String thread : callbackThreads) assertEquals("main", thread);
+        assertTrue(elapsedMs >= OCR_MS + RELOAD_MS);
+    }
+
+    private static List<String> names(List<String> ready) {
+        List<String> names = new ArrayList<>();
+        for (String entry : ready) names.add(entry.substring(0, entry.indexOf(" at ")));
+        return names;
+    }
+
+    private static class Sleep implements StartupOrchestrator.Component<String> {
+        private final String name;
+        private final long ms;
+
+        Sleep(String name, long ms) {
+            this.name = name;
+            this.ms = ms;
+        }
+
+        @Override
+        public String load() throws Exception {
+            Thread.sleep(ms);
+            return name;
+        }
+    }
+
+    private static class Recorder implements StartupOrchestrator.ReadyListener<String> {
+        private final String name;
+        private final long start;
+        private final List<String> ready;
+        private final List<String> callbackThreads;
+        private final CountDownLatch all;
+
+        Recorder(String name, long start, List<String> ready, List<String> callbackThreads, CountDownLatch all) {
+            this.name = name;
+            this.start = start;
+            this.ready = ready;
+            this.callbackThreads = callbackThreads;
+            this.all = all;
+        }
+
+        @Override
+        public void onReady(String value, Throwable error) {
+            ready.add(String.format(Locale.US, "%s at %d ms%s", name, (System.nanoTime() - start) / 1000000,
+                error != null ? " (" + error.getMessage() + ")" : ""));
+            callbackThreads.add(Thread.currentThread().getName());
+            all.countDown();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import android.content.Context;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stub model for tests: answers every call with its own input instead of
+ * running MediaPipe. Calls run one at a time on a worker thread, as on
+ * LlmHelper's queue. A text starting with HOLD keeps the worker until
+ * cancel(key) or close(); a token is one character.
+ */
+class StubLlmEngine implements LlmEngine {
+    static final String HOLD = "HOLD";
+    static final String NO_KK = "3171010101010001";
+    static final String MEMBER_NAME = "BUDI SANTOSO";
+
+    final AtomicInteger configures = new AtomicInteger();
+    final AtomicInteger countCalls = new AtomicInteger();
+    volatile String lastText;
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final Map<String, CountDownLatch> held = new ConcurrentHashMap<>();
+    private final CountDownLatch holding = new CountDownLatch(1);
+    private final LlmHelper.MemoryStats memoryStats = new LlmHelper.MemoryStats();
+    private volatile String modelPath;
+
+    /** True once a HOLD call occupies the worker. */
+    boolean awaitHeld(long timeoutMs) throws InterruptedException {
+        return holding.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean configure(Context context, String modelPath) {
+        configures.incrementAndGet();
+        this.modelPath = modelPath;
+        return true;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return modelPath != null;
+    }
+
+    @Override
+    public int inputTokenBudget(int expectedMembers) {
+        return 1000 - 100 * expectedMembers;
+    }
+
+    @Override
+    public int countTokens(String text) {
+        return countTokens(Collections.singletonList(text))[0];
+    }
+
+    @Override
+    public int[] countTokens(List<String> texts) {
+        countCalls.incrementAndGet();
+        int[] counts = new int[texts.size()];
+        for (int i = 0; i < counts.length; i++) counts[i] = texts.get(i).length();
+        return counts;
+    }
+
+    @Override
+    public void structureKartuKeluargaAsync(final String key, final String ocrText, int expectedMembers,
+                                            final LlmHelper.LlmCallback callback) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!hold(key, ocrText, callback)) return;
+                callback.onPartialResult("{\"no_kk\":");
+                callback.onField("no_kk", NO_KK);
+                callback.onMember(0, member());
+                callback.onResult(ocrText);
+            }
+        });
+    }
+
+    @Override
+    public String generateText(String key, String prompt) {
+        throw new UnsupportedOperationException("LlmService only calls generateTextAsync");
+    }
+
+    @Override
+    public void generateTextAsync(final String key, final String prompt, final LlmHelper.LlmCallback callback) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (hold(key, prompt, callback)) callback.onResult(prompt);
+            }
+        });
+    }
+
+    @Override
+    public void cancel(String key) {
+        CountDownLatch call = key != null ? held.remove(key) : null;
+        if (call != null) call.countDown();
+    }
+
+    @Override
+    public void trimMemory(int level) {
+    }
+
+    @Override
+    public LlmHelper.Timing getLastTiming() {
+        return new LlmHelper.Timing();
+    }
+
+    @Override
+    public LlmHelper.MemoryStats getMemoryStats() {
+        return memoryStats;
+    }
+
+    @Override
+    public void close() {
+        for (CountDownLatch call : held.values()) call.countDown();
+        held.clear();
+        worker.shutdownNow();
+    }
+
+    /** Record text and, for a HOLD text, wait for a cancel; false when cancelled. */
+    private boolean hold(String key, String text, LlmHelper.LlmCallback callback) {
+        lastText = text;
+        if (!text.startsWith(HOLD)) return true;
+        CountDownLatch cancelled = new CountDownLatch(1);
+        held.put(key, cancelled);
+        holding.countDown();
+        try {
+            cancelled.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        callback.onError("LLM request cancelled");
+        return false;
+    }
+
+    private static FamilyMember member() {
+        try {
+            return FamilyMember.fromJson(new JSONObject().put("nama", MEMBER_NAME).put("nik", NO_KK));
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
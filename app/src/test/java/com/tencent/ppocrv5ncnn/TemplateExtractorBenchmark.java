@@ -0,0 +1,72 @@
+// Tencent is pleased to support the open source community by making ncnn available.
+//
+// Copyright (C) 2025 THL A29 Limited, a Tencent company. All rights reserved.
+//
+// Licensed under the BSD 3-Clause License (the "License"); you may not use this file except
+// in compliance with the License. You may obtain a copy of the License at
+//
+// https://opensource.org/licenses/BSD-3-Clause
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.tencent.ppocrv5ncnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Cost of template extraction as document types are added: every label of
+ * every template is matched in one scan of the rows, so the time per page
+ * should grow with the keywords hit, not with a scan per template. Runs
+ * only with -Dbenchmarks=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TemplateExtractorBenchmark {
+    private static final int WARMUP = 2000;
+    private static final int RUNS = 5000;
+
+    @Test
+    public void extractionTimeByTemplateCount() throws Exception {
+        assumeTrue("benchmark, run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        List<String> shipped = SamplePages.templateSources(RuntimeEnvironment.getApplication().getAssets());
+        DocumentLayout layout = DocumentLayout.parse(SamplePages.kartuKeluarga(8, 27).json);
+        String expected = null;
+
+        for (int copies : new int[] {1, 4, 16, 64}) {
+            // Renamed copies with their own labels stand in for other document types
+            List<String> sources = new ArrayList<>(shipped);
+            for (int c = 1; c < copies; c++) {
+                for (String source : shipped) {
+                    sources.add(source.replace("\"id\": \"", "\"id\": \"copy" + c + "_")
+                        .replace("Kecamatan", "Kecamatan" + c).replace("\"Nama\"", "\"Nama" + c + "\""));
+                }
+            }
+            TemplateRegistry registry = TemplateRegistry.fromJson(sources);
+
+            JSONObject result = null;
+            for (int i = 0; i < WARMUP; i++) result = TemplateExtractor.extract(layout, registry, null);
+            if (expected == null) expected = result.toString();
+            assertEquals("more templates changed the result", expected, result.toString());
+
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) TemplateExtractor.extract(layout, registry, null);
+            System.out.println(String.format(Locale.US, "TemplateExtractor %3d templates: %.1f us per 8-member page",
+                sources.size(), (System.nanoTime() - start) / 1e3 / RUNS));
+        }
+    }
+}